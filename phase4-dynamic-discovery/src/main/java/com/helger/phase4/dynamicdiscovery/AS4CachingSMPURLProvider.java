@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.net.URI;
+import java.time.Duration;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.phase4.util.AS4LookupCache;
+import com.helger.smpclient.url.ISMPURLProvider;
+import com.helger.smpclient.url.SMPDNSResolutionException;
+
+/**
+ * An {@link ISMPURLProvider} that caches the SMP URIs resolved by another
+ * {@link ISMPURLProvider} (e.g. the hashed participant host names of the
+ * Peppol SML or the NAPTR records of BDXL). Successful resolutions and
+ * resolution errors (negative caching) are cached with separate time to live
+ * values and the number of cached entries is bounded. Use it when creating the
+ * SMP client, e.g.
+ * <code>new SMPClientReadOnly (aCachingURLProvider, aReceiverID, aSML)</code>.
+ * The instance should be shared across SMP clients.<br>
+ * Note: the BDXL URL providers of the SMP client contain their own unbounded
+ * DNS cache without expiration. Disable that via
+ * <code>setUseDNSCache(false)</code> when wrapping them.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4CachingSMPURLProvider implements ISMPURLProvider
+{
+  /** The default time to live of resolved SMP URIs */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes (10);
+  /** The default time to live of failed resolutions */
+  public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes (1);
+  /** The default maximum number of cached SMP URIs */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+
+  private final ISMPURLProvider m_aDelegate;
+  private final AS4LookupCache <String, URI> m_aCache;
+
+  /**
+   * Constructor using the default TTLs and maximum size.
+   *
+   * @param aDelegate
+   *        The URL provider performing the real resolution. May not be
+   *        <code>null</code>.
+   */
+  public AS4CachingSMPURLProvider (@Nonnull final ISMPURLProvider aDelegate)
+  {
+    this (aDelegate, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDelegate
+   *        The URL provider performing the real resolution. May not be
+   *        <code>null</code>.
+   * @param aTTL
+   *        The time to live of resolved SMP URIs. May not be <code>null</code>
+   *        and must be positive.
+   * @param aNegativeTTL
+   *        The time to live of failed resolutions. May not be
+   *        <code>null</code>. Use {@link Duration#ZERO} to disable negative
+   *        caching.
+   * @param nMaxSize
+   *        The maximum number of cached entries. Must be &gt; 0.
+   */
+  public AS4CachingSMPURLProvider (@Nonnull final ISMPURLProvider aDelegate,
+                                   @Nonnull final Duration aTTL,
+                                   @Nonnull final Duration aNegativeTTL,
+                                   @Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.notNull (aDelegate, "Delegate");
+    m_aDelegate = aDelegate;
+    m_aCache = new AS4LookupCache <> ("sml-dns", aTTL, aNegativeTTL, nMaxSize);
+  }
+
+  /**
+   * @return The URL provider performing the real resolution as provided in
+   *         the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public final ISMPURLProvider getDelegate ()
+  {
+    return m_aDelegate;
+  }
+
+  @Nonnull
+  private static String _getCacheKey (@Nonnull final IParticipantIdentifier aParticipantIdentifier, @Nonnull final String sSMLZoneName)
+  {
+    return aParticipantIdentifier.getURIEncoded () + '@' + sSMLZoneName;
+  }
+
+  @Nonnull
+  public URI getSMPURIOfParticipant (@Nonnull final IParticipantIdentifier aParticipantIdentifier,
+                                     @Nullable final String sSMLZoneName) throws SMPDNSResolutionException
+  {
+    ValueEnforcer.notNull (aParticipantIdentifier, "ParticipantIdentifier");
+
+    final String sKey = _getCacheKey (aParticipantIdentifier, sSMLZoneName);
+    // Remember the original exception for the caller that performed the lookup
+    final Wrapper <SMPDNSResolutionException> aException = new Wrapper <> ();
+    final URI ret = m_aCache.getOrLookup (sKey, k -> {
+      try
+      {
+        return m_aDelegate.getSMPURIOfParticipant (aParticipantIdentifier, sSMLZoneName);
+      }
+      catch (final SMPDNSResolutionException ex)
+      {
+        aException.set (ex);
+        // Negative caching
+        return null;
+      }
+    });
+    if (ret == null)
+    {
+      if (aException.isSet ())
+        throw aException.get ();
+      throw new SMPDNSResolutionException ("The SMP URI of participant '" +
+                                           aParticipantIdentifier.getURIEncoded () +
+                                           "' in SML zone '" +
+                                           sSMLZoneName +
+                                           "' could not be resolved (cached)");
+    }
+    return ret;
+  }
+
+  /**
+   * Remove the cached resolution of a single participant, e.g. after the SMP
+   * registration changed.
+   *
+   * @param aParticipantIdentifier
+   *        The participant to remove. May not be <code>null</code>.
+   * @param sSMLZoneName
+   *        The SML zone name used in the resolution. May be <code>null</code>.
+   */
+  public void invalidate (@Nonnull final IParticipantIdentifier aParticipantIdentifier, @Nullable final String sSMLZoneName)
+  {
+    ValueEnforcer.notNull (aParticipantIdentifier, "ParticipantIdentifier");
+    m_aCache.remove (_getCacheKey (aParticipantIdentifier, sSMLZoneName));
+  }
+
+  /**
+   * Remove all cached resolutions.
+   */
+  public void clearCache ()
+  {
+    m_aCache.clear ();
+  }
+
+  /**
+   * @return The number of currently cached resolutions, including the failed
+   *         ones.
+   */
+  @Nonnegative
+  public int getCachedCount ()
+  {
+    return m_aCache.size ();
+  }
+
+  /**
+   * @return The number of resolutions answered from the cache.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aCache.getHitCount ();
+  }
+
+  /**
+   * @return The number of resolutions that were delegated to the wrapped URL
+   *         provider.
+   */
+  @Nonnegative
+  public long getMissCount ()
+  {
+    return m_aCache.getLookupCount ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Delegate", m_aDelegate).append ("Cache", m_aCache).getToString ();
+  }
+}
@@ -46,7 +46,7 @@ import com.helger.xsds.bdxr.smp2.ac.EndpointType;
  * @author Philip Helger
  * @since 0.10.6
  */
-public class AS4EndpointDetailProviderBDXR2 implements IAS4EndpointDetailProvider
+public class AS4EndpointDetailProviderBDXR2 extends AbstractAS4EndpointDetailProviderSMP <AS4EndpointDetailProviderBDXR2>
 {
   public static final ISMPTransportProfile DEFAULT_TRANSPORT_PROFILE = ESMPTransportProfile.TRANSPORT_PROFILE_BDXR_AS4;
 
@@ -134,7 +134,13 @@ public class AS4EndpointDetailProviderBDXR2 implements IAS4EndpointDetailProvide
       // Perform SMP lookup
       try
       {
-        m_aEndpoint = m_aSMPClient.getEndpoint (aReceiverID, aDocTypeID, aProcID, m_aTP);
+        final ISMPTransportProfile aTP = m_aTP;
+        m_aEndpoint = lookupEndpoint (m_aSMPClient,
+                                      aReceiverID,
+                                      aDocTypeID,
+                                      aProcID,
+                                      aTP,
+                                      () -> m_aSMPClient.getEndpoint (aReceiverID, aDocTypeID, aProcID, aTP));
         if (m_aEndpoint == null)
           throw new Phase4SMPException ("Failed to resolve SMP endpoint (" +
                                         aReceiverID.getURIEncoded () +
@@ -46,7 +46,7 @@ import com.helger.xsds.peppol.smp1.EndpointType;
  * @author Philip Helger
  * @since 0.10.6
  */
-public class AS4EndpointDetailProviderPeppol implements IAS4EndpointDetailProvider
+public class AS4EndpointDetailProviderPeppol extends AbstractAS4EndpointDetailProviderSMP <AS4EndpointDetailProviderPeppol>
 {
   public static final ISMPTransportProfile DEFAULT_TRANSPORT_PROFILE = ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2;
 
@@ -134,7 +134,13 @@ public class AS4EndpointDetailProviderPeppol implements IAS4EndpointDetailProvid
       // Perform SMP lookup
       try
       {
-        m_aEndpoint = m_aSMPClient.getEndpoint (aReceiverID, aDocTypeID, aProcID, m_aTP);
+        final ISMPTransportProfile aTP = m_aTP;
+        m_aEndpoint = lookupEndpoint (m_aSMPClient,
+                                      aReceiverID,
+                                      aDocTypeID,
+                                      aProcID,
+                                      aTP,
+                                      () -> m_aSMPClient.getEndpoint (aReceiverID, aDocTypeID, aProcID, aTP));
         if (m_aEndpoint == null)
           throw new Phase4SMPException ("Failed to resolve SMP endpoint (" +
                                         aReceiverID.getURIEncoded () +
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.time.Duration;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.functional.IThrowingFunction;
+import com.helger.phase4.util.AS4LookupCache;
+
+/**
+ * Holder for the process wide SMP endpoint cache that is shared by all
+ * {@link AS4EndpointDetailProviderPeppol}, {@link AS4EndpointDetailProviderBDXR}
+ * and {@link AS4EndpointDetailProviderBDXR2} instances. The cached values are
+ * the SMP specific endpoint objects - the cache key contains the SMP client
+ * type, so that different endpoint types never clash.<br>
+ * Note: SMP clients only share results if they query the same SMP host with
+ * the same trust configuration (see {@link AS4SMPEndpointCacheKey}). Use
+ * {@link AbstractAS4EndpointDetailProviderSMP#setUseSharedCache(boolean)} for
+ * clients that need to be isolated.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@NotThreadSafe
+public final class AS4SMPEndpointCache
+{
+  /** The default time to live of resolved endpoints */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes (15);
+  /** The default time to live of "not found" results */
+  public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes (1);
+  /** The default maximum number of cached endpoints */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+  /** The default duration before the expiration in which hits trigger a refresh */
+  public static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes (3);
+
+  private static AS4LookupCache <AS4SMPEndpointCacheKey, Object> s_aCache = createDefaultCache ();
+  // Set while running in refresh mode
+  private static final ThreadLocal <Boolean> FORCE_REFRESH = new ThreadLocal <> ();
+
+  private AS4SMPEndpointCache ()
+  {}
+
+  /**
+   * @return A new cache with the default settings. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4LookupCache <AS4SMPEndpointCacheKey, Object> createDefaultCache ()
+  {
+    return new AS4LookupCache <AS4SMPEndpointCacheKey, Object> ("smp-endpoint",
+                                                                DEFAULT_TTL,
+                                                                DEFAULT_NEGATIVE_TTL,
+                                                                DEFAULT_MAX_SIZE).setBackgroundRefresh (DEFAULT_REFRESH_AHEAD,
+                                                                                                        null);
+  }
+
+  /**
+   * @return The shared SMP endpoint cache. May be <code>null</code> if caching
+   *         is disabled. Use {@link AS4LookupCache#clear()} or
+   *         {@link AS4LookupCache#removeIf(java.util.function.Predicate)} to
+   *         invalidate entries, e.g. after an SMP registration changed.
+   */
+  @Nullable
+  public static AS4LookupCache <AS4SMPEndpointCacheKey, Object> getCache ()
+  {
+    return s_aCache;
+  }
+
+  /**
+   * Set the shared SMP endpoint cache.
+   *
+   * @param aCache
+   *        The cache to use. May be <code>null</code> to disable caching.
+   */
+  public static void setCache (@Nullable final AS4LookupCache <AS4SMPEndpointCacheKey, Object> aCache)
+  {
+    s_aCache = aCache;
+  }
+
+  /**
+   * Get the cached endpoint or perform the lookup. This is the method used by
+   * the endpoint detail providers, so that the lookup is forced inside
+   * {@link #runWithRefresh(IThrowingRunnable)}. Custom endpoint detail
+   * providers using the shared cache should use it as well.
+   *
+   * @param <EXTYPE>
+   *        The exception type the lookup may throw
+   * @param aCache
+   *        The cache to use. May not be <code>null</code>.
+   * @param aKey
+   *        The cache key. May not be <code>null</code>.
+   * @param aLookup
+   *        The function performing the real SMP lookup. May not be
+   *        <code>null</code>.
+   * @return The cached or looked up endpoint. May be <code>null</code>.
+   * @throws EXTYPE
+   *         If the lookup fails
+   * @see AS4LookupCache#getOrLookup(Object, IThrowingFunction)
+   * @see AS4LookupCache#refresh(Object, IThrowingFunction)
+   */
+  @Nullable
+  public static <EXTYPE extends Exception> Object getOrLookup (@Nonnull final AS4LookupCache <AS4SMPEndpointCacheKey, Object> aCache,
+                                                               @Nonnull final AS4SMPEndpointCacheKey aKey,
+                                                               @Nonnull final IThrowingFunction <? super AS4SMPEndpointCacheKey, ?, EXTYPE> aLookup) throws EXTYPE
+  {
+    ValueEnforcer.notNull (aCache, "Cache");
+    if (isRefreshing ())
+      return aCache.refresh (aKey, aLookup);
+    return aCache.getOrLookup (aKey, aLookup);
+  }
+
+  /**
+   * @return <code>true</code> if the current thread is running inside
+   *         {@link #runWithRefresh(IThrowingRunnable)}.
+   */
+  public static boolean isRefreshing ()
+  {
+    return Boolean.TRUE.equals (FORCE_REFRESH.get ());
+  }
+
+  /**
+   * Run the provided code, so that all endpoint lookups of the endpoint detail
+   * providers in the current thread bypass the cached values and update the
+   * shared cache. If a lookup fails, the previously cached endpoint is kept.
+   * This is used by the {@link AS4SMPEndpointPrefetcher} and for background
+   * refreshes of derived caches.
+   *
+   * @param <EXTYPE>
+   *        The exception type the runnable may throw
+   * @param aRunnable
+   *        The code to run. May not be <code>null</code>.
+   * @throws EXTYPE
+   *         If the runnable throws it
+   */
+  public static <EXTYPE extends Exception> void runWithRefresh (@Nonnull final IThrowingRunnable <EXTYPE> aRunnable) throws EXTYPE
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+    final Boolean aOld = FORCE_REFRESH.get ();
+    FORCE_REFRESH.set (Boolean.TRUE);
+    try
+    {
+      aRunnable.run ();
+    }
+    finally
+    {
+      if (aOld == null)
+        FORCE_REFRESH.remove ();
+      else
+        FORCE_REFRESH.set (aOld);
+    }
+  }
+}
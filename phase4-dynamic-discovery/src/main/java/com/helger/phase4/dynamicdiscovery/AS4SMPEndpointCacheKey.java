@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.smpclient.httpclient.AbstractGenericSMPClient;
+
+/**
+ * The key for the shared SMP endpoint cache. SMP clients that are derived from
+ * {@link AbstractGenericSMPClient} are identified by their implementation
+ * class, the SMP host URI and their trust configuration (signature
+ * verification, XML Schema validation, redirect handling and the content of the
+ * trust store), so that different client instances querying the same SMP with
+ * the same configuration share the results. All other SMP clients are compared
+ * by identity.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class AS4SMPEndpointCacheKey
+{
+  private final Object m_aSMPKey;
+  private final String m_sReceiverID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+  private final String m_sTransportProfileID;
+
+  public AS4SMPEndpointCacheKey (@Nonnull final Object aSMPClient,
+                                 @Nonnull final IParticipantIdentifier aReceiverID,
+                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                 @Nonnull final IProcessIdentifier aProcessID,
+                                 @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    ValueEnforcer.notNull (aSMPClient, "SMPClient");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aTransportProfile, "TransportProfile");
+    m_aSMPKey = _getSMPKey (aSMPClient);
+    m_sReceiverID = aReceiverID.getURIEncoded ();
+    m_sDocTypeID = aDocTypeID.getURIEncoded ();
+    m_sProcessID = aProcessID.getURIEncoded ();
+    m_sTransportProfileID = aTransportProfile.getID ();
+  }
+
+  @Nonnull
+  private static String _getTrustStoreFingerprint (@Nullable final KeyStore aTrustStore) throws GeneralSecurityException
+  {
+    if (aTrustStore == null)
+      return "none";
+
+    final List <String> aAliases = Collections.list (aTrustStore.aliases ());
+    Collections.sort (aAliases);
+    final MessageDigest aMD = MessageDigest.getInstance ("SHA-256");
+    for (final String sAlias : aAliases)
+    {
+      final Certificate aCert = aTrustStore.getCertificate (sAlias);
+      if (aCert != null)
+      {
+        aMD.update (sAlias.getBytes (StandardCharsets.UTF_8));
+        aMD.update (aCert.getEncoded ());
+      }
+    }
+    return StringHelper.getHexEncoded (aMD.digest ());
+  }
+
+  @Nonnull
+  private static Object _getSMPKey (@Nonnull final Object aSMPClient)
+  {
+    if (aSMPClient instanceof AbstractGenericSMPClient <?>)
+    {
+      final AbstractGenericSMPClient <?> aGenericClient = (AbstractGenericSMPClient <?>) aSMPClient;
+      try
+      {
+        return aSMPClient.getClass ().getName () +
+               ' ' +
+               aGenericClient.getSMPHostURI () +
+               ' ' +
+               aGenericClient.isVerifySignature () +
+               ' ' +
+               aGenericClient.isXMLSchemaValidation () +
+               ' ' +
+               aGenericClient.isFollowSMPRedirects () +
+               ' ' +
+               _getTrustStoreFingerprint (aGenericClient.getTrustStore ());
+      }
+      catch (final GeneralSecurityException ex)
+      {
+        // Trust store cannot be read - don't share with other instances
+      }
+    }
+    return aSMPClient;
+  }
+
+  /**
+   * @return The URI encoded receiver ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getReceiverID ()
+  {
+    return m_sReceiverID;
+  }
+
+  /**
+   * @return The URI encoded document type ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getDocTypeID ()
+  {
+    return m_sDocTypeID;
+  }
+
+  /**
+   * @return The URI encoded process ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getProcessID ()
+  {
+    return m_sProcessID;
+  }
+
+  /**
+   * @return The transport profile ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getTransportProfileID ()
+  {
+    return m_sTransportProfileID;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4SMPEndpointCacheKey rhs = (AS4SMPEndpointCacheKey) o;
+    return m_aSMPKey.equals (rhs.m_aSMPKey) &&
+           m_sReceiverID.equals (rhs.m_sReceiverID) &&
+           m_sDocTypeID.equals (rhs.m_sDocTypeID) &&
+           m_sProcessID.equals (rhs.m_sProcessID) &&
+           m_sTransportProfileID.equals (rhs.m_sTransportProfileID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_aSMPKey)
+                                       .append (m_sReceiverID)
+                                       .append (m_sDocTypeID)
+                                       .append (m_sProcessID)
+                                       .append (m_sTransportProfileID)
+                                       .getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("SMP", m_aSMPKey)
+                                       .append ("ReceiverID", m_sReceiverID)
+                                       .append ("DocTypeID", m_sDocTypeID)
+                                       .append ("ProcessID", m_sProcessID)
+                                       .append ("TransportProfileID", m_sTransportProfileID)
+                                       .getToString ();
+  }
+}
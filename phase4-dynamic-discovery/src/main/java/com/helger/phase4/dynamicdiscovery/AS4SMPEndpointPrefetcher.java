@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.util.AS4ThreadHelper;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Refreshes the SMP endpoints of known receivers in the shared
+ * {@link AS4SMPEndpointCache} on a schedule, so that the outbound send path
+ * almost never needs to perform a cold SMP lookup. The refresh bypasses the
+ * cached values but keeps them if a refresh fails. The targets are either
+ * registered explicitly via
+ * {@link #addTarget(IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier)}
+ * or learned from the send history by wrapping the endpoint detail providers
+ * used for sending via {@link #learning(IAS4EndpointDetailProvider)}.<br>
+ * Note: this only has an effect for endpoint detail providers that use the
+ * shared cache (the default for {@link AS4EndpointDetailProviderPeppol},
+ * {@link AS4EndpointDetailProviderBDXR} and
+ * {@link AS4EndpointDetailProviderBDXR2}).
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4SMPEndpointPrefetcher implements AutoCloseable
+{
+  /** The default maximum number of targets */
+  public static final int DEFAULT_MAX_TARGETS = 10_000;
+
+  /**
+   * A single (receiver, document type, process) tuple to be prefetched.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Target
+  {
+    private final IParticipantIdentifier m_aReceiverID;
+    private final IDocumentTypeIdentifier m_aDocTypeID;
+    private final IProcessIdentifier m_aProcessID;
+    private final String m_sKey;
+
+    public Target (@Nonnull final IParticipantIdentifier aReceiverID,
+                   @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                   @Nonnull final IProcessIdentifier aProcessID)
+    {
+      ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+      ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+      ValueEnforcer.notNull (aProcessID, "ProcessID");
+      m_aReceiverID = aReceiverID;
+      m_aDocTypeID = aDocTypeID;
+      m_aProcessID = aProcessID;
+      m_sKey = aReceiverID.getURIEncoded () + ", " + aDocTypeID.getURIEncoded () + ", " + aProcessID.getURIEncoded ();
+    }
+
+    @Nonnull
+    public IParticipantIdentifier getReceiverID ()
+    {
+      return m_aReceiverID;
+    }
+
+    @Nonnull
+    public IDocumentTypeIdentifier getDocTypeID ()
+    {
+      return m_aDocTypeID;
+    }
+
+    @Nonnull
+    public IProcessIdentifier getProcessID ()
+    {
+      return m_aProcessID;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final Target rhs = (Target) o;
+      return m_sKey.equals (rhs.m_sKey);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sKey).getHashCode ();
+    }
+
+    @Override
+    public String toString ()
+    {
+      return m_sKey;
+    }
+  }
+
+  /**
+   * The refresh status of a single {@link Target}.
+   *
+   * @author Philip Helger
+   */
+  @ThreadSafe
+  public static final class TargetStatus
+  {
+    private final AtomicLong m_aLastSuccessMillis = new AtomicLong (0);
+    private final AtomicLong m_aLastFailureMillis = new AtomicLong (0);
+    private final AtomicLong m_aConsecutiveFailures = new AtomicLong (0);
+    private volatile String m_sLastFailureMessage;
+
+    TargetStatus ()
+    {}
+
+    void onSuccess ()
+    {
+      m_aLastSuccessMillis.set (System.currentTimeMillis ());
+      m_aConsecutiveFailures.set (0);
+    }
+
+    void onFailure (@Nonnull final Exception ex)
+    {
+      m_aLastFailureMillis.set (System.currentTimeMillis ());
+      m_aConsecutiveFailures.incrementAndGet ();
+      m_sLastFailureMessage = ex.getClass ().getName () + " - " + ex.getMessage ();
+    }
+
+    /**
+     * @return The time of the last successful refresh in milliseconds since
+     *         the epoch or 0 if there was no successful refresh yet.
+     */
+    public long getLastSuccessMillis ()
+    {
+      return m_aLastSuccessMillis.get ();
+    }
+
+    /**
+     * @return The time of the last failed refresh in milliseconds since the
+     *         epoch or 0 if no refresh failed yet.
+     */
+    public long getLastFailureMillis ()
+    {
+      return m_aLastFailureMillis.get ();
+    }
+
+    /**
+     * @return The number of failed refreshes since the last successful one.
+     */
+    @Nonnegative
+    public long getConsecutiveFailureCount ()
+    {
+      return m_aConsecutiveFailures.get ();
+    }
+
+    /**
+     * @return The error message of the last failed refresh. May be
+     *         <code>null</code>.
+     */
+    @Nullable
+    public String getLastFailureMessage ()
+    {
+      return m_sLastFailureMessage;
+    }
+
+    /**
+     * @return The milliseconds since the last successful refresh or -1 if
+     *         there was no successful refresh yet.
+     */
+    public long getStalenessMillis ()
+    {
+      final long nLastSuccess = m_aLastSuccessMillis.get ();
+      return nLastSuccess == 0 ? -1 : System.currentTimeMillis () - nLastSuccess;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("LastSuccessMillis", getLastSuccessMillis ())
+                                         .append ("LastFailureMillis", getLastFailureMillis ())
+                                         .append ("ConsecutiveFailures", getConsecutiveFailureCount ())
+                                         .append ("LastFailureMessage", m_sLastFailureMessage)
+                                         .getToString ();
+    }
+  }
+
+  /**
+   * An endpoint detail provider that remembers all looked up tuples as
+   * targets.
+   */
+  private final class LearningEndpointDetailProvider implements IAS4EndpointDetailProvider
+  {
+    private final IAS4EndpointDetailProvider m_aDelegate;
+
+    LearningEndpointDetailProvider (@Nonnull final IAS4EndpointDetailProvider aDelegate)
+    {
+      m_aDelegate = aDelegate;
+    }
+
+    public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                      @Nonnull final IProcessIdentifier aProcID,
+                      @Nonnull final IParticipantIdentifier aReceiverID) throws Phase4Exception
+    {
+      m_aDelegate.init (aDocTypeID, aProcID, aReceiverID);
+      // Only learn tuples that could be resolved
+      addTarget (aReceiverID, aDocTypeID, aProcID);
+    }
+
+    @Nullable
+    public X509Certificate getReceiverAPCertificate () throws Phase4Exception
+    {
+      return m_aDelegate.getReceiverAPCertificate ();
+    }
+
+    @Nonnull
+    public String getReceiverAPEndpointURL () throws Phase4Exception
+    {
+      return m_aDelegate.getReceiverAPEndpointURL ();
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4SMPEndpointPrefetcher.class);
+
+  private final Function <? super IParticipantIdentifier, ? extends IAS4EndpointDetailProvider> m_aEndpointDetailProviderFactory;
+  private final int m_nMaxTargets;
+  private final Map <Target, TargetStatus> m_aTargets = new ConcurrentHashMap <> ();
+  private final ExecutorService m_aWorkers;
+  private final ScheduledExecutorService m_aScheduler;
+  private final AtomicBoolean m_aStarted = new AtomicBoolean (false);
+  private final AtomicLong m_aRunCount = new AtomicLong (0);
+  private final AtomicLong m_aRefreshCount = new AtomicLong (0);
+  private final AtomicLong m_aRefreshFailureCount = new AtomicLong (0);
+  private final AtomicLong m_aLastRunDurationMillis = new AtomicLong (0);
+
+  /**
+   * Constructor using the default maximum number of targets.
+   *
+   * @param aEndpointDetailProviderFactory
+   *        The factory for the endpoint detail provider to be used for a
+   *        receiver. It must create providers that use the shared
+   *        {@link AS4SMPEndpointCache}. May not be <code>null</code>.
+   * @param nMaxConcurrency
+   *        The maximum number of SMP lookups performed in parallel. Must be
+   *        &gt; 0.
+   */
+  public AS4SMPEndpointPrefetcher (@Nonnull final Function <? super IParticipantIdentifier, ? extends IAS4EndpointDetailProvider> aEndpointDetailProviderFactory,
+                                   @Nonnegative final int nMaxConcurrency)
+  {
+    this (aEndpointDetailProviderFactory, nMaxConcurrency, DEFAULT_MAX_TARGETS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aEndpointDetailProviderFactory
+   *        The factory for the endpoint detail provider to be used for a
+   *        receiver. It must create providers that use the shared
+   *        {@link AS4SMPEndpointCache}. May not be <code>null</code>.
+   * @param nMaxConcurrency
+   *        The maximum number of SMP lookups performed in parallel. Must be
+   *        &gt; 0.
+   * @param nMaxTargets
+   *        The maximum number of targets. Additional targets are ignored. Must
+   *        be &gt; 0.
+   */
+  public AS4SMPEndpointPrefetcher (@Nonnull final Function <? super IParticipantIdentifier, ? extends IAS4EndpointDetailProvider> aEndpointDetailProviderFactory,
+                                   @Nonnegative final int nMaxConcurrency,
+                                   @Nonnegative final int nMaxTargets)
+  {
+    ValueEnforcer.notNull (aEndpointDetailProviderFactory, "EndpointDetailProviderFactory");
+    ValueEnforcer.isGT0 (nMaxConcurrency, "MaxConcurrency");
+    ValueEnforcer.isGT0 (nMaxTargets, "MaxTargets");
+    m_aEndpointDetailProviderFactory = aEndpointDetailProviderFactory;
+    m_nMaxTargets = nMaxTargets;
+    m_aWorkers = Executors.newFixedThreadPool (nMaxConcurrency, AS4ThreadHelper.createThreadFactory ("phase4-smp-prefetch-"));
+    m_aScheduler = Executors.newSingleThreadScheduledExecutor (AS4ThreadHelper.createThreadFactory ("phase4-smp-prefetch-scheduler-"));
+  }
+
+  /**
+   * Add a new target to be prefetched. Targets beyond the maximum number of
+   * targets are ignored.
+   *
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   * @return <code>true</code> if the target was added, <code>false</code> if
+   *         it is already contained or if the maximum number of targets is
+   *         reached.
+   */
+  public boolean addTarget (@Nonnull final IParticipantIdentifier aReceiverID,
+                            @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                            @Nonnull final IProcessIdentifier aProcessID)
+  {
+    final Target aTarget = new Target (aReceiverID, aDocTypeID, aProcessID);
+    if (m_aTargets.containsKey (aTarget))
+      return false;
+    if (m_aTargets.size () >= m_nMaxTargets)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Ignoring SMP prefetch target " + aTarget + " because the maximum number of targets is reached");
+      return false;
+    }
+    return m_aTargets.putIfAbsent (aTarget, new TargetStatus ()) == null;
+  }
+
+  /**
+   * Remove a target.
+   *
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   * @return <code>true</code> if the target was removed.
+   */
+  public boolean removeTarget (@Nonnull final IParticipantIdentifier aReceiverID,
+                               @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                               @Nonnull final IProcessIdentifier aProcessID)
+  {
+    return m_aTargets.remove (new Target (aReceiverID, aDocTypeID, aProcessID)) != null;
+  }
+
+  /**
+   * @return A copy of all targets. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsSet <Target> getAllTargets ()
+  {
+    return new CommonsHashSet <> (m_aTargets.keySet ());
+  }
+
+  /**
+   * Get the refresh status of a single target.
+   *
+   * @param aTarget
+   *        The target to query. May be <code>null</code>.
+   * @return <code>null</code> if the target is unknown.
+   */
+  @Nullable
+  public TargetStatus getTargetStatus (@Nullable final Target aTarget)
+  {
+    return aTarget == null ? null : m_aTargets.get (aTarget);
+  }
+
+  /**
+   * Wrap an endpoint detail provider, so that every successfully resolved
+   * tuple is added as a target. Use this for the endpoint detail provider of
+   * the sender to learn the targets from the send history.
+   *
+   * @param aEndpointDetailProvider
+   *        The endpoint detail provider to wrap. May not be <code>null</code>.
+   * @return The wrapping endpoint detail provider. Never <code>null</code>.
+   */
+  @Nonnull
+  public IAS4EndpointDetailProvider learning (@Nonnull final IAS4EndpointDetailProvider aEndpointDetailProvider)
+  {
+    ValueEnforcer.notNull (aEndpointDetailProvider, "EndpointDetailProvider");
+    return new LearningEndpointDetailProvider (aEndpointDetailProvider);
+  }
+
+  private void _refresh (@Nonnull final Target aTarget, @Nonnull final TargetStatus aStatus)
+  {
+    m_aRefreshCount.incrementAndGet ();
+    try
+    {
+      final IAS4EndpointDetailProvider aEDP = m_aEndpointDetailProviderFactory.apply (aTarget.getReceiverID ());
+      if (aEDP == null)
+        throw new IllegalStateException ("The endpoint detail provider factory returned null");
+
+      AS4SMPEndpointCache.runWithRefresh ( () -> aEDP.init (aTarget.getDocTypeID (), aTarget.getProcessID (), aTarget.getReceiverID ()));
+      // Ensure the certificate and the URL are usable
+      aEDP.getReceiverAPCertificate ();
+      aEDP.getReceiverAPEndpointURL ();
+      aStatus.onSuccess ();
+    }
+    catch (final Exception ex)
+    {
+      m_aRefreshFailureCount.incrementAndGet ();
+      aStatus.onFailure (ex);
+      LOGGER.warn ("Failed to prefetch SMP endpoint " + aTarget + ": " + ex.getClass ().getName () + " - " + ex.getMessage ());
+    }
+  }
+
+  /**
+   * Refresh all targets now and wait until all refreshes are finished. This
+   * is invoked on the schedule after {@link #start(Duration, Duration)}, but
+   * may also be invoked manually.
+   *
+   * @return The number of targets that were successfully refreshed.
+   */
+  @Nonnegative
+  public int prefetchAll ()
+  {
+    final StopWatch aSW = StopWatch.createdStarted ();
+    final ICommonsList <Future <?>> aFutures = new CommonsArrayList <> ();
+    final long nFailuresBefore = m_aRefreshFailureCount.get ();
+    int nSubmitted = 0;
+    for (final Map.Entry <Target, TargetStatus> aEntry : m_aTargets.entrySet ())
+    {
+      aFutures.add (m_aWorkers.submit ( () -> _refresh (aEntry.getKey (), aEntry.getValue ())));
+      nSubmitted++;
+    }
+
+    for (final Future <?> aFuture : aFutures)
+      try
+      {
+        aFuture.get ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+      catch (final ExecutionException ex)
+      {
+        // _refresh catches all exceptions
+        LOGGER.error ("Unexpected error in SMP prefetch", ex.getCause ());
+      }
+
+    m_aRunCount.incrementAndGet ();
+    m_aLastRunDurationMillis.set (aSW.stopAndGetMillis ());
+    final int ret = nSubmitted - (int) (m_aRefreshFailureCount.get () - nFailuresBefore);
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Prefetched " + ret + " of " + nSubmitted + " SMP endpoints in " + m_aLastRunDurationMillis.get () + " milliseconds");
+    return Math.max (ret, 0);
+  }
+
+  /**
+   * Start the scheduled prefetching. The interval should be shorter than the
+   * time to live of the {@link AS4SMPEndpointCache}, so that the cached
+   * endpoints never expire.
+   *
+   * @param aInitialDelay
+   *        The delay before the first run. May not be <code>null</code>.
+   * @param aInterval
+   *        The delay between the end of a run and the start of the next one.
+   *        May not be <code>null</code> and must be positive.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4SMPEndpointPrefetcher start (@Nonnull final Duration aInitialDelay, @Nonnull final Duration aInterval)
+  {
+    ValueEnforcer.notNull (aInitialDelay, "InitialDelay");
+    ValueEnforcer.isFalse (aInitialDelay.isNegative (), "InitialDelay may not be negative");
+    ValueEnforcer.notNull (aInterval, "Interval");
+    ValueEnforcer.isFalse (aInterval.isNegative () || aInterval.isZero (), "Interval must be positive");
+
+    if (!m_aStarted.compareAndSet (false, true))
+      throw new IllegalStateException ("The SMP prefetcher is already started");
+    if (AS4SMPEndpointCache.getCache () == null)
+      LOGGER.warn ("The shared SMP endpoint cache is disabled - the SMP prefetcher has no effect");
+
+    m_aScheduler.scheduleWithFixedDelay (this::prefetchAll, aInitialDelay.toMillis (), aInterval.toMillis (), TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * @return The number of finished prefetch runs.
+   */
+  @Nonnegative
+  public long getRunCount ()
+  {
+    return m_aRunCount.get ();
+  }
+
+  /**
+   * @return The total number of single target refreshes.
+   */
+  @Nonnegative
+  public long getRefreshCount ()
+  {
+    return m_aRefreshCount.get ();
+  }
+
+  /**
+   * @return The total number of failed single target refreshes.
+   */
+  @Nonnegative
+  public long getRefreshFailureCount ()
+  {
+    return m_aRefreshFailureCount.get ();
+  }
+
+  /**
+   * @return The duration of the last prefetch run in milliseconds.
+   */
+  @Nonnegative
+  public long getLastRunDurationMillis ()
+  {
+    return m_aLastRunDurationMillis.get ();
+  }
+
+  /**
+   * @return The maximum staleness in milliseconds over all targets or -1 if at
+   *         least one target was never refreshed successfully.
+   * @see TargetStatus#getStalenessMillis()
+   */
+  public long getMaxStalenessMillis ()
+  {
+    long ret = 0;
+    for (final TargetStatus aStatus : m_aTargets.values ())
+    {
+      final long nStaleness = aStatus.getStalenessMillis ();
+      if (nStaleness < 0)
+        return -1;
+      ret = Math.max (ret, nStaleness);
+    }
+    return ret;
+  }
+
+  /**
+   * Get the number of targets that were not refreshed successfully within the
+   * provided duration.
+   *
+   * @param aMaxAge
+   *        The maximum age of the last successful refresh. May not be
+   *        <code>null</code>.
+   * @return The number of stale targets, including the ones that were never
+   *         refreshed successfully.
+   */
+  @Nonnegative
+  public int getStaleTargetCount (@Nonnull final Duration aMaxAge)
+  {
+    ValueEnforcer.notNull (aMaxAge, "MaxAge");
+    final long nMaxAgeMillis = aMaxAge.toMillis ();
+    int ret = 0;
+    for (final TargetStatus aStatus : m_aTargets.values ())
+    {
+      final long nStaleness = aStatus.getStalenessMillis ();
+      if (nStaleness < 0 || nStaleness > nMaxAgeMillis)
+        ret++;
+    }
+    return ret;
+  }
+
+  /**
+   * Stop the scheduled prefetching. Running refreshes are interrupted.
+   */
+  public void close ()
+  {
+    m_aScheduler.shutdownNow ();
+    m_aWorkers.shutdownNow ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Targets", m_aTargets.size ())
+                                       .append ("MaxTargets", m_nMaxTargets)
+                                       .append ("RunCount", getRunCount ())
+                                       .append ("RefreshCount", getRefreshCount ())
+                                       .append ("RefreshFailureCount", getRefreshFailureCount ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.smpclient.url.ISMPURLProvider;
+import com.helger.smpclient.url.SMPDNSResolutionException;
+
+/**
+ * An {@link ISMPURLProvider} that resolves the SMP URIs from an in-memory map
+ * instead of the DNS. It is a stand-in for the SML/BDXL resolution in tests
+ * and can simulate the latency of a DNS lookup, so that the discovery latency
+ * (e.g. with {@link AS4CachingSMPURLProvider}) can be measured offline.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4SMPURLProviderInMemory implements ISMPURLProvider
+{
+  private final Map <String, URI> m_aMap = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aInvocationCount = new AtomicLong (0);
+  private volatile Duration m_aSimulatedLatency = Duration.ZERO;
+
+  public AS4SMPURLProviderInMemory ()
+  {}
+
+  /**
+   * Register the SMP URI of a participant. The SML zone name is not
+   * considered.
+   *
+   * @param aParticipantIdentifier
+   *        The participant to register. May not be <code>null</code>.
+   * @param aSMPURI
+   *        The SMP URI to be returned. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4SMPURLProviderInMemory addParticipant (@Nonnull final IParticipantIdentifier aParticipantIdentifier, @Nonnull final URI aSMPURI)
+  {
+    ValueEnforcer.notNull (aParticipantIdentifier, "ParticipantIdentifier");
+    ValueEnforcer.notNull (aSMPURI, "SMPURI");
+    m_aMap.put (aParticipantIdentifier.getURIEncoded (), aSMPURI);
+    return this;
+  }
+
+  /**
+   * Remove the registration of a participant.
+   *
+   * @param aParticipantIdentifier
+   *        The participant to remove. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4SMPURLProviderInMemory removeParticipant (@Nonnull final IParticipantIdentifier aParticipantIdentifier)
+  {
+    ValueEnforcer.notNull (aParticipantIdentifier, "ParticipantIdentifier");
+    m_aMap.remove (aParticipantIdentifier.getURIEncoded ());
+    return this;
+  }
+
+  /**
+   * @return The latency that is simulated for each resolution. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getSimulatedLatency ()
+  {
+    return m_aSimulatedLatency;
+  }
+
+  /**
+   * Set the latency that is simulated for each resolution.
+   *
+   * @param aSimulatedLatency
+   *        The latency to simulate. May not be <code>null</code> and may not be
+   *        negative. {@link Duration#ZERO} disables it.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4SMPURLProviderInMemory setSimulatedLatency (@Nonnull final Duration aSimulatedLatency)
+  {
+    ValueEnforcer.notNull (aSimulatedLatency, "SimulatedLatency");
+    ValueEnforcer.isFalse (aSimulatedLatency.isNegative (), "SimulatedLatency may not be negative");
+    m_aSimulatedLatency = aSimulatedLatency;
+    return this;
+  }
+
+  /**
+   * @return The number of resolutions performed so far, including the failed
+   *         ones.
+   */
+  @Nonnegative
+  public final long getInvocationCount ()
+  {
+    return m_aInvocationCount.get ();
+  }
+
+  @Nonnull
+  public URI getSMPURIOfParticipant (@Nonnull final IParticipantIdentifier aParticipantIdentifier,
+                                     @Nullable final String sSMLZoneName) throws SMPDNSResolutionException
+  {
+    ValueEnforcer.notNull (aParticipantIdentifier, "ParticipantIdentifier");
+
+    m_aInvocationCount.incrementAndGet ();
+    final Duration aLatency = m_aSimulatedLatency;
+    if (!aLatency.isZero ())
+      ThreadHelper.sleep (aLatency.toMillis ());
+
+    final URI ret = m_aMap.get (aParticipantIdentifier.getURIEncoded ());
+    if (ret == null)
+      throw new SMPDNSResolutionException ("No SMP URI is registered for participant '" +
+                                           aParticipantIdentifier.getURIEncoded () +
+                                           "' in SML zone '" +
+                                           sSMLZoneName +
+                                           "'");
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Participants", m_aMap.size ())
+                                       .append ("SimulatedLatency", m_aSimulatedLatency)
+                                       .getToString ();
+  }
+}
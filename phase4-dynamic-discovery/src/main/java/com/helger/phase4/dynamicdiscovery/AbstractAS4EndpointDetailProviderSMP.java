@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.lang.GenericReflection;
+import com.helger.commons.traits.IGenericImplTrait;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.util.AS4LookupCache;
+
+/**
+ * Abstract base class for {@link IAS4EndpointDetailProvider} implementations
+ * that use an SMP client and may use the process wide
+ * {@link AS4SMPEndpointCache}.
+ *
+ * @author Philip Helger
+ * @param <IMPLTYPE>
+ *        The implementation type
+ * @since 1.3.9
+ */
+public abstract class AbstractAS4EndpointDetailProviderSMP <IMPLTYPE extends AbstractAS4EndpointDetailProviderSMP <IMPLTYPE>> implements
+                                                           IAS4EndpointDetailProvider,
+                                                           IGenericImplTrait <IMPLTYPE>
+{
+  public static final boolean DEFAULT_USE_SHARED_CACHE = true;
+
+  private boolean m_bUseSharedCache = DEFAULT_USE_SHARED_CACHE;
+
+  protected AbstractAS4EndpointDetailProviderSMP ()
+  {}
+
+  /**
+   * @return <code>true</code> if the process wide {@link AS4SMPEndpointCache}
+   *         is used for the SMP lookup, <code>false</code> if not. Defaults to
+   *         {@link #DEFAULT_USE_SHARED_CACHE}.
+   */
+  public final boolean isUseSharedCache ()
+  {
+    return m_bUseSharedCache;
+  }
+
+  /**
+   * Enable or disable the usage of the process wide {@link AS4SMPEndpointCache}
+   * for the SMP lookup. This only has an effect if it is called prior to
+   * {@link #init(IDocumentTypeIdentifier, IProcessIdentifier, IParticipantIdentifier)}.
+   *
+   * @param bUseSharedCache
+   *        <code>true</code> to use the shared cache, <code>false</code> to
+   *        always perform a fresh SMP lookup.
+   * @return this for chaining.
+   */
+  @Nonnull
+  public final IMPLTYPE setUseSharedCache (final boolean bUseSharedCache)
+  {
+    m_bUseSharedCache = bUseSharedCache;
+    return thisAsT ();
+  }
+
+  /**
+   * Resolve an SMP endpoint, using the shared cache if it is enabled.
+   *
+   * @param <T>
+   *        The SMP specific endpoint type
+   * @param <EXTYPE>
+   *        The exception type of the lookup
+   * @param aSMPClient
+   *        The SMP client used for the lookup. Is part of the cache key. May
+   *        not be <code>null</code>.
+   * @param aReceiverID
+   *        Participant ID of the receiver. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcID
+   *        Process ID. May not be <code>null</code>.
+   * @param aTP
+   *        Transport profile. May not be <code>null</code>.
+   * @param aLookup
+   *        The effective SMP lookup. May not be <code>null</code>.
+   * @return The resolved endpoint. May be <code>null</code>.
+   * @throws EXTYPE
+   *         If the lookup fails
+   */
+  @Nullable
+  protected final <T, EXTYPE extends Exception> T lookupEndpoint (@Nonnull final Object aSMPClient,
+                                                                 @Nonnull final IParticipantIdentifier aReceiverID,
+                                                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                                 @Nonnull final IProcessIdentifier aProcID,
+                                                                 @Nonnull final ISMPTransportProfile aTP,
+                                                                 @Nonnull final IThrowingSupplier <? extends T, EXTYPE> aLookup) throws EXTYPE
+  {
+    final AS4LookupCache <AS4SMPEndpointCacheKey, Object> aCache = m_bUseSharedCache ? AS4SMPEndpointCache.getCache () : null;
+    if (aCache == null)
+      return aLookup.get ();
+
+    // The key contains the SMP client type, so the cast is safe
+    final AS4SMPEndpointCacheKey aKey = new AS4SMPEndpointCacheKey (aSMPClient, aReceiverID, aDocTypeID, aProcID, aTP);
+    return GenericReflection.uncheckedCast (AS4SMPEndpointCache.getOrLookup (aCache, aKey, k -> aLookup.get ()));
+  }
+}
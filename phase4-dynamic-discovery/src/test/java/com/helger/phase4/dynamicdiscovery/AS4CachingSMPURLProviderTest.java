@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.time.Duration;
+
+import org.junit.Test;
+
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.url.SMPDNSResolutionException;
+
+/**
+ * Test class for class {@link AS4CachingSMPURLProvider}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CachingSMPURLProviderTest
+{
+  private static final String SML_ZONE = "edelivery.tech.ec.europa.eu.";
+
+  @Test
+  public void testPositiveAndNegativeCaching () throws Exception
+  {
+    final IParticipantIdentifier aKnown = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:known");
+    final IParticipantIdentifier aUnknown = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:unknown");
+    final URI aSMPURI = URI.create ("http://smp.example.org");
+
+    final AS4SMPURLProviderInMemory aDNS = new AS4SMPURLProviderInMemory ().addParticipant (aKnown, aSMPURI)
+                                                                          .setSimulatedLatency (Duration.ofMillis (10));
+    final AS4CachingSMPURLProvider aCache = new AS4CachingSMPURLProvider (aDNS);
+
+    for (int i = 0; i < 5; ++i)
+    {
+      assertEquals (aSMPURI, aCache.getSMPURIOfParticipant (aKnown, SML_ZONE));
+      try
+      {
+        aCache.getSMPURIOfParticipant (aUnknown, SML_ZONE);
+        fail ();
+      }
+      catch (final SMPDNSResolutionException ex)
+      {
+        // expected
+      }
+    }
+    // Only the first resolution of each participant went to the "DNS"
+    assertEquals (2, aDNS.getInvocationCount ());
+    assertEquals (2, aCache.getMissCount ());
+    assertEquals (8, aCache.getHitCount ());
+    assertEquals (2, aCache.getCachedCount ());
+
+    // Works with the SMP client
+    final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (aCache, aKnown, SML_ZONE);
+    assertEquals (aSMPURI.toString () + "/", aSMPClient.getSMPHostURI ());
+    assertEquals (2, aDNS.getInvocationCount ());
+
+    // Registration changed
+    aDNS.addParticipant (aUnknown, aSMPURI);
+    aCache.invalidate (aUnknown, SML_ZONE);
+    assertEquals (aSMPURI, aCache.getSMPURIOfParticipant (aUnknown, SML_ZONE));
+    assertEquals (3, aDNS.getInvocationCount ());
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.net.URI;
+import java.security.KeyStore;
+
+import org.junit.Test;
+
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.bdxr1.BDXRClientReadOnly;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+
+/**
+ * Test class for class {@link AS4SMPEndpointCacheKey}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SMPEndpointCacheKeyTest
+{
+  @Test
+  public void testEquals ()
+  {
+    final IParticipantIdentifier aReceiverID = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test");
+    final IDocumentTypeIdentifier aDocTypeID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("doctype");
+    final IProcessIdentifier aProcID = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("process");
+    final URI aURI = URI.create ("http://smp.example.org");
+
+    // Different instances for the same SMP share the key
+    final AS4SMPEndpointCacheKey aKey = new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI),
+                                                                    aReceiverID,
+                                                                    aDocTypeID,
+                                                                    aProcID,
+                                                                    ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2);
+    assertEquals (aKey,
+                  new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI),
+                                              aReceiverID,
+                                              aDocTypeID,
+                                              aProcID,
+                                              ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+    assertEquals (aKey.hashCode (),
+                  new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI),
+                                              aReceiverID,
+                                              aDocTypeID,
+                                              aProcID,
+                                              ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2).hashCode ());
+
+    // Different SMP client type
+    assertNotEquals (aKey,
+                     new AS4SMPEndpointCacheKey (new BDXRClientReadOnly (aURI),
+                                                 aReceiverID,
+                                                 aDocTypeID,
+                                                 aProcID,
+                                                 ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+    // Different transport profile
+    assertNotEquals (aKey,
+                     new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI),
+                                                 aReceiverID,
+                                                 aDocTypeID,
+                                                 aProcID,
+                                                 ESMPTransportProfile.TRANSPORT_PROFILE_BDXR_AS4));
+
+    // Other implementations are compared by identity
+    final Object aSMPClient = new Object ();
+    assertEquals (new AS4SMPEndpointCacheKey (aSMPClient, aReceiverID, aDocTypeID, aProcID, ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2),
+                  new AS4SMPEndpointCacheKey (aSMPClient, aReceiverID, aDocTypeID, aProcID, ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+    assertNotEquals (new AS4SMPEndpointCacheKey (aSMPClient, aReceiverID, aDocTypeID, aProcID, ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2),
+                     new AS4SMPEndpointCacheKey (new Object (),
+                                                 aReceiverID,
+                                                 aDocTypeID,
+                                                 aProcID,
+                                                 ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+  }
+
+  @Test
+  public void testTrustConfiguration () throws Exception
+  {
+    final IParticipantIdentifier aReceiverID = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test");
+    final IDocumentTypeIdentifier aDocTypeID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("doctype");
+    final IProcessIdentifier aProcID = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("process");
+    final URI aURI = URI.create ("http://smp.example.org");
+
+    final KeyStore aTrustStore1 = KeyStore.getInstance ("JKS");
+    aTrustStore1.load (null, null);
+    final KeyStore aTrustStore2 = KeyStore.getInstance ("JKS");
+    aTrustStore2.load (null, null);
+
+    final AS4SMPEndpointCacheKey aKey = new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI).setTrustStore (aTrustStore1),
+                                                                    aReceiverID,
+                                                                    aDocTypeID,
+                                                                    aProcID,
+                                                                    ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2);
+    // Trust stores with the same content share the key
+    assertEquals (aKey,
+                  new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI).setTrustStore (aTrustStore2),
+                                              aReceiverID,
+                                              aDocTypeID,
+                                              aProcID,
+                                              ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+    // Default trust store with different content
+    assertNotEquals (aKey,
+                     new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI),
+                                                 aReceiverID,
+                                                 aDocTypeID,
+                                                 aProcID,
+                                                 ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+    // Different signature verification
+    assertNotEquals (aKey,
+                     new AS4SMPEndpointCacheKey (new SMPClientReadOnly (aURI).setTrustStore (aTrustStore2).setVerifySignature (false),
+                                                 aReceiverID,
+                                                 aDocTypeID,
+                                                 aProcID,
+                                                 ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2));
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.util.AS4LookupCache;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Test class for class {@link AS4SMPEndpointPrefetcher}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4SMPEndpointPrefetcherTest
+{
+  private static final Object SMP_CLIENT = new Object ();
+
+  /**
+   * An endpoint detail provider that uses the shared cache with a counting
+   * lookup.
+   */
+  private static final class MockEndpointDetailProvider implements IAS4EndpointDetailProvider
+  {
+    private final AtomicInteger m_aLookupCount;
+    private final AtomicBoolean m_aFail;
+    private String m_sURL;
+
+    MockEndpointDetailProvider (@Nonnull final AtomicInteger aLookupCount, @Nonnull final AtomicBoolean aFail)
+    {
+      m_aLookupCount = aLookupCount;
+      m_aFail = aFail;
+    }
+
+    public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                      @Nonnull final IProcessIdentifier aProcID,
+                      @Nonnull final IParticipantIdentifier aReceiverID) throws Phase4Exception
+    {
+      final AS4SMPEndpointCacheKey aKey = new AS4SMPEndpointCacheKey (SMP_CLIENT,
+                                                                      aReceiverID,
+                                                                      aDocTypeID,
+                                                                      aProcID,
+                                                                      ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2);
+      m_sURL = (String) AS4SMPEndpointCache.getOrLookup (AS4SMPEndpointCache.getCache (), aKey, k -> {
+        m_aLookupCount.incrementAndGet ();
+        if (m_aFail.get ())
+          throw new Phase4Exception ("SMP not reachable");
+        return "http://ap.example.org/as4/" + m_aLookupCount.get ();
+      });
+    }
+
+    public X509Certificate getReceiverAPCertificate ()
+    {
+      return null;
+    }
+
+    @Nonnull
+    public String getReceiverAPEndpointURL ()
+    {
+      return m_sURL;
+    }
+  }
+
+  private AS4LookupCache <AS4SMPEndpointCacheKey, Object> m_aOldCache;
+
+  @Before
+  public void before ()
+  {
+    m_aOldCache = AS4SMPEndpointCache.getCache ();
+    AS4SMPEndpointCache.setCache (AS4SMPEndpointCache.createDefaultCache ());
+  }
+
+  @After
+  public void after ()
+  {
+    AS4SMPEndpointCache.setCache (m_aOldCache);
+  }
+
+  @Test
+  public void testLearnAndRefresh () throws Exception
+  {
+    final IParticipantIdentifier aReceiverID = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:receiver");
+    final IDocumentTypeIdentifier aDocTypeID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:doctype");
+    final IProcessIdentifier aProcessID = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("urn:process");
+
+    final AtomicInteger aLookupCount = new AtomicInteger (0);
+    final AtomicBoolean aFail = new AtomicBoolean (false);
+    try (final AS4SMPEndpointPrefetcher aPrefetcher = new AS4SMPEndpointPrefetcher (x -> new MockEndpointDetailProvider (aLookupCount,
+                                                                                                                          aFail),
+                                                                                    2))
+    {
+      assertEquals (0, aPrefetcher.prefetchAll ());
+
+      // Learn the target from a regular send
+      final IAS4EndpointDetailProvider aEDP = aPrefetcher.learning (new MockEndpointDetailProvider (aLookupCount, aFail));
+      aEDP.init (aDocTypeID, aProcessID, aReceiverID);
+      assertEquals ("http://ap.example.org/as4/1", aEDP.getReceiverAPEndpointURL ());
+      assertEquals (1, aLookupCount.get ());
+      assertEquals (1, aPrefetcher.getAllTargets ().size ());
+      assertFalse (aPrefetcher.addTarget (aReceiverID, aDocTypeID, aProcessID));
+
+      final AS4SMPEndpointPrefetcher.Target aTarget = aPrefetcher.getAllTargets ().getAtIndex (0);
+      final AS4SMPEndpointPrefetcher.TargetStatus aStatus = aPrefetcher.getTargetStatus (aTarget);
+      assertNotNull (aStatus);
+      assertEquals (-1, aStatus.getStalenessMillis ());
+      assertEquals (-1, aPrefetcher.getMaxStalenessMillis ());
+      assertEquals (1, aPrefetcher.getStaleTargetCount (Duration.ofHours (1)));
+
+      // Each prefetch bypasses the cache
+      assertEquals (1, aPrefetcher.prefetchAll ());
+      assertEquals (1, aPrefetcher.prefetchAll ());
+      assertEquals (3, aLookupCount.get ());
+      assertEquals (2, aPrefetcher.getRefreshCount ());
+      assertEquals (0, aPrefetcher.getRefreshFailureCount ());
+      assertTrue (aStatus.getStalenessMillis () >= 0);
+      assertEquals (0, aPrefetcher.getStaleTargetCount (Duration.ofHours (1)));
+
+      // A regular lookup is served from the refreshed cache
+      aEDP.init (aDocTypeID, aProcessID, aReceiverID);
+      assertEquals ("http://ap.example.org/as4/3", aEDP.getReceiverAPEndpointURL ());
+      assertEquals (3, aLookupCount.get ());
+
+      // Failing refresh keeps the previous entry
+      aFail.set (true);
+      assertEquals (0, aPrefetcher.prefetchAll ());
+      assertEquals (1, aPrefetcher.getRefreshFailureCount ());
+      assertEquals (1, aStatus.getConsecutiveFailureCount ());
+      assertNotNull (aStatus.getLastFailureMessage ());
+      aEDP.init (aDocTypeID, aProcessID, aReceiverID);
+      assertEquals ("http://ap.example.org/as4/3", aEDP.getReceiverAPEndpointURL ());
+      assertEquals (4, aLookupCount.get ());
+
+      // Recovery
+      aFail.set (false);
+      assertEquals (1, aPrefetcher.prefetchAll ());
+      assertEquals (0, aStatus.getConsecutiveFailureCount ());
+      assertEquals (5, aPrefetcher.getRunCount ());
+    }
+  }
+
+  @Test
+  public void testMaxTargets ()
+  {
+    try (final AS4SMPEndpointPrefetcher aPrefetcher = new AS4SMPEndpointPrefetcher (x -> null, 1, 2))
+    {
+      final IDocumentTypeIdentifier aDocTypeID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:doctype");
+      final IProcessIdentifier aProcessID = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("urn:process");
+      for (int i = 0; i < 5; ++i)
+        aPrefetcher.addTarget (PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:r" + i),
+                               aDocTypeID,
+                               aProcessID);
+      assertEquals (2, aPrefetcher.getAllTargets ().size ());
+
+      // The factory returns null
+      assertEquals (0, aPrefetcher.prefetchAll ());
+      assertEquals (2, aPrefetcher.getRefreshFailureCount ());
+    }
+  }
+}
@@ -32,6 +32,7 @@ import com.helger.phase4.attachment.Phase4OutgoingAttachment;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.client.AS4ClientUserMessage;
 import com.helger.phase4.crypto.ECryptoKeyIdentifierType;
+import com.helger.phase4.model.pmode.PModePayloadService;
 import com.helger.phase4.sender.AS4BidirectionalClientHelper;
 import com.helger.phase4.sender.AbstractAS4UserMessageBuilder;
 import com.helger.phase4.util.AS4ResourceHelper;
@@ -178,8 +179,13 @@ public final class Phase4ENTSOGSender
         // No payload - only one attachment
         aUserMsg.setPayload (null);
 
+        // Compression settings are taken from the PMode (if present)
+        final PModePayloadService aPayloadService = m_aPMode != null ? m_aPMode.getPayloadService () : null;
+
         // Add main attachment
-        final WSS4JAttachment payloadAttachment = WSS4JAttachment.createOutgoingFileAttachment (m_aPayload, aResHelper);
+        final WSS4JAttachment payloadAttachment = WSS4JAttachment.createOutgoingFileAttachment (m_aPayload,
+                                                                                                aPayloadService,
+                                                                                                aResHelper);
 
         if (m_aPayloadParams != null)
         {
@@ -190,7 +196,7 @@ public final class Phase4ENTSOGSender
 
         // Add other attachments
         for (final Phase4OutgoingAttachment aAttachment : m_aAttachments)
-          aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment, aResHelper));
+          aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment, aPayloadService, aResHelper));
 
         // Main sending
         AS4BidirectionalClientHelper.sendAS4UserMessageAndReceiveAS4SignalMessage (m_aCryptoFactory,
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * An {@link InputStream} that delivers the compressed representation of a
+ * source {@link InputStream}. Compression happens lazily while reading, so no
+ * temporary file or full in-memory copy of the compressed content is needed.
+ * Because the compression output is deterministic, opening a new instance for
+ * the same source yields exactly the same bytes, which is required for
+ * signature digests to match the transmitted content.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@NotThreadSafe
+public class AS4CompressingInputStream extends InputStream
+{
+  /** The default number of source bytes read per compression step */
+  public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  private final InputStream m_aSrcIS;
+  private final byte [] m_aChunk;
+  private final NonBlockingByteArrayOutputStream m_aBuffer;
+  private final OutputStream m_aCompressOS;
+  private int m_nBufferPos = 0;
+  private boolean m_bSrcEOF = false;
+  private long m_nCompressedBytes = 0;
+
+  public AS4CompressingInputStream (@Nonnull @WillCloseWhenClosed final InputStream aSrcIS,
+                                    @Nonnull final EAS4CompressionMode eCompressionMode) throws IOException
+  {
+    this (aSrcIS, eCompressionMode, DEFAULT_CHUNK_SIZE);
+  }
+
+  public AS4CompressingInputStream (@Nonnull @WillCloseWhenClosed final InputStream aSrcIS,
+                                    @Nonnull final EAS4CompressionMode eCompressionMode,
+                                    @Nonnegative final int nChunkSize) throws IOException
+  {
+    this (aSrcIS, eCompressionMode, EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL, false, nChunkSize);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSrcIS
+   *        The uncompressed source stream. May not be <code>null</code>.
+   * @param eCompressionMode
+   *        The compression mode to use. May not be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or
+   *        {@link EAS4CompressionMode#DEFAULT_COMPRESSION_LEVEL}.
+   * @param bParallel
+   *        <code>true</code> to use parallel compression.
+   * @param nChunkSize
+   *        The number of source bytes to read per compression step. Must be
+   *        &gt; 0.
+   * @throws IOException
+   *         In case the compression stream cannot be created
+   */
+  public AS4CompressingInputStream (@Nonnull @WillCloseWhenClosed final InputStream aSrcIS,
+                                    @Nonnull final EAS4CompressionMode eCompressionMode,
+                                    final int nCompressionLevel,
+                                    final boolean bParallel,
+                                    @Nonnegative final int nChunkSize) throws IOException
+  {
+    ValueEnforcer.notNull (aSrcIS, "SrcIS");
+    ValueEnforcer.notNull (eCompressionMode, "CompressionMode");
+    ValueEnforcer.isGT0 (nChunkSize, "ChunkSize");
+    m_aSrcIS = aSrcIS;
+    m_aChunk = new byte [nChunkSize];
+    m_aBuffer = new NonBlockingByteArrayOutputStream (nChunkSize);
+    m_aCompressOS = eCompressionMode.getCompressStream (m_aBuffer, nCompressionLevel, bParallel);
+  }
+
+  /**
+   * Ensure that there is compressed data available in the buffer, unless the
+   * end of the stream was reached.
+   *
+   * @return <code>true</code> if at least one byte is available,
+   *         <code>false</code> on EOF.
+   */
+  private boolean _fill () throws IOException
+  {
+    if (m_nBufferPos < m_aBuffer.size ())
+      return true;
+
+    // Buffer was fully consumed
+    m_aBuffer.reset ();
+    m_nBufferPos = 0;
+
+    // Compressors may buffer internally, so loop until we have output
+    while (m_aBuffer.isEmpty () && !m_bSrcEOF)
+    {
+      final int nRead = m_aSrcIS.read (m_aChunk, 0, m_aChunk.length);
+      if (nRead < 0)
+      {
+        // Writes the trailer
+        m_bSrcEOF = true;
+        m_aCompressOS.close ();
+      }
+      else
+        if (nRead > 0)
+          m_aCompressOS.write (m_aChunk, 0, nRead);
+    }
+    return m_aBuffer.isNotEmpty ();
+  }
+
+  @Override
+  public int read () throws IOException
+  {
+    if (!_fill ())
+      return -1;
+    m_nCompressedBytes++;
+    return m_aBuffer.directGetBuffer ()[m_nBufferPos++] & 0xff;
+  }
+
+  @Override
+  public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    if (nLen == 0)
+      return 0;
+    if (!_fill ())
+      return -1;
+
+    final int nCount = Math.min (nLen, m_aBuffer.size () - m_nBufferPos);
+    System.arraycopy (m_aBuffer.directGetBuffer (), m_nBufferPos, aBuf, nOfs, nCount);
+    m_nBufferPos += nCount;
+    m_nCompressedBytes += nCount;
+    return nCount;
+  }
+
+  @Override
+  public int available ()
+  {
+    return m_aBuffer.size () - m_nBufferPos;
+  }
+
+  /**
+   * @return The number of compressed bytes that were read from this stream so
+   *         far. After the stream was fully consumed, this is the total length
+   *         of the compressed content.
+   */
+  @Nonnegative
+  public long getCompressedByteCount ()
+  {
+    return m_nCompressedBytes;
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    StreamHelper.close (m_aCompressOS);
+    m_aSrcIS.close ();
+  }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * A GZip {@link OutputStream} that splits the input into blocks and compresses
+ * the blocks concurrently on a worker pool (similar to "pigz"). The compressed
+ * blocks are concatenated in order into a single, standards compliant GZip
+ * member, so that every GZip implementation can decompress the result. Each
+ * block uses the last 32KB of the previous block as the preset dictionary, so
+ * the compression ratio is close to the one of a single threaded
+ * compression.<br>
+ * The output is deterministic for the same input, compression level and block
+ * size.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@NotThreadSafe
+public class AS4ParallelGZIPOutputStream extends OutputStream
+{
+  /** The default size of a single uncompressed block: 128 KB */
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+  /** The maximum dictionary size supported by the deflate algorithm */
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private static final class SingletonHolder
+  {
+    static final ExecutorService INSTANCE = Executors.newFixedThreadPool (AS4Configuration.getParallelCompressionThreadCount (),
+                                                                          new BasicThreadFactory.Builder ().namingPattern ("phase4-gzip-%d")
+                                                                                                           .daemon (true)
+                                                                                                           .build ());
+  }
+
+  private final OutputStream m_aOS;
+  private final int m_nCompressionLevel;
+  private final int m_nBlockSize;
+  private final ExecutorService m_aExecutor;
+  private final int m_nMaxPendingBlocks;
+  private final Deque <Future <byte []>> m_aPending = new ArrayDeque <> ();
+  private final CRC32 m_aCRC = new CRC32 ();
+  private byte [] m_aBlock;
+  private int m_nBlockLen = 0;
+  private byte [] m_aDictionary;
+  private long m_nTotalBytes = 0;
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor using the default compression level, the default block size
+   * and the shared worker pool.
+   *
+   * @param aOS
+   *        The output stream to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case writing the GZip header fails
+   */
+  public AS4ParallelGZIPOutputStream (@Nonnull @WillCloseWhenClosed final OutputStream aOS) throws IOException
+  {
+    this (aOS, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Constructor using the default block size and the shared worker pool.
+   *
+   * @param aOS
+   *        The output stream to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or -1 for the
+   *        default.
+   * @throws IOException
+   *         In case writing the GZip header fails
+   */
+  public AS4ParallelGZIPOutputStream (@Nonnull @WillCloseWhenClosed final OutputStream aOS,
+                                      final int nCompressionLevel) throws IOException
+  {
+    this (aOS, nCompressionLevel, DEFAULT_BLOCK_SIZE, getSharedExecutor (), 2 * AS4Configuration.getParallelCompressionThreadCount ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aOS
+   *        The output stream to write the compressed data to. May not be
+   *        <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or -1 for the
+   *        default.
+   * @param nBlockSize
+   *        The number of uncompressed bytes per block. Must be &gt; 0.
+   * @param aExecutor
+   *        The executor to compress the blocks on. May not be
+   *        <code>null</code>.
+   * @param nMaxPendingBlocks
+   *        The maximum number of blocks that are compressed concurrently. If
+   *        this number is reached, writing waits until the oldest block is
+   *        finished. This limits the memory consumption. Must be &gt; 0.
+   * @throws IOException
+   *         In case writing the GZip header fails
+   */
+  public AS4ParallelGZIPOutputStream (@Nonnull @WillCloseWhenClosed final OutputStream aOS,
+                                      final int nCompressionLevel,
+                                      @Nonnegative final int nBlockSize,
+                                      @Nonnull @WillNotClose final ExecutorService aExecutor,
+                                      @Nonnegative final int nMaxPendingBlocks) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    ValueEnforcer.isBetweenInclusive (nCompressionLevel, "CompressionLevel", Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+    ValueEnforcer.isGT0 (nBlockSize, "BlockSize");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+    ValueEnforcer.isGT0 (nMaxPendingBlocks, "MaxPendingBlocks");
+    m_aOS = aOS;
+    m_nCompressionLevel = nCompressionLevel;
+    m_nBlockSize = nBlockSize;
+    m_aExecutor = aExecutor;
+    m_nMaxPendingBlocks = nMaxPendingBlocks;
+    m_aBlock = new byte [nBlockSize];
+    _writeHeader ();
+  }
+
+  /**
+   * @return The shared executor service used for parallel compression, if no
+   *         explicit executor is provided. The number of threads is configured
+   *         via {@link AS4Configuration#getParallelCompressionThreadCount()}.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static ExecutorService getSharedExecutor ()
+  {
+    return SingletonHolder.INSTANCE;
+  }
+
+  private void _writeHeader () throws IOException
+  {
+    // Same header as java.util.zip.GZIPOutputStream
+    m_aOS.write (new byte [] { (byte) GZIP_MAGIC,
+                               (byte) (GZIP_MAGIC >> 8),
+                               Deflater.DEFLATED,
+                               0,
+                               0,
+                               0,
+                               0,
+                               0,
+                               0,
+                               0 });
+  }
+
+  private static void _writeIntLE (@Nonnull final byte [] aBuf, final int nOfs, final long nValue)
+  {
+    aBuf[nOfs] = (byte) (nValue & 0xff);
+    aBuf[nOfs + 1] = (byte) ((nValue >> 8) & 0xff);
+    aBuf[nOfs + 2] = (byte) ((nValue >> 16) & 0xff);
+    aBuf[nOfs + 3] = (byte) ((nValue >> 24) & 0xff);
+  }
+
+  private void _writeTrailer () throws IOException
+  {
+    final byte [] aTrailer = new byte [8];
+    _writeIntLE (aTrailer, 0, m_aCRC.getValue ());
+    // ISIZE is the input size modulo 2^32
+    _writeIntLE (aTrailer, 4, m_nTotalBytes & 0xffffffffL);
+    m_aOS.write (aTrailer);
+  }
+
+  @Nonnull
+  static byte [] compressBlock (@Nonnull final byte [] aData,
+                                final int nLen,
+                                final byte [] aDictionary,
+                                final int nCompressionLevel,
+                                final boolean bLast)
+  {
+    // Raw deflate - the GZip header and trailer are written by the caller
+    final Deflater aDeflater = new Deflater (nCompressionLevel, true);
+    try
+    {
+      if (aDictionary != null)
+        aDeflater.setDictionary (aDictionary);
+      aDeflater.setInput (aData, 0, nLen);
+
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (Math.max (nLen / 2, 64));
+      final byte [] aBuf = new byte [Math.max (nLen / 4, 512)];
+      if (bLast)
+      {
+        aDeflater.finish ();
+        while (!aDeflater.finished ())
+        {
+          final int nCount = aDeflater.deflate (aBuf);
+          aBAOS.write (aBuf, 0, nCount);
+        }
+      }
+      else
+      {
+        // A sync flush ends the block on a byte boundary, so that the next
+        // block can simply be appended
+        int nCount;
+        while ((nCount = aDeflater.deflate (aBuf, 0, aBuf.length, Deflater.SYNC_FLUSH)) > 0)
+        {
+          aBAOS.write (aBuf, 0, nCount);
+          if (nCount < aBuf.length)
+            break;
+        }
+      }
+      return aBAOS.toByteArray ();
+    }
+    finally
+    {
+      aDeflater.end ();
+    }
+  }
+
+  private void _writeCompleted (final boolean bWaitForAll) throws IOException
+  {
+    while (!m_aPending.isEmpty ())
+    {
+      final Future <byte []> aFuture = m_aPending.peekFirst ();
+      if (!bWaitForAll && m_aPending.size () < m_nMaxPendingBlocks && !aFuture.isDone ())
+        break;
+
+      try
+      {
+        m_aOS.write (aFuture.get ());
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new InterruptedIOException ("Interrupted while waiting for compression of block");
+      }
+      catch (final ExecutionException ex)
+      {
+        throw new IOException ("Failed to compress block", ex.getCause ());
+      }
+      m_aPending.removeFirst ();
+    }
+  }
+
+  private void _submitBlock (final boolean bLast) throws IOException
+  {
+    final byte [] aData = m_aBlock;
+    final int nLen = m_nBlockLen;
+    final byte [] aDictionary = m_aDictionary;
+    final int nCompressionLevel = m_nCompressionLevel;
+    m_aPending.addLast (m_aExecutor.submit ( () -> compressBlock (aData, nLen, aDictionary, nCompressionLevel, bLast)));
+
+    if (!bLast)
+    {
+      // Remember the end of this block as the dictionary for the next block
+      if (nLen >= DICTIONARY_SIZE)
+        m_aDictionary = Arrays.copyOfRange (aData, nLen - DICTIONARY_SIZE, nLen);
+      else
+      {
+        // Block is smaller than the dictionary - prepend the old dictionary
+        final byte [] aOld = m_aDictionary == null ? new byte [0] : m_aDictionary;
+        final int nOldLen = Math.min (aOld.length, DICTIONARY_SIZE - nLen);
+        final byte [] aNew = new byte [nOldLen + nLen];
+        System.arraycopy (aOld, aOld.length - nOldLen, aNew, 0, nOldLen);
+        System.arraycopy (aData, 0, aNew, nOldLen, nLen);
+        m_aDictionary = aNew;
+      }
+
+      // The old block is now owned by the compression task
+      m_aBlock = new byte [m_nBlockSize];
+      m_nBlockLen = 0;
+    }
+
+    // Write all finished blocks and wait if too many are pending
+    _writeCompleted (false);
+  }
+
+  private void _ensureOpen () throws IOException
+  {
+    if (m_bClosed)
+      throw new IOException ("Stream is already closed");
+  }
+
+  @Override
+  public void write (final int b) throws IOException
+  {
+    write (new byte [] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    _ensureOpen ();
+
+    m_aCRC.update (aBuf, nOfs, nLen);
+    m_nTotalBytes += nLen;
+
+    int nSrcOfs = nOfs;
+    int nRemaining = nLen;
+    while (nRemaining > 0)
+    {
+      final int nCount = Math.min (nRemaining, m_nBlockSize - m_nBlockLen);
+      System.arraycopy (aBuf, nSrcOfs, m_aBlock, m_nBlockLen, nCount);
+      m_nBlockLen += nCount;
+      nSrcOfs += nCount;
+      nRemaining -= nCount;
+      if (m_nBlockLen == m_nBlockSize)
+        _submitBlock (false);
+    }
+  }
+
+  /**
+   * Finish writing compressed data without closing the underlying stream.
+   *
+   * @throws IOException
+   *         on error
+   */
+  public void finish () throws IOException
+  {
+    if (!m_bClosed)
+    {
+      m_bClosed = true;
+      _submitBlock (true);
+      _writeCompleted (true);
+      _writeTrailer ();
+    }
+  }
+
+  @Override
+  public void flush () throws IOException
+  {
+    // Only already compressed data can be flushed
+    _writeCompleted (false);
+    m_aOS.flush ();
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    try
+    {
+      finish ();
+    }
+    finally
+    {
+      for (final Future <byte []> aFuture : m_aPending)
+        aFuture.cancel (true);
+      m_aPending.clear ();
+      m_aOS.close ();
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.helger.phase4.attachment;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -55,8 +56,33 @@ public enum EAS4CompressionMode implements IHasID <String>
     {
       return new GZIPOutputStream (aOS);
     }
+
+    @Override
+    @Nonnull
+    public OutputStream getCompressStream (@Nonnull final OutputStream aOS,
+                                           final int nCompressionLevel,
+                                           final boolean bParallel) throws IOException
+    {
+      if (bParallel)
+        return new AS4ParallelGZIPOutputStream (aOS, nCompressionLevel);
+      if (nCompressionLevel == Deflater.DEFAULT_COMPRESSION)
+        return new GZIPOutputStream (aOS);
+      return new GZIPOutputStream (aOS)
+      {
+        {
+          def.setLevel (nCompressionLevel);
+        }
+      };
+    }
   };
 
+  /**
+   * The default compression level to use.
+   *
+   * @since 1.3.9
+   */
+  public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
   private final String m_sID;
   private final IMimeType m_aMimeType;
   private final String m_sFileExtension;
@@ -131,6 +157,28 @@ public enum EAS4CompressionMode implements IHasID <String>
   @Nonnull
   public abstract OutputStream getCompressStream (@Nonnull OutputStream aOS) throws IOException;
 
+  /**
+   * Get an {@link OutputStream} to compress the provided {@link OutputStream}
+   * with specific settings.
+   *
+   * @param aOS
+   *        The source {@link OutputStream}. May not be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9, or
+   *        {@link #DEFAULT_COMPRESSION_LEVEL} for the default level.
+   * @param bParallel
+   *        <code>true</code> to compress with multiple threads in parallel.
+   *        This is beneficial for large payloads only.
+   * @return The compressing {@link OutputStream}
+   * @throws IOException
+   *         In case of IO error
+   * @since 1.3.9
+   */
+  @Nonnull
+  public abstract OutputStream getCompressStream (@Nonnull OutputStream aOS,
+                                                  int nCompressionLevel,
+                                                  boolean bParallel) throws IOException;
+
   @Nullable
   public static EAS4CompressionMode getFromMimeTypeStringOrNull (@Nullable final String sMimeType)
   {
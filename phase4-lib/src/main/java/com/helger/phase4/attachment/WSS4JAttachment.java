@@ -51,6 +51,7 @@ import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.string.StringHelper;
@@ -58,6 +59,7 @@ import com.helger.commons.string.ToStringGenerator;
 import com.helger.mail.cte.EContentTransferEncoding;
 import com.helger.mail.datasource.InputStreamProviderDataSource;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.model.pmode.PModePayloadService;
 import com.helger.phase4.util.AS4ResourceHelper;
 
 /**
@@ -80,6 +82,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
 
   private final AS4ResourceHelper m_aResHelper;
   private IHasInputStream m_aISP;
+  private File m_aSourceFile;
   private EContentTransferEncoding m_eCTE = EContentTransferEncoding.BINARY;
   private EAS4CompressionMode m_eCompressionMode;
   private Charset m_aCharset;
@@ -187,6 +190,88 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     m_aISP = aISP;
   }
 
+  /**
+   * @return The file that contains the raw (potentially still compressed)
+   *         content of this attachment, if it is file based. May be
+   *         <code>null</code>.
+   * @since 1.3.9
+   */
+  @Nullable
+  public final File getSourceFile ()
+  {
+    return m_aSourceFile;
+  }
+
+  /**
+   * Use the provided file as the source of this attachment. The file can be
+   * read more than once.
+   *
+   * @param aFile
+   *        The file containing the raw content. May not be <code>null</code>.
+   * @since 1.3.9
+   */
+  public void setSourceFile (@Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aFile)));
+    m_aSourceFile = aFile;
+  }
+
+  /**
+   * Create a copy of this attachment that shares the content, but that can be
+   * read independently of this attachment, e.g. in another thread. If the
+   * content can only be read once, it is first buffered in a temporary file of
+   * the resource helper, and this attachment is changed to read from that file
+   * as well.
+   *
+   * @return A new attachment. Never <code>null</code>.
+   * @throws IOException
+   *         If buffering the content fails
+   * @throws AS4DecompressException
+   *         If buffering compressed content fails
+   * @since 1.3.9
+   */
+  @Nonnull
+  public WSS4JAttachment createIndependentCopy () throws IOException
+  {
+    if (m_aISP != null && !m_aISP.isReadMultiple ())
+    {
+      final File aTempFile = m_aResHelper.createTempFile ();
+      try (final InputStream aIS = m_aISP.getInputStream ();
+           final OutputStream aOS = FileHelper.getBufferedOutputStream (aTempFile))
+      {
+        if (aIS == null)
+          throw new IllegalStateException ("Got no InputStream from " + m_aISP);
+        if (StreamHelper.copyInputStreamToOutputStream (aIS, aOS).isFailure ())
+        {
+          final IOException ex = new IOException ("Failed to buffer attachment '" + getId () + "' in " + aTempFile.getAbsolutePath ());
+          // Reading compressed content fails, if the content is not compressed
+          if (m_eCompressionMode != null)
+            throw new AS4DecompressException (ex);
+          throw ex;
+        }
+      }
+      m_aISP = HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+    }
+
+    final WSS4JAttachment ret = new WSS4JAttachment (m_aResHelper, m_sUncompressedMimeType);
+    ret.setId (getId ());
+    ret.addHeaders (getHeaders ());
+    ret._setMimeTypeOnly (getMimeType ());
+    ret.m_aISP = m_aISP;
+    ret.m_aSourceFile = m_aSourceFile;
+    ret.m_eCTE = m_eCTE;
+    ret.m_eCompressionMode = m_eCompressionMode;
+    ret.m_aCharset = m_aCharset;
+    ret.m_aCustomPartProps.putAll (m_aCustomPartProps);
+    return ret;
+  }
+
+  private void _setMimeTypeOnly (@Nullable final String sMimeType)
+  {
+    super.setMimeType (sMimeType);
+  }
+
   @Nonnull
   public final EContentTransferEncoding getContentTransferEncoding ()
   {
@@ -318,6 +403,41 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                        .getToString ();
   }
 
+  @Nonnull
+  private static IHasInputStream _createInMemoryCompressed (@Nonnull final byte [] aSrcData,
+                                                            @Nonnull final EAS4CompressionMode eCompressionMode,
+                                                            final int nCompressionLevel) throws IOException
+  {
+    // Small payloads don't benefit from parallel compression
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    try (final OutputStream aOS = eCompressionMode.getCompressStream (aBAOS, nCompressionLevel, false))
+    {
+      aOS.write (aSrcData);
+    }
+    return HasInputStream.create (aBAOS);
+  }
+
+  @Nonnull
+  private static InputStream _getCompressingStream (@Nonnull final InputStream aSrcIS,
+                                                    @Nonnull final EAS4CompressionMode eCompressionMode,
+                                                    final int nCompressionLevel,
+                                                    final boolean bParallelCompression)
+  {
+    try
+    {
+      return new AS4CompressingInputStream (aSrcIS,
+                                            eCompressionMode,
+                                            nCompressionLevel,
+                                            bParallelCompression,
+                                            AS4CompressingInputStream.DEFAULT_CHUNK_SIZE);
+    }
+    catch (final IOException ex)
+    {
+      StreamHelper.close (aSrcIS);
+      throw new UncheckedIOException (ex);
+    }
+  }
+
   private static void _addOutgoingHeaders (@Nonnull final WSS4JAttachment aAttachment, @Nullable final String sFilename)
   {
     // Ensure an ID is present
@@ -340,6 +460,36 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final Phase4OutgoingAttachment aAttachment,
                                                               @Nonnull @WillNotClose final AS4ResourceHelper aResHelper) throws IOException
   {
+    return createOutgoingFileAttachment (aAttachment, (PModePayloadService) null, aResHelper);
+  }
+
+  /**
+   * Create an outgoing attachment, taking the compression settings from the
+   * provided PMode payload service. The compression mode itself is always
+   * taken from the attachment - only the compression level and the parallel
+   * compression flag are taken from the payload service.
+   *
+   * @param aAttachment
+   *        The attachment to be converted. May not be <code>null</code>.
+   * @param aPayloadService
+   *        The PMode payload service to take the compression settings from.
+   *        May be <code>null</code> in which case the defaults are used.
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during compression
+   * @since 1.3.9
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final Phase4OutgoingAttachment aAttachment,
+                                                              @Nullable final PModePayloadService aPayloadService,
+                                                              @Nonnull @WillNotClose final AS4ResourceHelper aResHelper) throws IOException
+  {
+    final int nCompressionLevel = aPayloadService != null ? aPayloadService.getCompressionLevel ()
+                                                          : EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL;
+    final boolean bParallelCompression = aPayloadService != null && aPayloadService.isParallelCompression ();
+
     if (aAttachment.hasDataBytes ())
     {
       // Byte array
@@ -348,6 +498,8 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                            aAttachment.getFilename (),
                                            aAttachment.getMimeType (),
                                            aAttachment.getCompressionMode (),
+                                           nCompressionLevel,
+                                           bParallelCompression,
                                            aAttachment.getCharset (),
                                            aResHelper);
     }
@@ -360,6 +512,8 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                            aAttachment.getFilename (),
                                            aAttachment.getMimeType (),
                                            aAttachment.getCompressionMode (),
+                                           nCompressionLevel,
+                                           bParallelCompression,
                                            aAttachment.getCharset (),
                                            aResHelper);
     }
@@ -368,7 +522,54 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
   }
 
   /**
-   * Quasi constructor. Performs compression internally if necessary.
+   * Quasi constructor. Performs compression internally if necessary. Small
+   * files are compressed into memory, larger files are compressed on the fly
+   * each time the content is read.
+   *
+   * @param aSrcFile
+   *        Source, uncompressed, unencrypted file.
+   * @param sContentID
+   *        Content-ID of the attachment. If <code>null</code> a random ID is
+   *        created.
+   * @param sFilename
+   *        Filename of the attachment. May be <code>null</code> in which case
+   *        no <code>Content-Disposition</code> header is created.
+   * @param aMimeType
+   *        Original mime type of the file.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param aCharset
+   *        The character set to use. May be <code>null</code> (since 0.14.0)
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during compression
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final File aSrcFile,
+                                                              @Nullable final String sContentID,
+                                                              @Nullable final String sFilename,
+                                                              @Nonnull final IMimeType aMimeType,
+                                                              @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              @Nullable final Charset aCharset,
+                                                              @Nonnull @WillNotClose final AS4ResourceHelper aResHelper) throws IOException
+  {
+    return createOutgoingFileAttachment (aSrcFile,
+                                         sContentID,
+                                         sFilename,
+                                         aMimeType,
+                                         eCompressionMode,
+                                         EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL,
+                                         false,
+                                         aCharset,
+                                         aResHelper);
+  }
+
+  /**
+   * Quasi constructor. Performs compression internally if necessary. Small
+   * files are compressed into memory, larger files are compressed on the fly
+   * each time the content is read.
    *
    * @param aSrcFile
    *        Source, uncompressed, unencrypted file.
@@ -382,6 +583,13 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
    *        Original mime type of the file.
    * @param eCompressionMode
    *        Optional compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or
+   *        {@link EAS4CompressionMode#DEFAULT_COMPRESSION_LEVEL}. Only used if
+   *        a compression mode is present.
+   * @param bParallelCompression
+   *        <code>true</code> to compress large payloads with multiple threads.
+   *        Only used if a compression mode is present.
    * @param aCharset
    *        The character set to use. May be <code>null</code> (since 0.14.0)
    * @param aResHelper
@@ -389,6 +597,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
    * @return The newly created attachment instance. Never <code>null</code>.
    * @throws IOException
    *         In case something goes wrong during compression
+   * @since 1.3.9
    */
   @Nonnull
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final File aSrcFile,
@@ -396,6 +605,8 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                                               @Nullable final String sFilename,
                                                               @Nonnull final IMimeType aMimeType,
                                                               @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              final int nCompressionLevel,
+                                                              final boolean bParallelCompression,
                                                               @Nullable final Charset aCharset,
                                                               @Nonnull @WillNotClose final AS4ResourceHelper aResHelper) throws IOException
   {
@@ -407,35 +618,87 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     ret.setCharset (aCharset);
     _addOutgoingHeaders (ret, sFilename);
 
-    // If the attachment has an compressionMode do it directly, so that
-    // encryption later on works on the compressed content
-    final File aRealFile;
     if (eCompressionMode != null)
     {
       ret.setCompressionMode (eCompressionMode);
 
-      // Create temporary file with compressed content to avoid that the
-      // original is compressed more than once
-      aRealFile = aResHelper.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (FileHelper.getBufferedOutputStream (aRealFile)))
+      if (canBeKeptInMemory (aSrcFile.length ()))
+      {
+        // Small file - compress once into memory
+        ret.setSourceStreamProvider (_createInMemoryCompressed (StreamHelper.getAllBytes (FileHelper.getBufferedInputStream (aSrcFile)),
+                                                                eCompressionMode,
+                                                                nCompressionLevel));
+      }
+      else
       {
-        StreamHelper.copyInputStreamToOutputStream (FileHelper.getBufferedInputStream (aSrcFile), aOS);
+        // Compress on the fly whenever the content is read (e.g. for signing
+        // and for sending). This avoids an additional temporary file.
+        ret.setSourceStreamProvider (HasInputStream.multiple ( () -> _getCompressingStream (FileHelper.getBufferedInputStream (aSrcFile),
+                                                                                            eCompressionMode,
+                                                                                            nCompressionLevel,
+                                                                                            bParallelCompression)));
       }
     }
     else
     {
       // No compression - use file as-is
-      aRealFile = aSrcFile;
+      // Set a stream provider that can be read multiple times (opens a new
+      // FileInputStream internally)
+      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aSrcFile)));
     }
-
-    // Set a stream provider that can be read multiple times (opens a new
-    // FileInputStream internally)
-    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
     return ret;
   }
 
   /**
-   * Quasi constructor. Performs compression internally.
+   * Quasi constructor. Performs compression internally if necessary. Small
+   * payloads are compressed into memory, larger payloads are compressed on the
+   * fly each time the content is read.
+   *
+   * @param aSrcData
+   *        Source in-memory data, uncompressed, unencrypted.
+   * @param sContentID
+   *        Optional content ID or <code>null</code> to create a random one.
+   *        Filename of the attachment. May be <code>null</code> in which case
+   *        no <code>Content-Disposition</code> header is created.
+   * @param sFilename
+   *        Optional filename to use in the "Content-Disposition" headers. May
+   *        be <code>null</code>.
+   * @param aMimeType
+   *        Original mime type of the file. May not be <code>null</code>.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param aCharset
+   *        The character set to use. May be <code>null</code> (since 0.14.0)
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during compression
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final byte [] aSrcData,
+                                                              @Nullable final String sContentID,
+                                                              @Nullable final String sFilename,
+                                                              @Nonnull final IMimeType aMimeType,
+                                                              @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              @Nullable final Charset aCharset,
+                                                              @Nonnull final AS4ResourceHelper aResHelper) throws IOException
+  {
+    return createOutgoingFileAttachment (aSrcData,
+                                         sContentID,
+                                         sFilename,
+                                         aMimeType,
+                                         eCompressionMode,
+                                         EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL,
+                                         false,
+                                         aCharset,
+                                         aResHelper);
+  }
+
+  /**
+   * Quasi constructor. Performs compression internally if necessary. Small
+   * payloads are compressed into memory, larger payloads are compressed on the
+   * fly each time the content is read.
    *
    * @param aSrcData
    *        Source in-memory data, uncompressed, unencrypted.
@@ -450,6 +713,13 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
    *        Original mime type of the file. May not be <code>null</code>.
    * @param eCompressionMode
    *        Optional compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or
+   *        {@link EAS4CompressionMode#DEFAULT_COMPRESSION_LEVEL}. Only used if
+   *        a compression mode is present.
+   * @param bParallelCompression
+   *        <code>true</code> to compress large payloads with multiple threads.
+   *        Only used if a compression mode is present.
    * @param aCharset
    *        The character set to use. May be <code>null</code> (since 0.14.0)
    * @param aResHelper
@@ -457,6 +727,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
    * @return The newly created attachment instance. Never <code>null</code>.
    * @throws IOException
    *         In case something goes wrong during compression
+   * @since 1.3.9
    */
   @Nonnull
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final byte [] aSrcData,
@@ -464,6 +735,8 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                                               @Nullable final String sFilename,
                                                               @Nonnull final IMimeType aMimeType,
                                                               @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              final int nCompressionLevel,
+                                                              final boolean bParallelCompression,
                                                               @Nullable final Charset aCharset,
                                                               @Nonnull final AS4ResourceHelper aResHelper) throws IOException
   {
@@ -481,13 +754,20 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     {
       ret.setCompressionMode (eCompressionMode);
 
-      // Create temporary file with compressed content
-      final File aRealFile = aResHelper.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (FileHelper.getBufferedOutputStream (aRealFile)))
+      if (canBeKeptInMemory (aSrcData.length))
+      {
+        // Small payload - compress once into memory
+        ret.setSourceStreamProvider (_createInMemoryCompressed (aSrcData, eCompressionMode, nCompressionLevel));
+      }
+      else
       {
-        aOS.write (aSrcData);
+        // Compress on the fly whenever the content is read (e.g. for signing
+        // and for sending). This avoids an additional temporary file.
+        ret.setSourceStreamProvider (HasInputStream.multiple ( () -> _getCompressingStream (new NonBlockingByteArrayInputStream (aSrcData),
+                                                                                            eCompressionMode,
+                                                                                            nCompressionLevel,
+                                                                                            bParallelCompression)));
       }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
     }
     else
     {
@@ -582,7 +862,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
       {
         aBodyPart.getDataHandler ().writeTo (aOS);
       }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
+      ret.setSourceFile (aTempFile);
     }
 
     // Read all MIME part headers
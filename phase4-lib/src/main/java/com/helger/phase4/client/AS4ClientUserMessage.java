@@ -44,6 +44,7 @@ import com.helger.commons.string.StringHelper;
 import com.helger.phase4.CAS4;
 import com.helger.phase4.attachment.EAS4CompressionMode;
 import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.ebms3header.Ebms3CollaborationInfo;
 import com.helger.phase4.ebms3header.Ebms3MessageInfo;
@@ -57,6 +58,7 @@ import com.helger.phase4.http.HttpXMLEntity;
 import com.helger.phase4.messaging.crypto.AS4Encryptor;
 import com.helger.phase4.messaging.crypto.AS4Signer;
 import com.helger.phase4.messaging.domain.AS4UserMessage;
+import com.helger.phase4.messaging.domain.AS4UserMessageSoapTemplateCache;
 import com.helger.phase4.messaging.domain.EAS4MessageType;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
 import com.helger.phase4.messaging.mime.AS4MimeMessage;
@@ -639,7 +641,11 @@ public class AS4ClientUserMessage extends AbstractAS4Client <AS4ClientUserMessag
     if (aCallback != null)
       aCallback.onAS4Message (aUserMsg);
 
-    final Document aPureDoc = aUserMsg.getAsSoapDocument (m_aPayload);
+    // Reuse the static parts of previously created SOAP envelopes if enabled
+    final Document aPureDoc = AS4Configuration.isSoapTemplateCacheEnabled () ? AS4UserMessageSoapTemplateCache.getDefaultInstance ()
+                                                                                                          .getAsSoapDocument (aUserMsg,
+                                                                                                                              m_aPayload)
+                                                                             : aUserMsg.getAsSoapDocument (m_aPayload);
 
     if (aCallback != null)
       aCallback.onSoapDocument (aPureDoc);
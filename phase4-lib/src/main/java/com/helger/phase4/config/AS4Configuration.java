@@ -19,12 +19,14 @@ package com.helger.phase4.config;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.equals.EqualsHelper;
@@ -65,6 +67,182 @@ public final class AS4Configuration
 
   public static final long DEFAULT_PHASE4_INCOMING_DUPLICATEDISPOSAL_MINUTES = 10;
 
+  /**
+   * The int property to define the number of threads used for parallel
+   * compression.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_COMPRESSION_PARALLEL_THREADS = "phase4.compression.parallel.threads";
+
+  /**
+   * The boolean property to enable the reuse of pre-built SOAP envelopes for
+   * outgoing user messages.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_SENDER_SOAP_TEMPLATE_CACHE_ENABLED = "phase4.sender.soaptemplatecache.enabled";
+  public static final boolean DEFAULT_PHASE4_SENDER_SOAP_TEMPLATE_CACHE_ENABLED = false;
+
+  /**
+   * The int property to define the number of worker threads of the
+   * asynchronous AS4 servlet.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_SERVLET_ASYNC_THREADS = "phase4.servlet.async.threads";
+
+  /**
+   * The int property to define the maximum number of requests waiting for a
+   * worker thread of the asynchronous AS4 servlet.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_SERVLET_ASYNC_QUEUESIZE = "phase4.servlet.async.queuesize";
+  public static final int DEFAULT_PHASE4_SERVLET_ASYNC_QUEUESIZE = 100;
+
+  /**
+   * The long property to define the per-request timeout in milliseconds of the
+   * asynchronous AS4 servlet.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_SERVLET_ASYNC_TIMEOUT_MS = "phase4.servlet.async.timeout.ms";
+  public static final long DEFAULT_PHASE4_SERVLET_ASYNC_TIMEOUT_MS = 2 * CGlobal.MILLISECONDS_PER_MINUTE;
+
+  /**
+   * The boolean property to run blocking background tasks on virtual threads,
+   * if the JDK supports them.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_VIRTUALTHREADS_ENABLED = "phase4.virtualthreads.enabled";
+  public static final boolean DEFAULT_PHASE4_VIRTUALTHREADS_ENABLED = false;
+
+  /**
+   * The int property to define the number of threads for asynchronous (PUSH
+   * PUSH) response processing.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_ASYNC_RESPONSE_THREADS = "phase4.async.response.threads";
+
+  /**
+   * The int property to define the maximum number of asynchronous responses
+   * waiting to be processed.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_ASYNC_RESPONSE_QUEUESIZE = "phase4.async.response.queuesize";
+  public static final int DEFAULT_PHASE4_ASYNC_RESPONSE_QUEUESIZE = 1000;
+
+  /**
+   * The long property to define the number of seconds to wait for pending
+   * asynchronous responses on shutdown.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_ASYNC_RESPONSE_SHUTDOWN_SECONDS = "phase4.async.response.shutdown.seconds";
+  public static final long DEFAULT_PHASE4_ASYNC_RESPONSE_SHUTDOWN_SECONDS = 60;
+
+  /**
+   * The boolean property to enable the persistent outbox for asynchronous
+   * responses.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_OUTBOX_ENABLED = "phase4.outbox.enabled";
+  public static final boolean DEFAULT_PHASE4_OUTBOX_ENABLED = false;
+
+  /**
+   * The string property to define the directory of the persistent outbox.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_OUTBOX_PATH = "phase4.outbox.path";
+  public static final String DEFAULT_PHASE4_OUTBOX_PATH = "phase4-outbox";
+
+  /**
+   * The int property to define the number of threads delivering outbox
+   * entries.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_OUTBOX_THREADS = "phase4.outbox.threads";
+  public static final int DEFAULT_PHASE4_OUTBOX_THREADS = 2;
+
+  /**
+   * The int property to define the maximum number of delivery attempts per
+   * outbox entry.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_OUTBOX_MAXATTEMPTS = "phase4.outbox.maxattempts";
+  public static final int DEFAULT_PHASE4_OUTBOX_MAXATTEMPTS = 10;
+
+  /**
+   * The long property to define the initial delay in seconds between delivery
+   * attempts of an outbox entry. It is doubled with every attempt.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_OUTBOX_RETRY_SECONDS = "phase4.outbox.retry.seconds";
+  public static final long DEFAULT_PHASE4_OUTBOX_RETRY_SECONDS = 30;
+
+  /**
+   * The int property to define the maximum number of threads used to invoke
+   * independent message processor SPIs concurrently. If not set, the number of
+   * available processors is used.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_SPI_CONCURRENT_THREADS = "phase4.spi.concurrent.threads";
+
+  /**
+   * The boolean property to enable the durable inbox for incoming one-way user
+   * messages. If enabled, the receipt is returned as soon as the message is
+   * persisted and the SPIs are invoked afterwards.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_INBOX_ENABLED = "phase4.inbox.enabled";
+  public static final boolean DEFAULT_PHASE4_INBOX_ENABLED = false;
+
+  /**
+   * The string property to define the directory of the durable inbox.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_INBOX_PATH = "phase4.inbox.path";
+  public static final String DEFAULT_PHASE4_INBOX_PATH = "phase4-inbox";
+
+  /**
+   * The int property to define the number of threads processing inbox
+   * entries.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_INBOX_THREADS = "phase4.inbox.threads";
+  public static final int DEFAULT_PHASE4_INBOX_THREADS = 2;
+
+  /**
+   * The int property to define the maximum number of processing attempts per
+   * inbox entry.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_INBOX_MAXATTEMPTS = "phase4.inbox.maxattempts";
+  public static final int DEFAULT_PHASE4_INBOX_MAXATTEMPTS = 10;
+
+  /**
+   * The long property to define the initial delay in seconds between
+   * processing attempts of an inbox entry. It is doubled with every attempt.
+   *
+   * @since 1.3.9
+   */
+  public static final String PROPERTY_PHASE4_INBOX_RETRY_SECONDS = "phase4.inbox.retry.seconds";
+  public static final long DEFAULT_PHASE4_INBOX_RETRY_SECONDS = 30;
+
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4Configuration.class);
 
   /**
@@ -281,4 +459,273 @@ public final class AS4Configuration
   {
     return getConfig ().getAsString ("phase4.endpoint.address");
   }
+
+  /**
+   * @return The number of threads to be used for parallel compression of
+   *         outgoing attachments. Taken from the configuration item
+   *         <code>phase4.compression.parallel.threads</code>. Defaults to the
+   *         number of available processors. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getParallelCompressionThreadCount ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_COMPRESSION_PARALLEL_THREADS, Runtime.getRuntime ().availableProcessors ());
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return <code>true</code> if the SOAP envelopes of outgoing user messages
+   *         should be created from cached templates instead of being
+   *         marshalled from scratch for every message. Taken from the
+   *         configuration item
+   *         <code>phase4.sender.soaptemplatecache.enabled</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_SENDER_SOAP_TEMPLATE_CACHE_ENABLED}.
+   * @since 1.3.9
+   */
+  public static boolean isSoapTemplateCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean (PROPERTY_PHASE4_SENDER_SOAP_TEMPLATE_CACHE_ENABLED,
+                                      DEFAULT_PHASE4_SENDER_SOAP_TEMPLATE_CACHE_ENABLED);
+  }
+
+  /**
+   * @return The number of worker threads of the asynchronous AS4 servlet. Taken
+   *         from the configuration item <code>phase4.servlet.async.threads</code>.
+   *         Defaults to twice the number of available processors. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getAsyncServletThreadCount ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_SERVLET_ASYNC_THREADS, 2 * Runtime.getRuntime ().availableProcessors ());
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The maximum number of requests waiting for a worker thread of the
+   *         asynchronous AS4 servlet. Taken from the configuration item
+   *         <code>phase4.servlet.async.queuesize</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_SERVLET_ASYNC_QUEUESIZE}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getAsyncServletQueueSize ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_SERVLET_ASYNC_QUEUESIZE, DEFAULT_PHASE4_SERVLET_ASYNC_QUEUESIZE);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The per-request timeout in milliseconds of the asynchronous AS4
+   *         servlet. Taken from the configuration item
+   *         <code>phase4.servlet.async.timeout.ms</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_SERVLET_ASYNC_TIMEOUT_MS}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static long getAsyncServletTimeoutMS ()
+  {
+    final long ret = getConfig ().getAsLong (PROPERTY_PHASE4_SERVLET_ASYNC_TIMEOUT_MS, DEFAULT_PHASE4_SERVLET_ASYNC_TIMEOUT_MS);
+    return ret > 0 ? ret : DEFAULT_PHASE4_SERVLET_ASYNC_TIMEOUT_MS;
+  }
+
+  /**
+   * @return <code>true</code> if blocking background tasks should run on
+   *         virtual threads, if the JDK supports them. Taken from the
+   *         configuration item <code>phase4.virtualthreads.enabled</code>.
+   *         Defaults to {@value #DEFAULT_PHASE4_VIRTUALTHREADS_ENABLED}.
+   * @since 1.3.9
+   */
+  public static boolean isVirtualThreadsEnabled ()
+  {
+    return getConfig ().getAsBoolean (PROPERTY_PHASE4_VIRTUALTHREADS_ENABLED, DEFAULT_PHASE4_VIRTUALTHREADS_ENABLED);
+  }
+
+  /**
+   * @return The number of threads for asynchronous (PUSH PUSH) response
+   *         processing. Taken from the configuration item
+   *         <code>phase4.async.response.threads</code>. Defaults to the number of
+   *         available processors. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getAsyncResponseThreadCount ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_ASYNC_RESPONSE_THREADS, Runtime.getRuntime ().availableProcessors ());
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The maximum number of asynchronous responses waiting to be
+   *         processed. Taken from the configuration item
+   *         <code>phase4.async.response.queuesize</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_ASYNC_RESPONSE_QUEUESIZE}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getAsyncResponseQueueSize ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_ASYNC_RESPONSE_QUEUESIZE, DEFAULT_PHASE4_ASYNC_RESPONSE_QUEUESIZE);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The number of seconds to wait for pending asynchronous responses
+   *         on shutdown. Taken from the configuration item
+   *         <code>phase4.async.response.shutdown.seconds</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_ASYNC_RESPONSE_SHUTDOWN_SECONDS}.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static long getAsyncResponseShutdownSeconds ()
+  {
+    final long ret = getConfig ().getAsLong (PROPERTY_PHASE4_ASYNC_RESPONSE_SHUTDOWN_SECONDS,
+                                             DEFAULT_PHASE4_ASYNC_RESPONSE_SHUTDOWN_SECONDS);
+    return Math.max (ret, 0);
+  }
+
+  /**
+   * @return <code>true</code> if asynchronous responses should be delivered
+   *         via the persistent outbox. Taken from the configuration item
+   *         <code>phase4.outbox.enabled</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_OUTBOX_ENABLED}.
+   * @since 1.3.9
+   */
+  public static boolean isOutboxEnabled ()
+  {
+    return getConfig ().getAsBoolean (PROPERTY_PHASE4_OUTBOX_ENABLED, DEFAULT_PHASE4_OUTBOX_ENABLED);
+  }
+
+  /**
+   * @return The directory of the persistent outbox as a {@link File}. Taken
+   *         from the configuration item <code>phase4.outbox.path</code>.
+   *         Defaults to {@value #DEFAULT_PHASE4_OUTBOX_PATH}.
+   * @since 1.3.9
+   */
+  @Nonnull
+  public static File getOutboxPathFile ()
+  {
+    return new File (getConfig ().getAsString (PROPERTY_PHASE4_OUTBOX_PATH, DEFAULT_PHASE4_OUTBOX_PATH)).getAbsoluteFile ();
+  }
+
+  /**
+   * @return The number of threads delivering outbox entries. Taken from the
+   *         configuration item <code>phase4.outbox.threads</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_OUTBOX_THREADS}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getOutboxThreadCount ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_OUTBOX_THREADS, DEFAULT_PHASE4_OUTBOX_THREADS);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The maximum number of delivery attempts per outbox entry. Taken
+   *         from the configuration item <code>phase4.outbox.maxattempts</code>.
+   *         Defaults to {@value #DEFAULT_PHASE4_OUTBOX_MAXATTEMPTS}. Always
+   *         &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getOutboxMaxAttempts ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_OUTBOX_MAXATTEMPTS, DEFAULT_PHASE4_OUTBOX_MAXATTEMPTS);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The initial delay in seconds between delivery attempts of an
+   *         outbox entry. Taken from the configuration item
+   *         <code>phase4.outbox.retry.seconds</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_OUTBOX_RETRY_SECONDS}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static long getOutboxRetrySeconds ()
+  {
+    final long ret = getConfig ().getAsLong (PROPERTY_PHASE4_OUTBOX_RETRY_SECONDS, DEFAULT_PHASE4_OUTBOX_RETRY_SECONDS);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The maximum number of threads used to invoke independent message
+   *         processor SPIs concurrently. Taken from the configuration item
+   *         <code>phase4.spi.concurrent.threads</code>. Defaults to the number
+   *         of available processors. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getSPIConcurrentThreadCount ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_SPI_CONCURRENT_THREADS, Runtime.getRuntime ().availableProcessors ());
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return <code>true</code> if incoming one-way user messages should be
+   *         stored in the durable inbox and processed afterwards. Taken from
+   *         the configuration item <code>phase4.inbox.enabled</code>. Defaults
+   *         to {@value #DEFAULT_PHASE4_INBOX_ENABLED}.
+   * @since 1.3.9
+   */
+  public static boolean isInboxEnabled ()
+  {
+    return getConfig ().getAsBoolean (PROPERTY_PHASE4_INBOX_ENABLED, DEFAULT_PHASE4_INBOX_ENABLED);
+  }
+
+  /**
+   * @return The directory of the durable inbox as a {@link File}. Taken from
+   *         the configuration item <code>phase4.inbox.path</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_INBOX_PATH}.
+   * @since 1.3.9
+   */
+  @Nonnull
+  public static File getInboxPathFile ()
+  {
+    return new File (getConfig ().getAsString (PROPERTY_PHASE4_INBOX_PATH, DEFAULT_PHASE4_INBOX_PATH)).getAbsoluteFile ();
+  }
+
+  /**
+   * @return The number of threads processing inbox entries. Taken from the
+   *         configuration item <code>phase4.inbox.threads</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_INBOX_THREADS}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getInboxThreadCount ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_INBOX_THREADS, DEFAULT_PHASE4_INBOX_THREADS);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The maximum number of processing attempts per inbox entry. Taken
+   *         from the configuration item <code>phase4.inbox.maxattempts</code>.
+   *         Defaults to {@value #DEFAULT_PHASE4_INBOX_MAXATTEMPTS}. Always &gt;
+   *         0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int getInboxMaxAttempts ()
+  {
+    final int ret = getConfig ().getAsInt (PROPERTY_PHASE4_INBOX_MAXATTEMPTS, DEFAULT_PHASE4_INBOX_MAXATTEMPTS);
+    return Math.max (ret, 1);
+  }
+
+  /**
+   * @return The initial delay in seconds between processing attempts of an
+   *         inbox entry. Taken from the configuration item
+   *         <code>phase4.inbox.retry.seconds</code>. Defaults to
+   *         {@value #DEFAULT_PHASE4_INBOX_RETRY_SECONDS}. Always &gt; 0.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static long getInboxRetrySeconds ()
+  {
+    final long ret = getConfig ().getAsLong (PROPERTY_PHASE4_INBOX_RETRY_SECONDS, DEFAULT_PHASE4_INBOX_RETRY_SECONDS);
+    return Math.max (ret, 1);
+  }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.io.stream.WrappedInputStream;
+import com.helger.phase4.util.AS4ThreadHelper;
+
+/**
+ * An {@link InputStream} that passes all read bytes to a dump
+ * {@link OutputStream} as well. Other than a plain tee, writing to the dump
+ * stream happens asynchronously in a background thread. The number of bytes
+ * waiting to be dumped is bounded. If the dump target is too slow and the
+ * bound is exceeded, the dump is truncated instead of blocking the reader.
+ * This makes it possible to serialize a message only once, for both the
+ * recipient and the dumper.<br>
+ * If the stream is closed before the end of the source was reached, the
+ * remaining bytes are read and dumped as well, so that the dump always
+ * contains the complete source (unless it was truncated). Closing waits for
+ * the background writer (at most {@link #MAX_CLOSE_WAIT_SECONDS} seconds) and
+ * invokes the finish callback in the closing thread.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public class AS4DumpTeeInputStream extends WrappedInputStream
+{
+  /** The default maximum number of bytes waiting to be dumped: 4 MB */
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 4 * CGlobal.BYTES_PER_MEGABYTE;
+  /** The maximum number of background writer threads */
+  public static final int MAX_WRITER_THREADS = Math.max (4, Runtime.getRuntime ().availableProcessors ());
+  /** The maximum number of seconds closing waits for the background writer */
+  public static final long MAX_CLOSE_WAIT_SECONDS = 10;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DumpTeeInputStream.class);
+  private static final byte [] END_OF_STREAM = new byte [0];
+  private static final long MAX_IDLE_SECONDS = 60;
+  private static final int DRAIN_BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private static final class SingletonHolder
+  {
+    static final ExecutorService INSTANCE;
+    static
+    {
+      // Unbounded queue
+      INSTANCE = AS4ThreadHelper.createBoundedExecutor ("phase4-dump-", MAX_WRITER_THREADS, Integer.MAX_VALUE);
+    }
+  }
+
+  private final OutputStream m_aDumpOS;
+  private final int m_nMaxBufferedBytes;
+  private final Runnable m_aOnDumpFinished;
+  private final BlockingQueue <byte []> m_aQueue = new LinkedBlockingQueue <> ();
+  private final Semaphore m_aBufferPermits;
+  private final CountDownLatch m_aWriterFinished = new CountDownLatch (1);
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+  private volatile boolean m_bTruncated = false;
+  private boolean m_bEndOfSource = false;
+
+  /**
+   * Constructor
+   *
+   * @param aSourceIS
+   *        The source input stream to read from. May not be <code>null</code>.
+   * @param aDumpOS
+   *        The dump output stream. May not be <code>null</code>. It is closed
+   *        by the background writer after this stream was closed.
+   * @param nMaxBufferedBytes
+   *        The maximum number of bytes that may wait to be dumped. Must be &gt;
+   *        0.
+   * @param aOnDumpFinished
+   *        An optional callback that is invoked by the thread closing this
+   *        stream, after the dump output stream was closed. May be
+   *        <code>null</code>.
+   */
+  public AS4DumpTeeInputStream (@Nonnull @WillCloseWhenClosed final InputStream aSourceIS,
+                                @Nonnull final OutputStream aDumpOS,
+                                @Nonnegative final long nMaxBufferedBytes,
+                                @Nullable final Runnable aOnDumpFinished)
+  {
+    super (aSourceIS);
+    ValueEnforcer.notNull (aDumpOS, "DumpOS");
+    ValueEnforcer.isGT0 (nMaxBufferedBytes, "MaxBufferedBytes");
+    m_aDumpOS = aDumpOS;
+    m_nMaxBufferedBytes = (int) Math.min (nMaxBufferedBytes, Integer.MAX_VALUE);
+    m_aOnDumpFinished = aOnDumpFinished;
+    m_aBufferPermits = new Semaphore (m_nMaxBufferedBytes);
+    try
+    {
+      SingletonHolder.INSTANCE.submit (this::_writeDump);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      LOGGER.warn ("Failed to start the background dump writer - nothing is dumped");
+      m_bTruncated = true;
+      StreamHelper.close (m_aDumpOS);
+      m_aWriterFinished.countDown ();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the dump was truncated, because the dump
+   *         target was too slow or failed.
+   */
+  public final boolean isTruncated ()
+  {
+    return m_bTruncated;
+  }
+
+  private void _writeDump ()
+  {
+    boolean bCanWrite = true;
+    try
+    {
+      while (true)
+      {
+        final byte [] aChunk = m_aQueue.poll (MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+        if (aChunk == null)
+        {
+          // Avoid blocking a thread forever, if the stream is never closed
+          LOGGER.warn ("No data to dump was received for " + MAX_IDLE_SECONDS + " seconds - the dump is truncated");
+          m_bTruncated = true;
+          break;
+        }
+        if (aChunk == END_OF_STREAM)
+          break;
+        try
+        {
+          if (bCanWrite)
+            m_aDumpOS.write (aChunk);
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to write to the dump stream - the dump is truncated", ex);
+          m_bTruncated = true;
+          bCanWrite = false;
+        }
+        finally
+        {
+          m_aBufferPermits.release (aChunk.length);
+        }
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      LOGGER.warn ("Interrupted while writing the dump - the dump is truncated");
+      m_bTruncated = true;
+      Thread.currentThread ().interrupt ();
+    }
+    finally
+    {
+      StreamHelper.flush (m_aDumpOS);
+      StreamHelper.close (m_aDumpOS);
+      m_aWriterFinished.countDown ();
+    }
+  }
+
+  private void _enqueue (@Nonnull final byte [] aBuf, final int nOfs, final int nLen)
+  {
+    if (m_bTruncated || nLen <= 0)
+      return;
+
+    if (!m_aBufferPermits.tryAcquire (nLen))
+    {
+      // Don't stall the reader
+      LOGGER.warn ("The dump target cannot keep up (more than " + m_nMaxBufferedBytes + " bytes pending) - the dump is truncated");
+      m_bTruncated = true;
+      return;
+    }
+    m_aQueue.add (Arrays.copyOfRange (aBuf, nOfs, nOfs + nLen));
+  }
+
+  @Override
+  public int read () throws IOException
+  {
+    final int ret = super.read ();
+    if (ret == -1)
+      m_bEndOfSource = true;
+    else
+      _enqueue (new byte [] { (byte) ret }, 0, 1);
+    return ret;
+  }
+
+  @Override
+  public int read (@Nonnull final byte [] b, final int nOffset, final int nLength) throws IOException
+  {
+    final int ret = super.read (b, nOffset, nLength);
+    if (ret == -1)
+      m_bEndOfSource = true;
+    else
+      if (ret > 0)
+        _enqueue (b, nOffset, ret);
+    return ret;
+  }
+
+  /**
+   * Read the rest of the source and pass it to the dump. Nobody is waiting
+   * for the data anymore, so it is okay to wait for the dump target here.
+   *
+   * @throws IOException
+   *         If reading the source fails
+   * @throws InterruptedException
+   *         If interrupted while waiting for the dump target
+   */
+  private void _drainSource () throws IOException, InterruptedException
+  {
+    final byte [] aBuf = new byte [Math.min (DRAIN_BUFFER_SIZE, m_nMaxBufferedBytes)];
+    int nRead;
+    while (!m_bTruncated && (nRead = super.read (aBuf, 0, aBuf.length)) > 0)
+    {
+      while (!m_aBufferPermits.tryAcquire (nRead, 1, TimeUnit.SECONDS))
+        if (m_aWriterFinished.getCount () == 0)
+        {
+          // The background writer gave up
+          m_bTruncated = true;
+          return;
+        }
+      m_aQueue.add (Arrays.copyOf (aBuf, nRead));
+    }
+  }
+
+  private void _awaitWriter ()
+  {
+    try
+    {
+      if (!m_aWriterFinished.await (MAX_CLOSE_WAIT_SECONDS, TimeUnit.SECONDS))
+        LOGGER.warn ("The background dump writer did not finish within " + MAX_CLOSE_WAIT_SECONDS + " seconds");
+    }
+    catch (final InterruptedException ex)
+    {
+      LOGGER.warn ("Interrupted while waiting for the background dump writer");
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    if (m_aClosed.compareAndSet (false, true))
+    {
+      try
+      {
+        if (!m_bEndOfSource && !m_bTruncated)
+          _drainSource ();
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        LOGGER.warn ("Failed to read the remaining source for the dump - the dump is truncated", ex);
+        m_bTruncated = true;
+      }
+      catch (final InterruptedException ex)
+      {
+        LOGGER.warn ("Interrupted while reading the remaining source for the dump - the dump is truncated");
+        m_bTruncated = true;
+        Thread.currentThread ().interrupt ();
+      }
+      finally
+      {
+        try
+        {
+          super.close ();
+        }
+        finally
+        {
+          // Let the background writer finish and wait for it
+          m_aQueue.add (END_OF_STREAM);
+          _awaitWriter ();
+          if (m_aOnDumpFinished != null)
+            m_aOnDumpFinished.run ();
+        }
+      }
+    }
+  }
+}
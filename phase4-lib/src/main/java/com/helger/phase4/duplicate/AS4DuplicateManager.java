@@ -71,6 +71,15 @@ public class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS4Dupli
     return m_aRWLock.writeLockedGet (this::internalRemoveAllItemsNoCallback);
   }
 
+  @Nonnull
+  public EChange removeMessageID (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+      return EChange.UNCHANGED;
+
+    return m_aRWLock.writeLockedGet ( () -> EChange.valueOf (internalDeleteItem (sMessageID) != null));
+  }
+
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <String> evictAllItemsBefore (@Nonnull final OffsetDateTime aRefDT)
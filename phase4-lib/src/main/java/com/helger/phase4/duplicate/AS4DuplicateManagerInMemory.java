@@ -85,6 +85,15 @@ public class AS4DuplicateManagerInMemory implements IAS4DuplicateManager
     return m_aRWLock.writeLockedGet (m_aMap::removeAll);
   }
 
+  @Nonnull
+  public EChange removeMessageID (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+      return EChange.UNCHANGED;
+
+    return m_aRWLock.writeLockedGet ( () -> m_aMap.removeObject (sMessageID));
+  }
+
   @Nonnull
   @ReturnsMutableCopy
   public ICommonsList <String> evictAllItemsBefore (@Nonnull final OffsetDateTime aRefDT)
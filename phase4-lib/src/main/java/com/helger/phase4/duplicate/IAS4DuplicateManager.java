@@ -88,6 +88,23 @@ public interface IAS4DuplicateManager
   @Nonnull
   EChange clearCache ();
 
+  /**
+   * Remove the entry of a single message ID, e.g. because the message was
+   * finally not accepted and may be resent by the sender. The default
+   * implementation does nothing, so that existing implementations don't need
+   * to be changed. In that case a resent message is considered a duplicate.
+   *
+   * @param sMessageID
+   *        The message ID to remove. May be <code>null</code>.
+   * @return {@link EChange}
+   * @since 1.3.9
+   */
+  @Nonnull
+  default EChange removeMessageID (@Nullable final String sMessageID)
+  {
+    return EChange.UNCHANGED;
+  }
+
   /**
    * Delete all duplicate items that were created before the provided time.
    *
@@ -18,23 +18,24 @@ package com.helger.phase4.http;
 
 import javax.annotation.Nonnull;
 
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.w3c.dom.Node;
 
 import com.helger.commons.mime.IMimeType;
 import com.helger.phase4.util.AS4XMLHelper;
 
 /**
- * Special HttpClient HTTP POST entity that contains a DOM Node as a serialized
+ * Special HttpClient HTTP POST entity that contains a DOM Node as serialized
+ * bytes. The node is serialized directly into bytes, without an intermediate
  * String. This entity is repeatable.
  *
  * @author Philip Helger
  */
-public class HttpXMLEntity extends StringEntity
+public class HttpXMLEntity extends ByteArrayEntity
 {
   public HttpXMLEntity (@Nonnull final Node aNode, @Nonnull final IMimeType aMimeType)
   {
-    super (AS4XMLHelper.serializeXML (aNode), AS4XMLHelper.XWS.getCharset ());
+    super (AS4XMLHelper.serializeXMLBytes (aNode));
     // Required for AS4.NET
     setContentType (aMimeType.getAsString ());
   }
@@ -0,0 +1,782 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.inbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.OffsetDateTime;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.charset.CharsetHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.StringHelper;
+import com.helger.json.IJson;
+import com.helger.json.IJsonArray;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonArray;
+import com.helger.json.JsonObject;
+import com.helger.json.serialize.JsonReader;
+import com.helger.json.serialize.JsonWriter;
+import com.helger.phase4.attachment.AS4DecompressException;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3MessageInfo;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.marshaller.Ebms3ReaderBuilder;
+import com.helger.phase4.marshaller.Ebms3WriterBuilder;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.AS4MessageState;
+import com.helger.phase4.servlet.IAS4MessageState;
+import com.helger.phase4.servlet.mgr.AS4ServletMessageProcessorManager;
+import com.helger.phase4.servlet.spi.AS4MessageProcessorResult;
+import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4IOHelper;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.AS4ThreadHelper;
+import com.helger.phase4.util.AS4XMLHelper;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+import com.helger.security.certificate.CertificateHelper;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * A durable inbox for incoming one-way user messages. It allows to return the
+ * receipt as soon as the verified and decrypted message is stored, and to
+ * invoke the message processor SPIs afterwards.<br>
+ * Each entry is a directory containing the SOAP document, the ebMS messaging
+ * header, the attachments and a JSON file with the remaining meta data. The
+ * JSON file is moved into place atomically after everything else was written
+ * and forced to disk, so only complete entries are processed. Temporary files
+ * of attachments are linked into the entry instead of being copied, where
+ * possible.<br>
+ * A successfully processed entry is deleted; an entry that could not be
+ * processed after the maximum number of attempts is moved to the "failed"
+ * directory (dead letters) for manual inspection. Pending entries are
+ * recovered upon startup. Because an entry may be processed more than once,
+ * the SPIs must be idempotent. The state passed to the SPIs is restored from
+ * disk, so custom attributes set during the reception are not available.<br>
+ * The settings are taken from {@link AS4Configuration} (see
+ * <code>phase4.inbox.*</code>).
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public class AS4Inbox extends AbstractGlobalSingleton
+{
+  public static final String DIR_PENDING = "pending";
+  public static final String DIR_FAILED = "failed";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4Inbox.class);
+  private static final String FILE_ENTRY = "entry.json";
+  private static final String FILE_ENTRY_TEMP = "entry.tmp";
+  private static final String FILE_SOAP = "soap.xml";
+  private static final String FILE_MESSAGING = "messaging.xml";
+  private static final String FILE_ATTACHMENT_PREFIX = "attachment-";
+  private static final long MAX_RETRY_DELAY_SECONDS = CGlobal.SECONDS_PER_HOUR;
+
+  private static final String JSON_METADATA = "metadata";
+  private static final String JSON_HTTP_HEADERS = "httpHeaders";
+  private static final String JSON_STATE = "state";
+  private static final String JSON_ATTACHMENTS = "attachments";
+  private static final String JSON_INCOMING_UNIQUE_ID = "incomingUniqueId";
+  private static final String JSON_INCOMING_DT = "incomingDT";
+  private static final String JSON_MODE = "mode";
+  private static final String JSON_REMOTE_ADDR = "remoteAddr";
+  private static final String JSON_REMOTE_HOST = "remoteHost";
+  private static final String JSON_REMOTE_PORT = "remotePort";
+  private static final String JSON_REMOTE_USER = "remoteUser";
+  private static final String JSON_SOAP_VERSION = "soapVersion";
+  private static final String JSON_LOCALE = "locale";
+  private static final String JSON_PMODE_ID = "pmodeId";
+  private static final String JSON_LEG_NUMBER = "legNumber";
+  private static final String JSON_MPC_ID = "mpcId";
+  private static final String JSON_PROFILE_ID = "profileId";
+  private static final String JSON_INITIATOR_ID = "initiatorId";
+  private static final String JSON_RESPONDER_ID = "responderId";
+  private static final String JSON_USED_CERTIFICATE = "usedCertificate";
+  private static final String JSON_WSS4J_SECURITY_ACTIONS = "wss4jSecurityActions";
+  private static final String JSON_SOAP_BODY_PAYLOAD_PRESENT = "soapBodyPayloadPresent";
+  private static final String JSON_DECRYPTED_SOAP = "decryptedSoap";
+  private static final String JSON_DECRYPTED_ATTACHMENTS = "decryptedAttachments";
+  private static final String JSON_ATTACHMENT_ID = "id";
+  private static final String JSON_ATTACHMENT_MIME_TYPE = "mimeType";
+  private static final String JSON_ATTACHMENT_CHARSET = "charset";
+  private static final String JSON_ATTACHMENT_COMPRESSION_MODE = "compressionMode";
+  private static final String JSON_ATTACHMENT_HEADERS = "headers";
+
+  private final AtomicInteger m_aPendingCount = new AtomicInteger (0);
+  private final AtomicLong m_aProcessedCount = new AtomicLong (0);
+  private final AtomicLong m_aFailedCount = new AtomicLong (0);
+  private File m_aPendingDir;
+  private File m_aFailedDir;
+  private int m_nMaxAttempts;
+  private long m_nRetrySeconds;
+  private ScheduledThreadPoolExecutor m_aExecutor;
+  @GuardedBy ("m_aRWLock")
+  private Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> m_aProcessorSupplier = AS4ServletMessageProcessorManager::getAllProcessors;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4Inbox ()
+  {}
+
+  @Nonnull
+  public static AS4Inbox getInstance ()
+  {
+    return getGlobalSingleton (AS4Inbox.class);
+  }
+
+  @Override
+  protected void onAfterInstantiation (@Nonnull final IScope aScope)
+  {
+    final File aBaseDir = AS4Configuration.getInboxPathFile ();
+    m_aPendingDir = new File (aBaseDir, DIR_PENDING);
+    m_aFailedDir = new File (aBaseDir, DIR_FAILED);
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (m_aPendingDir);
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (m_aFailedDir);
+    m_nMaxAttempts = AS4Configuration.getInboxMaxAttempts ();
+    m_nRetrySeconds = AS4Configuration.getInboxRetrySeconds ();
+
+    m_aExecutor = new ScheduledThreadPoolExecutor (AS4Configuration.getInboxThreadCount (),
+                                                   AS4ThreadHelper.createThreadFactory ("phase4-inbox-"));
+    // Scheduled retries stay on disk and are recovered with the next start
+    m_aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+
+    _recover ();
+  }
+
+  @Override
+  protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
+  {
+    m_aExecutor.shutdown ();
+    if (!m_aExecutor.awaitTermination (30, TimeUnit.SECONDS))
+      m_aExecutor.shutdownNow ();
+  }
+
+  /**
+   * @return The supplier for the message processors that are invoked for each
+   *         entry. Never <code>null</code>. By default all processors from the
+   *         global SPI registry are used.
+   */
+  @Nonnull
+  public Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> getProcessorSupplier ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aProcessorSupplier);
+  }
+
+  /**
+   * Set a different processor supplier
+   *
+   * @param aProcessorSupplier
+   *        The processor supplier to be used. May not be <code>null</code>.
+   */
+  public void setProcessorSupplier (@Nonnull final Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> aProcessorSupplier)
+  {
+    ValueEnforcer.notNull (aProcessorSupplier, "ProcessorSupplier");
+    m_aRWLock.writeLocked ( () -> m_aProcessorSupplier = aProcessorSupplier);
+  }
+
+  private static void _move (@Nonnull final File aSrc, @Nonnull final File aDst) throws IOException
+  {
+    try
+    {
+      Files.move (aSrc.toPath (), aDst.toPath (), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (final AtomicMoveNotSupportedException ex)
+    {
+      Files.move (aSrc.toPath (), aDst.toPath (), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void _moveToFailed (@Nonnull final File aEntryDir)
+  {
+    try
+    {
+      _move (aEntryDir, new File (m_aFailedDir, aEntryDir.getName ()));
+      AS4IOHelper.forceDirectory (m_aFailedDir.toPath ());
+      AS4IOHelper.forceDirectory (m_aPendingDir.toPath ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to move inbox entry " + aEntryDir.getName () + " to " + m_aFailedDir.getAbsolutePath (), ex);
+    }
+  }
+
+  private void _recover ()
+  {
+    int nRecovered = 0;
+    for (final File aEntryDir : new FileSystemIterator (m_aPendingDir))
+      if (aEntryDir.isDirectory ())
+      {
+        final File aEntryFile = new File (aEntryDir, FILE_ENTRY);
+        if (aEntryFile.isFile ())
+        {
+          final IJsonObject aJson = JsonReader.builder ().source (aEntryFile, StandardCharsets.UTF_8).readAsObject ();
+          if (aJson == null)
+          {
+            // The receipt was sent, so keep the entry for manual inspection
+            LOGGER.error ("Failed to read inbox entry " + aEntryFile.getAbsolutePath () + " - moving it to the failed entries");
+            _moveToFailed (aEntryDir);
+            m_aFailedCount.incrementAndGet ();
+            continue;
+          }
+          m_aPendingCount.incrementAndGet ();
+          _schedule (AS4InboxEntry.createFromJson (aJson), 0, 0);
+          nRecovered++;
+        }
+        else
+        {
+          // Incomplete entry written before a crash - the receipt was not sent
+          LOGGER.warn ("Deleting incomplete inbox entry " + aEntryDir.getAbsolutePath ());
+          AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aEntryDir);
+        }
+      }
+    if (nRecovered > 0)
+      LOGGER.info ("Recovered " + nRecovered + " pending inbox entries from " + m_aPendingDir.getAbsolutePath ());
+  }
+
+  @Nonnull
+  private static IJsonObject _getMetadataAsJson (@Nonnull final IAS4IncomingMessageMetadata aMetadata)
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_INCOMING_UNIQUE_ID, aMetadata.getIncomingUniqueID ());
+    ret.add (JSON_INCOMING_DT, aMetadata.getIncomingDT ().toString ());
+    ret.add (JSON_MODE, aMetadata.getMode ().getID ());
+    if (aMetadata.hasRemoteAddr ())
+      ret.add (JSON_REMOTE_ADDR, aMetadata.getRemoteAddr ());
+    if (aMetadata.hasRemoteHost ())
+      ret.add (JSON_REMOTE_HOST, aMetadata.getRemoteHost ());
+    if (aMetadata.hasRemotePort ())
+      ret.add (JSON_REMOTE_PORT, aMetadata.getRemotePort ());
+    if (aMetadata.hasRemoteUser ())
+      ret.add (JSON_REMOTE_USER, aMetadata.getRemoteUser ());
+    return ret;
+  }
+
+  @Nonnull
+  private static IAS4IncomingMessageMetadata _readMetadata (@Nonnull final IJsonObject aJson)
+  {
+    final AS4IncomingMessageMetadata ret = new AS4IncomingMessageMetadata (aJson.getAsString (JSON_INCOMING_UNIQUE_ID),
+                                                                           OffsetDateTime.parse (aJson.getAsString (JSON_INCOMING_DT)),
+                                                                           EAS4MessageMode.getFromIDOrNull (aJson.getAsString (JSON_MODE)));
+    ret.setRemoteAddr (aJson.getAsString (JSON_REMOTE_ADDR));
+    ret.setRemoteHost (aJson.getAsString (JSON_REMOTE_HOST));
+    ret.setRemotePort (aJson.getAsInt (JSON_REMOTE_PORT, -1));
+    ret.setRemoteUser (aJson.getAsString (JSON_REMOTE_USER));
+    return ret;
+  }
+
+  @Nonnull
+  private static IJsonObject _getHttpHeadersAsJson (@Nonnull final HttpHeaderMap aHttpHeaders)
+  {
+    final IJsonObject ret = new JsonObject ();
+    for (final Map.Entry <String, ICommonsList <String>> aEntry : aHttpHeaders)
+      ret.addJson (aEntry.getKey (), new JsonArray ().addAll (aEntry.getValue ()));
+    return ret;
+  }
+
+  @Nonnull
+  private static HttpHeaderMap _readHttpHeaders (@Nonnull final IJsonObject aJson)
+  {
+    final HttpHeaderMap ret = new HttpHeaderMap ();
+    for (final Map.Entry <String, IJson> aEntry : aJson)
+      if (aEntry.getValue ().isArray ())
+        for (final IJson aValue : aEntry.getValue ().getAsArray ())
+          ret.addHeader (aEntry.getKey (), aValue.getAsValue ().getAsString ());
+    return ret;
+  }
+
+  @Nonnull
+  private static IJsonObject _getStateAsJson (@Nonnull final IAS4MessageState aState, final boolean bDecryptedAttachments)
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_SOAP_VERSION, aState.getSoapVersion ().getVersion ());
+    ret.add (JSON_LOCALE, aState.getLocale ().toLanguageTag ());
+    ret.add (JSON_PMODE_ID, aState.getPMode ().getID ());
+    ret.add (JSON_LEG_NUMBER, aState.getEffectivePModeLegNumber ());
+    if (aState.getMPC () != null)
+      ret.add (JSON_MPC_ID, aState.getMPC ().getID ());
+    if (aState.getProfileID () != null)
+      ret.add (JSON_PROFILE_ID, aState.getProfileID ());
+    if (aState.getInitiatorID () != null)
+      ret.add (JSON_INITIATOR_ID, aState.getInitiatorID ());
+    if (aState.getResponderID () != null)
+      ret.add (JSON_RESPONDER_ID, aState.getResponderID ());
+    if (aState.getUsedCertificate () != null)
+      ret.add (JSON_USED_CERTIFICATE, CertificateHelper.getPEMEncodedCertificate (aState.getUsedCertificate ()));
+    ret.add (JSON_WSS4J_SECURITY_ACTIONS, aState.getSoapWSS4JSecurityActions ());
+    ret.add (JSON_SOAP_BODY_PAYLOAD_PRESENT, aState.isSoapBodyPayloadPresent ());
+    ret.add (JSON_DECRYPTED_SOAP, aState.hasDecryptedSoapDocument ());
+    ret.add (JSON_DECRYPTED_ATTACHMENTS, bDecryptedAttachments);
+    return ret;
+  }
+
+  @Nonnull
+  private static AS4MessageState _readState (@Nonnull final IJsonObject aJson,
+                                             @Nonnull final File aEntryDir,
+                                             @Nonnull final ICommonsList <WSS4JAttachment> aAttachments,
+                                             @Nonnull final AS4ResourceHelper aResHelper)
+  {
+    final ESoapVersion eSoapVersion = ESoapVersion.getFromVersionOrNull (aJson.getAsString (JSON_SOAP_VERSION));
+    if (eSoapVersion == null)
+      throw new IllegalStateException ("Inbox entry has an invalid SOAP version");
+
+    final String sPModeID = aJson.getAsString (JSON_PMODE_ID);
+    final IPMode aPMode = MetaAS4Manager.getPModeMgr ().getPModeOfID (sPModeID);
+    if (aPMode == null)
+      throw new IllegalStateException ("Inbox entry refers to the unknown PMode '" + sPModeID + "'");
+
+    final Document aSoapDoc = DOMReader.readXMLDOM (new File (aEntryDir, FILE_SOAP));
+    if (aSoapDoc == null)
+      throw new IllegalStateException ("Inbox entry has an invalid SOAP document");
+    final Ebms3Messaging aMessaging = Ebms3ReaderBuilder.ebms3Messaging ().read (new File (aEntryDir, FILE_MESSAGING));
+    if (aMessaging == null)
+      throw new IllegalStateException ("Inbox entry has an invalid ebMS messaging header");
+
+    final AS4MessageState ret = new AS4MessageState (eSoapVersion,
+                                                     aResHelper,
+                                                     Locale.forLanguageTag (aJson.getAsString (JSON_LOCALE)));
+    ret.setMessaging (aMessaging);
+    ret.setPMode (aPMode);
+    final int nLegNumber = aJson.getAsInt (JSON_LEG_NUMBER, 1);
+    ret.setEffectivePModeLeg (nLegNumber, nLegNumber == 2 ? aPMode.getLeg2 () : aPMode.getLeg1 ());
+    ret.setMPC (MetaAS4Manager.getMPCMgr ().getMPCOfID (aJson.getAsString (JSON_MPC_ID)));
+    ret.setProfileID (aJson.getAsString (JSON_PROFILE_ID));
+    ret.setInitiatorID (aJson.getAsString (JSON_INITIATOR_ID));
+    ret.setResponderID (aJson.getAsString (JSON_RESPONDER_ID));
+    ret.setUsedCertificate (CertificateHelper.convertStringToCertficateOrNull (aJson.getAsString (JSON_USED_CERTIFICATE)));
+    ret.setSoapWSS4JSecurityActions (aJson.getAsInt (JSON_WSS4J_SECURITY_ACTIONS, 0));
+    ret.setSoapBodyPayloadPresent (aJson.getAsBoolean (JSON_SOAP_BODY_PAYLOAD_PRESENT, false));
+
+    ret.setOriginalSoapDocument (aSoapDoc);
+    if (aJson.getAsBoolean (JSON_DECRYPTED_SOAP, false))
+      ret.setDecryptedSoapDocument (aSoapDoc);
+    ret.setOriginalAttachments (aAttachments);
+    if (aJson.getAsBoolean (JSON_DECRYPTED_ATTACHMENTS, false))
+      ret.setDecryptedAttachments (aAttachments);
+    final ICommonsMap <String, EAS4CompressionMode> aCompressedAttachmentIDs = new CommonsHashMap <> ();
+    for (final WSS4JAttachment aAttachment : aAttachments)
+      if (aAttachment.getCompressionMode () != null)
+        aCompressedAttachmentIDs.put (aAttachment.getId (), aAttachment.getCompressionMode ());
+    ret.setCompressedAttachmentIDs (aCompressedAttachmentIDs);
+
+    final Ebms3UserMessage aUserMessage = ret.getEbmsUserMessage ();
+    if (aUserMessage != null)
+    {
+      final Ebms3MessageInfo aMsgInfo = aUserMessage.getMessageInfo ();
+      ret.setMessageID (aMsgInfo.getMessageId ());
+      ret.setRefToMessageID (aMsgInfo.getRefToMessageId ());
+      ret.setMessageTimestamp (aMsgInfo.getTimestamp ());
+    }
+
+    // Same as in AS4IncomingHandler
+    final Node aBodyNode = XMLHelper.getFirstChildElementOfName (aSoapDoc.getDocumentElement (),
+                                                                 eSoapVersion.getNamespaceURI (),
+                                                                 eSoapVersion.getBodyElementName ());
+    if (aBodyNode == null)
+      throw new IllegalStateException ("Inbox entry SOAP document is missing a Body element");
+    ret.setSoapBodyPayloadNode (aBodyNode.getFirstChild ());
+    ret.setSoapHeaderElementProcessingSuccessful (true);
+    return ret;
+  }
+
+  @Nonnull
+  private static IJsonObject _storeAttachment (@Nonnull final WSS4JAttachment aAttachment, @Nonnull final File aTargetFile) throws IOException
+  {
+    EAS4CompressionMode eCompressionMode = null;
+
+    boolean bStored = false;
+    final File aSourceFile = aAttachment.getSourceFile ();
+    if (aSourceFile != null)
+    {
+      // Link the raw content instead of copying it. The provided attachment
+      // stays readable, because it keeps its own file.
+      try
+      {
+        Files.createLink (aTargetFile.toPath (), aSourceFile.toPath ());
+        AS4IOHelper.forceFile (aTargetFile.toPath ());
+        // The raw content must be decompressed upon reading
+        eCompressionMode = aAttachment.getCompressionMode ();
+        bStored = true;
+      }
+      catch (final IOException | UnsupportedOperationException ex)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Failed to link attachment file " + aSourceFile.getAbsolutePath () + " - copying it instead: " + ex.getMessage ());
+        Files.deleteIfExists (aTargetFile.toPath ());
+      }
+    }
+
+    if (!bStored)
+    {
+      // Copy the effective (decompressed) content
+      AS4IOHelper.writeFileAndForce (aTargetFile.toPath (), aOS -> {
+        try (final InputStream aIS = aAttachment.getSourceStream ())
+        {
+          if (StreamHelper.copyInputStreamToOutputStream (aIS, aOS).isFailure ())
+            throw new IOException ("Failed to copy attachment '" + aAttachment.getId () + "' to " + aTargetFile.getAbsolutePath ());
+        }
+      });
+    }
+
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_ATTACHMENT_ID, aAttachment.getId ());
+    ret.add (JSON_ATTACHMENT_MIME_TYPE, aAttachment.getUncompressedMimeType ());
+    if (aAttachment.hasCharset ())
+      ret.add (JSON_ATTACHMENT_CHARSET, aAttachment.getCharsetOrDefault (null).name ());
+    if (eCompressionMode != null)
+      ret.add (JSON_ATTACHMENT_COMPRESSION_MODE, eCompressionMode.getID ());
+    final IJsonObject aHeaders = new JsonObject ();
+    for (final Map.Entry <String, String> aEntry : aAttachment.getHeaders ().entrySet ())
+      aHeaders.add (aEntry.getKey (), aEntry.getValue ());
+    ret.addJson (JSON_ATTACHMENT_HEADERS, aHeaders);
+    return ret;
+  }
+
+  @Nonnull
+  private static WSS4JAttachment _readAttachment (@Nonnull final IJsonObject aJson,
+                                                  @Nonnull final File aFile,
+                                                  @Nonnull final AS4ResourceHelper aResHelper)
+  {
+    final String sMimeType = aJson.getAsString (JSON_ATTACHMENT_MIME_TYPE);
+    final WSS4JAttachment ret = new WSS4JAttachment (aResHelper, sMimeType);
+    ret.setId (aJson.getAsString (JSON_ATTACHMENT_ID));
+    final IJsonObject aHeaders = aJson.getAsObject (JSON_ATTACHMENT_HEADERS);
+    if (aHeaders != null)
+      for (final Map.Entry <String, IJson> aEntry : aHeaders)
+        ret.addHeader (aEntry.getKey (), aEntry.getValue ().getAsValue ().getAsString ());
+    ret.overwriteMimeType (sMimeType);
+    ret.setCharset (CharsetHelper.getCharsetFromNameOrNull (aJson.getAsString (JSON_ATTACHMENT_CHARSET)));
+
+    final EAS4CompressionMode eCompressionMode = EAS4CompressionMode.getFromIDOrNull (aJson.getAsString (JSON_ATTACHMENT_COMPRESSION_MODE));
+    if (eCompressionMode != null)
+    {
+      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> {
+        try
+        {
+          return eCompressionMode.getDecompressStream (FileHelper.getBufferedInputStream (aFile));
+        }
+        catch (final IOException ex)
+        {
+          throw new AS4DecompressException (ex);
+        }
+      }));
+      ret.setCompressionMode (eCompressionMode);
+    }
+    else
+      ret.setSourceFile (aFile);
+    return ret;
+  }
+
+  /**
+   * Persist the provided incoming user message and schedule the invocation of
+   * the message processor SPIs. When this method returns, the entry is safely
+   * stored on disk. The provided attachments can still be read afterwards.
+   *
+   * @param aMessageMetadata
+   *        The incoming message meta data. May not be <code>null</code>.
+   * @param aHttpHeaders
+   *        The received HTTP headers. May not be <code>null</code>.
+   * @param aState
+   *        The message state after successful SOAP header processing. Must
+   *        contain a user message. May not be <code>null</code>.
+   * @param aAttachments
+   *        The (decrypted) attachments of the message. May be
+   *        <code>null</code>.
+   * @return The created inbox entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case persisting the entry fails
+   */
+  @Nonnull
+  public AS4InboxEntry enqueue (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                @Nonnull final HttpHeaderMap aHttpHeaders,
+                                @Nonnull final IAS4MessageState aState,
+                                @Nullable final ICommonsList <WSS4JAttachment> aAttachments) throws IOException
+  {
+    ValueEnforcer.notNull (aMessageMetadata, "MessageMetadata");
+    ValueEnforcer.notNull (aHttpHeaders, "HttpHeaders");
+    ValueEnforcer.notNull (aState, "State");
+    ValueEnforcer.notNull (aState.getEbmsUserMessage (), "State.EbmsUserMessage");
+    ValueEnforcer.notNull (aState.getPMode (), "State.PMode");
+
+    final String sID = UUID.randomUUID ().toString ();
+    final File aEntryDir = new File (m_aPendingDir, sID);
+    if (AS4IOHelper.getFileOperationManager ().createDir (aEntryDir).isFailure ())
+      throw new IOException ("Failed to create inbox directory " + aEntryDir.getAbsolutePath ());
+
+    boolean bSuccess = false;
+    try
+    {
+      final Document aSoapDoc = aState.hasDecryptedSoapDocument () ? aState.getDecryptedSoapDocument () : aState.getOriginalSoapDocument ();
+      AS4IOHelper.writeFileAndForce (new File (aEntryDir, FILE_SOAP).toPath (), aOS -> AS4XMLHelper.serializeXML (aSoapDoc, aOS));
+      AS4IOHelper.writeFileAndForce (new File (aEntryDir, FILE_MESSAGING).toPath (), aOS -> {
+        if (Ebms3WriterBuilder.ebms3Messaging ().write (aState.getMessaging (), aOS).isFailure ())
+          throw new IOException ("Failed to write the ebMS messaging header of inbox entry " + sID);
+      });
+
+      final IJsonArray aAttachmentsJson = new JsonArray ();
+      if (aAttachments != null)
+      {
+        int nIndex = 0;
+        for (final WSS4JAttachment aAttachment : aAttachments)
+          aAttachmentsJson.add (_storeAttachment (aAttachment, new File (aEntryDir, FILE_ATTACHMENT_PREFIX + nIndex++)));
+      }
+
+      final IJsonObject aMessageData = new JsonObject ();
+      aMessageData.addJson (JSON_METADATA, _getMetadataAsJson (aMessageMetadata));
+      aMessageData.addJson (JSON_HTTP_HEADERS, _getHttpHeadersAsJson (aHttpHeaders));
+      aMessageData.addJson (JSON_STATE, _getStateAsJson (aState, aState.hasDecryptedAttachments ()));
+      aMessageData.addJson (JSON_ATTACHMENTS, aAttachmentsJson);
+      final AS4InboxEntry aEntry = new AS4InboxEntry (sID, aState.getMessageID (), System.currentTimeMillis (), aMessageData);
+
+      // The entry file makes the entry visible
+      final File aTempFile = new File (aEntryDir, FILE_ENTRY_TEMP);
+      final byte [] aEntryBytes = new JsonWriter ().writeAsByteArray (aEntry.getAsJson (), StandardCharsets.UTF_8);
+      AS4IOHelper.writeFileAndForce (aTempFile.toPath (), aOS -> aOS.write (aEntryBytes));
+      AS4IOHelper.forceDirectory (aEntryDir.toPath ());
+      _move (aTempFile, new File (aEntryDir, FILE_ENTRY));
+      AS4IOHelper.forceDirectory (aEntryDir.toPath ());
+      AS4IOHelper.forceDirectory (m_aPendingDir.toPath ());
+      bSuccess = true;
+
+      m_aPendingCount.incrementAndGet ();
+      LOGGER.info ("Stored inbox entry " + sID + " for message ID '" + aEntry.getMessageID () + "'");
+
+      _schedule (aEntry, 0, 0);
+      return aEntry;
+    }
+    finally
+    {
+      if (!bSuccess)
+        AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aEntryDir);
+    }
+  }
+
+  private void _schedule (@Nonnull final AS4InboxEntry aEntry, final int nAttempt, final long nDelaySeconds)
+  {
+    m_aExecutor.schedule ( () -> _process (aEntry, nAttempt), nDelaySeconds, TimeUnit.SECONDS);
+  }
+
+  @Nonnull
+  private ESuccess _invokeSPIs (@Nonnull final AS4InboxEntry aEntry,
+                                @Nonnull final File aEntryDir,
+                                @Nonnull final AS4ResourceHelper aResHelper)
+  {
+    final IJsonObject aMessageData = aEntry.getMessageData ();
+    final IAS4IncomingMessageMetadata aMessageMetadata = _readMetadata (aMessageData.getAsObject (JSON_METADATA));
+    final HttpHeaderMap aHttpHeaders = _readHttpHeaders (aMessageData.getAsObject (JSON_HTTP_HEADERS));
+    final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+    int nIndex = 0;
+    for (final IJson aAttachmentJson : aMessageData.getAsArray (JSON_ATTACHMENTS))
+      aAttachments.add (_readAttachment (aAttachmentJson.getAsObject (),
+                                         new File (aEntryDir, FILE_ATTACHMENT_PREFIX + nIndex++),
+                                         aResHelper));
+    final AS4MessageState aState = _readState (aMessageData.getAsObject (JSON_STATE), aEntryDir, aAttachments, aResHelper);
+    final Ebms3UserMessage aUserMessage = aState.getEbmsUserMessage ();
+    if (aUserMessage == null)
+      throw new IllegalStateException ("Inbox entry contains no user message");
+
+    for (final IAS4ServletMessageProcessorSPI aProcessor : getProcessorSupplier ().get ())
+      if (aProcessor != null)
+      {
+        final ICommonsList <Ebms3Error> aProcessingErrorMessages = new CommonsArrayList <> ();
+        final AS4MessageProcessorResult aResult = aProcessor.processAS4UserMessage (aMessageMetadata,
+                                                                                    aHttpHeaders,
+                                                                                    aUserMessage,
+                                                                                    aState.getPMode (),
+                                                                                    aState.getSoapBodyPayloadNode (),
+                                                                                    aAttachments,
+                                                                                    aState,
+                                                                                    aProcessingErrorMessages);
+        if (aResult == null || aResult.isFailure () || aProcessingErrorMessages.isNotEmpty ())
+        {
+          LOGGER.warn ("AS4 message processor " +
+                       aProcessor +
+                       " failed on inbox entry " +
+                       aEntry.getID () +
+                       ": " +
+                       (aResult == null ? "no result object" : StringHelper.getNotNull (aResult.getErrorMessage (), "")) +
+                       " " +
+                       aProcessingErrorMessages);
+          return ESuccess.FAILURE;
+        }
+      }
+    return ESuccess.SUCCESS;
+  }
+
+  private void _process (@Nonnull final AS4InboxEntry aEntry, final int nAttempt)
+  {
+    final String sID = aEntry.getID ();
+    final File aEntryDir = new File (m_aPendingDir, sID);
+
+    ESuccess eSuccess;
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      eSuccess = _invokeSPIs (aEntry, aEntryDir, aResHelper);
+    }
+    catch (final RuntimeException ex)
+    {
+      LOGGER.error ("Error processing inbox entry " + sID, ex);
+      eSuccess = ESuccess.FAILURE;
+    }
+
+    if (eSuccess.isSuccess ())
+    {
+      // Acknowledge
+      AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aEntryDir);
+      m_aPendingCount.decrementAndGet ();
+      m_aProcessedCount.incrementAndGet ();
+      LOGGER.info ("Successfully processed inbox entry " + sID + " for message ID '" + aEntry.getMessageID () + "'");
+    }
+    else
+    {
+      final int nNextAttempt = nAttempt + 1;
+      if (nNextAttempt < m_nMaxAttempts)
+      {
+        final long nDelaySeconds = _getRetryDelaySeconds (nAttempt);
+        LOGGER.warn ("Failed to process inbox entry " +
+                     sID +
+                     " (attempt " +
+                     nNextAttempt +
+                     "/" +
+                     m_nMaxAttempts +
+                     ") - retrying in " +
+                     nDelaySeconds +
+                     " seconds");
+        if (!m_aExecutor.isShutdown ())
+          _schedule (aEntry, nNextAttempt, nDelaySeconds);
+      }
+      else
+      {
+        LOGGER.error ("Failed to process inbox entry " + sID + " after " + nNextAttempt + " attempts - moving it to the failed entries");
+        _moveToFailed (aEntryDir);
+        m_aPendingCount.decrementAndGet ();
+        m_aFailedCount.incrementAndGet ();
+      }
+    }
+  }
+
+  @Nonnegative
+  private long _getRetryDelaySeconds (final int nAttempt)
+  {
+    // Exponential backoff
+    final long nFactor = 1L << Math.min (nAttempt, 20);
+    return Math.min (m_nRetrySeconds * nFactor, MAX_RETRY_DELAY_SECONDS);
+  }
+
+  /**
+   * @return The directory with the pending entries. Never <code>null</code>.
+   */
+  @Nonnull
+  public File getPendingDirectory ()
+  {
+    return m_aPendingDir;
+  }
+
+  /**
+   * @return The directory with the entries that could not be processed (dead
+   *         letters). Never <code>null</code>.
+   */
+  @Nonnull
+  public File getFailedDirectory ()
+  {
+    return m_aFailedDir;
+  }
+
+  /**
+   * @return The number of entries that are not yet processed. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aPendingCount.get ();
+  }
+
+  /**
+   * @return The number of entries processed since startup. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getProcessedCount ()
+  {
+    return m_aProcessedCount.get ();
+  }
+
+  /**
+   * @return The number of entries that failed finally since startup. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_aFailedCount.get ();
+  }
+
+  /**
+   * Check if an entry is still pending.
+   *
+   * @param sID
+   *        The ID to check. May be <code>null</code>.
+   * @return <code>true</code> if it is pending
+   */
+  public boolean isPending (@Nullable final String sID)
+  {
+    return StringHelper.hasText (sID) && FileHelper.existsFile (new File (new File (m_aPendingDir, sID), FILE_ENTRY));
+  }
+}
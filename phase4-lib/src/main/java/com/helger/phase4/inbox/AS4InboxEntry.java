@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.inbox;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+
+/**
+ * A single entry of the {@link AS4Inbox}. Besides the identifying information
+ * it contains the serialized message meta data that is needed to restore the
+ * message state for the deferred processing.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class AS4InboxEntry implements IHasID <String>
+{
+  private static final String JSON_ID = "id";
+  private static final String JSON_MESSAGE_ID = "messageId";
+  private static final String JSON_CREATION_MILLIS = "creationMillis";
+  private static final String JSON_MESSAGE_DATA = "messageData";
+
+  private final String m_sID;
+  private final String m_sMessageID;
+  private final long m_nCreationMillis;
+  private final IJsonObject m_aMessageData;
+
+  public AS4InboxEntry (@Nonnull @Nonempty final String sID,
+                        @Nonnull @Nonempty final String sMessageID,
+                        final long nCreationMillis,
+                        @Nonnull final IJsonObject aMessageData)
+  {
+    ValueEnforcer.notEmpty (sID, "ID");
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notNull (aMessageData, "MessageData");
+    m_sID = sID;
+    m_sMessageID = sMessageID;
+    m_nCreationMillis = nCreationMillis;
+    m_aMessageData = aMessageData.getClone ();
+  }
+
+  /**
+   * @return The unique ID of the entry. Also used as the directory name.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The AS4 message ID of the stored user message.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The time the entry was created in milliseconds since the epoch.
+   */
+  public long getCreationMillis ()
+  {
+    return m_nCreationMillis;
+  }
+
+  /**
+   * @return A copy of the serialized message meta data. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IJsonObject getMessageData ()
+  {
+    return m_aMessageData.getClone ();
+  }
+
+  @Nonnull
+  public IJsonObject getAsJson ()
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_ID, m_sID);
+    ret.add (JSON_MESSAGE_ID, m_sMessageID);
+    ret.add (JSON_CREATION_MILLIS, m_nCreationMillis);
+    ret.addJson (JSON_MESSAGE_DATA, m_aMessageData.getClone ());
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ID", m_sID)
+                                       .append ("MessageID", m_sMessageID)
+                                       .append ("CreationMillis", m_nCreationMillis)
+                                       .getToString ();
+  }
+
+  @Nonnull
+  public static AS4InboxEntry createFromJson (@Nonnull final IJsonObject aJson)
+  {
+    final IJsonObject aMessageData = aJson.getAsObject (JSON_MESSAGE_DATA);
+    return new AS4InboxEntry (aJson.getAsString (JSON_ID),
+                              aJson.getAsString (JSON_MESSAGE_ID),
+                              aJson.getAsLong (JSON_CREATION_MILLIS, 0),
+                              aMessageData != null ? aMessageData : new JsonObject ());
+  }
+}
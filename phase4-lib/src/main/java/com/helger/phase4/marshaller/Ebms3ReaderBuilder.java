@@ -18,6 +18,8 @@ package com.helger.phase4.marshaller;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
 
 import com.helger.jaxb.builder.JAXBReaderBuilder;
 import com.helger.phase4.ebms3header.Ebms3Messaging;
@@ -39,6 +41,13 @@ public class Ebms3ReaderBuilder <JAXBTYPE> extends JAXBReaderBuilder <JAXBTYPE,
     super (eDocType, aImplClass);
   }
 
+  @Override
+  @Nonnull
+  protected Unmarshaller createUnmarshaller () throws JAXBException
+  {
+    return JAXBMarshallerPool.getUnmarshaller (this, super::createUnmarshaller);
+  }
+
   @Nonnull
   public static Ebms3ReaderBuilder <Ebms3Messaging> ebms3Messaging ()
   {
@@ -18,6 +18,8 @@ package com.helger.phase4.marshaller;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
 import com.helger.jaxb.builder.JAXBWriterBuilder;
 import com.helger.phase4.ebms3header.Ebms3Messaging;
@@ -41,6 +43,13 @@ public class Ebms3WriterBuilder <JAXBTYPE> extends JAXBWriterBuilder <JAXBTYPE,
     setNamespaceContext (Ebms3NamespaceHandler.getInstance ());
   }
 
+  @Override
+  @Nonnull
+  protected Marshaller createMarshaller () throws JAXBException
+  {
+    return JAXBMarshallerPool.getMarshaller (this, super::createMarshaller);
+  }
+
   @Nonnull
   public static Ebms3WriterBuilder <Ebms3Messaging> ebms3Messaging ()
   {
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.marshaller;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.jaxb.builder.JAXBReaderBuilder;
+import com.helger.jaxb.builder.JAXBWriterBuilder;
+
+/**
+ * Thread confined pools of pre-configured JAXB {@link Marshaller} and
+ * {@link Unmarshaller} objects used by the builders of this package. The JAXB
+ * contexts and schemas are already cached by ph-jaxb, but creating and
+ * configuring a new (un)marshaller for every single read or write is still
+ * expensive. As JAXB (un)marshallers are not thread-safe but reusable, each
+ * thread keeps one instance per distinct builder configuration. The validation
+ * event handler is not part of that configuration but set on each retrieval.<br>
+ * Builders with a custom (un)marshaller customizer are never pooled, because
+ * the customizer may modify the instance in an unforeseeable way.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public final class JAXBMarshallerPool
+{
+  public static final boolean DEFAULT_ENABLED = true;
+
+  private static final AtomicBoolean ENABLED = new AtomicBoolean (DEFAULT_ENABLED);
+  private static final ThreadLocal <Map <ICommonsList <Object>, Marshaller>> MARSHALLERS = ThreadLocal.withInitial (CommonsHashMap::new);
+  private static final ThreadLocal <Map <ICommonsList <Object>, Unmarshaller>> UNMARSHALLERS = ThreadLocal.withInitial (CommonsHashMap::new);
+
+  private JAXBMarshallerPool ()
+  {}
+
+  /**
+   * @return <code>true</code> if pooling is enabled, <code>false</code> if
+   *         not. Default is {@link #DEFAULT_ENABLED}.
+   */
+  public static boolean isEnabled ()
+  {
+    return ENABLED.get ();
+  }
+
+  /**
+   * Enable or disable the pooling. Disabling the pool does not clear existing
+   * pooled objects.
+   *
+   * @param bEnabled
+   *        <code>true</code> to enable pooling, <code>false</code> to disable
+   *        it.
+   */
+  public static void setEnabled (final boolean bEnabled)
+  {
+    ENABLED.set (bEnabled);
+  }
+
+  /**
+   * Remove all pooled objects of the current thread. This may e.g. be called
+   * by container threads upon application shutdown to avoid class loader
+   * leaks.
+   */
+  public static void clearCurrentThread ()
+  {
+    MARSHALLERS.remove ();
+    UNMARSHALLERS.remove ();
+  }
+
+  @Nonnull
+  private static ICommonsList <Object> _getWriterKey (@Nonnull final JAXBWriterBuilder <?, ?> aBuilder)
+  {
+    return new CommonsArrayList <> (aBuilder.getJAXBDocumentType (),
+                                    aBuilder.getClassLoader (),
+                                    Boolean.valueOf (aBuilder.isUseJAXBContextCache ()),
+                                    Boolean.valueOf (aBuilder.isUseSchema ()),
+                                    Boolean.valueOf (aBuilder.getValidationEventHandler () != null),
+                                    aBuilder.getNamespaceContext (),
+                                    Boolean.valueOf (aBuilder.isFormattedOutput ()),
+                                    aBuilder.getCharset (),
+                                    aBuilder.getIndentString (),
+                                    aBuilder.getSchemaLocation (),
+                                    aBuilder.getNoNamespaceSchemaLocation ());
+  }
+
+  @Nonnull
+  private static ICommonsList <Object> _getReaderKey (@Nonnull final JAXBReaderBuilder <?, ?> aBuilder)
+  {
+    return new CommonsArrayList <> (aBuilder.getJAXBDocumentType (),
+                                    aBuilder.getClassLoader (),
+                                    Boolean.valueOf (aBuilder.isUseJAXBContextCache ()),
+                                    Boolean.valueOf (aBuilder.isUseSchema ()),
+                                    Boolean.valueOf (aBuilder.getValidationEventHandler () != null));
+  }
+
+  /**
+   * Get a pooled marshaller for the provided builder, or create and pool a
+   * new one.
+   *
+   * @param aBuilder
+   *        The builder that requests the marshaller. May not be
+   *        <code>null</code>.
+   * @param aFactory
+   *        The factory for creating a new marshaller. May not be
+   *        <code>null</code>.
+   * @return The marshaller to use. Never <code>null</code>.
+   * @throws JAXBException
+   *         In case creation fails
+   */
+  @Nonnull
+  public static Marshaller getMarshaller (@Nonnull final JAXBWriterBuilder <?, ?> aBuilder,
+                                          @Nonnull final IThrowingSupplier <Marshaller, JAXBException> aFactory) throws JAXBException
+  {
+    if (!isEnabled () || aBuilder.getMarshallerCustomizer () != null)
+      return aFactory.get ();
+
+    final Map <ICommonsList <Object>, Marshaller> aMap = MARSHALLERS.get ();
+    final ICommonsList <Object> aKey = _getWriterKey (aBuilder);
+    Marshaller ret = aMap.get (aKey);
+    if (ret == null)
+    {
+      ret = aFactory.get ();
+      aMap.put (aKey, ret);
+    }
+    else
+    {
+      // Event handlers are usually created per call, so they are not part of
+      // the key
+      final ValidationEventHandler aEventHandler = aBuilder.getValidationEventHandler ();
+      if (aEventHandler != null)
+        ret.setEventHandler (aEventHandler);
+    }
+    return ret;
+  }
+
+  /**
+   * Get a pooled unmarshaller for the provided builder, or create and pool a
+   * new one.
+   *
+   * @param aBuilder
+   *        The builder that requests the unmarshaller. May not be
+   *        <code>null</code>.
+   * @param aFactory
+   *        The factory for creating a new unmarshaller. May not be
+   *        <code>null</code>.
+   * @return The unmarshaller to use. Never <code>null</code>.
+   * @throws JAXBException
+   *         In case creation fails
+   */
+  @Nonnull
+  public static Unmarshaller getUnmarshaller (@Nonnull final JAXBReaderBuilder <?, ?> aBuilder,
+                                              @Nonnull final IThrowingSupplier <Unmarshaller, JAXBException> aFactory) throws JAXBException
+  {
+    if (!isEnabled () || aBuilder.getUnmarshallerCustomizer () != null)
+      return aFactory.get ();
+
+    final Map <ICommonsList <Object>, Unmarshaller> aMap = UNMARSHALLERS.get ();
+    final ICommonsList <Object> aKey = _getReaderKey (aBuilder);
+    Unmarshaller ret = aMap.get (aKey);
+    if (ret == null)
+    {
+      ret = aFactory.get ();
+      aMap.put (aKey, ret);
+    }
+    else
+    {
+      // Event handlers are usually created per call, so they are not part of
+      // the key
+      final ValidationEventHandler aEventHandler = aBuilder.getValidationEventHandler ();
+      if (aEventHandler != null)
+        ret.setEventHandler (aEventHandler);
+    }
+    return ret;
+  }
+}
@@ -18,6 +18,8 @@ package com.helger.phase4.marshaller;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
 
 import com.helger.jaxb.builder.JAXBReaderBuilder;
 import com.helger.xsds.xmldsig.ReferenceType;
@@ -37,6 +39,13 @@ public class XMLDSigReaderBuilder <JAXBTYPE> extends JAXBReaderBuilder <JAXBTYPE
     super (eDocType, aImplClass);
   }
 
+  @Override
+  @Nonnull
+  protected Unmarshaller createUnmarshaller () throws JAXBException
+  {
+    return JAXBMarshallerPool.getUnmarshaller (this, super::createUnmarshaller);
+  }
+
   @Nonnull
   public static XMLDSigReaderBuilder <ReferenceType> dsigReference ()
   {
@@ -18,6 +18,8 @@ package com.helger.phase4.marshaller;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
 import org.apache.xml.security.binding.xmldsig.ReferenceType;
 
@@ -39,6 +41,13 @@ public class XMLDSigWriterBuilder <JAXBTYPE> extends JAXBWriterBuilder <JAXBTYPE
     setNamespaceContext (Ebms3NamespaceHandler.getInstance ());
   }
 
+  @Override
+  @Nonnull
+  protected Marshaller createMarshaller () throws JAXBException
+  {
+    return JAXBMarshallerPool.getMarshaller (this, super::createMarshaller);
+  }
+
   @Nonnull
   public static XMLDSigWriterBuilder <ReferenceType> dsigReference ()
   {
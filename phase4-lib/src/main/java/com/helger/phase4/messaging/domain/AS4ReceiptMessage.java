@@ -145,10 +145,12 @@ public class AS4ReceiptMessage extends AbstractAS4Message <AS4ReceiptMessage>
     if (aDSRefs.isNotEmpty () && bShouldUseNonRepudiation)
     {
       final NonRepudiationInformation aNonRepudiationInformation = new NonRepudiationInformation ();
+      // One reader for all references
+      final XMLDSigReaderBuilder <ReferenceType> aReader = XMLDSigReaderBuilder.dsigReference ();
       for (final Node aRef : aDSRefs)
       {
         // Read XMLDsig Reference
-        final ReferenceType aRefObj = XMLDSigReaderBuilder.dsigReference ().read (aRef);
+        final ReferenceType aRefObj = aReader.read (aRef);
 
         // Add to NR response
         final MessagePartNRInformation aMessagePartNRInformation = new MessagePartNRInformation ();
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.domain;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.jaxb.adapter.AdapterXMLOffsetDateTime;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.ebms3header.Ebms3AgreementRef;
+import com.helger.phase4.ebms3header.Ebms3CollaborationInfo;
+import com.helger.phase4.ebms3header.Ebms3Description;
+import com.helger.phase4.ebms3header.Ebms3MessageInfo;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3MessageProperties;
+import com.helger.phase4.ebms3header.Ebms3PartInfo;
+import com.helger.phase4.ebms3header.Ebms3PartyId;
+import com.helger.phase4.ebms3header.Ebms3PartyInfo;
+import com.helger.phase4.ebms3header.Ebms3PayloadInfo;
+import com.helger.phase4.ebms3header.Ebms3Property;
+import com.helger.phase4.ebms3header.Ebms3Schema;
+import com.helger.phase4.ebms3header.Ebms3Service;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.xml.XMLHelper;
+
+/**
+ * A cache for pre-built SOAP envelopes of outgoing {@link AS4UserMessage}s.
+ * Messages to the same partner usually only differ in the message ID, the
+ * timestamp and the payload references. Therefore the SOAP document is created
+ * once via JAXB per combination of SOAP version, party information,
+ * collaboration information (which includes the PMode ID, service and action),
+ * message properties and MPC. Only these header values make up the cache key,
+ * so a cache hit requires no copy of the JAXB structure. For each message the
+ * cached DOM skeleton is cloned, and only the <code>MessageInfo</code>, the
+ * <code>ConversationId</code>, the <code>PayloadInfo</code>, the Messaging
+ * <code>wsu:Id</code> and the SOAP body payload are filled in.<br>
+ * The resulting documents are structurally identical to the ones created by
+ * {@link AbstractAS4Message#getAsSoapDocument(Node)}.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4UserMessageSoapTemplateCache
+{
+  /** The default maximum number of templates to keep */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  private static final QName QNAME_WSU_ID = new QName (CAS4.WSU_NS, "Id");
+  private static final String TEMPLATE_MESSAGING_ID = "phase4-template";
+  private static final OffsetDateTime TEMPLATE_DATE_TIME = OffsetDateTime.of (2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+  private static final AS4UserMessageSoapTemplateCache DEFAULT_INSTANCE = new AS4UserMessageSoapTemplateCache (DEFAULT_MAX_SIZE);
+
+  /**
+   * The cache key, containing the SOAP version and the values of all header
+   * fields that are identical for all messages of the same template. Absent
+   * elements are represented by <code>null</code> and lists are prefixed with
+   * their size, so that different structures never result in the same key.
+   */
+  private static final class TemplateKey
+  {
+    private final ESoapVersion m_eSoapVersion;
+    private final ICommonsList <String> m_aFields = new CommonsArrayList <> ();
+    // status vars
+    private int m_nHashCode = 0;
+
+    TemplateKey (@Nonnull final ESoapVersion eSoapVersion, @Nonnull final Ebms3Messaging aMessaging)
+    {
+      m_eSoapVersion = eSoapVersion;
+      m_aFields.add (aMessaging.getId ());
+      m_aFields.add (String.valueOf (aMessaging.isS11MustUnderstand ()));
+      m_aFields.add (String.valueOf (aMessaging.isS12MustUnderstand ()));
+
+      final Ebms3UserMessage aUserMessage = aMessaging.getUserMessageAtIndex (0);
+      m_aFields.add (aUserMessage.getMpc ());
+
+      final Ebms3PartyInfo aPartyInfo = aUserMessage.getPartyInfo ();
+      if (aPartyInfo == null)
+        m_aFields.add (null);
+      else
+      {
+        m_aFields.add ("");
+        if (aPartyInfo.getFrom () == null)
+          m_aFields.add (null);
+        else
+          _addParty (aPartyInfo.getFrom ().getPartyId (), aPartyInfo.getFrom ().getRole ());
+        if (aPartyInfo.getTo () == null)
+          m_aFields.add (null);
+        else
+          _addParty (aPartyInfo.getTo ().getPartyId (), aPartyInfo.getTo ().getRole ());
+      }
+
+      final Ebms3CollaborationInfo aCollaborationInfo = aUserMessage.getCollaborationInfo ();
+      if (aCollaborationInfo == null)
+        m_aFields.add (null);
+      else
+      {
+        m_aFields.add ("");
+        final Ebms3AgreementRef aAgreementRef = aCollaborationInfo.getAgreementRef ();
+        if (aAgreementRef == null)
+          m_aFields.add (null);
+        else
+        {
+          m_aFields.add ("");
+          m_aFields.add (aAgreementRef.getValue ());
+          m_aFields.add (aAgreementRef.getType ());
+          m_aFields.add (aAgreementRef.getPmode ());
+        }
+        final Ebms3Service aService = aCollaborationInfo.getService ();
+        if (aService == null)
+          m_aFields.add (null);
+        else
+        {
+          m_aFields.add ("");
+          m_aFields.add (aService.getValue ());
+          m_aFields.add (aService.getType ());
+        }
+        m_aFields.add (aCollaborationInfo.getAction ());
+        // The value is usually different per message and filled in afterwards
+        m_aFields.add (aCollaborationInfo.getConversationId () == null ? null : "");
+      }
+
+      final Ebms3MessageProperties aMessageProperties = aUserMessage.getMessageProperties ();
+      if (aMessageProperties == null)
+        m_aFields.add (null);
+      else
+      {
+        m_aFields.add (Integer.toString (aMessageProperties.getPropertyCount ()));
+        for (final Ebms3Property aProperty : aMessageProperties.getProperty ())
+        {
+          m_aFields.add (aProperty.getName ());
+          m_aFields.add (aProperty.getType ());
+          m_aFields.add (aProperty.getValue ());
+        }
+      }
+    }
+
+    private void _addParty (@Nonnull final List <Ebms3PartyId> aPartyIDs, @Nullable final String sRole)
+    {
+      m_aFields.add (Integer.toString (aPartyIDs.size ()));
+      for (final Ebms3PartyId aPartyID : aPartyIDs)
+      {
+        m_aFields.add (aPartyID.getValue ());
+        m_aFields.add (aPartyID.getType ());
+      }
+      m_aFields.add (sRole);
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final TemplateKey rhs = (TemplateKey) o;
+      return m_eSoapVersion.equals (rhs.m_eSoapVersion) && m_aFields.equals (rhs.m_aFields);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      int ret = m_nHashCode;
+      if (ret == 0)
+        ret = m_nHashCode = new HashCodeGenerator (this).append (m_eSoapVersion).append (m_aFields).getHashCode ();
+      return ret;
+    }
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final LRUMap <TemplateKey, Document> m_aMap;
+
+  public AS4UserMessageSoapTemplateCache (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aMap = new LRUMap <> (nMaxSize);
+  }
+
+  /**
+   * @return The global default instance. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4UserMessageSoapTemplateCache getDefaultInstance ()
+  {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * @return The number of cached templates.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aLock.lockedInt (m_aMap::size);
+  }
+
+  /**
+   * Remove all cached templates.
+   */
+  public void clear ()
+  {
+    m_aLock.locked (m_aMap::clear);
+  }
+
+  @Nonnull
+  private static Document _createTemplate (@Nonnull final ESoapVersion eSoapVersion, @Nonnull final Ebms3Messaging aSrcMessaging)
+  {
+    // Create a copy without the per-message fields
+    final Ebms3Messaging aMessaging = aSrcMessaging.clone ();
+    aMessaging.getOtherAttributes ().put (QNAME_WSU_ID, TEMPLATE_MESSAGING_ID);
+    final Ebms3UserMessage aUserMessage = aMessaging.getUserMessageAtIndex (0);
+    // Schema valid placeholder that is replaced per message
+    aUserMessage.setMessageInfo (MessageHelperMethods.createEbms3MessageInfo (TEMPLATE_MESSAGING_ID, null, TEMPLATE_DATE_TIME));
+    aUserMessage.setPayloadInfo (null);
+    if (aUserMessage.getCollaborationInfo () != null && aUserMessage.getCollaborationInfo ().getConversationId () != null)
+      aUserMessage.getCollaborationInfo ().setConversationId (TEMPLATE_MESSAGING_ID);
+
+    final AS4UserMessage aTemplateMsg = new AS4UserMessage (eSoapVersion, aUserMessage);
+    aMessaging.cloneTo (aTemplateMsg.m_aMessaging);
+    return aTemplateMsg.getAsSoapDocument (null);
+  }
+
+  @Nonnull
+  private static Element _createChild (@Nonnull final Element aParent, @Nonnull final String sLocalName)
+  {
+    final Document aDoc = aParent.getOwnerDocument ();
+    final String sPrefix = aParent.getPrefix ();
+    final Element ret = aDoc.createElementNS (CAS4.EBMS_NS,
+                                              StringHelper.hasText (sPrefix) ? sPrefix + ':' + sLocalName : sLocalName);
+    aParent.appendChild (ret);
+    return ret;
+  }
+
+  @Nonnull
+  private static Element _createTextChild (@Nonnull final Element aParent,
+                                           @Nonnull final String sLocalName,
+                                           @Nullable final String sText)
+  {
+    final Element ret = _createChild (aParent, sLocalName);
+    if (sText != null)
+      ret.appendChild (aParent.getOwnerDocument ().createTextNode (sText));
+    return ret;
+  }
+
+  private static void _setAttr (@Nonnull final Element aElement, @Nonnull final String sName, @Nullable final String sValue)
+  {
+    if (sValue != null)
+      aElement.setAttribute (sName, sValue);
+  }
+
+  private static void _fillMessageInfo (@Nonnull final Element eMessageInfo, @Nonnull final Ebms3MessageInfo aMessageInfo)
+  {
+    // Remove the template content
+    while (eMessageInfo.hasChildNodes ())
+      eMessageInfo.removeChild (eMessageInfo.getFirstChild ());
+
+    final String sTimestamp = aMessageInfo.getTimestamp () == null ? null
+                                                                   : new AdapterXMLOffsetDateTime ().marshal (aMessageInfo.getTimestamp ());
+    _createTextChild (eMessageInfo, "Timestamp", sTimestamp);
+    _createTextChild (eMessageInfo, "MessageId", aMessageInfo.getMessageId ());
+    if (aMessageInfo.getRefToMessageId () != null)
+      _createTextChild (eMessageInfo, "RefToMessageId", aMessageInfo.getRefToMessageId ());
+  }
+
+  private static void _appendPayloadInfo (@Nonnull final Element eUserMessage, @Nonnull final Ebms3PayloadInfo aPayloadInfo)
+  {
+    final Element ePayloadInfo = _createChild (eUserMessage, "PayloadInfo");
+    for (final Ebms3PartInfo aPartInfo : aPayloadInfo.getPartInfo ())
+    {
+      final Element ePartInfo = _createChild (ePayloadInfo, "PartInfo");
+      _setAttr (ePartInfo, "href", aPartInfo.getHref ());
+
+      final Ebms3Schema aSchema = aPartInfo.getSchema ();
+      if (aSchema != null)
+      {
+        final Element eSchema = _createChild (ePartInfo, "Schema");
+        _setAttr (eSchema, "location", aSchema.getLocation ());
+        _setAttr (eSchema, "version", aSchema.getVersion ());
+        _setAttr (eSchema, "namespace", aSchema.getNamespace ());
+      }
+
+      final Ebms3Description aDescription = aPartInfo.getDescription ();
+      if (aDescription != null)
+      {
+        final Element eDescription = _createTextChild (ePartInfo, "Description", aDescription.getValue ());
+        if (aDescription.getLang () != null)
+          eDescription.setAttributeNS (XMLConstants.XML_NS_URI, "xml:lang", aDescription.getLang ());
+      }
+
+      if (aPartInfo.getPartProperties () != null)
+      {
+        final Element ePartProperties = _createChild (ePartInfo, "PartProperties");
+        for (final Ebms3Property aProperty : aPartInfo.getPartProperties ().getProperty ())
+        {
+          final Element eProperty = _createTextChild (ePartProperties, "Property", aProperty.getValue ());
+          _setAttr (eProperty, "name", aProperty.getName ());
+          _setAttr (eProperty, "type", aProperty.getType ());
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the SOAP document of the provided user message. The result is
+   * identical to {@link AbstractAS4Message#getAsSoapDocument(Node)} but avoids
+   * the JAXB marshalling if a matching template was already created.
+   *
+   * @param aUserMsg
+   *        The user message to convert. May not be <code>null</code>.
+   * @param aPayload
+   *        The optional SOAP body payload. May be <code>null</code>.
+   * @return The created SOAP document. Never <code>null</code>.
+   */
+  @Nonnull
+  public Document getAsSoapDocument (@Nonnull final AS4UserMessage aUserMsg, @Nullable final Node aPayload)
+  {
+    ValueEnforcer.notNull (aUserMsg, "UserMsg");
+
+    final ESoapVersion eSoapVersion = aUserMsg.getSoapVersion ();
+    final Ebms3Messaging aMessaging = aUserMsg.m_aMessaging;
+    final Ebms3UserMessage aEbms3UserMessage = aUserMsg.getEbms3UserMessage ();
+    if (aMessaging.getUserMessageCount () != 1 ||
+        aMessaging.hasSignalMessageEntries () ||
+        aMessaging.hasAnyEntries () ||
+        aMessaging.getOtherAttributes ().size () != 1 ||
+        aEbms3UserMessage.getMessageInfo () == null)
+    {
+      // Unexpected structure - use the default way
+      return aUserMsg.getAsSoapDocument (aPayload);
+    }
+
+    final TemplateKey aKey = new TemplateKey (eSoapVersion, aMessaging);
+    Document aTemplate = m_aLock.lockedGet ( () -> m_aMap.get (aKey));
+    if (aTemplate == null)
+    {
+      // Create outside of the lock - in the worst case it is created twice
+      final Document aNewTemplate = _createTemplate (eSoapVersion, aMessaging);
+      aTemplate = m_aLock.lockedGet ( () -> m_aMap.computeIfAbsent (aKey, k -> aNewTemplate));
+    }
+
+    // DOM implementations are not thread-safe, not even for reading
+    final Document ret;
+    synchronized (aTemplate)
+    {
+      ret = (Document) aTemplate.cloneNode (true);
+    }
+
+    final Element eEnvelope = ret.getDocumentElement ();
+    final Element eHeader = XMLHelper.getFirstChildElementOfName (eEnvelope, eSoapVersion.getNamespaceURI (), "Header");
+    final Element eBody = XMLHelper.getFirstChildElementOfName (eEnvelope, eSoapVersion.getNamespaceURI (), "Body");
+    final Element eMessaging = XMLHelper.getFirstChildElementOfName (eHeader, CAS4.EBMS_NS, "Messaging");
+    final Element eUserMessage = XMLHelper.getFirstChildElementOfName (eMessaging, CAS4.EBMS_NS, "UserMessage");
+    final Element eMessageInfo = XMLHelper.getFirstChildElementOfName (eUserMessage, CAS4.EBMS_NS, "MessageInfo");
+
+    // Messaging ID
+    final Attr aIDAttr = eMessaging.getAttributeNodeNS (CAS4.WSU_NS, "Id");
+    if (aIDAttr == null)
+      throw new IllegalStateException ("Template is missing the wsu:Id attribute");
+    aIDAttr.setValue (aUserMsg.getMessagingID ());
+
+    // Per message data
+    _fillMessageInfo (eMessageInfo, aEbms3UserMessage.getMessageInfo ());
+    final Ebms3CollaborationInfo aCollaborationInfo = aEbms3UserMessage.getCollaborationInfo ();
+    if (aCollaborationInfo != null && aCollaborationInfo.getConversationId () != null)
+    {
+      final Element eCollaborationInfo = XMLHelper.getFirstChildElementOfName (eUserMessage, CAS4.EBMS_NS, "CollaborationInfo");
+      final Element eConversationId = XMLHelper.getFirstChildElementOfName (eCollaborationInfo, CAS4.EBMS_NS, "ConversationId");
+      eConversationId.setTextContent (aCollaborationInfo.getConversationId ());
+    }
+    if (aEbms3UserMessage.getPayloadInfo () != null)
+      _appendPayloadInfo (eUserMessage, aEbms3UserMessage.getPayloadInfo ());
+
+    // Body payload
+    final Node aRealPayload = aPayload instanceof Document ? ((Document) aPayload).getDocumentElement () : aPayload;
+    if (aRealPayload != null)
+      eBody.appendChild (ret.importNode (aRealPayload, true));
+
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Size", size ()).getToString ();
+  }
+}
@@ -22,6 +22,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.MustImplementEqualsAndHashcode;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.hashcode.HashCodeGenerator;
@@ -33,11 +34,37 @@ import com.helger.phase4.attachment.EAS4CompressionMode;
 @MustImplementEqualsAndHashcode
 public class PModePayloadService implements Serializable
 {
+  public static final int DEFAULT_COMPRESSION_LEVEL = EAS4CompressionMode.DEFAULT_COMPRESSION_LEVEL;
+  public static final boolean DEFAULT_PARALLEL_COMPRESSION = false;
+
   private EAS4CompressionMode m_eCompressionMode;
+  private int m_nCompressionLevel;
+  private boolean m_bParallelCompression;
 
   public PModePayloadService (@Nullable final EAS4CompressionMode eCompressionMode)
+  {
+    this (eCompressionMode, DEFAULT_COMPRESSION_LEVEL, DEFAULT_PARALLEL_COMPRESSION);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param eCompressionMode
+   *        Compression mode to use. May be <code>null</code>.
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or
+   *        {@link #DEFAULT_COMPRESSION_LEVEL}.
+   * @param bParallelCompression
+   *        <code>true</code> to compress large payloads with multiple threads.
+   * @since 1.3.9
+   */
+  public PModePayloadService (@Nullable final EAS4CompressionMode eCompressionMode,
+                              final int nCompressionLevel,
+                              final boolean bParallelCompression)
   {
     setCompressionMode (eCompressionMode);
+    setCompressionLevel (nCompressionLevel);
+    setParallelCompression (bParallelCompression);
   }
 
   /**
@@ -84,6 +111,62 @@ public class PModePayloadService implements Serializable
     return EChange.CHANGED;
   }
 
+  /**
+   * @return The compression level to use. Either between 0 and 9 or
+   *         {@link #DEFAULT_COMPRESSION_LEVEL}.
+   * @since 1.3.9
+   */
+  public final int getCompressionLevel ()
+  {
+    return m_nCompressionLevel;
+  }
+
+  /**
+   * Set the compression level to use.
+   *
+   * @param nCompressionLevel
+   *        The compression level to use. Must be between 0 and 9 or
+   *        {@link #DEFAULT_COMPRESSION_LEVEL}.
+   * @return {@link EChange}
+   * @since 1.3.9
+   */
+  @Nonnull
+  public final EChange setCompressionLevel (final int nCompressionLevel)
+  {
+    ValueEnforcer.isBetweenInclusive (nCompressionLevel, "CompressionLevel", DEFAULT_COMPRESSION_LEVEL, 9);
+    if (nCompressionLevel == m_nCompressionLevel)
+      return EChange.UNCHANGED;
+    m_nCompressionLevel = nCompressionLevel;
+    return EChange.CHANGED;
+  }
+
+  /**
+   * @return <code>true</code> if outgoing payloads should be compressed with
+   *         multiple threads in parallel, <code>false</code> if not.
+   * @since 1.3.9
+   */
+  public final boolean isParallelCompression ()
+  {
+    return m_bParallelCompression;
+  }
+
+  /**
+   * Enable or disable parallel compression of outgoing payloads.
+   *
+   * @param bParallelCompression
+   *        <code>true</code> to enable parallel compression.
+   * @return {@link EChange}
+   * @since 1.3.9
+   */
+  @Nonnull
+  public final EChange setParallelCompression (final boolean bParallelCompression)
+  {
+    if (bParallelCompression == m_bParallelCompression)
+      return EChange.UNCHANGED;
+    m_bParallelCompression = bParallelCompression;
+    return EChange.CHANGED;
+  }
+
   @Override
   public boolean equals (final Object o)
   {
@@ -92,18 +175,26 @@ public class PModePayloadService implements Serializable
     if (o == null || !getClass ().equals (o.getClass ()))
       return false;
     final PModePayloadService rhs = (PModePayloadService) o;
-    return EqualsHelper.equals (m_eCompressionMode, rhs.m_eCompressionMode);
+    return EqualsHelper.equals (m_eCompressionMode, rhs.m_eCompressionMode) &&
+           m_nCompressionLevel == rhs.m_nCompressionLevel &&
+           m_bParallelCompression == rhs.m_bParallelCompression;
   }
 
   @Override
   public int hashCode ()
   {
-    return new HashCodeGenerator (this).append (m_eCompressionMode).getHashCode ();
+    return new HashCodeGenerator (this).append (m_eCompressionMode)
+                                       .append (m_nCompressionLevel)
+                                       .append (m_bParallelCompression)
+                                       .getHashCode ();
   }
 
   @Override
   public String toString ()
   {
-    return new ToStringGenerator (this).append ("CompressionMode", m_eCompressionMode).getToString ();
+    return new ToStringGenerator (this).append ("CompressionMode", m_eCompressionMode)
+                                       .append ("CompressionLevel", m_nCompressionLevel)
+                                       .append ("ParallelCompression", m_bParallelCompression)
+                                       .getToString ();
   }
 }
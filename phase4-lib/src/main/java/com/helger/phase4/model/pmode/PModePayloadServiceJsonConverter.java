@@ -33,6 +33,8 @@ import com.helger.phase4.attachment.EAS4CompressionMode;
 public final class PModePayloadServiceJsonConverter
 {
   private static final String COMPRESSION_MODE = "CompressionMode";
+  private static final String COMPRESSION_LEVEL = "CompressionLevel";
+  private static final String PARALLEL_COMPRESSION = "ParallelCompression";
 
   private PModePayloadServiceJsonConverter ()
   {}
@@ -43,6 +45,10 @@ public final class PModePayloadServiceJsonConverter
     final IJsonObject ret = new JsonObject ();
     if (aValue.hasCompressionMode ())
       ret.add (COMPRESSION_MODE, aValue.getCompressionModeID ());
+    if (aValue.getCompressionLevel () != PModePayloadService.DEFAULT_COMPRESSION_LEVEL)
+      ret.add (COMPRESSION_LEVEL, aValue.getCompressionLevel ());
+    if (aValue.isParallelCompression ())
+      ret.add (PARALLEL_COMPRESSION, true);
     return ret;
   }
 
@@ -54,6 +60,10 @@ public final class PModePayloadServiceJsonConverter
     if (sCompressionModeID != null && eCompressionMode == null)
       throw new IllegalStateException ("Invalid compression mode ID '" + sCompressionModeID + "' provided!");
 
-    return new PModePayloadService (eCompressionMode);
+    final int nCompressionLevel = aElement.getAsInt (COMPRESSION_LEVEL, PModePayloadService.DEFAULT_COMPRESSION_LEVEL);
+    final boolean bParallelCompression = aElement.getAsBoolean (PARALLEL_COMPRESSION,
+                                                                PModePayloadService.DEFAULT_PARALLEL_COMPRESSION);
+
+    return new PModePayloadService (eCompressionMode, nCompressionLevel, bParallelCompression);
   }
 }
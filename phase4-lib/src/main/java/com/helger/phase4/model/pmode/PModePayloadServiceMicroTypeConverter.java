@@ -34,6 +34,8 @@ import com.helger.xml.microdom.convert.IMicroTypeConverter;
 public final class PModePayloadServiceMicroTypeConverter implements IMicroTypeConverter <PModePayloadService>
 {
   private static final IMicroQName ATTR_COMPRESSION_MODE = new MicroQName ("CompressionMode");
+  private static final IMicroQName ATTR_COMPRESSION_LEVEL = new MicroQName ("CompressionLevel");
+  private static final IMicroQName ATTR_PARALLEL_COMPRESSION = new MicroQName ("ParallelCompression");
 
   @Nonnull
   public IMicroElement convertToMicroElement (@Nonnull final PModePayloadService aValue,
@@ -42,6 +44,10 @@ public final class PModePayloadServiceMicroTypeConverter implements IMicroTypeCo
   {
     final IMicroElement ret = new MicroElement (sNamespaceURI, sTagName);
     ret.setAttribute (ATTR_COMPRESSION_MODE, aValue.getCompressionModeID ());
+    if (aValue.getCompressionLevel () != PModePayloadService.DEFAULT_COMPRESSION_LEVEL)
+      ret.setAttribute (ATTR_COMPRESSION_LEVEL, aValue.getCompressionLevel ());
+    if (aValue.isParallelCompression ())
+      ret.setAttribute (ATTR_PARALLEL_COMPRESSION, true);
     return ret;
   }
 
@@ -53,6 +59,11 @@ public final class PModePayloadServiceMicroTypeConverter implements IMicroTypeCo
     if (sCompressionModeID != null && eCompressionMode == null)
       throw new IllegalStateException ("Invalid compression mode ID '" + sCompressionModeID + "' provided!");
 
-    return new PModePayloadService (eCompressionMode);
+    final int nCompressionLevel = aElement.getAttributeValueAsInt (ATTR_COMPRESSION_LEVEL,
+                                                                   PModePayloadService.DEFAULT_COMPRESSION_LEVEL);
+    final boolean bParallelCompression = aElement.getAttributeValueAsBool (ATTR_PARALLEL_COMPRESSION,
+                                                                           PModePayloadService.DEFAULT_PARALLEL_COMPRESSION);
+
+    return new PModePayloadService (eCompressionMode, nCompressionLevel, bParallelCompression);
   }
 }
@@ -0,0 +1,1182 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.base64.Base64;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.mutable.MutableInt;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.json.IJsonArray;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonArray;
+import com.helger.json.JsonObject;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+import com.helger.phase4.util.AS4ThreadHelper;
+
+/**
+ * A persistent store-and-forward queue for outgoing AS4 user messages. In
+ * contrast to the {@link AS4Outbox}, which delivers already built asynchronous
+ * responses, this queue stores the payload and lets the sender builders create
+ * the message upon sending.
+ * <ul>
+ * <li>{@link #enqueue(String, String, IJsonObject, byte[])} stores the message
+ * durably in a segmented append-only log on disk before it returns. Enqueueing
+ * the same message ID again has no effect (idempotency). Sent entries are
+ * remembered for the sent retention period after their log segment was
+ * deleted - afterwards the same message ID is accepted as a new entry.</li>
+ * <li>After {@link #start()}, worker threads drain the queue. The number of
+ * concurrent transmissions per destination is limited.</li>
+ * <li>Each message is sent via the provided {@link IAS4OutboundQueueMessageSender}
+ * which usually uses one of the sender builders. The result (receipt or ebMS
+ * error) is recorded per message. Retry feasible results are retried with an
+ * exponential backoff until the maximum number of attempts is reached.</li>
+ * <li>Pending messages are recovered upon restart. Because a message may be
+ * sent more than once (e.g. if the process crashed before the result was
+ * recorded), the sender must reuse the message ID of the entry, so that the
+ * receiver can detect the duplicate.</li>
+ * <li>Old segments of the log are deleted periodically. The sent entries of
+ * deleted segments are remembered in a separate snapshot file for the sent
+ * retention period. Pending and finally failed entries of deleted segments are
+ * copied forward, so that they don't prevent the deletion. Finally failed
+ * entries are kept until they are either retried via {@link #retry(String)} or
+ * discarded via {@link #discard(String)}.</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4OutboundQueue implements AutoCloseable
+{
+  public static final int DEFAULT_THREAD_COUNT = 8;
+  public static final int DEFAULT_MAX_CONCURRENCY_PER_DESTINATION = 2;
+  public static final int DEFAULT_MAX_ATTEMPTS = 10;
+  public static final Duration DEFAULT_RETRY_DELAY = Duration.ofSeconds (10);
+  public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * CGlobal.BYTES_PER_MEGABYTE;
+  public static final Duration DEFAULT_SENT_RETENTION = Duration.ofDays (7);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4OutboundQueue.class);
+  private static final long MAX_RETRY_DELAY_MILLIS = CGlobal.MILLISECONDS_PER_HOUR;
+  private static final long COMPACTION_INTERVAL_SECONDS = CGlobal.SECONDS_PER_MINUTE;
+
+  private static final String JSON_TYPE = "type";
+  private static final String TYPE_ENQUEUE = "enqueue";
+  private static final String TYPE_UPDATE = "update";
+  private static final String TYPE_DISCARD = "discard";
+  private static final String JSON_MESSAGE_ID = "messageId";
+  private static final String JSON_DESTINATION = "destination";
+  private static final String JSON_CREATION_MILLIS = "creationMillis";
+  private static final String JSON_METADATA = "metadata";
+  private static final String JSON_PAYLOAD = "payload";
+  private static final String JSON_STATE = "state";
+  private static final String JSON_ATTEMPTS = "attempts";
+  private static final String JSON_LAST_ATTEMPT_MILLIS = "lastAttemptMillis";
+  private static final String JSON_RESULT = "result";
+  private static final String JSON_ERROR_CODE = "errorCode";
+  private static final String JSON_ERROR = "error";
+  private static final String JSON_RECEIPT_MESSAGE_ID = "receiptMessageId";
+
+  /**
+   * The in-memory index entry.
+   */
+  private static final class IndexEntry
+  {
+    private AS4OutboundQueueEntry m_aEntry;
+    // Changes if the entry is copied forward upon compaction
+    private AS4OutboundQueueSegmentLog.RecordPos m_aEnqueuePos;
+
+    IndexEntry (@Nonnull final AS4OutboundQueueEntry aEntry, @Nonnull final AS4OutboundQueueSegmentLog.RecordPos aEnqueuePos)
+    {
+      m_aEntry = aEntry;
+      m_aEnqueuePos = aEnqueuePos;
+    }
+  }
+
+  private final IAS4OutboundQueueMessageSender m_aSender;
+  private final int m_nThreadCount;
+  private final int m_nMaxConcurrencyPerDestination;
+  private final int m_nMaxAttempts;
+  private final long m_nRetryDelayMillis;
+  private final long m_nSentRetentionMillis;
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final AS4OutboundQueueSegmentLog m_aLog;
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, IndexEntry> m_aEntries = new CommonsLinkedHashMap <> ();
+  /**
+   * The sent entries whose segment was deleted. Only needed to detect
+   * duplicates. Persisted in the snapshot of the log.
+   */
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, AS4OutboundQueueEntry> m_aSentEntries = new CommonsHashMap <> ();
+  /** The IDs of all entries that have a record in a segment */
+  @GuardedBy ("m_aLock")
+  private final ICommonsSortedMap <Long, ICommonsSet <String>> m_aSegmentRefs = new CommonsTreeMap <> ();
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, Deque <String>> m_aReady = new CommonsLinkedHashMap <> ();
+  @GuardedBy ("m_aLock")
+  private final ICommonsMap <String, MutableInt> m_aInFlight = new CommonsHashMap <> ();
+  @GuardedBy ("m_aLock")
+  private ExecutorService m_aWorkers;
+  @GuardedBy ("m_aLock")
+  private ScheduledExecutorService m_aScheduler;
+  @GuardedBy ("m_aLock")
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor using the default settings.
+   *
+   * @param aDir
+   *        The directory to store the log segments in. May not be
+   *        <code>null</code>.
+   * @param aSender
+   *        The sender for a single message. May not be <code>null</code>.
+   * @throws IOException
+   *         If the existing log cannot be read.
+   */
+  public AS4OutboundQueue (@Nonnull final File aDir, @Nonnull final IAS4OutboundQueueMessageSender aSender) throws IOException
+  {
+    this (aDir,
+          aSender,
+          DEFAULT_THREAD_COUNT,
+          DEFAULT_MAX_CONCURRENCY_PER_DESTINATION,
+          DEFAULT_MAX_ATTEMPTS,
+          DEFAULT_RETRY_DELAY,
+          DEFAULT_MAX_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructor using the default sent retention. Reads all existing log
+   * segments. Sending starts only with {@link #start()}.
+   *
+   * @param aDir
+   *        The directory to store the log segments in. May not be
+   *        <code>null</code>.
+   * @param aSender
+   *        The sender for a single message. May not be <code>null</code>.
+   * @param nThreadCount
+   *        The total number of worker threads. Must be &gt; 0.
+   * @param nMaxConcurrencyPerDestination
+   *        The maximum number of concurrent transmissions to a single
+   *        destination. Must be &gt; 0.
+   * @param nMaxAttempts
+   *        The maximum number of send attempts per message. Must be &gt; 0.
+   * @param aRetryDelay
+   *        The delay before the first retry. It is doubled for each further
+   *        retry, up to one hour. May not be <code>null</code>.
+   * @param nMaxSegmentSize
+   *        The size in bytes after which a new log segment is started. Must be
+   *        &gt; 0.
+   * @throws IOException
+   *         If the existing log cannot be read.
+   */
+  public AS4OutboundQueue (@Nonnull final File aDir,
+                           @Nonnull final IAS4OutboundQueueMessageSender aSender,
+                           @Nonnegative final int nThreadCount,
+                           @Nonnegative final int nMaxConcurrencyPerDestination,
+                           @Nonnegative final int nMaxAttempts,
+                           @Nonnull final Duration aRetryDelay,
+                           @Nonnegative final long nMaxSegmentSize) throws IOException
+  {
+    this (aDir,
+          aSender,
+          nThreadCount,
+          nMaxConcurrencyPerDestination,
+          nMaxAttempts,
+          aRetryDelay,
+          nMaxSegmentSize,
+          DEFAULT_SENT_RETENTION);
+  }
+
+  /**
+   * Constructor. Reads all existing log segments. Sending starts only with
+   * {@link #start()}.
+   *
+   * @param aDir
+   *        The directory to store the log segments in. May not be
+   *        <code>null</code>.
+   * @param aSender
+   *        The sender for a single message. May not be <code>null</code>.
+   * @param nThreadCount
+   *        The total number of worker threads. Must be &gt; 0.
+   * @param nMaxConcurrencyPerDestination
+   *        The maximum number of concurrent transmissions to a single
+   *        destination. Must be &gt; 0.
+   * @param nMaxAttempts
+   *        The maximum number of send attempts per message. Must be &gt; 0.
+   * @param aRetryDelay
+   *        The delay before the first retry. It is doubled for each further
+   *        retry, up to one hour. May not be <code>null</code>.
+   * @param nMaxSegmentSize
+   *        The size in bytes after which a new log segment is started. Must be
+   *        &gt; 0.
+   * @param aSentRetention
+   *        How long sent entries are remembered after their last attempt to
+   *        detect duplicates, once their log segment was deleted. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         If the existing log cannot be read.
+   */
+  public AS4OutboundQueue (@Nonnull final File aDir,
+                           @Nonnull final IAS4OutboundQueueMessageSender aSender,
+                           @Nonnegative final int nThreadCount,
+                           @Nonnegative final int nMaxConcurrencyPerDestination,
+                           @Nonnegative final int nMaxAttempts,
+                           @Nonnull final Duration aRetryDelay,
+                           @Nonnegative final long nMaxSegmentSize,
+                           @Nonnull final Duration aSentRetention) throws IOException
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.isGT0 (nThreadCount, "ThreadCount");
+    ValueEnforcer.isGT0 (nMaxConcurrencyPerDestination, "MaxConcurrencyPerDestination");
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    ValueEnforcer.notNull (aRetryDelay, "RetryDelay");
+    ValueEnforcer.isFalse (aRetryDelay.isNegative (), "RetryDelay may not be negative");
+    ValueEnforcer.notNull (aSentRetention, "SentRetention");
+    ValueEnforcer.isFalse (aSentRetention.isNegative (), "SentRetention may not be negative");
+    m_aSender = aSender;
+    m_nThreadCount = nThreadCount;
+    m_nMaxConcurrencyPerDestination = nMaxConcurrencyPerDestination;
+    m_nMaxAttempts = nMaxAttempts;
+    m_nRetryDelayMillis = aRetryDelay.toMillis ();
+    m_nSentRetentionMillis = aSentRetention.toMillis ();
+    m_aLog = new AS4OutboundQueueSegmentLog (aDir, nMaxSegmentSize);
+
+    m_aLock.lock ();
+    try
+    {
+      _replay ();
+      _compact ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  private static void _addState (@Nonnull final IJsonObject aRecord, @Nonnull final AS4OutboundQueueEntry aEntry)
+  {
+    aRecord.add (JSON_STATE, aEntry.getState ().getID ());
+    aRecord.add (JSON_ATTEMPTS, aEntry.getAttemptCount ());
+    aRecord.add (JSON_LAST_ATTEMPT_MILLIS, aEntry.getLastAttemptMillis ());
+    if (aEntry.getLastResult () != null)
+      aRecord.add (JSON_RESULT, aEntry.getLastResult ().getID ());
+    if (aEntry.getLastErrorCode () != null)
+      aRecord.add (JSON_ERROR_CODE, aEntry.getLastErrorCode ());
+    if (aEntry.getLastErrorMessage () != null)
+      aRecord.add (JSON_ERROR, aEntry.getLastErrorMessage ());
+    if (aEntry.getReceiptMessageID () != null)
+      aRecord.add (JSON_RECEIPT_MESSAGE_ID, aEntry.getReceiptMessageID ());
+  }
+
+  @Nonnull
+  private static AS4OutboundQueueEntry _getWithState (@Nonnull final AS4OutboundQueueEntry aBase, @Nonnull final IJsonObject aRecord)
+  {
+    final EAS4OutboundQueueEntryState eState = EAS4OutboundQueueEntryState.getFromIDOrNull (aRecord.getAsString (JSON_STATE));
+    return new AS4OutboundQueueEntry (aBase.getMessageID (),
+                                      aBase.getDestination (),
+                                      aBase.getCreationMillis (),
+                                      aBase.getMetadata (),
+                                      eState != null ? eState : EAS4OutboundQueueEntryState.PENDING,
+                                      aRecord.getAsInt (JSON_ATTEMPTS, 0),
+                                      aRecord.getAsLong (JSON_LAST_ATTEMPT_MILLIS, 0),
+                                      ESimpleUserMessageSendResult.getFromIDOrNull (aRecord.getAsString (JSON_RESULT)),
+                                      aRecord.getAsString (JSON_ERROR_CODE),
+                                      aRecord.getAsString (JSON_ERROR),
+                                      aRecord.getAsString (JSON_RECEIPT_MESSAGE_ID));
+  }
+
+  @Nonnull
+  private static IJsonObject _createUpdateRecord (@Nonnull final AS4OutboundQueueEntry aEntry)
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_TYPE, TYPE_UPDATE);
+    ret.add (JSON_MESSAGE_ID, aEntry.getMessageID ());
+    _addState (ret, aEntry);
+    return ret;
+  }
+
+  @Nonnull
+  private static IJsonObject _createSentJson (@Nonnull final AS4OutboundQueueEntry aEntry)
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_MESSAGE_ID, aEntry.getMessageID ());
+    ret.add (JSON_DESTINATION, aEntry.getDestination ());
+    ret.add (JSON_CREATION_MILLIS, aEntry.getCreationMillis ());
+    ret.add (JSON_ATTEMPTS, aEntry.getAttemptCount ());
+    ret.add (JSON_LAST_ATTEMPT_MILLIS, aEntry.getLastAttemptMillis ());
+    if (aEntry.getReceiptMessageID () != null)
+      ret.add (JSON_RECEIPT_MESSAGE_ID, aEntry.getReceiptMessageID ());
+    return ret;
+  }
+
+  private boolean _isSentRetentionExpired (@Nonnull final AS4OutboundQueueEntry aEntry, final long nNowMillis)
+  {
+    return aEntry.getLastAttemptMillis () + m_nSentRetentionMillis < nNowMillis;
+  }
+
+  @Nonnull
+  private static IJsonObject _createEnqueueRecord (@Nonnull final AS4OutboundQueueEntry aEntry, @Nullable final String sPayload)
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_TYPE, TYPE_ENQUEUE);
+    ret.add (JSON_MESSAGE_ID, aEntry.getMessageID ());
+    ret.add (JSON_DESTINATION, aEntry.getDestination ());
+    ret.add (JSON_CREATION_MILLIS, aEntry.getCreationMillis ());
+    ret.addJson (JSON_METADATA, aEntry.getMetadata ());
+    ret.add (JSON_PAYLOAD, sPayload);
+    return ret;
+  }
+
+  /**
+   * Read the payload of an entry without holding the lock. If the entry is
+   * copied forward by a concurrent compaction, the read is repeated at the new
+   * position.
+   */
+  @Nullable
+  private byte [] _readPayload (@Nonnull final String sMessageID) throws IOException
+  {
+    AS4OutboundQueueSegmentLog.RecordPos aLastPos = null;
+    while (true)
+    {
+      final AS4OutboundQueueSegmentLog.RecordPos aPos;
+      final File aSegmentFile;
+      m_aLock.lock ();
+      try
+      {
+        final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+        if (aIndexEntry == null || aIndexEntry.m_aEnqueuePos == aLastPos)
+          return null;
+        aPos = aIndexEntry.m_aEnqueuePos;
+        aSegmentFile = m_aLog.getSegmentFile (aPos);
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+
+      if (aSegmentFile != null)
+        try
+        {
+          final IJsonObject aRecord = AS4OutboundQueueSegmentLog.read (aSegmentFile, aPos);
+          return aRecord == null ? null : Base64.safeDecode (aRecord.getAsString (JSON_PAYLOAD));
+        }
+        catch (final FileNotFoundException ex)
+        {
+          // The segment was deleted in the meantime
+        }
+      aLastPos = aPos;
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _addSegmentRef (@Nonnull final AS4OutboundQueueSegmentLog.RecordPos aPos, @Nonnull final String sMessageID)
+  {
+    m_aSegmentRefs.computeIfAbsent (Long.valueOf (aPos.getSegment ()), k -> new CommonsHashSet <> ()).add (sMessageID);
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _addReady (@Nonnull final AS4OutboundQueueEntry aEntry)
+  {
+    m_aReady.computeIfAbsent (aEntry.getDestination (), k -> new ArrayDeque <> ()).add (aEntry.getMessageID ());
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _replay () throws IOException
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    final IJsonArray aSnapshot = m_aLog.readSnapshot ();
+    if (aSnapshot != null)
+      for (final IJsonObject aSent : aSnapshot.iteratorObjects ())
+      {
+        final String sMessageID = aSent.getAsString (JSON_MESSAGE_ID);
+        final String sDestination = aSent.getAsString (JSON_DESTINATION);
+        if (StringHelper.hasText (sMessageID) && StringHelper.hasText (sDestination))
+        {
+          final AS4OutboundQueueEntry aEntry = new AS4OutboundQueueEntry (sMessageID,
+                                                                          sDestination,
+                                                                          aSent.getAsLong (JSON_CREATION_MILLIS, 0),
+                                                                          new JsonObject (),
+                                                                          EAS4OutboundQueueEntryState.SENT,
+                                                                          aSent.getAsInt (JSON_ATTEMPTS, 0),
+                                                                          aSent.getAsLong (JSON_LAST_ATTEMPT_MILLIS, 0),
+                                                                          ESimpleUserMessageSendResult.SUCCESS,
+                                                                          null,
+                                                                          null,
+                                                                          aSent.getAsString (JSON_RECEIPT_MESSAGE_ID));
+          if (!_isSentRetentionExpired (aEntry, nNowMillis))
+            m_aSentEntries.put (sMessageID, aEntry);
+        }
+      }
+
+    m_aLog.replay ( (aRecord, aPos) -> {
+      final String sType = aRecord.getAsString (JSON_TYPE);
+      final String sMessageID = aRecord.getAsString (JSON_MESSAGE_ID);
+      if (StringHelper.hasNoText (sMessageID))
+        return;
+      // Left over from a segment that was not deleted after the snapshot was
+      // written. Within the sent retention the same ID cannot be enqueued
+      // again.
+      if (m_aSentEntries.containsKey (sMessageID))
+        return;
+
+      if (TYPE_ENQUEUE.equals (sType))
+      {
+        AS4OutboundQueueEntry aEntry = AS4OutboundQueueEntry.createNew (sMessageID,
+                                                                        aRecord.getAsString (JSON_DESTINATION),
+                                                                        aRecord.getAsLong (JSON_CREATION_MILLIS, 0),
+                                                                        aRecord.getAsObject (JSON_METADATA));
+        // Entries copied forward upon compaction contain the state
+        if (aRecord.containsKey (JSON_STATE))
+          aEntry = _getWithState (aEntry, aRecord);
+        m_aEntries.put (sMessageID, new IndexEntry (aEntry, aPos));
+        _addSegmentRef (aPos, sMessageID);
+      }
+      else
+      {
+        final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+        // Unknown entries were compacted or discarded
+        if (aIndexEntry != null)
+        {
+          _addSegmentRef (aPos, sMessageID);
+          if (TYPE_UPDATE.equals (sType))
+            aIndexEntry.m_aEntry = _getWithState (aIndexEntry.m_aEntry, aRecord);
+          else
+            if (TYPE_DISCARD.equals (sType))
+              m_aEntries.remove (sMessageID);
+        }
+      }
+    });
+
+    int nPending = 0;
+    for (final IndexEntry aIndexEntry : m_aEntries.values ())
+      if (aIndexEntry.m_aEntry.getState () == EAS4OutboundQueueEntryState.PENDING)
+      {
+        _addReady (aIndexEntry.m_aEntry);
+        nPending++;
+      }
+    if (nPending > 0)
+      LOGGER.info ("Recovered " + nPending + " pending outbound queue entries");
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _isLiveEnqueuedIn (@Nonnull final String sMessageID, final long nSegment)
+  {
+    final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+    return aIndexEntry != null &&
+           aIndexEntry.m_aEntry.getState () != EAS4OutboundQueueEntryState.SENT &&
+           aIndexEntry.m_aEnqueuePos.getSegment () == nSegment;
+  }
+
+  /**
+   * Delete the log segments that are not needed anymore. To detect duplicates,
+   * the sent entries enqueued in a segment are added to the snapshot, and the
+   * pending and failed entries are copied forward to the active segment
+   * together with their current state, before the segment is deleted. Segments
+   * that only contain records of their own pending or failed entries are kept
+   * as they are, so compacting an idle queue writes nothing.
+   */
+  @GuardedBy ("m_aLock")
+  private void _compact ()
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    // Expired entries are removed from the snapshot upon the next write
+    m_aSentEntries.removeIf (x -> _isSentRetentionExpired (x.getValue (), nNowMillis));
+
+    // Copies may roll over the active segment - they are compacted next time
+    final long nActiveSegment = m_aLog.getActiveSegment ();
+    // Copying an entry forward may make an older kept segment deletable
+    while (_compactSegments (nActiveSegment, nNowMillis))
+    {}
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _compactSegments (final long nActiveSegment, final long nNowMillis)
+  {
+    final ICommonsList <Long> aDeletable = new CommonsArrayList <> ();
+    // The sent entries enqueued in these segments
+    final ICommonsMap <String, AS4OutboundQueueEntry> aNewSentEntries = new CommonsHashMap <> ();
+    AS4OutboundQueueSegmentLog.RecordPos aLastCopyPos = null;
+    for (final Long aSegment : m_aLog.getAllSegments ())
+    {
+      final long nSegment = aSegment.longValue ();
+      if (nSegment >= nActiveSegment)
+        break;
+      final ICommonsSet <String> aRefs = m_aSegmentRefs.get (aSegment);
+      if (aRefs != null && aRefs.isNotEmpty () && !aRefs.containsAny (x -> !_isLiveEnqueuedIn (x, nSegment)))
+      {
+        // Nothing to gain
+        continue;
+      }
+
+      boolean bKeep = false;
+      if (aRefs != null)
+        for (final String sMessageID : aRefs)
+        {
+          final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+          // Discarded or a later record contains the complete entry
+          if (aIndexEntry == null || aIndexEntry.m_aEnqueuePos.getSegment () > nSegment)
+            continue;
+
+          final AS4OutboundQueueEntry aEntry = aIndexEntry.m_aEntry;
+          if (aEntry.getState () == EAS4OutboundQueueEntryState.SENT)
+          {
+            if (!_isSentRetentionExpired (aEntry, nNowMillis))
+              aNewSentEntries.put (sMessageID, aEntry);
+          }
+          else
+          {
+            // Copy the pending or failed entry including the payload
+            try
+            {
+              final File aSegmentFile = m_aLog.getSegmentFile (aIndexEntry.m_aEnqueuePos);
+              final IJsonObject aRecord = aSegmentFile == null ? null
+                                                               : AS4OutboundQueueSegmentLog.read (aSegmentFile,
+                                                                                                  aIndexEntry.m_aEnqueuePos);
+              if (aRecord == null)
+                throw new IOException ("The enqueue record is missing");
+              final IJsonObject aCopy = _createEnqueueRecord (aEntry, aRecord.getAsString (JSON_PAYLOAD));
+              // The copy replaces all previous records of the entry
+              _addState (aCopy, aEntry);
+              final AS4OutboundQueueSegmentLog.RecordPos aPos = m_aLog.append (AS4OutboundQueueSegmentLog.serialize (aCopy));
+              aIndexEntry.m_aEnqueuePos = aPos;
+              _addSegmentRef (aPos, sMessageID);
+              aLastCopyPos = aPos;
+            }
+            catch (final IOException ex)
+            {
+              LOGGER.error ("Failed to copy outbound queue entry '" + sMessageID + "' forward", ex);
+              bKeep = true;
+              break;
+            }
+          }
+        }
+      if (bKeep)
+        break;
+      aDeletable.add (aSegment);
+    }
+    if (aDeletable.isEmpty ())
+      return false;
+
+    // The copies and the snapshot must be on disk before the segments are
+    // deleted
+    try
+    {
+      if (aLastCopyPos != null)
+        m_aLog.force (aLastCopyPos);
+      if (aNewSentEntries.isNotEmpty ())
+      {
+        final IJsonArray aSnapshot = new JsonArray ();
+        for (final AS4OutboundQueueEntry aEntry : m_aSentEntries.values ())
+          aSnapshot.add (_createSentJson (aEntry));
+        for (final AS4OutboundQueueEntry aEntry : aNewSentEntries.values ())
+          aSnapshot.add (_createSentJson (aEntry));
+        m_aLog.writeSnapshot (aSnapshot);
+      }
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to compact the outbound queue", ex);
+      return false;
+    }
+    m_aSentEntries.putAll (aNewSentEntries);
+
+    boolean bDeleted = false;
+    for (final Long aSegment : aDeletable)
+    {
+      if (!m_aLog.deleteSegment (aSegment.longValue ()))
+        break;
+      bDeleted = true;
+
+      // Forget the sent entries that were enqueued in this segment
+      final ICommonsSet <String> aRefs = m_aSegmentRefs.remove (aSegment);
+      if (aRefs != null)
+        for (final String sMessageID : aRefs)
+        {
+          final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+          if (aIndexEntry != null && aIndexEntry.m_aEnqueuePos.getSegment () == aSegment.longValue ())
+            m_aEntries.remove (sMessageID);
+        }
+    }
+    return bDeleted;
+  }
+
+  private void _compactLocked ()
+  {
+    m_aLock.locked (this::_compact);
+  }
+
+  @Nonnegative
+  private long _getRetryDelayMillis (@Nonnegative final int nAttempt)
+  {
+    // Exponential backoff
+    final long nFactor = 1L << Math.min (nAttempt, 20);
+    return Math.min (m_nRetryDelayMillis * nFactor, MAX_RETRY_DELAY_MILLIS);
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _dispatch ()
+  {
+    if (m_aWorkers == null || m_bClosed)
+      return;
+
+    for (final Map.Entry <String, Deque <String>> aEntry : m_aReady.entrySet ())
+    {
+      final Deque <String> aQueue = aEntry.getValue ();
+      final MutableInt aInFlight = m_aInFlight.computeIfAbsent (aEntry.getKey (), k -> new MutableInt (0));
+      while (!aQueue.isEmpty () && aInFlight.intValue () < m_nMaxConcurrencyPerDestination)
+      {
+        final String sMessageID = aQueue.poll ();
+        try
+        {
+          m_aWorkers.execute ( () -> _send (sMessageID));
+          aInFlight.inc ();
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // Shutting down
+          aQueue.addFirst (sMessageID);
+          if (aInFlight.is0 ())
+            m_aInFlight.remove (aEntry.getKey ());
+          return;
+        }
+      }
+    }
+    m_aReady.removeIf (x -> x.getValue ().isEmpty ());
+    // Don't keep the counters of idle destinations
+    m_aInFlight.removeIf (x -> x.getValue ().is0 ());
+  }
+
+  private void _send (@Nonnull final String sMessageID)
+  {
+    final AS4OutboundQueueEntry aEntry = m_aLock.lockedGet ( () -> m_aEntries.get (sMessageID).m_aEntry);
+
+    byte [] aPayload = null;
+    String sErrorMessage = null;
+    try
+    {
+      aPayload = _readPayload (sMessageID);
+    }
+    catch (final IOException ex)
+    {
+      sErrorMessage = "Failed to read the payload: " + ex.getMessage ();
+    }
+
+    AS4OutboundQueueSendResult aResult;
+    if (aPayload == null)
+    {
+      LOGGER.error ("Failed to read the payload of outbound queue entry '" + sMessageID + "'");
+      aResult = AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.INVALID_PARAMETERS);
+      if (sErrorMessage == null)
+        sErrorMessage = "Failed to read the payload";
+    }
+    else
+    {
+      try
+      {
+        aResult = m_aSender.sendMessage (aEntry, aPayload);
+        if (aResult == null)
+          aResult = AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.TRANSPORT_ERROR);
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Error sending outbound queue entry '" + sMessageID + "'", ex);
+        aResult = AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.TRANSPORT_ERROR);
+        sErrorMessage = ex.getClass ().getName () + " - " + ex.getMessage ();
+      }
+    }
+    final ESimpleUserMessageSendResult eResult = aResult.getResult ();
+
+    final EAS4OutboundQueueEntryState eNewState;
+    if (eResult.isSuccess ())
+      eNewState = EAS4OutboundQueueEntryState.SENT;
+    else
+      if (eResult.isRetryFeasible () && aEntry.getAttemptCount () + 1 < m_nMaxAttempts)
+        eNewState = EAS4OutboundQueueEntryState.PENDING;
+      else
+        eNewState = EAS4OutboundQueueEntryState.FAILED;
+
+    final AS4OutboundQueueEntry aNewEntry = aEntry.getWithAttempt (eNewState, System.currentTimeMillis (), aResult, sErrorMessage);
+    final byte [] aRecordBytes = AS4OutboundQueueSegmentLog.serialize (_createUpdateRecord (aNewEntry));
+    AS4OutboundQueueSegmentLog.RecordPos aUpdatePos = null;
+    m_aLock.lock ();
+    try
+    {
+      if (m_aInFlight.get (aEntry.getDestination ()).dec () == 0)
+        m_aInFlight.remove (aEntry.getDestination ());
+      m_aEntries.get (sMessageID).m_aEntry = aNewEntry;
+      try
+      {
+        aUpdatePos = m_aLog.append (aRecordBytes);
+        _addSegmentRef (aUpdatePos, sMessageID);
+      }
+      catch (final IOException ex)
+      {
+        // The message will be sent again after a restart
+        LOGGER.error ("Failed to record the result of outbound queue entry '" + sMessageID + "'", ex);
+      }
+
+      switch (eNewState)
+      {
+        case SENT:
+          LOGGER.info ("Successfully sent outbound queue entry '" + sMessageID + "' to '" + aEntry.getDestination () + "'");
+          break;
+        case PENDING:
+        {
+          final long nDelayMillis = _getRetryDelayMillis (aEntry.getAttemptCount ());
+          LOGGER.warn ("Failed to send outbound queue entry '" +
+                       sMessageID +
+                       "' (attempt " +
+                       aNewEntry.getAttemptCount () +
+                       "/" +
+                       m_nMaxAttempts +
+                       ", " +
+                       eResult.getID () +
+                       ") - retrying in " +
+                       nDelayMillis +
+                       " ms");
+          if (!m_bClosed)
+            m_aScheduler.schedule ( () -> m_aLock.locked ( () -> {
+              final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+              if (aIndexEntry != null && aIndexEntry.m_aEntry.getState () == EAS4OutboundQueueEntryState.PENDING)
+              {
+                _addReady (aIndexEntry.m_aEntry);
+                _dispatch ();
+              }
+            }), nDelayMillis, TimeUnit.MILLISECONDS);
+          break;
+        }
+        case FAILED:
+          LOGGER.error ("Finally failed to send outbound queue entry '" +
+                        sMessageID +
+                        "' after " +
+                        aNewEntry.getAttemptCount () +
+                        " attempts: " +
+                        eResult.getID ());
+          break;
+      }
+      _dispatch ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    // Outside of the lock, so that concurrent results share a single force
+    if (aUpdatePos != null)
+      try
+      {
+        m_aLog.force (aUpdatePos);
+      }
+      catch (final IOException ex)
+      {
+        // The message will be sent again after a restart
+        LOGGER.error ("Failed to force the result of outbound queue entry '" + sMessageID + "'", ex);
+      }
+  }
+
+  /**
+   * Start sending the pending entries. Entries enqueued before are kept on
+   * disk only.
+   *
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4OutboundQueue start ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (m_bClosed)
+        throw new IllegalStateException ("The outbound queue is already closed");
+      if (m_aWorkers != null)
+        throw new IllegalStateException ("The outbound queue is already started");
+      m_aWorkers = Executors.newFixedThreadPool (m_nThreadCount, AS4ThreadHelper.createThreadFactory ("phase4-outbound-queue-"));
+      m_aScheduler = Executors.newSingleThreadScheduledExecutor (AS4ThreadHelper.createThreadFactory ("phase4-outbound-queue-scheduler-"));
+      m_aScheduler.scheduleWithFixedDelay (this::_compactLocked,
+                                           COMPACTION_INTERVAL_SECONDS,
+                                           COMPACTION_INTERVAL_SECONDS,
+                                           TimeUnit.SECONDS);
+      _dispatch ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    return this;
+  }
+
+  /**
+   * Durably store a message for sending. When this method returns, the message
+   * is persisted. If an entry with the same message ID exists already, nothing
+   * is stored and the existing entry is returned. This also applies to sent
+   * entries within the sent retention period - for them only the metadata may
+   * be empty.
+   *
+   * @param sMessageID
+   *        The AS4 message ID to be used for sending. May neither be
+   *        <code>null</code> nor empty.
+   * @param sDestination
+   *        The destination (e.g. the endpoint URL) used to limit the number of
+   *        concurrent transmissions. May neither be <code>null</code> nor
+   *        empty.
+   * @param aMetadata
+   *        Custom meta data needed by the {@link IAS4OutboundQueueMessageSender} to
+   *        create the message (e.g. the participant identifiers). May be
+   *        <code>null</code>.
+   * @param aPayload
+   *        The payload to be sent. May not be <code>null</code>.
+   * @return The new or existing entry. Never <code>null</code>.
+   * @throws IOException
+   *         If persisting fails
+   */
+  @Nonnull
+  public AS4OutboundQueueEntry enqueue (@Nonnull @Nonempty final String sMessageID,
+                                        @Nonnull @Nonempty final String sDestination,
+                                        @Nullable final IJsonObject aMetadata,
+                                        @Nonnull final byte [] aPayload) throws IOException
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notEmpty (sDestination, "Destination");
+    ValueEnforcer.notNull (aPayload, "Payload");
+
+    final AS4OutboundQueueEntry aEntry = AS4OutboundQueueEntry.createNew (sMessageID, sDestination, System.currentTimeMillis (), aMetadata);
+    // Encode outside of the lock
+    final byte [] aRecordBytes = AS4OutboundQueueSegmentLog.serialize (_createEnqueueRecord (aEntry, Base64.safeEncodeBytes (aPayload)));
+
+    final AS4OutboundQueueSegmentLog.RecordPos aPos;
+    m_aLock.lock ();
+    try
+    {
+      if (m_bClosed)
+        throw new IllegalStateException ("The outbound queue is already closed");
+
+      final IndexEntry aExisting = m_aEntries.get (sMessageID);
+      if (aExisting != null)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Outbound queue entry '" + sMessageID + "' is already present");
+        // It may not yet be forced by the concurrent enqueue
+        aPos = aExisting.m_aEnqueuePos;
+      }
+      else
+      {
+        final AS4OutboundQueueEntry aSentEntry = m_aSentEntries.remove (sMessageID);
+        if (aSentEntry != null && !_isSentRetentionExpired (aSentEntry, System.currentTimeMillis ()))
+        {
+          m_aSentEntries.put (sMessageID, aSentEntry);
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Outbound queue entry '" + sMessageID + "' was already sent");
+          // Written to the snapshot before the original segment was deleted
+          return aSentEntry;
+        }
+
+        aPos = m_aLog.append (aRecordBytes);
+        m_aEntries.put (sMessageID, new IndexEntry (aEntry, aPos));
+        _addSegmentRef (aPos, sMessageID);
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    // Outside of the lock, so that concurrent enqueues share a single force
+    try
+    {
+      m_aLog.force (aPos);
+    }
+    catch (final IOException ex)
+    {
+      // Not persisted - so don't send it either
+      m_aLock.locked ( () -> {
+        final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+        if (aIndexEntry != null && aIndexEntry.m_aEnqueuePos == aPos)
+          m_aEntries.remove (sMessageID);
+      });
+      throw ex;
+    }
+
+    m_aLock.lock ();
+    try
+    {
+      final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+      // The entry is only sent after it was persisted
+      if (aIndexEntry != null && aIndexEntry.m_aEntry == aEntry)
+      {
+        _addReady (aEntry);
+        _dispatch ();
+      }
+      return aIndexEntry != null ? aIndexEntry.m_aEntry : aEntry;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Send a finally failed entry again, starting with a new attempt count.
+   *
+   * @param sMessageID
+   *        The message ID of the entry. May be <code>null</code>.
+   * @return <code>true</code> if the entry was failed and is now pending
+   *         again.
+   * @throws IOException
+   *         If persisting fails
+   */
+  public boolean retry (@Nullable final String sMessageID) throws IOException
+  {
+    final AS4OutboundQueueSegmentLog.RecordPos aPos;
+    m_aLock.lock ();
+    try
+    {
+      final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+      if (aIndexEntry == null || aIndexEntry.m_aEntry.getState () != EAS4OutboundQueueEntryState.FAILED)
+        return false;
+
+      final AS4OutboundQueueEntry aNewEntry = aIndexEntry.m_aEntry.getWithState (EAS4OutboundQueueEntryState.PENDING, 0);
+      aPos = m_aLog.append (AS4OutboundQueueSegmentLog.serialize (_createUpdateRecord (aNewEntry)));
+      _addSegmentRef (aPos, sMessageID);
+      aIndexEntry.m_aEntry = aNewEntry;
+      _addReady (aNewEntry);
+      _dispatch ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    m_aLog.force (aPos);
+    return true;
+  }
+
+  /**
+   * Remove a finally failed entry, so that its log segment can be deleted.
+   *
+   * @param sMessageID
+   *        The message ID of the entry. May be <code>null</code>.
+   * @return <code>true</code> if the entry was failed and is now removed.
+   * @throws IOException
+   *         If persisting fails
+   */
+  public boolean discard (@Nullable final String sMessageID) throws IOException
+  {
+    final AS4OutboundQueueSegmentLog.RecordPos aPos;
+    m_aLock.lock ();
+    try
+    {
+      final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+      if (aIndexEntry == null || aIndexEntry.m_aEntry.getState () != EAS4OutboundQueueEntryState.FAILED)
+        return false;
+
+      final IJsonObject aRecord = new JsonObject ();
+      aRecord.add (JSON_TYPE, TYPE_DISCARD);
+      aRecord.add (JSON_MESSAGE_ID, sMessageID);
+      aPos = m_aLog.append (AS4OutboundQueueSegmentLog.serialize (aRecord));
+      m_aEntries.remove (sMessageID);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    m_aLog.force (aPos);
+    return true;
+  }
+
+  /**
+   * Get a single entry. Sent entries are only available until their log
+   * segment is deleted.
+   *
+   * @param sMessageID
+   *        The message ID of the entry. May be <code>null</code>.
+   * @return <code>null</code> if no such entry exists.
+   */
+  @Nullable
+  public AS4OutboundQueueEntry getEntry (@Nullable final String sMessageID)
+  {
+    return m_aLock.lockedGet ( () -> {
+      final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+      return aIndexEntry == null ? null : aIndexEntry.m_aEntry;
+    });
+  }
+
+  /**
+   * Get the stored payload of an entry.
+   *
+   * @param sMessageID
+   *        The message ID of the entry. May be <code>null</code>.
+   * @return <code>null</code> if no such entry exists.
+   * @throws IOException
+   *         If reading fails
+   */
+  @Nullable
+  public byte [] getPayload (@Nullable final String sMessageID) throws IOException
+  {
+    if (sMessageID == null)
+      return null;
+    return _readPayload (sMessageID);
+  }
+
+  /**
+   * Get all entries in the provided state, ordered by creation time.
+   *
+   * @param eState
+   *        The state to query. May not be <code>null</code>.
+   * @return A list with all matching entries. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4OutboundQueueEntry> getAllEntries (@Nonnull final EAS4OutboundQueueEntryState eState)
+  {
+    ValueEnforcer.notNull (eState, "State");
+    final ICommonsList <AS4OutboundQueueEntry> ret = new CommonsArrayList <> ();
+    m_aLock.locked ( () -> {
+      for (final IndexEntry aIndexEntry : m_aEntries.values ())
+        if (aIndexEntry.m_aEntry.getState () == eState)
+          ret.add (aIndexEntry.m_aEntry);
+    });
+    ret.sort (Comparator.comparingLong (AS4OutboundQueueEntry::getCreationMillis));
+    return ret;
+  }
+
+  /**
+   * @return All entries that are not yet sent. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4OutboundQueueEntry> getAllPendingEntries ()
+  {
+    return getAllEntries (EAS4OutboundQueueEntryState.PENDING);
+  }
+
+  /**
+   * @return All entries that finally failed. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4OutboundQueueEntry> getAllFailedEntries ()
+  {
+    return getAllEntries (EAS4OutboundQueueEntryState.FAILED);
+  }
+
+  /**
+   * @param eState
+   *        The state to query. May not be <code>null</code>.
+   * @return The number of entries in the provided state.
+   */
+  @Nonnegative
+  public int getCount (@Nonnull final EAS4OutboundQueueEntryState eState)
+  {
+    ValueEnforcer.notNull (eState, "State");
+    return m_aLock.lockedInt ( () -> (int) m_aEntries.values ().stream ().filter (x -> x.m_aEntry.getState () == eState).count ());
+  }
+
+  /**
+   * @return The number of log segments on disk.
+   */
+  @Nonnegative
+  public int getSegmentCount ()
+  {
+    return m_aLock.lockedInt (m_aLog::getSegmentCount);
+  }
+
+  /**
+   * Stop sending and wait for the running transmissions. Pending entries are
+   * sent after the next start.
+   */
+  public void close ()
+  {
+    final ExecutorService aWorkers;
+    m_aLock.lock ();
+    try
+    {
+      if (m_bClosed)
+        return;
+      m_bClosed = true;
+      aWorkers = m_aWorkers;
+      if (m_aScheduler != null)
+        m_aScheduler.shutdownNow ();
+      if (aWorkers != null)
+        aWorkers.shutdown ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    if (aWorkers != null)
+      try
+      {
+        if (!aWorkers.awaitTermination (30, TimeUnit.SECONDS))
+          aWorkers.shutdownNow ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+    m_aLock.locked (m_aLog::close);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ThreadCount", m_nThreadCount)
+                                       .append ("MaxConcurrencyPerDestination", m_nMaxConcurrencyPerDestination)
+                                       .append ("MaxAttempts", m_nMaxAttempts)
+                                       .append ("RetryDelayMillis", m_nRetryDelayMillis)
+                                       .getToString ();
+  }
+}
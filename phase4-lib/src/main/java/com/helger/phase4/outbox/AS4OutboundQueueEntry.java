@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+
+/**
+ * A single entry of the {@link AS4OutboundQueue}. The ID of the entry is the AS4
+ * message ID. The payload is not part of the entry and can be read via
+ * {@link AS4OutboundQueue#getPayload(String)}.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class AS4OutboundQueueEntry implements IHasID <String>
+{
+  private final String m_sMessageID;
+  private final String m_sDestination;
+  private final long m_nCreationMillis;
+  private final IJsonObject m_aMetadata;
+  private final EAS4OutboundQueueEntryState m_eState;
+  private final int m_nAttemptCount;
+  private final long m_nLastAttemptMillis;
+  private final ESimpleUserMessageSendResult m_eLastResult;
+  private final String m_sLastErrorCode;
+  private final String m_sLastErrorMessage;
+  private final String m_sReceiptMessageID;
+
+  AS4OutboundQueueEntry (@Nonnull @Nonempty final String sMessageID,
+                         @Nonnull @Nonempty final String sDestination,
+                         final long nCreationMillis,
+                         @Nonnull final IJsonObject aMetadata,
+                         @Nonnull final EAS4OutboundQueueEntryState eState,
+                         @Nonnegative final int nAttemptCount,
+                         final long nLastAttemptMillis,
+                         @Nullable final ESimpleUserMessageSendResult eLastResult,
+                         @Nullable final String sLastErrorCode,
+                         @Nullable final String sLastErrorMessage,
+                         @Nullable final String sReceiptMessageID)
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notEmpty (sDestination, "Destination");
+    ValueEnforcer.notNull (aMetadata, "Metadata");
+    ValueEnforcer.notNull (eState, "State");
+    ValueEnforcer.isGE0 (nAttemptCount, "AttemptCount");
+    m_sMessageID = sMessageID;
+    m_sDestination = sDestination;
+    m_nCreationMillis = nCreationMillis;
+    m_aMetadata = aMetadata.getClone ();
+    m_eState = eState;
+    m_nAttemptCount = nAttemptCount;
+    m_nLastAttemptMillis = nLastAttemptMillis;
+    m_eLastResult = eLastResult;
+    m_sLastErrorCode = sLastErrorCode;
+    m_sLastErrorMessage = sLastErrorMessage;
+    m_sReceiptMessageID = sReceiptMessageID;
+  }
+
+  /**
+   * @return The AS4 message ID. Same as {@link #getMessageID()}.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The AS4 message ID that must be used for sending.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The destination (e.g. the endpoint URL) that is used to limit the
+   *         number of concurrent transmissions.
+   */
+  @Nonnull
+  @Nonempty
+  public String getDestination ()
+  {
+    return m_sDestination;
+  }
+
+  /**
+   * @return The time the entry was enqueued in milliseconds since the epoch.
+   */
+  public long getCreationMillis ()
+  {
+    return m_nCreationMillis;
+  }
+
+  /**
+   * @return A copy of the custom meta data provided upon enqueueing. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IJsonObject getMetadata ()
+  {
+    return m_aMetadata.getClone ();
+  }
+
+  @Nonnull
+  public EAS4OutboundQueueEntryState getState ()
+  {
+    return m_eState;
+  }
+
+  /**
+   * @return The number of send attempts so far.
+   */
+  @Nonnegative
+  public int getAttemptCount ()
+  {
+    return m_nAttemptCount;
+  }
+
+  /**
+   * @return The time of the last send attempt in milliseconds since the epoch
+   *         or 0 if it was not yet tried.
+   */
+  public long getLastAttemptMillis ()
+  {
+    return m_nLastAttemptMillis;
+  }
+
+  /**
+   * @return The result of the last send attempt. <code>null</code> if it was
+   *         not yet tried. {@link ESimpleUserMessageSendResult#SUCCESS} means
+   *         that a receipt was received,
+   *         {@link ESimpleUserMessageSendResult#AS4_ERROR_MESSAGE_RECEIVED}
+   *         that an ebMS error was received.
+   */
+  @Nullable
+  public ESimpleUserMessageSendResult getLastResult ()
+  {
+    return m_eLastResult;
+  }
+
+  /**
+   * @return The ebMS error code (e.g. <code>EBMS:0004</code>) received in the
+   *         last attempt. May be <code>null</code>.
+   */
+  @Nullable
+  public String getLastErrorCode ()
+  {
+    return m_sLastErrorCode;
+  }
+
+  /**
+   * @return The error message of the last failed attempt. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getLastErrorMessage ()
+  {
+    return m_sLastErrorMessage;
+  }
+
+  /**
+   * @return The message ID of the receipt received for the successful
+   *         attempt. May be <code>null</code>.
+   */
+  @Nullable
+  public String getReceiptMessageID ()
+  {
+    return m_sReceiptMessageID;
+  }
+
+  @Nonnull
+  AS4OutboundQueueEntry getWithAttempt (@Nonnull final EAS4OutboundQueueEntryState eState,
+                                        final long nAttemptMillis,
+                                        @Nonnull final AS4OutboundQueueSendResult aResult,
+                                        @Nullable final String sErrorMessage)
+  {
+    return new AS4OutboundQueueEntry (m_sMessageID,
+                                      m_sDestination,
+                                      m_nCreationMillis,
+                                      m_aMetadata,
+                                      eState,
+                                      m_nAttemptCount + 1,
+                                      nAttemptMillis,
+                                      aResult.getResult (),
+                                      aResult.getErrorCode (),
+                                      sErrorMessage,
+                                      aResult.getReceiptMessageID ());
+  }
+
+  @Nonnull
+  AS4OutboundQueueEntry getWithState (@Nonnull final EAS4OutboundQueueEntryState eState, @Nonnegative final int nAttemptCount)
+  {
+    return new AS4OutboundQueueEntry (m_sMessageID,
+                                      m_sDestination,
+                                      m_nCreationMillis,
+                                      m_aMetadata,
+                                      eState,
+                                      nAttemptCount,
+                                      m_nLastAttemptMillis,
+                                      m_eLastResult,
+                                      m_sLastErrorCode,
+                                      m_sLastErrorMessage,
+                                      m_sReceiptMessageID);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("MessageID", m_sMessageID)
+                                       .append ("Destination", m_sDestination)
+                                       .append ("CreationMillis", m_nCreationMillis)
+                                       .append ("State", m_eState)
+                                       .append ("AttemptCount", m_nAttemptCount)
+                                       .append ("LastAttemptMillis", m_nLastAttemptMillis)
+                                       .append ("LastResult", m_eLastResult)
+                                       .append ("LastErrorCode", m_sLastErrorCode)
+                                       .append ("LastErrorMessage", m_sLastErrorMessage)
+                                       .append ("ReceiptMessageID", m_sReceiptMessageID)
+                                       .getToString ();
+  }
+
+  @Nonnull
+  static AS4OutboundQueueEntry createNew (@Nonnull @Nonempty final String sMessageID,
+                                          @Nonnull @Nonempty final String sDestination,
+                                          final long nCreationMillis,
+                                          @Nullable final IJsonObject aMetadata)
+  {
+    return new AS4OutboundQueueEntry (sMessageID,
+                                      sDestination,
+                                      nCreationMillis,
+                                      aMetadata != null ? aMetadata : new JsonObject (),
+                                      EAS4OutboundQueueEntryState.PENDING,
+                                      0,
+                                      0,
+                                      null,
+                                      null,
+                                      null,
+                                      null);
+  }
+}
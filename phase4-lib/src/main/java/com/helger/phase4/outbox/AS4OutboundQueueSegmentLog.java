@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.json.IJsonArray;
+import com.helger.json.IJsonObject;
+import com.helger.json.serialize.JsonReader;
+import com.helger.json.serialize.JsonWriter;
+import com.helger.phase4.util.AS4IOHelper;
+
+/**
+ * A segmented append-only log of JSON records, one record per line. Appended
+ * records are forced to disk via {@link #force(RecordPos)}, so that concurrent
+ * appenders can share a single force (group commit). A new segment is started
+ * once the current one exceeds the maximum size. On startup an incomplete last
+ * record (written during a crash) is truncated. Additionally a single snapshot
+ * file can be stored, that is replaced atomically.<br>
+ * Only used by {@link AS4OutboundQueue}, which takes care of the
+ * synchronization. Only {@link #force(RecordPos)} and
+ * {@link #read(File, RecordPos)} may be called without it.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@NotThreadSafe
+final class AS4OutboundQueueSegmentLog implements AutoCloseable
+{
+  /**
+   * The position of a single record.
+   */
+  static final class RecordPos
+  {
+    private final long m_nSegment;
+    private final long m_nOffset;
+    private final int m_nLength;
+    private final long m_nSequence;
+
+    RecordPos (final long nSegment, final long nOffset, final int nLength, final long nSequence)
+    {
+      m_nSegment = nSegment;
+      m_nOffset = nOffset;
+      m_nLength = nLength;
+      m_nSequence = nSequence;
+    }
+
+    long getSegment ()
+    {
+      return m_nSegment;
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4OutboundQueueSegmentLog.class);
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String SNAPSHOT_FILENAME = "snapshot.json";
+  private static final String SNAPSHOT_TEMP_FILENAME = "snapshot.json.tmp";
+  private static final byte NEWLINE = '\n';
+
+  private final File m_aDir;
+  private final long m_nMaxSegmentSize;
+  private final ICommonsSortedMap <Long, File> m_aSegments = new CommonsTreeMap <> ();
+  private long m_nActiveSegment;
+  private volatile FileChannel m_aActiveChannel;
+  // The sequence number of the last appended record
+  private volatile long m_nLastSequence = 0;
+  // All records up to this sequence number are forced to disk
+  private final AtomicLong m_aForcedSequence = new AtomicLong (0);
+  private final SimpleLock m_aForceLock = new SimpleLock ();
+
+  AS4OutboundQueueSegmentLog (@Nonnull final File aDir, @Nonnegative final long nMaxSegmentSize)
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.isGT0 (nMaxSegmentSize, "MaxSegmentSize");
+    m_aDir = aDir;
+    m_nMaxSegmentSize = nMaxSegmentSize;
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aDir);
+
+    final File [] aFiles = aDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final String sName = aFile.getName ();
+        if (aFile.isFile () && sName.startsWith (SEGMENT_PREFIX) && sName.endsWith (SEGMENT_SUFFIX))
+        {
+          final long nIndex = StringParser.parseLong (sName.substring (SEGMENT_PREFIX.length (), sName.length () - SEGMENT_SUFFIX.length ()),
+                                                      -1);
+          if (nIndex >= 0)
+            m_aSegments.put (Long.valueOf (nIndex), aFile);
+        }
+      }
+    // Never append to a segment of a previous run
+    m_nActiveSegment = m_aSegments.isEmpty () ? 1 : m_aSegments.getLastKey ().longValue () + 1;
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nSegment)
+  {
+    return new File (m_aDir, SEGMENT_PREFIX + String.format (Locale.ROOT, "%012d", Long.valueOf (nSegment)) + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Read all records of all segments in order. Must be called once before the
+   * first {@link #append(byte[])}.
+   *
+   * @param aConsumer
+   *        Consumer for each record and its position. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of an IO error
+   */
+  void replay (@Nonnull final BiConsumer <? super IJsonObject, ? super RecordPos> aConsumer) throws IOException
+  {
+    for (final Map.Entry <Long, File> aEntry : m_aSegments.entrySet ())
+    {
+      final long nSegment = aEntry.getKey ().longValue ();
+      final File aFile = aEntry.getValue ();
+      final long nFileLength = aFile.length ();
+      long nOffset = 0;
+      long nValidLength = 0;
+      try (final BufferedReader aReader = new BufferedReader (new InputStreamReader (FileHelper.getInputStream (aFile),
+                                                                                   StandardCharsets.UTF_8)))
+      {
+        String sLine;
+        while ((sLine = aReader.readLine ()) != null)
+        {
+          final int nLength = sLine.getBytes (StandardCharsets.UTF_8).length;
+          // A record without the trailing newline is incomplete
+          IJsonObject aRecord = null;
+          if (nOffset + nLength < nFileLength && StringHelper.hasText (sLine))
+            aRecord = JsonReader.builder ().source (sLine).readAsObject ();
+          if (aRecord == null)
+          {
+            // Torn write - ignore the rest of the segment
+            break;
+          }
+          // Replayed records are already on disk
+          aConsumer.accept (aRecord, new RecordPos (nSegment, nOffset, nLength, 0));
+          nOffset += nLength + 1;
+          nValidLength = nOffset;
+        }
+      }
+
+      if (nValidLength < nFileLength)
+      {
+        LOGGER.warn ("Truncating outbound queue segment " + aFile.getAbsolutePath () + " from " + nFileLength + " to " + nValidLength + " bytes");
+        try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "rw"))
+        {
+          aRAF.setLength (nValidLength);
+        }
+      }
+    }
+  }
+
+  @Nonnull
+  private FileChannel _getActiveChannel () throws IOException
+  {
+    if (m_aActiveChannel != null && m_aActiveChannel.size () >= m_nMaxSegmentSize)
+    {
+      // Roll over - the old segment is forced before it is closed
+      _forceAndClose ();
+      m_nActiveSegment++;
+    }
+    if (m_aActiveChannel == null)
+    {
+      final File aFile = _getSegmentFile (m_nActiveSegment);
+      m_aSegments.put (Long.valueOf (m_nActiveSegment), aFile);
+      m_aActiveChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    return m_aActiveChannel;
+  }
+
+  private void _forceAndClose () throws IOException
+  {
+    final FileChannel aChannel = m_aActiveChannel;
+    if (aChannel != null)
+    {
+      final long nLastSequence = m_nLastSequence;
+      m_aForceLock.lock ();
+      try
+      {
+        aChannel.force (false);
+        m_aForcedSequence.accumulateAndGet (nLastSequence, Math::max);
+      }
+      finally
+      {
+        // Close while holding the lock, so that no concurrent force uses it
+        m_aActiveChannel = null;
+        StreamHelper.close (aChannel);
+        m_aForceLock.unlock ();
+      }
+    }
+  }
+
+  /**
+   * Serialize a single record. This does not require any synchronization.
+   *
+   * @param aRecord
+   *        The record to serialize. May not be <code>null</code>.
+   * @return The serialized record including the trailing newline. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  static byte [] serialize (@Nonnull final IJsonObject aRecord)
+  {
+    final byte [] aJson = new JsonWriter ().writeAsByteArray (aRecord, StandardCharsets.UTF_8);
+    final byte [] ret = Arrays.copyOf (aJson, aJson.length + 1);
+    ret[aJson.length] = NEWLINE;
+    return ret;
+  }
+
+  /**
+   * Append a single serialized record. The record is not forced to disk - use
+   * {@link #force(RecordPos)} for that.
+   *
+   * @param aBytes
+   *        The result of {@link #serialize(IJsonObject)}. May not be
+   *        <code>null</code>.
+   * @return The position of the record. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an IO error
+   */
+  @Nonnull
+  RecordPos append (@Nonnull final byte [] aBytes) throws IOException
+  {
+    final FileChannel aChannel = _getActiveChannel ();
+    final long nOffset = aChannel.size ();
+    final ByteBuffer aBuffer = ByteBuffer.wrap (aBytes);
+    while (aBuffer.hasRemaining ())
+      aChannel.write (aBuffer);
+    // Volatile write after the data was written
+    final long nSequence = m_nLastSequence + 1;
+    m_nLastSequence = nSequence;
+    return new RecordPos (m_nActiveSegment, nOffset, aBytes.length - 1, nSequence);
+  }
+
+  /**
+   * Ensure that the record at the provided position and all records appended
+   * before are forced to disk. If another thread is currently forcing, this
+   * thread waits and checks afterwards if its record was covered, so that one
+   * force is shared by all concurrent appenders. May be called without the
+   * synchronization of the owning queue.
+   *
+   * @param aPos
+   *        The position returned by {@link #append(byte[])}. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of an IO error
+   */
+  void force (@Nonnull final RecordPos aPos) throws IOException
+  {
+    if (m_aForcedSequence.get () >= aPos.m_nSequence)
+      return;
+
+    m_aForceLock.lock ();
+    try
+    {
+      // Maybe forced by the previous lock holder
+      if (m_aForcedSequence.get () >= aPos.m_nSequence)
+        return;
+
+      // Everything appended up to now is covered. The sequence must be read
+      // before the channel, so that the channel contains the record.
+      final long nLastSequence = m_nLastSequence;
+      final FileChannel aChannel = m_aActiveChannel;
+      if (aChannel != null)
+        aChannel.force (false);
+      m_aForcedSequence.accumulateAndGet (nLastSequence, Math::max);
+    }
+    finally
+    {
+      m_aForceLock.unlock ();
+    }
+  }
+
+  /**
+   * Get the file of the segment containing the provided record.
+   *
+   * @param aPos
+   *        The position of the record. May not be <code>null</code>.
+   * @return <code>null</code> if the segment was deleted.
+   */
+  @Nullable
+  File getSegmentFile (@Nonnull final RecordPos aPos)
+  {
+    return m_aSegments.get (Long.valueOf (aPos.m_nSegment));
+  }
+
+  /**
+   * Read a single record. May be called without the synchronization of the
+   * owning queue.
+   *
+   * @param aFile
+   *        The segment file as returned by {@link #getSegmentFile(RecordPos)}.
+   *        May not be <code>null</code>.
+   * @param aPos
+   *        The position of the record. May not be <code>null</code>.
+   * @return <code>null</code> if the record could not be read.
+   * @throws IOException
+   *         In case of an IO error
+   */
+  @Nullable
+  static IJsonObject read (@Nonnull final File aFile, @Nonnull final RecordPos aPos) throws IOException
+  {
+    final byte [] aBytes = new byte [aPos.m_nLength];
+    try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "r"))
+    {
+      aRAF.seek (aPos.m_nOffset);
+      aRAF.readFully (aBytes);
+    }
+    return JsonReader.builder ().source (aBytes, StandardCharsets.UTF_8).readAsObject ();
+  }
+
+  /**
+   * @return The indices of all segments in ascending order. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <Long> getAllSegments ()
+  {
+    return new CommonsArrayList <> (m_aSegments.keySet ());
+  }
+
+  /**
+   * @return The index of the segment new records are appended to.
+   */
+  long getActiveSegment ()
+  {
+    return m_nActiveSegment;
+  }
+
+  /**
+   * @return The number of segments.
+   */
+  @Nonnegative
+  int getSegmentCount ()
+  {
+    return m_aSegments.size ();
+  }
+
+  /**
+   * Delete a segment that does not contain any relevant record anymore. The
+   * active segment is never deleted.
+   *
+   * @param nSegment
+   *        The segment to delete.
+   * @return <code>true</code> if it was deleted.
+   */
+  boolean deleteSegment (final long nSegment)
+  {
+    if (nSegment == m_nActiveSegment)
+      return false;
+    final File aFile = m_aSegments.remove (Long.valueOf (nSegment));
+    if (aFile == null)
+      return false;
+    if (AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile).isFailure ())
+    {
+      LOGGER.warn ("Failed to delete outbound queue segment " + aFile.getAbsolutePath ());
+      return false;
+    }
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Deleted outbound queue segment " + aFile.getAbsolutePath ());
+    return true;
+  }
+
+  /**
+   * Read the snapshot written by {@link #writeSnapshot(IJsonArray)}.
+   *
+   * @return <code>null</code> if no snapshot exists or if it could not be
+   *         read.
+   * @throws IOException
+   *         In case of an IO error
+   */
+  @Nullable
+  IJsonArray readSnapshot () throws IOException
+  {
+    final File aFile = new File (m_aDir, SNAPSHOT_FILENAME);
+    if (!aFile.isFile ())
+      return null;
+    final IJsonArray ret = JsonReader.builder ().source (Files.readAllBytes (aFile.toPath ()), StandardCharsets.UTF_8).readAsArray ();
+    if (ret == null)
+      LOGGER.warn ("Failed to read outbound queue snapshot " + aFile.getAbsolutePath ());
+    return ret;
+  }
+
+  /**
+   * Durably replace the snapshot. The new snapshot is written to a temporary
+   * file that is forced to disk and afterwards atomically renamed, so that
+   * either the old or the new snapshot is read after a crash.
+   *
+   * @param aSnapshot
+   *        The snapshot to write. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of an IO error
+   */
+  void writeSnapshot (@Nonnull final IJsonArray aSnapshot) throws IOException
+  {
+    final File aTempFile = new File (m_aDir, SNAPSHOT_TEMP_FILENAME);
+    final byte [] aBytes = new JsonWriter ().writeAsByteArray (aSnapshot, StandardCharsets.UTF_8);
+    try (final FileChannel aChannel = FileChannel.open (aTempFile.toPath (),
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      final ByteBuffer aBuffer = ByteBuffer.wrap (aBytes);
+      while (aBuffer.hasRemaining ())
+        aChannel.write (aBuffer);
+      aChannel.force (true);
+    }
+    Files.move (aTempFile.toPath (),
+                new File (m_aDir, SNAPSHOT_FILENAME).toPath (),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public void close ()
+  {
+    try
+    {
+      _forceAndClose ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to force outbound queue segment " + m_nActiveSegment, ex);
+    }
+  }
+}
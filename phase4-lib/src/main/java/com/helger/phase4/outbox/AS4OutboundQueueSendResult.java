@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+
+/**
+ * The result of sending a single message of the {@link AS4OutboundQueue} as
+ * returned by the {@link IAS4OutboundQueueMessageSender}. Besides the overall
+ * result it contains the ebMS error code of a received error signal and the
+ * message ID of a received receipt, so that they can be recorded with the
+ * entry.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class AS4OutboundQueueSendResult
+{
+  private final ESimpleUserMessageSendResult m_eResult;
+  private final String m_sErrorCode;
+  private final String m_sReceiptMessageID;
+
+  /**
+   * Constructor
+   *
+   * @param eResult
+   *        The overall sending result. May not be <code>null</code>.
+   * @param sErrorCode
+   *        The ebMS error code (e.g. <code>EBMS:0004</code>) of the received
+   *        error signal. May be <code>null</code>.
+   * @param sReceiptMessageID
+   *        The message ID of the received receipt signal. May be
+   *        <code>null</code>.
+   */
+  public AS4OutboundQueueSendResult (@Nonnull final ESimpleUserMessageSendResult eResult,
+                                     @Nullable final String sErrorCode,
+                                     @Nullable final String sReceiptMessageID)
+  {
+    ValueEnforcer.notNull (eResult, "Result");
+    m_eResult = eResult;
+    m_sErrorCode = sErrorCode;
+    m_sReceiptMessageID = sReceiptMessageID;
+  }
+
+  /**
+   * @return The overall sending result. Never <code>null</code>.
+   */
+  @Nonnull
+  public ESimpleUserMessageSendResult getResult ()
+  {
+    return m_eResult;
+  }
+
+  /**
+   * @return The ebMS error code of the received error signal. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getErrorCode ()
+  {
+    return m_sErrorCode;
+  }
+
+  /**
+   * @return The message ID of the received receipt signal. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getReceiptMessageID ()
+  {
+    return m_sReceiptMessageID;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Result", m_eResult)
+                                       .append ("ErrorCode", m_sErrorCode)
+                                       .append ("ReceiptMessageID", m_sReceiptMessageID)
+                                       .getToString ();
+  }
+
+  /**
+   * Create a result without details.
+   *
+   * @param eResult
+   *        The overall sending result. May not be <code>null</code>.
+   * @return The new result. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4OutboundQueueSendResult create (@Nonnull final ESimpleUserMessageSendResult eResult)
+  {
+    return new AS4OutboundQueueSendResult (eResult, null, null);
+  }
+
+  /**
+   * Create a result from the received signal message, as provided to the
+   * <code>signalMsgConsumer</code> of the sender builders. The error code is
+   * taken from the first error, the receipt message ID from the message info
+   * of a receipt signal.
+   *
+   * @param eResult
+   *        The overall sending result. May not be <code>null</code>.
+   * @param aSignalMsg
+   *        The received signal message. May be <code>null</code>.
+   * @return The new result. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4OutboundQueueSendResult create (@Nonnull final ESimpleUserMessageSendResult eResult,
+                                                   @Nullable final Ebms3SignalMessage aSignalMsg)
+  {
+    if (aSignalMsg == null)
+      return create (eResult);
+
+    final String sErrorCode = aSignalMsg.hasErrorEntries () ? aSignalMsg.getErrorAtIndex (0).getErrorCode () : null;
+    String sReceiptMessageID = null;
+    if (aSignalMsg.getReceipt () != null && aSignalMsg.getMessageInfo () != null)
+      sReceiptMessageID = aSignalMsg.getMessageInfo ().getMessageId ();
+    return new AS4OutboundQueueSendResult (eResult, sErrorCode, sReceiptMessageID);
+  }
+}
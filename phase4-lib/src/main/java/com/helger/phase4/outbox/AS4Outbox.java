@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.FileEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileSystemIterator;
+import com.helger.commons.string.StringHelper;
+import com.helger.httpclient.response.ResponseHandlerXml;
+import com.helger.json.IJsonObject;
+import com.helger.json.serialize.JsonReader;
+import com.helger.json.serialize.JsonWriter;
+import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.dump.AS4DumpManager;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.http.BasicHttpPoster;
+import com.helger.phase4.http.HttpRetrySettings;
+import com.helger.phase4.util.AS4IOHelper;
+import com.helger.phase4.util.AS4ThreadHelper;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * A persistent outbox for asynchronous AS4 responses. Each entry consists of
+ * the serialized HTTP entity and a small JSON file with the meta data. Entries
+ * are written once and never modified. Both files are forced to disk and the
+ * meta data file is moved into place atomically after the entity was written,
+ * so only complete entries are visible. A successfully delivered entry is
+ * deleted; an entry that could not be delivered after the maximum number of
+ * attempts is moved to the "failed" directory for manual inspection.<br>
+ * Pending entries are recovered upon startup, so that responses are delivered
+ * at least once, even if the JVM is restarted in between. The outgoing dumper
+ * and retry callback passed upon enqueueing cannot be persisted - recovered
+ * entries use the ones configured via
+ * {@link #setOutgoingDumper(IAS4OutgoingDumper)} and
+ * {@link #setRetryCallback(IAS4RetryCallback)}.<br>
+ * The settings are taken from {@link AS4Configuration} (see
+ * <code>phase4.outbox.*</code>).
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public class AS4Outbox extends AbstractGlobalSingleton
+{
+  public static final String DIR_PENDING = "pending";
+  public static final String DIR_FAILED = "failed";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4Outbox.class);
+  private static final String FILE_EXT_META = ".json";
+  private static final String FILE_EXT_BODY = ".body";
+  private static final String FILE_EXT_TEMP = ".tmp";
+  private static final long MAX_RETRY_DELAY_SECONDS = CGlobal.SECONDS_PER_HOUR;
+
+  private final AtomicInteger m_aPendingCount = new AtomicInteger (0);
+  private final AtomicLong m_aDeliveredCount = new AtomicLong (0);
+  private final AtomicLong m_aFailedCount = new AtomicLong (0);
+  private File m_aPendingDir;
+  private File m_aFailedDir;
+  private int m_nMaxAttempts;
+  private long m_nRetrySeconds;
+  private ScheduledThreadPoolExecutor m_aExecutor;
+  private volatile IAS4OutgoingDumper m_aOutgoingDumper;
+  private volatile IAS4RetryCallback m_aRetryCallback;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4Outbox ()
+  {}
+
+  @Nonnull
+  public static AS4Outbox getInstance ()
+  {
+    return getGlobalSingleton (AS4Outbox.class);
+  }
+
+  @Override
+  protected void onAfterInstantiation (@Nonnull final IScope aScope)
+  {
+    final File aBaseDir = AS4Configuration.getOutboxPathFile ();
+    m_aPendingDir = new File (aBaseDir, DIR_PENDING);
+    m_aFailedDir = new File (aBaseDir, DIR_FAILED);
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (m_aPendingDir);
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (m_aFailedDir);
+    m_nMaxAttempts = AS4Configuration.getOutboxMaxAttempts ();
+    m_nRetrySeconds = AS4Configuration.getOutboxRetrySeconds ();
+
+    m_aExecutor = new ScheduledThreadPoolExecutor (AS4Configuration.getOutboxThreadCount (),
+                                                   AS4ThreadHelper.createThreadFactory ("phase4-outbox-"));
+    // Scheduled retries stay on disk and are recovered with the next start
+    m_aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+
+    _recover ();
+  }
+
+  @Override
+  protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
+  {
+    m_aExecutor.shutdown ();
+    if (!m_aExecutor.awaitTermination (30, TimeUnit.SECONDS))
+      m_aExecutor.shutdownNow ();
+  }
+
+  @Nonnull
+  private static File _getMetaFile (@Nonnull final File aDir, @Nonnull final String sID)
+  {
+    return new File (aDir, sID + FILE_EXT_META);
+  }
+
+  @Nonnull
+  private static File _getBodyFile (@Nonnull final File aDir, @Nonnull final String sID)
+  {
+    return new File (aDir, sID + FILE_EXT_BODY);
+  }
+
+  private static void _move (@Nonnull final File aSrc, @Nonnull final File aDst) throws IOException
+  {
+    try
+    {
+      Files.move (aSrc.toPath (), aDst.toPath (), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (final AtomicMoveNotSupportedException ex)
+    {
+      Files.move (aSrc.toPath (), aDst.toPath (), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void _recover ()
+  {
+    int nRecovered = 0;
+    for (final File aFile : new FileSystemIterator (m_aPendingDir))
+    {
+      final String sFilename = aFile.getName ();
+      if (sFilename.endsWith (FILE_EXT_META))
+      {
+        final IJsonObject aJson = JsonReader.builder ().source (aFile, StandardCharsets.UTF_8).readAsObject ();
+        if (aJson == null)
+        {
+          LOGGER.error ("Failed to read outbox entry " + aFile.getAbsolutePath () + " - ignoring it");
+          continue;
+        }
+        final AS4OutboxEntry aEntry = AS4OutboxEntry.createFromJson (aJson);
+        m_aPendingCount.incrementAndGet ();
+        _schedule (aEntry, 0, 0, null, null);
+        nRecovered++;
+      }
+      else
+        if (sFilename.endsWith (FILE_EXT_BODY) && !_getMetaFile (m_aPendingDir, StringHelper.trimEnd (sFilename, FILE_EXT_BODY)).exists ())
+        {
+          final String sID = StringHelper.trimEnd (sFilename, FILE_EXT_BODY);
+          if (_getMetaFile (m_aFailedDir, sID).exists ())
+          {
+            // Moving a failed entry was interrupted
+            LOGGER.warn ("Moving the body of failed outbox entry " + sID + " to " + m_aFailedDir.getAbsolutePath ());
+            try
+            {
+              _move (aFile, _getBodyFile (m_aFailedDir, sID));
+            }
+            catch (final IOException ex)
+            {
+              LOGGER.error ("Failed to move the body of failed outbox entry " + sID, ex);
+            }
+          }
+          else
+          {
+            // Incomplete entry written before a crash
+            LOGGER.warn ("Deleting incomplete outbox file " + aFile.getAbsolutePath ());
+            AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+          }
+        }
+        else
+          if (sFilename.endsWith (FILE_EXT_TEMP))
+          {
+            // Incomplete entry written before a crash
+            LOGGER.warn ("Deleting incomplete outbox file " + aFile.getAbsolutePath ());
+            AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
+          }
+    }
+    if (nRecovered > 0)
+      LOGGER.info ("Recovered " + nRecovered + " pending outbox entries from " + m_aPendingDir.getAbsolutePath ());
+  }
+
+  /**
+   * @return The outgoing dumper used for entries without a specific one (e.g.
+   *         recovered entries). May be <code>null</code> in which case the
+   *         global one from {@link AS4DumpManager} is used.
+   */
+  @Nullable
+  public IAS4OutgoingDumper getOutgoingDumper ()
+  {
+    return m_aOutgoingDumper;
+  }
+
+  /**
+   * Set the outgoing dumper used for entries without a specific one.
+   *
+   * @param aOutgoingDumper
+   *        The dumper to use. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4Outbox setOutgoingDumper (@Nullable final IAS4OutgoingDumper aOutgoingDumper)
+  {
+    m_aOutgoingDumper = aOutgoingDumper;
+    return this;
+  }
+
+  /**
+   * @return The retry callback used for entries without a specific one (e.g.
+   *         recovered entries). May be <code>null</code>.
+   */
+  @Nullable
+  public IAS4RetryCallback getRetryCallback ()
+  {
+    return m_aRetryCallback;
+  }
+
+  /**
+   * Set the retry callback used for entries without a specific one.
+   *
+   * @param aRetryCallback
+   *        The callback to use. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4Outbox setRetryCallback (@Nullable final IAS4RetryCallback aRetryCallback)
+  {
+    m_aRetryCallback = aRetryCallback;
+    return this;
+  }
+
+  /**
+   * Persist the provided HTTP entity and schedule it for delivery, using the
+   * outgoing dumper and retry callback of this outbox. When this method
+   * returns, the entry is safely stored on disk.
+   *
+   * @param sTargetURL
+   *        The URL to deliver to. May neither be <code>null</code> nor empty.
+   * @param sRefToMessageID
+   *        The ID of the message this is a response to. May neither be
+   *        <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The HTTP entity to deliver. May not be <code>null</code>.
+   * @return The created outbox entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case persisting the entry fails
+   */
+  @Nonnull
+  public AS4OutboxEntry enqueue (@Nonnull @Nonempty final String sTargetURL,
+                                 @Nonnull @Nonempty final String sRefToMessageID,
+                                 @Nonnull final HttpEntity aHttpEntity) throws IOException
+  {
+    return enqueue (sTargetURL, sRefToMessageID, aHttpEntity, null, null);
+  }
+
+  /**
+   * Persist the provided HTTP entity and schedule it for delivery. When this
+   * method returns, the entry is safely stored on disk.
+   *
+   * @param sTargetURL
+   *        The URL to deliver to. May neither be <code>null</code> nor empty.
+   * @param sRefToMessageID
+   *        The ID of the message this is a response to. May neither be
+   *        <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The HTTP entity to deliver. May not be <code>null</code>.
+   * @param aOutgoingDumper
+   *        The outgoing dumper to use for the delivery attempts in this JVM.
+   *        May be <code>null</code> in which case the one of this outbox is
+   *        used.
+   * @param aRetryCallback
+   *        The retry callback to use for the delivery attempts in this JVM.
+   *        May be <code>null</code> in which case the one of this outbox is
+   *        used.
+   * @return The created outbox entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case persisting the entry fails
+   */
+  @Nonnull
+  public AS4OutboxEntry enqueue (@Nonnull @Nonempty final String sTargetURL,
+                                 @Nonnull @Nonempty final String sRefToMessageID,
+                                 @Nonnull final HttpEntity aHttpEntity,
+                                 @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                 @Nullable final IAS4RetryCallback aRetryCallback) throws IOException
+  {
+    ValueEnforcer.notEmpty (sTargetURL, "TargetURL");
+    ValueEnforcer.notEmpty (sRefToMessageID, "RefToMessageID");
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+
+    final String sID = UUID.randomUUID ().toString ();
+    final Header aContentType = aHttpEntity.getContentType ();
+    final Header aContentEncoding = aHttpEntity.getContentEncoding ();
+    final AS4OutboxEntry aEntry = new AS4OutboxEntry (sID,
+                                                      sTargetURL,
+                                                      sRefToMessageID,
+                                                      aContentType == null ? null : aContentType.getValue (),
+                                                      aContentEncoding == null ? null : aContentEncoding.getValue (),
+                                                      System.currentTimeMillis ());
+
+    // Write the entity first
+    AS4IOHelper.writeFileAndForce (_getBodyFile (m_aPendingDir, sID).toPath (), aHttpEntity::writeTo);
+
+    // The meta data file makes the entry visible
+    final File aTempFile = new File (m_aPendingDir, sID + FILE_EXT_TEMP);
+    final byte [] aMetaBytes = new JsonWriter ().writeAsByteArray (aEntry.getAsJson (), StandardCharsets.UTF_8);
+    AS4IOHelper.writeFileAndForce (aTempFile.toPath (), aOS -> aOS.write (aMetaBytes));
+    _move (aTempFile, _getMetaFile (m_aPendingDir, sID));
+    AS4IOHelper.forceDirectory (m_aPendingDir.toPath ());
+
+    m_aPendingCount.incrementAndGet ();
+    LOGGER.info ("Stored outbox entry " + sID + " for delivery to '" + sTargetURL + "'");
+
+    _schedule (aEntry, 0, 0, aOutgoingDumper, aRetryCallback);
+    return aEntry;
+  }
+
+  private void _schedule (@Nonnull final AS4OutboxEntry aEntry,
+                          final int nAttempt,
+                          final long nDelaySeconds,
+                          @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                          @Nullable final IAS4RetryCallback aRetryCallback)
+  {
+    m_aExecutor.schedule ( () -> _deliver (aEntry, nAttempt, aOutgoingDumper, aRetryCallback), nDelaySeconds, TimeUnit.SECONDS);
+  }
+
+  private void _deliver (@Nonnull final AS4OutboxEntry aEntry,
+                         final int nAttempt,
+                         @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                         @Nullable final IAS4RetryCallback aRetryCallback)
+  {
+    final String sID = aEntry.getID ();
+    final File aBodyFile = _getBodyFile (m_aPendingDir, sID);
+    final FileEntity aHttpEntity = new FileEntity (aBodyFile);
+    aHttpEntity.setContentType (aEntry.getContentType ());
+    aHttpEntity.setContentEncoding (aEntry.getContentEncoding ());
+
+    try
+    {
+      new BasicHttpPoster ().sendGenericMessageWithRetries (aEntry.getTargetURL (),
+                                                            null,
+                                                            aHttpEntity,
+                                                            aEntry.getRefToMessageID (),
+                                                            new HttpRetrySettings (),
+                                                            new ResponseHandlerXml (),
+                                                            aOutgoingDumper != null ? aOutgoingDumper : m_aOutgoingDumper,
+                                                            aRetryCallback != null ? aRetryCallback : m_aRetryCallback);
+
+      // Acknowledge
+      AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (_getMetaFile (m_aPendingDir, sID));
+      AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aBodyFile);
+      m_aPendingCount.decrementAndGet ();
+      m_aDeliveredCount.incrementAndGet ();
+      LOGGER.info ("Successfully delivered outbox entry " + sID + " to '" + aEntry.getTargetURL () + "'");
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      final int nNextAttempt = nAttempt + 1;
+      if (nNextAttempt < m_nMaxAttempts)
+      {
+        final long nDelaySeconds = _getRetryDelaySeconds (nAttempt);
+        LOGGER.warn ("Failed to deliver outbox entry " +
+                     sID +
+                     " (attempt " +
+                     nNextAttempt +
+                     "/" +
+                     m_nMaxAttempts +
+                     ") - retrying in " +
+                     nDelaySeconds +
+                     " seconds: " +
+                     ex.getMessage ());
+        if (!m_aExecutor.isShutdown ())
+          _schedule (aEntry, nNextAttempt, nDelaySeconds, aOutgoingDumper, aRetryCallback);
+      }
+      else
+      {
+        LOGGER.error ("Failed to deliver outbox entry " + sID + " after " + nNextAttempt + " attempts - moving it to the failed entries",
+                      ex);
+        try
+        {
+          // Meta data first, so that the entry is no longer pending. A body
+          // left over in the pending directory is moved upon recovery.
+          _move (_getMetaFile (m_aPendingDir, sID), _getMetaFile (m_aFailedDir, sID));
+          AS4IOHelper.forceDirectory (m_aFailedDir.toPath ());
+          AS4IOHelper.forceDirectory (m_aPendingDir.toPath ());
+          try
+          {
+            _move (aBodyFile, _getBodyFile (m_aFailedDir, sID));
+          }
+          catch (final IOException ex2)
+          {
+            LOGGER.error ("Failed to move the body of outbox entry " + sID + " - it is moved with the next start", ex2);
+          }
+        }
+        catch (final IOException ex2)
+        {
+          LOGGER.error ("Failed to move outbox entry " + sID + " to " + m_aFailedDir.getAbsolutePath () + " - it is retried with the next start",
+                        ex2);
+        }
+        m_aPendingCount.decrementAndGet ();
+        m_aFailedCount.incrementAndGet ();
+      }
+    }
+  }
+
+  @Nonnegative
+  private long _getRetryDelaySeconds (final int nAttempt)
+  {
+    // Exponential backoff
+    final long nFactor = 1L << Math.min (nAttempt, 20);
+    return Math.min (m_nRetrySeconds * nFactor, MAX_RETRY_DELAY_SECONDS);
+  }
+
+  /**
+   * @return The directory with the pending entries. Never <code>null</code>.
+   */
+  @Nonnull
+  public File getPendingDirectory ()
+  {
+    return m_aPendingDir;
+  }
+
+  /**
+   * @return The directory with the entries that could not be delivered. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public File getFailedDirectory ()
+  {
+    return m_aFailedDir;
+  }
+
+  /**
+   * @return The number of entries that are not yet delivered. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aPendingCount.get ();
+  }
+
+  /**
+   * @return The number of entries delivered since startup. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getDeliveredCount ()
+  {
+    return m_aDeliveredCount.get ();
+  }
+
+  /**
+   * @return The number of entries that failed finally since startup. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_aFailedCount.get ();
+  }
+
+  /**
+   * Check if an entry is still pending.
+   *
+   * @param sID
+   *        The ID to check. May be <code>null</code>.
+   * @return <code>true</code> if it is pending
+   */
+  public boolean isPending (@Nullable final String sID)
+  {
+    return StringHelper.hasText (sID) && FileHelper.existsFile (_getMetaFile (m_aPendingDir, sID));
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+
+/**
+ * A single entry of the {@link AS4Outbox}. It contains all the meta data that
+ * is needed to deliver the persisted HTTP entity.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class AS4OutboxEntry implements IHasID <String>
+{
+  private static final String JSON_ID = "id";
+  private static final String JSON_TARGET_URL = "targetUrl";
+  private static final String JSON_REF_TO_MESSAGE_ID = "refToMessageId";
+  private static final String JSON_CONTENT_TYPE = "contentType";
+  private static final String JSON_CONTENT_ENCODING = "contentEncoding";
+  private static final String JSON_CREATION_MILLIS = "creationMillis";
+
+  private final String m_sID;
+  private final String m_sTargetURL;
+  private final String m_sRefToMessageID;
+  private final String m_sContentType;
+  private final String m_sContentEncoding;
+  private final long m_nCreationMillis;
+
+  public AS4OutboxEntry (@Nonnull @Nonempty final String sID,
+                         @Nonnull @Nonempty final String sTargetURL,
+                         @Nonnull @Nonempty final String sRefToMessageID,
+                         @Nullable final String sContentType,
+                         @Nullable final String sContentEncoding,
+                         final long nCreationMillis)
+  {
+    ValueEnforcer.notEmpty (sID, "ID");
+    ValueEnforcer.notEmpty (sTargetURL, "TargetURL");
+    ValueEnforcer.notEmpty (sRefToMessageID, "RefToMessageID");
+    m_sID = sID;
+    m_sTargetURL = sTargetURL;
+    m_sRefToMessageID = sRefToMessageID;
+    m_sContentType = sContentType;
+    m_sContentEncoding = sContentEncoding;
+    m_nCreationMillis = nCreationMillis;
+  }
+
+  /**
+   * @return The unique ID of the entry. Also used as the file name.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The URL to deliver the entity to.
+   */
+  @Nonnull
+  @Nonempty
+  public String getTargetURL ()
+  {
+    return m_sTargetURL;
+  }
+
+  /**
+   * @return The ID of the message this entry is a response to. Used for
+   *         logging.
+   */
+  @Nonnull
+  @Nonempty
+  public String getRefToMessageID ()
+  {
+    return m_sRefToMessageID;
+  }
+
+  /**
+   * @return The HTTP Content-Type of the entity. May be <code>null</code>.
+   */
+  @Nullable
+  public String getContentType ()
+  {
+    return m_sContentType;
+  }
+
+  /**
+   * @return The HTTP Content-Encoding of the entity. May be <code>null</code>.
+   */
+  @Nullable
+  public String getContentEncoding ()
+  {
+    return m_sContentEncoding;
+  }
+
+  /**
+   * @return The time the entry was created in milliseconds since the epoch.
+   */
+  public long getCreationMillis ()
+  {
+    return m_nCreationMillis;
+  }
+
+  @Nonnull
+  public IJsonObject getAsJson ()
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add (JSON_ID, m_sID);
+    ret.add (JSON_TARGET_URL, m_sTargetURL);
+    ret.add (JSON_REF_TO_MESSAGE_ID, m_sRefToMessageID);
+    if (m_sContentType != null)
+      ret.add (JSON_CONTENT_TYPE, m_sContentType);
+    if (m_sContentEncoding != null)
+      ret.add (JSON_CONTENT_ENCODING, m_sContentEncoding);
+    ret.add (JSON_CREATION_MILLIS, m_nCreationMillis);
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ID", m_sID)
+                                       .append ("TargetURL", m_sTargetURL)
+                                       .append ("RefToMessageID", m_sRefToMessageID)
+                                       .append ("ContentType", m_sContentType)
+                                       .append ("ContentEncoding", m_sContentEncoding)
+                                       .append ("CreationMillis", m_nCreationMillis)
+                                       .getToString ();
+  }
+
+  @Nonnull
+  public static AS4OutboxEntry createFromJson (@Nonnull final IJsonObject aJson)
+  {
+    return new AS4OutboxEntry (aJson.getAsString (JSON_ID),
+                               aJson.getAsString (JSON_TARGET_URL),
+                               aJson.getAsString (JSON_REF_TO_MESSAGE_ID),
+                               aJson.getAsString (JSON_CONTENT_TYPE),
+                               aJson.getAsString (JSON_CONTENT_ENCODING),
+                               aJson.getAsLong (JSON_CREATION_MILLIS, 0));
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The state of an {@link AS4OutboundQueueEntry}.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public enum EAS4OutboundQueueEntryState implements IHasID <String>
+{
+  /** Not yet sent successfully - sending is pending or being retried */
+  PENDING ("pending"),
+  /** Sent and a positive receipt was received */
+  SENT ("sent"),
+  /** Finally failed - either no more retries are left or not retryable */
+  FAILED ("failed");
+
+  private final String m_sID;
+
+  EAS4OutboundQueueEntryState (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4OutboundQueueEntryState getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4OutboundQueueEntryState.class, sID);
+  }
+}
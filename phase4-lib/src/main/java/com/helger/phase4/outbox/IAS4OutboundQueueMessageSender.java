@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import javax.annotation.Nonnull;
+
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+
+/**
+ * Callback interface for the {@link AS4OutboundQueue} that sends a single stored
+ * message. Usually this creates a sender builder (e.g.
+ * <code>Phase4Sender.builderUserMessage ()</code>) from the entry data and the
+ * payload, sets the message ID of the entry via <code>messageID (...)</code>
+ * so that the receiver can detect duplicates, and returns the result of
+ * <code>sendMessageAndCheckForReceipt ()</code>. To record the ebMS error code
+ * and the receipt, remember the signal message passed to
+ * <code>signalMsgConsumer (...)</code> and use
+ * {@link AS4OutboundQueueSendResult#create(ESimpleUserMessageSendResult, com.helger.phase4.ebms3header.Ebms3SignalMessage)}.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@FunctionalInterface
+public interface IAS4OutboundQueueMessageSender
+{
+  /**
+   * Send a single message. This method is invoked concurrently from multiple
+   * worker threads, but never concurrently for the same entry.
+   *
+   * @param aEntry
+   *        The entry to be sent. Never <code>null</code>.
+   * @param aPayload
+   *        The stored payload bytes. Never <code>null</code>.
+   * @return The sending result. <code>null</code> is treated as
+   *         {@link ESimpleUserMessageSendResult#TRANSPORT_ERROR}. Results that
+   *         are not {@link ESimpleUserMessageSendResult#isRetryFeasible()
+   *         retry feasible} are final. Use
+   *         {@link AS4OutboundQueueSendResult#create(ESimpleUserMessageSendResult)}
+   *         if no details are available.
+   * @throws Exception
+   *         In case of an error. Exceptions are treated like
+   *         {@link ESimpleUserMessageSendResult#TRANSPORT_ERROR}.
+   */
+  @Nonnull
+  AS4OutboundQueueSendResult sendMessage (@Nonnull AS4OutboundQueueEntry aEntry, @Nonnull byte [] aPayload) throws Exception;
+}
@@ -532,6 +532,18 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
   protected void customizeBeforeSending () throws Phase4Exception
   {}
 
+  /**
+   * Internal method that is invoked at the very end of {@link #sendMessage()},
+   * independent of whether sending was successful or not. This is the place to
+   * release resources that were allocated in "finishFields".
+   *
+   * @since 1.3.9
+   */
+  @OverrideOnDemand
+  @OverridingMethodsMustInvokeSuper
+  protected void onSendingFinished ()
+  {}
+
   /**
    * Synchronously send the AS4 message. This method may only be called by
    * {@link #sendMessage()}
@@ -549,7 +561,8 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
    * Afterwards "customizeBeforeSending" is called to make final adjustments to
    * the message. As the very last step, the customizable sender interrupt is
    * invoked which may prevent the main message sending. As the last step
-   * "mainSendMessage" is invoked and "SUCCESS" is returned.<br>
+   * "mainSendMessage" is invoked and "SUCCESS" is returned. In any case
+   * {@link #onSendingFinished()} is invoked at the end.<br>
    * Note: since 0.13.0 this common implementation is in place.
    *
    * @return {@link ESuccess#FAILURE} if not all mandatory parameters are set or
@@ -569,38 +582,45 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("About to send the AS4 message");
 
-    // Pre required field check
-    if (finishFields ().isFailure ())
-    {
-      if (LOGGER.isDebugEnabled ())
-        LOGGER.debug ("finishFields() prevented the AS4 message to be send");
-
-      return ESuccess.FAILURE;
-    }
-
-    if (!isEveryRequiredFieldSet ())
+    try
     {
-      LOGGER.error ("At least one mandatory field is not set and therefore the AS4 message cannot be send.");
-      return ESuccess.FAILURE;
-    }
+      // Pre required field check
+      if (finishFields ().isFailure ())
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("finishFields() prevented the AS4 message to be send");
 
-    // Post required field check
-    customizeBeforeSending ();
+        return ESuccess.FAILURE;
+      }
 
-    if (m_aSenderInterrupt != null)
-      if (m_aSenderInterrupt.canSendDocument ().isBreak ())
+      if (!isEveryRequiredFieldSet ())
       {
-        LOGGER.warn ("The AS4 sender interrupt disabled the sending of the message.");
+        LOGGER.error ("At least one mandatory field is not set and therefore the AS4 message cannot be send.");
         return ESuccess.FAILURE;
       }
 
-    // Main sending
-    mainSendMessage ();
+      // Post required field check
+      customizeBeforeSending ();
 
-    if (LOGGER.isDebugEnabled ())
-      LOGGER.debug ("Finished main AS4 message sending without exception");
+      if (m_aSenderInterrupt != null)
+        if (m_aSenderInterrupt.canSendDocument ().isBreak ())
+        {
+          LOGGER.warn ("The AS4 sender interrupt disabled the sending of the message.");
+          return ESuccess.FAILURE;
+        }
 
-    return ESuccess.SUCCESS;
+      // Main sending
+      mainSendMessage ();
+
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Finished main AS4 message sending without exception");
+
+      return ESuccess.SUCCESS;
+    }
+    finally
+    {
+      onSendingFinished ();
+    }
   }
 
 }
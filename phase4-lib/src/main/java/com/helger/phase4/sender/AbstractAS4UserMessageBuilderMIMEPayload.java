@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import com.helger.phase4.attachment.Phase4OutgoingAttachment;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.model.pmode.PModePayloadService;
 import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.phase4.util.Phase4Exception;
 
@@ -112,12 +113,15 @@ public abstract class AbstractAS4UserMessageBuilderMIMEPayload <IMPLTYPE extends
       // No payload - only one attachment
       aUserMsg.setPayload (null);
 
+      // Compression settings are taken from the PMode (if present)
+      final PModePayloadService aPayloadService = m_aPMode != null ? m_aPMode.getPayloadService () : null;
+
       // Add main attachment
-      aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (m_aPayload, aResHelper));
+      aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (m_aPayload, aPayloadService, aResHelper));
       m_sEndpointURL = HackyPreferences.getAS4Endpoint() + "/as4";
       // Add other attachments
       for (final Phase4OutgoingAttachment aAttachment : m_aAttachments)
-        aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment, aResHelper));
+        aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment, aPayloadService, aResHelper));
 
       // Main sending
       AS4BidirectionalClientHelper.sendAS4UserMessageAndReceiveAS4SignalMessage (m_aCryptoFactory,
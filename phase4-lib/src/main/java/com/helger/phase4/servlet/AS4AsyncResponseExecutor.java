@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.timing.StopWatch;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.util.AS4ThreadHelper;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * The executor for asynchronous (PUSH PUSH) response processing. Other than a
+ * shared worker pool it has a bounded queue, so that a burst of asynchronous
+ * requests cannot queue an unlimited amount of work. Pending tasks are drained
+ * when the global scope is destroyed.<br>
+ * Concurrency, queue size and shutdown timeout are taken from
+ * {@link AS4Configuration} (see <code>phase4.async.response.*</code>).
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public class AS4AsyncResponseExecutor extends AbstractGlobalSingleton
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncResponseExecutor.class);
+
+  private final AtomicLong m_aRejectedTaskCount = new AtomicLong (0);
+  private ExecutorService m_aExecutor;
+  private int m_nMaxQueueSize;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4AsyncResponseExecutor ()
+  {}
+
+  @Nonnull
+  public static AS4AsyncResponseExecutor getInstance ()
+  {
+    return getGlobalSingleton (AS4AsyncResponseExecutor.class);
+  }
+
+  @Override
+  protected void onAfterInstantiation (@Nonnull final IScope aScope)
+  {
+    final int nThreads = AS4Configuration.getAsyncResponseThreadCount ();
+    m_nMaxQueueSize = AS4Configuration.getAsyncResponseQueueSize ();
+    m_aExecutor = AS4ThreadHelper.createBoundedExecutor ("phase4-async-response-", nThreads, m_nMaxQueueSize);
+  }
+
+  @Override
+  protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
+  {
+    // Let pending responses finish
+    m_aExecutor.shutdown ();
+    final long nSeconds = AS4Configuration.getAsyncResponseShutdownSeconds ();
+    final int nPending = getQueuedTaskCount () + getActiveTaskCount ();
+    if (nPending > 0)
+      LOGGER.info ("Waiting up to " + nSeconds + " seconds for " + nPending + " pending asynchronous responses");
+    if (!m_aExecutor.awaitTermination (nSeconds, TimeUnit.SECONDS))
+    {
+      final int nDropped = m_aExecutor.shutdownNow ().size ();
+      LOGGER.error ("Asynchronous responses did not finish within " + nSeconds + " seconds - " + nDropped + " queued responses are lost");
+    }
+  }
+
+  /**
+   * Submit a new task for asynchronous execution. Exceptions of the task are
+   * logged.
+   *
+   * @param sDescription
+   *        The description of the task for logging. May neither be
+   *        <code>null</code> nor empty.
+   * @param aRunnable
+   *        The task to run. May not be <code>null</code>.
+   * @return The future that is completed when the task finished. Never
+   *         <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the queue is full or the executor is shutting down
+   */
+  @Nonnull
+  public CompletableFuture <Void> submit (@Nonnull @Nonempty final String sDescription,
+                                          @Nonnull final IThrowingRunnable <? extends Exception> aRunnable)
+  {
+    ValueEnforcer.notEmpty (sDescription, "Description");
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    try
+    {
+      return CompletableFuture.runAsync ( () -> {
+        final StopWatch aSW = StopWatch.createdStarted ();
+        try
+        {
+          aRunnable.run ();
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Finished '" + sDescription + "' after " + aSW.stopAndGetMillis () + " milliseconds");
+        }
+        catch (final Exception ex)
+        {
+          LOGGER.error ("Error running '" + sDescription + "'", ex);
+        }
+      }, m_aExecutor);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      m_aRejectedTaskCount.incrementAndGet ();
+      throw ex;
+    }
+  }
+
+  /**
+   * @return The number of tasks waiting for execution. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getQueuedTaskCount ()
+  {
+    return AS4ThreadHelper.getQueuedTaskCount (m_aExecutor);
+  }
+
+  /**
+   * @return The maximum number of tasks waiting for execution. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxQueueSize ()
+  {
+    return m_nMaxQueueSize;
+  }
+
+  /**
+   * @return The approximate number of tasks currently executed. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getActiveTaskCount ()
+  {
+    return AS4ThreadHelper.getActiveTaskCount (m_aExecutor);
+  }
+
+  /**
+   * @return The approximate number of tasks that completed execution. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public long getCompletedTaskCount ()
+  {
+    return AS4ThreadHelper.getCompletedTaskCount (m_aExecutor);
+  }
+
+  /**
+   * @return The number of tasks that were rejected, because the queue was full.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public long getRejectedTaskCount ()
+  {
+    return m_aRejectedTaskCount.get ();
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.http.EHttpMethod;
+import com.helger.commons.mime.IMimeType;
+import com.helger.commons.mime.MimeTypeParser;
+import com.helger.http.EHttpVersion;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.error.EEbmsError;
+import com.helger.phase4.messaging.domain.AS4ErrorMessage;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ThreadHelper;
+import com.helger.phase4.util.AS4XMLHelper;
+import com.helger.web.scope.IRequestWebScope;
+import com.helger.web.scope.mgr.WebScopeManager;
+
+/**
+ * Asynchronous AS4 receiving servlet. It is an opt-in alternative to
+ * {@link AS4Servlet}. Instead of processing the AS4 message on the container
+ * request thread, the request is put into asynchronous mode and handed over to
+ * a bounded worker pool. This keeps the container threads free, even if e.g.
+ * an SPI implementation is slow.<br>
+ * Requests that don't fit into the worker queue are rejected with HTTP 503.
+ * Requests that are not completed within the configured timeout are cancelled
+ * and answered with an EBMS error message, as long as the message was not yet
+ * handed over for delivery (see {@link AS4RequestCancellation}). If the
+ * delivery already started, the regular response is sent when the processing
+ * finished, because an error would make the sender retry a message that was
+ * delivered.<br>
+ * The pool settings are taken from {@link AS4Configuration} (see
+ * <code>phase4.servlet.async.*</code>). Use a configuration like the following
+ * in your <code>WEB-INF/web.xml</code> file:
+ *
+ * <pre>
+&lt;servlet&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;servlet-class&gt;com.helger.phase4.servlet.AS4AsyncServlet&lt;/servlet-class&gt;
+  &lt;async-supported&gt;true&lt;/async-supported&gt;
+&lt;/servlet&gt;
+&lt;servlet-mapping&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;url-pattern&gt;/as4&lt;/url-pattern&gt;
+&lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * Note: this servlet does not use the ph-xservlet framework, because that
+ * always writes the response when the handler returns.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public class AS4AsyncServlet extends HttpServlet
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncServlet.class);
+
+  private final AS4XServletHandler m_aHandler;
+  private ExecutorService m_aExecutor;
+  private ScheduledThreadPoolExecutor m_aTimeoutScheduler;
+  private long m_nTimeoutMS;
+
+  public AS4AsyncServlet ()
+  {
+    this (new AS4XServletHandler ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aHandler
+   *        The AS4 handler that does the main processing. May not be
+   *        <code>null</code>.
+   */
+  public AS4AsyncServlet (@Nonnull final AS4XServletHandler aHandler)
+  {
+    ValueEnforcer.notNull (aHandler, "Handler");
+    m_aHandler = aHandler;
+  }
+
+  /**
+   * @return The AS4 handler used for processing. Use this to customize the
+   *         handler. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4XServletHandler getHandler ()
+  {
+    return m_aHandler;
+  }
+
+  /**
+   * @return The number of requests currently waiting for a worker thread.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getQueuedRequestCount ()
+  {
+    final ExecutorService aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : AS4ThreadHelper.getQueuedTaskCount (aExecutor);
+  }
+
+  @Override
+  public void init () throws ServletException
+  {
+    super.init ();
+
+    final int nThreads = AS4Configuration.getAsyncServletThreadCount ();
+    final int nQueueSize = AS4Configuration.getAsyncServletQueueSize ();
+    m_nTimeoutMS = AS4Configuration.getAsyncServletTimeoutMS ();
+    m_aExecutor = AS4ThreadHelper.createBoundedExecutor ("phase4-servlet-async-", nThreads, nQueueSize);
+    m_aTimeoutScheduler = new ScheduledThreadPoolExecutor (1, AS4ThreadHelper.createThreadFactory ("phase4-servlet-async-timeout-"));
+    m_aTimeoutScheduler.setRemoveOnCancelPolicy (true);
+    LOGGER.info ("Initialized asynchronous AS4 servlet with " +
+                 nThreads +
+                 " worker threads, a queue size of " +
+                 nQueueSize +
+                 " and a timeout of " +
+                 m_nTimeoutMS +
+                 " ms");
+  }
+
+  @Override
+  public void destroy ()
+  {
+    if (m_aExecutor != null)
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+      m_aExecutor = null;
+    }
+    if (m_aTimeoutScheduler != null)
+    {
+      m_aTimeoutScheduler.shutdownNow ();
+      m_aTimeoutScheduler = null;
+    }
+    super.destroy ();
+  }
+
+  @Nonnull
+  private static ESoapVersion _getSoapVersion (@Nonnull final HttpServletRequest aHttpRequest)
+  {
+    final IMimeType aMimeType = MimeTypeParser.safeParseMimeType (aHttpRequest.getContentType ());
+    final ESoapVersion ret = aMimeType == null ? null : ESoapVersion.getFromMimeTypeOrNull (aMimeType.getCopyWithoutParameters ());
+    // For MIME messages the version is unknown
+    return ret != null ? ret : ESoapVersion.AS4_DEFAULT;
+  }
+
+  private static void _sendTimeoutError (@Nonnull final HttpServletResponse aHttpResponse,
+                                         @Nonnull final ESoapVersion eSoapVersion,
+                                         @Nonnegative final long nTimeoutMS) throws IOException
+  {
+    final AS4ErrorMessage aErrorMsg = AS4ErrorMessage.create (eSoapVersion,
+                                                              (String) null,
+                                                              new CommonsArrayList <> (EEbmsError.EBMS_OTHER.getAsEbms3Error (Locale.US,
+                                                                                                                              null,
+                                                                                                                              "The AS4 message could not be processed within " +
+                                                                                                                                    nTimeoutMS +
+                                                                                                                                    " ms")));
+    final byte [] aBytes = AS4XMLHelper.serializeXMLBytes (aErrorMsg.getAsSoapDocument ());
+    aHttpResponse.setStatus (CHttp.HTTP_OK);
+    aHttpResponse.setContentType (eSoapVersion.getMimeType (AS4XMLHelper.XWS.getCharset ()).getAsString ());
+    aHttpResponse.setContentLength (aBytes.length);
+    aHttpResponse.getOutputStream ().write (aBytes);
+  }
+
+  private void _handleAsync (@Nonnull final AsyncContext aAsyncCtx,
+                             @Nonnull final AtomicBoolean aResponded,
+                             @Nonnull final AS4RequestCancellation aCancellation)
+  {
+    final HttpServletRequest aHttpRequest = (HttpServletRequest) aAsyncCtx.getRequest ();
+    final HttpServletResponse aHttpResponse = (HttpServletResponse) aAsyncCtx.getResponse ();
+
+    if (aResponded.get ())
+    {
+      // Timed out while waiting in the queue
+      LOGGER.warn ("Skipping AS4 request that timed out while waiting for a worker thread");
+      return;
+    }
+
+    final IRequestWebScope aRequestScope = WebScopeManager.onRequestBegin (aHttpRequest, aHttpResponse);
+    try
+    {
+      // Evaluated by the AS4RequestHandler before the delivery starts
+      aRequestScope.attrs ().putIn (AS4RequestCancellation.REQUEST_ATTR, aCancellation);
+
+      EHttpVersion eHttpVersion = EHttpVersion.getFromNameOrNull (aHttpRequest.getProtocol ());
+      if (eHttpVersion == null)
+        eHttpVersion = EHttpVersion.HTTP_11;
+      final AS4UnifiedResponse aUnifiedResponse = m_aHandler.createUnifiedResponse (eHttpVersion,
+                                                                                   EHttpMethod.POST,
+                                                                                   aHttpRequest,
+                                                                                   aRequestScope);
+      // Closes the AS4RequestHandler and therefore all temporary resources
+      m_aHandler.handleRequest (aRequestScope, aUnifiedResponse);
+
+      if (aResponded.compareAndSet (false, true))
+      {
+        aUnifiedResponse.applyToResponse (aHttpResponse);
+        aAsyncCtx.complete ();
+      }
+      else
+        LOGGER.warn ("AS4 request processing finished after the timeout - the response is discarded");
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Internal error processing asynchronous AS4 request", ex);
+      if (aResponded.compareAndSet (false, true))
+      {
+        try
+        {
+          aHttpResponse.sendError (CHttp.HTTP_INTERNAL_SERVER_ERROR);
+        }
+        catch (final IOException ex2)
+        {
+          LOGGER.warn ("Failed to send error response", ex2);
+        }
+        aAsyncCtx.complete ();
+      }
+    }
+    finally
+    {
+      WebScopeManager.onRequestEnd ();
+    }
+  }
+
+  @Override
+  protected void doPost (@Nonnull final HttpServletRequest aHttpRequest,
+                         @Nonnull final HttpServletResponse aHttpResponse) throws ServletException, IOException
+  {
+    if (!aHttpRequest.isAsyncSupported ())
+      throw new ServletException ("The AS4AsyncServlet must be configured with 'async-supported' set to 'true'");
+
+    final ExecutorService aExecutor = m_aExecutor;
+    final ScheduledThreadPoolExecutor aTimeoutScheduler = m_aTimeoutScheduler;
+    if (aExecutor == null || aTimeoutScheduler == null)
+      throw new ServletException ("The AS4AsyncServlet was not initialized");
+
+    final long nTimeoutMS = m_nTimeoutMS;
+    final ESoapVersion eSoapVersion = _getSoapVersion (aHttpRequest);
+    // Ensures that exactly one party writes the response
+    final AtomicBoolean aResponded = new AtomicBoolean (false);
+
+    final AsyncContext aAsyncCtx = aHttpRequest.startAsync (aHttpRequest, aHttpResponse);
+    // The timeout is handled by ourselves, because the container would always
+    // write an error response
+    aAsyncCtx.setTimeout (0);
+    final AS4RequestCancellation aCancellation = new AS4RequestCancellation ();
+    final ScheduledFuture <?> aTimeoutFuture = aTimeoutScheduler.schedule ( () -> {
+      if (!aCancellation.cancel ())
+      {
+        // The message may be delivered - wait for the regular response
+        LOGGER.warn ("AS4 request processing takes longer than " +
+                     nTimeoutMS +
+                     " ms, but the message was already handed over for delivery - waiting for the processing to finish");
+        return;
+      }
+      if (aResponded.compareAndSet (false, true))
+      {
+        LOGGER.warn ("AS4 request processing timed out after " + nTimeoutMS + " ms");
+        try
+        {
+          _sendTimeoutError ((HttpServletResponse) aAsyncCtx.getResponse (), eSoapVersion, nTimeoutMS);
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to send timeout error response", ex);
+        }
+        finally
+        {
+          aAsyncCtx.complete ();
+        }
+      }
+    }, nTimeoutMS, TimeUnit.MILLISECONDS);
+    aAsyncCtx.addListener (new AsyncListener ()
+    {
+      public void onTimeout (@Nonnull final AsyncEvent aEvent)
+      {}
+
+      public void onError (@Nonnull final AsyncEvent aEvent)
+      {
+        // E.g. the client closed the connection
+        if (aResponded.compareAndSet (false, true))
+        {
+          LOGGER.warn ("Error in asynchronous AS4 request", aEvent.getThrowable ());
+          aEvent.getAsyncContext ().complete ();
+        }
+      }
+
+      public void onStartAsync (@Nonnull final AsyncEvent aEvent)
+      {}
+
+      public void onComplete (@Nonnull final AsyncEvent aEvent)
+      {
+        aTimeoutFuture.cancel (false);
+      }
+    });
+
+    try
+    {
+      aExecutor.execute ( () -> _handleAsync (aAsyncCtx, aResponded, aCancellation));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      if (aResponded.compareAndSet (false, true))
+      {
+        LOGGER.warn ("Rejecting AS4 request, because " +
+                     AS4ThreadHelper.getQueuedTaskCount (aExecutor) +
+                     " requests are already queued and " +
+                     AS4ThreadHelper.getActiveTaskCount (aExecutor) +
+                     " are processed");
+        aHttpResponse.setHeader (CHttpHeader.RETRY_AFTER, Long.toString (Math.max (nTimeoutMS / 1000, 1)));
+        aHttpResponse.sendError (CHttp.HTTP_SERVICE_UNAVAILABLE);
+        aAsyncCtx.complete ();
+      }
+    }
+  }
+}
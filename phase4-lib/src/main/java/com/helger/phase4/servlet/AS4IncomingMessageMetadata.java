@@ -66,7 +66,7 @@ public class AS4IncomingMessageMetadata implements IAS4IncomingMessageMetadata
 
   /**
    * Constructor in case this every needs to be deserialized or other weird
-   * things are necessary.
+   * things are necessary. Public since v1.3.9.
    *
    * @param sIncomingUniqueID
    *        Incoming unique ID. May neither be <code>null</code> nor empty.
@@ -75,9 +75,9 @@ public class AS4IncomingMessageMetadata implements IAS4IncomingMessageMetadata
    * @param eMode
    *        The messaging mode. May not be <code>null</code>.
    */
-  protected AS4IncomingMessageMetadata (@Nonnull @Nonempty final String sIncomingUniqueID,
-                                        @Nonnull final OffsetDateTime aIncomingDT,
-                                        @Nonnull final EAS4MessageMode eMode)
+  public AS4IncomingMessageMetadata (@Nonnull @Nonempty final String sIncomingUniqueID,
+                                     @Nonnull final OffsetDateTime aIncomingDT,
+                                     @Nonnull final EAS4MessageMode eMode)
   {
     ValueEnforcer.notEmpty (sIncomingUniqueID, "sIncomingUniqueID");
     ValueEnforcer.notNull (aIncomingDT, "IncomingDT");
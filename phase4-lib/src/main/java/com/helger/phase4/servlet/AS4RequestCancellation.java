@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A cancellation handle for the processing of a single incoming AS4 request.
+ * The processing can only be cancelled as long as the message was not handed
+ * over for delivery (to the SPIs or the inbox). Once the delivery started, the
+ * message may be delivered and the processing can no longer be cancelled.
+ * Therefore a party that cancels must check the result of {@link #cancel()},
+ * before it e.g. reports an error to the sender.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4RequestCancellation
+{
+  /**
+   * The name of the request scope attribute that contains the cancellation
+   * handle of the current request, if any.
+   */
+  public static final String REQUEST_ATTR = "phase4.request.cancellation";
+
+  private static final int STATE_PROCESSING = 0;
+  private static final int STATE_DELIVERING = 1;
+  private static final int STATE_CANCELLED = 2;
+
+  private final AtomicInteger m_aState = new AtomicInteger (STATE_PROCESSING);
+
+  public AS4RequestCancellation ()
+  {}
+
+  /**
+   * Try to cancel the processing.
+   *
+   * @return <code>true</code> if the processing was cancelled before the
+   *         delivery started (or was already cancelled), <code>false</code> if
+   *         the delivery already started.
+   */
+  public boolean cancel ()
+  {
+    return m_aState.compareAndSet (STATE_PROCESSING, STATE_CANCELLED) || m_aState.get () == STATE_CANCELLED;
+  }
+
+  /**
+   * Called by the request handler right before the message is handed over for
+   * delivery.
+   *
+   * @return <code>true</code> if the delivery may start, <code>false</code> if
+   *         the processing was cancelled.
+   */
+  public boolean tryStartDelivery ()
+  {
+    return m_aState.compareAndSet (STATE_PROCESSING, STATE_DELIVERING) || m_aState.get () == STATE_DELIVERING;
+  }
+
+  /**
+   * @return <code>true</code> if the processing was cancelled.
+   */
+  public boolean isCancelled ()
+  {
+    return m_aState.get () == STATE_CANCELLED;
+  }
+
+  /**
+   * @return <code>true</code> if the delivery started.
+   */
+  public boolean isDeliveryStarted ()
+  {
+    return m_aState.get () == STATE_DELIVERING;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("State", m_aState.get ()).getToString ();
+  }
+}
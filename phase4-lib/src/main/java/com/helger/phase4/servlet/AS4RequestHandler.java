@@ -20,8 +20,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
@@ -51,6 +61,7 @@ import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.EMimeContentType;
 import com.helger.commons.mime.IMimeType;
+import com.helger.commons.state.EContinue;
 import com.helger.commons.state.ISuccessIndicator;
 import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.response.ResponseHandlerXml;
@@ -59,10 +70,12 @@ import com.helger.phase4.attachment.AS4DecompressException;
 import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.client.IAS4RetryCallback;
+import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.crypto.AS4CryptParams;
 import com.helger.phase4.crypto.AS4SigningParams;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.dump.AS4DumpManager;
+import com.helger.phase4.dump.AS4DumpTeeInputStream;
 import com.helger.phase4.dump.IAS4IncomingDumper;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.ebms3header.Ebms3CollaborationInfo;
@@ -80,6 +93,7 @@ import com.helger.phase4.http.BasicHttpPoster;
 import com.helger.phase4.http.HttpMimeMessageEntity;
 import com.helger.phase4.http.HttpRetrySettings;
 import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.inbox.AS4Inbox;
 import com.helger.phase4.messaging.EAS4MessageMode;
 import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
 import com.helger.phase4.messaging.crypto.AS4Encryptor;
@@ -98,6 +112,7 @@ import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.leg.EPModeSendReceiptReplyPattern;
 import com.helger.phase4.model.pmode.leg.PModeLeg;
 import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+import com.helger.phase4.outbox.AS4Outbox;
 import com.helger.phase4.servlet.AS4IncomingHandler.IAS4ParsedMessageCallback;
 import com.helger.phase4.servlet.mgr.AS4ServletMessageProcessorManager;
 import com.helger.phase4.servlet.soap.SOAPHeaderElementProcessorRegistry;
@@ -106,10 +121,11 @@ import com.helger.phase4.servlet.spi.AS4SignalMessageProcessorResult;
 import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
 import com.helger.phase4.soap.ESoapVersion;
 import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.AS4ThreadHelper;
 import com.helger.phase4.util.AS4XMLHelper;
 import com.helger.phase4.util.Phase4Exception;
-import com.helger.photon.app.PhotonWorkerPool;
 import com.helger.web.scope.IRequestWebScopeWithoutResponse;
+import com.helger.xml.XMLFactory;
 import com.helger.xml.serialize.write.XMLWriter;
 
 /**
@@ -165,9 +181,10 @@ public class AS4RequestHandler implements AutoCloseable
 
     public void applyToResponse (@Nonnull final IAS4ResponseAbstraction aHttpResponse, @Nullable final IAS4OutgoingDumper aOutgoingDumper)
     {
-      final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
+      // Serialize only once, directly to bytes, for the response and the
+      // dumper
       final Charset aCharset = AS4XMLHelper.XWS.getCharset ();
-      final byte [] aXMLBytes = sXML.getBytes (aCharset);
+      final byte [] aXMLBytes = AS4XMLHelper.serializeXMLBytes (m_aDoc);
       aHttpResponse.setContent (aXMLBytes, aCharset);
       aHttpResponse.setMimeType (m_aMimeType);
 
@@ -234,47 +251,60 @@ public class AS4RequestHandler implements AutoCloseable
       return new HttpMimeMessageEntity (m_aMimeMsg);
     }
 
+    @Nonnull
+    private InputStream _getDumpingInputStream (@Nonnull final InputStream aIS, @Nonnull final IAS4OutgoingDumper aOutgoingDumper)
+    {
+      try
+      {
+        final OutputStream aDumpOS = aOutgoingDumper.onBeginRequest (EAS4MessageMode.RESPONSE,
+                                                                     m_aIncomingMessageMetadata,
+                                                                     m_aState,
+                                                                     m_sResponseMessageID,
+                                                                     m_aHttpHeaders,
+                                                                     0);
+        if (aDumpOS == null)
+          return aIS;
+
+        // Write to the response and to the dumper at the same time
+        return new AS4DumpTeeInputStream (aIS,
+                                          aDumpOS,
+                                          AS4DumpTeeInputStream.DEFAULT_MAX_BUFFERED_BYTES,
+                                          () -> aOutgoingDumper.onEndRequest (EAS4MessageMode.RESPONSE,
+                                                                              m_aIncomingMessageMetadata,
+                                                                              m_aState,
+                                                                              m_sResponseMessageID));
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("IOException in dumping of outgoing MIME response", ex);
+        return aIS;
+      }
+    }
+
     public void applyToResponse (@Nonnull final IAS4ResponseAbstraction aHttpResponse, @Nullable final IAS4OutgoingDumper aOutgoingDumper)
     {
+      // The MIME message is only serialized once - the dumper receives the
+      // bytes while they are written to the response
+      final AtomicBoolean aDumped = new AtomicBoolean (aOutgoingDumper == null);
       final IHasInputStream aContent = HasInputStream.multiple ( () -> {
+        final InputStream aIS;
         try
         {
-          return m_aMimeMsg.getInputStream ();
+          aIS = m_aMimeMsg.getInputStream ();
         }
         catch (final IOException | MessagingException ex)
         {
           throw new IllegalStateException ("Failed to get MIME input stream", ex);
         }
+        // Dump only the first time the content is requested. The tee stream
+        // dumps all remaining MIME parts on close, even if the response was
+        // not read completely.
+        if (aDumped.getAndSet (true))
+          return aIS;
+        return _getDumpingInputStream (aIS, aOutgoingDumper);
       });
       aHttpResponse.setContent (m_aHttpHeaders, aContent);
       aHttpResponse.setMimeType (MT_MULTIPART_RELATED);
-
-      if (aOutgoingDumper != null)
-      {
-        try
-        {
-          final OutputStream aDumpOS = aOutgoingDumper.onBeginRequest (EAS4MessageMode.RESPONSE,
-                                                                       m_aIncomingMessageMetadata,
-                                                                       m_aState,
-                                                                       m_sResponseMessageID,
-                                                                       m_aHttpHeaders,
-                                                                       0);
-          if (aDumpOS != null)
-            try
-            {
-              StreamHelper.copyInputStreamToOutputStream (aContent.getBufferedInputStream (), aDumpOS);
-            }
-            finally
-            {
-              StreamHelper.close (aDumpOS);
-              aOutgoingDumper.onEndRequest (EAS4MessageMode.RESPONSE, m_aIncomingMessageMetadata, m_aState, m_sResponseMessageID);
-            }
-        }
-        catch (final IOException ex)
-        {
-          LOGGER.warn ("IOException in dumping of outgoing MIME response", ex);
-        }
-      }
     }
   }
 
@@ -345,6 +375,51 @@ public class AS4RequestHandler implements AutoCloseable
     }
   }
 
+  /**
+   * The outcome of a single SPI message processor invocation.
+   */
+  private static final class SPIProcessorOutcome
+  {
+    private final IAS4ServletMessageProcessorSPI m_aProcessor;
+    private final AS4MessageProcessorResult m_aResult;
+    private final ICommonsList <Ebms3Error> m_aProcessingErrorMessages;
+    private final Exception m_aException;
+
+    SPIProcessorOutcome (@Nonnull final IAS4ServletMessageProcessorSPI aProcessor,
+                         @Nullable final AS4MessageProcessorResult aResult,
+                         @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages,
+                         @Nullable final Exception aException)
+    {
+      m_aProcessor = aProcessor;
+      m_aResult = aResult;
+      m_aProcessingErrorMessages = aProcessingErrorMessages;
+      m_aException = aException;
+    }
+  }
+
+  /**
+   * Lazily created executor for the concurrent invocation of independent SPI
+   * message processors. If all threads are busy, the processor is invoked in
+   * the calling thread.
+   */
+  private static final class SPIExecutorHolder
+  {
+    static final ExecutorService EXECUTOR;
+    static
+    {
+      final int nThreads = AS4Configuration.getSPIConcurrentThreadCount ();
+      final ThreadPoolExecutor aExecutor = new ThreadPoolExecutor (nThreads,
+                                                                   nThreads,
+                                                                   60,
+                                                                   TimeUnit.SECONDS,
+                                                                   new SynchronousQueue <> (),
+                                                                   AS4ThreadHelper.createThreadFactory ("phase4-spi-"),
+                                                                   new ThreadPoolExecutor.CallerRunsPolicy ());
+      aExecutor.allowCoreThreadTimeOut (true);
+      EXECUTOR = aExecutor;
+    }
+  }
+
   public static final IMimeType MT_MULTIPART_RELATED = EMimeContentType.MULTIPART.buildMimeType ("related");
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4RequestHandler.class);
 
@@ -359,6 +434,7 @@ public class AS4RequestHandler implements AutoCloseable
   private IAS4OutgoingDumper m_aOutgoingDumper;
   private IAS4RetryCallback m_aRetryCallback;
   private ISoapProcessingFinalizedCallback m_aSoapProcessingFinalizedCB;
+  private AS4RequestCancellation m_aCancellation;
 
   /** By default get all message processors from the global SPI registry */
   private Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> m_aProcessorSupplier = AS4ServletMessageProcessorManager::getAllProcessors;
@@ -600,6 +676,50 @@ public class AS4RequestHandler implements AutoCloseable
     return this;
   }
 
+  /**
+   * @return The cancellation handle of this request. <code>null</code> by
+   *         default.
+   * @since 1.3.9
+   */
+  @Nullable
+  public final AS4RequestCancellation getCancellation ()
+  {
+    return m_aCancellation;
+  }
+
+  /**
+   * Set the cancellation handle of this request. If the processing is
+   * cancelled before the message is handed over for delivery, no SPI is
+   * invoked and the message ID is not considered a duplicate afterwards.
+   *
+   * @param aCancellation
+   *        The cancellation handle to use. May be <code>null</code>.
+   * @return this for chaining
+   * @since 1.3.9
+   */
+  @Nonnull
+  public final AS4RequestHandler setCancellation (@Nullable final AS4RequestCancellation aCancellation)
+  {
+    m_aCancellation = aCancellation;
+    return this;
+  }
+
+  /**
+   * Remove the provided message ID from the duplicate manager, so that the
+   * sender may resend the message, e.g. because it was not accepted due to a
+   * temporary problem.
+   *
+   * @param sMessageID
+   *        The message ID to remove. May be <code>null</code>.
+   */
+  private static void _allowResend (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasText (sMessageID) && MetaAS4Manager.getIncomingDuplicateMgr ().removeMessageID (sMessageID).isUnchanged ())
+      LOGGER.warn ("The message ID '" +
+                   sMessageID +
+                   "' could not be removed from the duplicate manager - a resent message will be considered a duplicate");
+  }
+
   /**
    * Invoke custom SPI message processors
    *
@@ -661,190 +781,380 @@ public class AS4RequestHandler implements AutoCloseable
     if (aAllProcessors.isEmpty ())
       LOGGER.error ("No IAS4ServletMessageProcessorSPI is available to process an incoming message");
 
-    // Invoke ALL non-null SPIs
-    for (final IAS4ServletMessageProcessorSPI aProcessor : aAllProcessors)
-      if (aProcessor != null)
-        try
+    // Invoke ALL non-null SPIs - adjacent independent SPIs are invoked
+    // concurrently
+    final ICommonsList <IAS4ServletMessageProcessorSPI> aProcessors = aAllProcessors.getAll (Objects::nonNull);
+    int nIndex = 0;
+    while (nIndex < aProcessors.size ())
+    {
+      // Determine the next group of processors
+      int nEnd = nIndex + 1;
+      if (aProcessors.get (nIndex).isIndependent ())
+        while (nEnd < aProcessors.size () && aProcessors.get (nEnd).isIndependent ())
+          nEnd++;
+
+      final ICommonsList <SPIProcessorOutcome> aOutcomes;
+      if (nEnd - nIndex == 1)
+      {
+        aOutcomes = new CommonsArrayList <> (_invokeSPI (aProcessors.get (nIndex),
+                                                         aHttpHeaders,
+                                                         aEbmsUserMessage,
+                                                         aEbmsSignalMessage,
+                                                         aPayloadNode,
+                                                         aDecryptedAttachments,
+                                                         aPMode,
+                                                         aState));
+      }
+      else
+      {
+        aOutcomes = _invokeSPIsConcurrently (aProcessors.subList (nIndex, nEnd),
+                                             aHttpHeaders,
+                                             aEbmsUserMessage,
+                                             aEbmsSignalMessage,
+                                             aPayloadNode,
+                                             aDecryptedAttachments,
+                                             aPMode,
+                                             aState);
+      }
+
+      // Merge in the order of registration
+      for (final SPIProcessorOutcome aOutcome : aOutcomes)
+        if (_mergeSPIOutcome (aOutcome,
+                              sMessageID,
+                              aEbmsSignalMessage,
+                              aErrorMessagesTarget,
+                              aResponseAttachmentsTarget,
+                              aSPIResult).isBreak ())
         {
-          if (LOGGER.isDebugEnabled ())
-            LOGGER.debug ("Invoking AS4 message processor " + aProcessor + " for incoming message");
+          // Stop processing
+          return;
+        }
 
-          // Main processing
-          final AS4MessageProcessorResult aResult;
-          final ICommonsList <Ebms3Error> aProcessingErrorMessages = new CommonsArrayList <> ();
-          if (bIsUserMessage)
-          {
-            aResult = aProcessor.processAS4UserMessage (m_aMessageMetadata,
-                                                        aHttpHeaders,
-                                                        aEbmsUserMessage,
-                                                        aPMode,
-                                                        aPayloadNode,
-                                                        aDecryptedAttachments,
-                                                        aState,
-                                                        aProcessingErrorMessages);
-          }
-          else
-          {
-            aResult = aProcessor.processAS4SignalMessage (m_aMessageMetadata,
-                                                          aHttpHeaders,
-                                                          aEbmsSignalMessage,
-                                                          aPMode,
-                                                          aState,
-                                                          aProcessingErrorMessages);
-          }
+      nIndex = nEnd;
+    }
 
-          // Result returned?
-          if (aResult == null)
-            throw new IllegalStateException ("No result object present from AS4 message processor " +
-                                             aProcessor +
-                                             " - this is a programming error");
+    // Remember success
+    aSPIResult.setSuccess (true);
+  }
 
-          if (aProcessingErrorMessages.isNotEmpty () || aResult.isFailure ())
-          {
-            if (aProcessingErrorMessages.isNotEmpty ())
-            {
-              if (LOGGER.isDebugEnabled ())
-                LOGGER.debug ("AS4 message processor " +
-                              aProcessor +
-                              " had processing errors - breaking. Details: " +
-                              aProcessingErrorMessages);
-
-              if (aResult.isSuccess ())
-                LOGGER.warn ("Processing errors are present but success was returned by a previous AS4 message processor " +
-                             aProcessor +
-                             " - considering the whole processing to be failed instead");
-
-              aErrorMessagesTarget.addAll (aProcessingErrorMessages);
-            }
+  /**
+   * Invoke a single SPI message processor. Exceptions are not thrown but
+   * stored in the result.
+   */
+  @Nonnull
+  private SPIProcessorOutcome _invokeSPI (@Nonnull final IAS4ServletMessageProcessorSPI aProcessor,
+                                          @Nonnull final HttpHeaderMap aHttpHeaders,
+                                          @Nullable final Ebms3UserMessage aEbmsUserMessage,
+                                          @Nullable final Ebms3SignalMessage aEbmsSignalMessage,
+                                          @Nullable final Node aPayloadNode,
+                                          @Nullable final ICommonsList <WSS4JAttachment> aDecryptedAttachments,
+                                          @Nullable final IPMode aPMode,
+                                          @Nonnull final IAS4MessageState aState)
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Invoking AS4 message processor " + aProcessor + " for incoming message");
 
-            if (aResult.isFailure () && aResult.hasErrorMessage ())
-            {
-              aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
-                                                                               sMessageID,
-                                                                               "Invoked AS4 message processor SPI " +
-                                                                                           aProcessor +
-                                                                                           " on '" +
-                                                                                           sMessageID +
-                                                                                           "' returned a failure: " +
-                                                                                           aResult.getErrorMessage ()));
-            }
+    final ICommonsList <Ebms3Error> aProcessingErrorMessages = new CommonsArrayList <> ();
+    try
+    {
+      // Main processing
+      final AS4MessageProcessorResult aResult;
+      if (aEbmsUserMessage != null)
+      {
+        aResult = aProcessor.processAS4UserMessage (m_aMessageMetadata,
+                                                    aHttpHeaders,
+                                                    aEbmsUserMessage,
+                                                    aPMode,
+                                                    aPayloadNode,
+                                                    aDecryptedAttachments,
+                                                    aState,
+                                                    aProcessingErrorMessages);
+      }
+      else
+      {
+        aResult = aProcessor.processAS4SignalMessage (m_aMessageMetadata,
+                                                      aHttpHeaders,
+                                                      aEbmsSignalMessage,
+                                                      aPMode,
+                                                      aState,
+                                                      aProcessingErrorMessages);
+      }
+      return new SPIProcessorOutcome (aProcessor, aResult, aProcessingErrorMessages, null);
+    }
+    catch (final Exception ex)
+    {
+      return new SPIProcessorOutcome (aProcessor, null, aProcessingErrorMessages, ex);
+    }
+  }
 
-            // Stop processing
-            return;
-          }
+  /**
+   * Invoke a group of independent SPI message processors concurrently. The
+   * first processor is invoked in the current thread. The results are returned
+   * in the order of the processors.
+   */
+  @Nonnull
+  private ICommonsList <SPIProcessorOutcome> _invokeSPIsConcurrently (@Nonnull final List <IAS4ServletMessageProcessorSPI> aProcessors,
+                                                                       @Nonnull final HttpHeaderMap aHttpHeaders,
+                                                                       @Nullable final Ebms3UserMessage aEbmsUserMessage,
+                                                                       @Nullable final Ebms3SignalMessage aEbmsSignalMessage,
+                                                                       @Nullable final Node aPayloadNode,
+                                                                       @Nullable final ICommonsList <WSS4JAttachment> aDecryptedAttachments,
+                                                                       @Nullable final IPMode aPMode,
+                                                                       @Nonnull final IAS4MessageState aState)
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Invoking " + aProcessors.size () + " independent AS4 message processors concurrently");
+
+    // Each processor running in another thread gets its own copy of the
+    // payload and the attachments. This is done upfront in the current thread,
+    // so that attachments that can only be read once are buffered only once.
+    final ICommonsList <Node> aPayloadNodeCopies = new CommonsArrayList <> ();
+    final ICommonsList <ICommonsList <WSS4JAttachment>> aAttachmentCopies = new CommonsArrayList <> ();
+    try
+    {
+      for (int i = 1; i < aProcessors.size (); ++i)
+      {
+        aPayloadNodeCopies.add (_createPayloadNodeCopy (aPayloadNode));
+        aAttachmentCopies.add (_createAttachmentCopies (aDecryptedAttachments));
+      }
+    }
+    catch (final Exception ex)
+    {
+      // Report the error on the first processor, so that no processor is
+      // invoked at all
+      return new CommonsArrayList <> (new SPIProcessorOutcome (aProcessors.get (0), null, new CommonsArrayList <> (), ex));
+    }
 
-          // SPI invocation returned success and no errors
-          {
-            final String sAsyncResultURL = aResult.getAsyncResponseURL ();
-            if (StringHelper.hasText (sAsyncResultURL))
-            {
-              // URL present
-              if (aSPIResult.hasAsyncResponseURL ())
-              {
-                // A second processor returned a response URL - not allowed
-                final String sErrorMsg = "Invoked AS4 message processor SPI " +
-                                         aProcessor +
-                                         " on '" +
-                                         sMessageID +
-                                         "' failed: the previous processor already returned an async response URL; it is not possible to handle two URLs. Please check your SPI implementations.";
-                LOGGER.error (sErrorMsg);
-                aErrorMessagesTarget.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsEbms3Error (m_aLocale, sMessageID, sErrorMsg));
-                // Stop processing
-                return;
-              }
-              aSPIResult.setAsyncResponseURL (sAsyncResultURL);
-              LOGGER.info ("Using asynchronous response URL '" + sAsyncResultURL + "' for message ID '" + sMessageID + "'");
-            }
-          }
+    final ICommonsList <Future <SPIProcessorOutcome>> aFutures = new CommonsArrayList <> ();
+    for (int i = 1; i < aProcessors.size (); ++i)
+    {
+      final IAS4ServletMessageProcessorSPI aProcessor = aProcessors.get (i);
+      final Node aWorkerPayloadNode = aPayloadNodeCopies.get (i - 1);
+      final ICommonsList <WSS4JAttachment> aWorkerAttachments = aAttachmentCopies.get (i - 1);
+      aFutures.add (SPIExecutorHolder.EXECUTOR.submit ( () -> _invokeSPI (aProcessor,
+                                                                          aHttpHeaders,
+                                                                          aEbmsUserMessage,
+                                                                          aEbmsSignalMessage,
+                                                                          aWorkerPayloadNode,
+                                                                          aWorkerAttachments,
+                                                                          aPMode,
+                                                                          aState)));
+    }
 
-          if (bIsUserMessage)
-          {
-            // User message specific processing result handling
+    final ICommonsList <SPIProcessorOutcome> ret = new CommonsArrayList <> (aProcessors.size ());
+    ret.add (_invokeSPI (aProcessors.get (0),
+                         aHttpHeaders,
+                         aEbmsUserMessage,
+                         aEbmsSignalMessage,
+                         aPayloadNode,
+                         aDecryptedAttachments,
+                         aPMode,
+                         aState));
+    int nIndex = 1;
+    for (final Future <SPIProcessorOutcome> aFuture : aFutures)
+    {
+      final IAS4ServletMessageProcessorSPI aProcessor = aProcessors.get (nIndex++);
+      try
+      {
+        ret.add (aFuture.get ());
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        ret.add (new SPIProcessorOutcome (aProcessor, null, new CommonsArrayList <> (), ex));
+      }
+      catch (final ExecutionException ex)
+      {
+        ret.add (new SPIProcessorOutcome (aProcessor, null, new CommonsArrayList <> (), ex));
+      }
+    }
+    return ret;
+  }
 
-            // empty
-          }
-          else
-          {
-            // Signal message specific processing result handling
-            assert aResult instanceof AS4SignalMessageProcessorResult;
+  @Nullable
+  private static Node _createPayloadNodeCopy (@Nullable final Node aPayloadNode)
+  {
+    if (aPayloadNode == null)
+      return null;
+    final Document aDoc = XMLFactory.newDocument ();
+    final Node aCopy = aDoc.importNode (aPayloadNode, true);
+    aDoc.appendChild (aCopy);
+    return aCopy;
+  }
 
-            if (aEbmsSignalMessage.getReceipt () == null)
-            {
-              final Ebms3UserMessage aPullReturnUserMsg = ((AS4SignalMessageProcessorResult) aResult).getPullReturnUserMessage ();
-              if (aSPIResult.hasPullReturnUserMsg ())
-              {
-                // A second processor has committed a response to the
-                // pullrequest
-                // Which is not allowed since only one response can be sent back
-                // to the pullrequest initiator
-                if (aPullReturnUserMsg != null)
-                {
-                  final String sErrorMsg = "Invoked AS4 message processor SPI " +
-                                           aProcessor +
-                                           " on '" +
-                                           sMessageID +
-                                           "' failed: the previous processor already returned a usermessage; it is not possible to return two usermessage. Please check your SPI implementations.";
-                  LOGGER.warn (sErrorMsg);
-                  aErrorMessagesTarget.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsEbms3Error (m_aLocale, sMessageID, sErrorMsg));
-                  // Stop processing
-                  return;
-                }
-              }
-              else
-              {
-                // Initial return user msg
-                if (aPullReturnUserMsg == null)
-                {
-                  // No message contained in the MPC
-                  final String sErrorMsg = "Invoked AS4 message processor SPI " +
-                                           aProcessor +
-                                           " on '" +
-                                           sMessageID +
-                                           "' returned a failure: no UserMessage contained in the MPC";
-                  LOGGER.warn (sErrorMsg);
-                  aErrorMessagesTarget.add (EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getAsEbms3Error (m_aLocale,
-                                                                                                             sMessageID,
-                                                                                                             sErrorMsg));
-                  // Stop processing
-                  return;
-                }
+  @Nullable
+  private static ICommonsList <WSS4JAttachment> _createAttachmentCopies (@Nullable final ICommonsList <WSS4JAttachment> aAttachments) throws IOException
+  {
+    if (aAttachments == null)
+      return null;
+    final ICommonsList <WSS4JAttachment> ret = new CommonsArrayList <> (aAttachments.size ());
+    for (final WSS4JAttachment aAttachment : aAttachments)
+      ret.add (aAttachment.createIndependentCopy ());
+    return ret;
+  }
 
-                // We have something :)
-                aSPIResult.setPullReturnUserMsg (aPullReturnUserMsg);
-              }
-            }
-            else
-            {
-              if (LOGGER.isDebugEnabled ())
-                LOGGER.debug ("The AS4 EbmsSignalMessage already has a Receipt");
-            }
-          }
+  /**
+   * Merge the outcome of a single SPI message processor into the overall
+   * result.
+   *
+   * @return {@link EContinue#BREAK} if processing should be stopped.
+   */
+  @Nonnull
+  private EContinue _mergeSPIOutcome (@Nonnull final SPIProcessorOutcome aOutcome,
+                                      @Nonnull final String sMessageID,
+                                      @Nullable final Ebms3SignalMessage aEbmsSignalMessage,
+                                      @Nonnull final ICommonsList <Ebms3Error> aErrorMessagesTarget,
+                                      @Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachmentsTarget,
+                                      @Nonnull final SPIInvocationResult aSPIResult)
+  {
+    final IAS4ServletMessageProcessorSPI aProcessor = aOutcome.m_aProcessor;
+    final AS4MessageProcessorResult aResult = aOutcome.m_aResult;
+    final ICommonsList <Ebms3Error> aProcessingErrorMessages = aOutcome.m_aProcessingErrorMessages;
 
-          // Add response attachments, payloads
-          aResult.addAllAttachmentsTo (aResponseAttachmentsTarget);
+    final Exception aException = aOutcome.m_aException;
+    if (aException instanceof AS4DecompressException)
+    {
+      LOGGER.error ("Failed to decompress AS4 payload", aException);
+      // Hack for invalid GZip content from WSS4JAttachment.getSourceStream
+      aErrorMessagesTarget.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (m_aLocale, sMessageID));
+      return EContinue.BREAK;
+    }
+    if (aException instanceof RuntimeException)
+    {
+      // Re-throw
+      throw (RuntimeException) aException;
+    }
+    if (aException != null)
+      throw new IllegalStateException ("Error processing incoming AS4 message with processor " + aProcessor, aException);
 
-          if (LOGGER.isDebugEnabled ())
-            LOGGER.debug ("Successfully invoked AS4 message processor " + aProcessor);
-        }
-        catch (final AS4DecompressException ex)
+    // Result returned?
+    if (aResult == null)
+      throw new IllegalStateException ("No result object present from AS4 message processor " +
+                                       aProcessor +
+                                       " - this is a programming error");
+
+    if (aProcessingErrorMessages.isNotEmpty () || aResult.isFailure ())
+    {
+      if (aProcessingErrorMessages.isNotEmpty ())
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("AS4 message processor " + aProcessor + " had processing errors - breaking. Details: " + aProcessingErrorMessages);
+
+        if (aResult.isSuccess ())
+          LOGGER.warn ("Processing errors are present but success was returned by a previous AS4 message processor " +
+                       aProcessor +
+                       " - considering the whole processing to be failed instead");
+
+        aErrorMessagesTarget.addAll (aProcessingErrorMessages);
+      }
+
+      if (aResult.isFailure () && aResult.hasErrorMessage ())
+      {
+        aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                         sMessageID,
+                                                                         "Invoked AS4 message processor SPI " +
+                                                                                     aProcessor +
+                                                                                     " on '" +
+                                                                                     sMessageID +
+                                                                                     "' returned a failure: " +
+                                                                                     aResult.getErrorMessage ()));
+      }
+
+      // Stop processing
+      return EContinue.BREAK;
+    }
+
+    // SPI invocation returned success and no errors
+    {
+      final String sAsyncResultURL = aResult.getAsyncResponseURL ();
+      if (StringHelper.hasText (sAsyncResultURL))
+      {
+        // URL present
+        if (aSPIResult.hasAsyncResponseURL ())
         {
-          LOGGER.error ("Failed to decompress AS4 payload", ex);
-          // Hack for invalid GZip content from WSS4JAttachment.getSourceStream
-          aErrorMessagesTarget.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (m_aLocale, sMessageID));
-          return;
+          // A second processor returned a response URL - not allowed
+          final String sErrorMsg = "Invoked AS4 message processor SPI " +
+                                   aProcessor +
+                                   " on '" +
+                                   sMessageID +
+                                   "' failed: the previous processor already returned an async response URL; it is not possible to handle two URLs. Please check your SPI implementations.";
+          LOGGER.error (sErrorMsg);
+          aErrorMessagesTarget.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsEbms3Error (m_aLocale, sMessageID, sErrorMsg));
+          // Stop processing
+          return EContinue.BREAK;
         }
-        catch (final RuntimeException ex)
+        aSPIResult.setAsyncResponseURL (sAsyncResultURL);
+        LOGGER.info ("Using asynchronous response URL '" + sAsyncResultURL + "' for message ID '" + sMessageID + "'");
+      }
+    }
+
+    if (aEbmsSignalMessage == null)
+    {
+      // User message specific processing result handling
+
+      // empty
+    }
+    else
+    {
+      // Signal message specific processing result handling
+      assert aResult instanceof AS4SignalMessageProcessorResult;
+
+      if (aEbmsSignalMessage.getReceipt () == null)
+      {
+        final Ebms3UserMessage aPullReturnUserMsg = ((AS4SignalMessageProcessorResult) aResult).getPullReturnUserMessage ();
+        if (aSPIResult.hasPullReturnUserMsg ())
         {
-          // Re-throw
-          throw ex;
+          // A second processor has committed a response to the
+          // pullrequest
+          // Which is not allowed since only one response can be sent back
+          // to the pullrequest initiator
+          if (aPullReturnUserMsg != null)
+          {
+            final String sErrorMsg = "Invoked AS4 message processor SPI " +
+                                     aProcessor +
+                                     " on '" +
+                                     sMessageID +
+                                     "' failed: the previous processor already returned a usermessage; it is not possible to return two usermessage. Please check your SPI implementations.";
+            LOGGER.warn (sErrorMsg);
+            aErrorMessagesTarget.add (EEbmsError.EBMS_VALUE_INCONSISTENT.getAsEbms3Error (m_aLocale, sMessageID, sErrorMsg));
+            // Stop processing
+            return EContinue.BREAK;
+          }
         }
-        catch (final Exception ex)
+        else
         {
-          throw new IllegalStateException ("Error processing incoming AS4 message with processor " + aProcessor, ex);
+          // Initial return user msg
+          if (aPullReturnUserMsg == null)
+          {
+            // No message contained in the MPC
+            final String sErrorMsg = "Invoked AS4 message processor SPI " +
+                                     aProcessor +
+                                     " on '" +
+                                     sMessageID +
+                                     "' returned a failure: no UserMessage contained in the MPC";
+            LOGGER.warn (sErrorMsg);
+            aErrorMessagesTarget.add (EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getAsEbms3Error (m_aLocale, sMessageID, sErrorMsg));
+            // Stop processing
+            return EContinue.BREAK;
+          }
+
+          // We have something :)
+          aSPIResult.setPullReturnUserMsg (aPullReturnUserMsg);
         }
+      }
+      else
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("The AS4 EbmsSignalMessage already has a Receipt");
+      }
+    }
 
-    // Remember success
-    aSPIResult.setSuccess (true);
+    // Add response attachments, payloads
+    aResult.addAllAttachmentsTo (aResponseAttachmentsTarget);
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Successfully invoked AS4 message processor " + aProcessor);
+    return EContinue.CONTINUE;
   }
 
   private void _invokeSPIsForResponse (@Nonnull final IAS4MessageState aState,
@@ -1301,7 +1611,18 @@ public class AS4RequestHandler implements AutoCloseable
     // * Exactly one UserMessage or SignalMessage
     // * No ping/test message
     // * No Duplicate message ID
-    final boolean bCanInvokeSPIs = aErrorMessagesTarget.isEmpty () && !aState.isPingMessage ();
+    boolean bCanInvokeSPIs = aErrorMessagesTarget.isEmpty () && !aState.isPingMessage ();
+    if (bCanInvokeSPIs && m_aCancellation != null && !m_aCancellation.tryStartDelivery ())
+    {
+      // E.g. timeout in the asynchronous servlet - nothing was delivered
+      LOGGER.warn ("Not invoking SPIs, because the processing of message with Message ID '" + sMessageID + "' was cancelled");
+      // Allow the sender to retry the message
+      _allowResend (sMessageID);
+      aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                       sMessageID,
+                                                                       "The processing of the message was cancelled - please retry later"));
+      bCanInvokeSPIs = false;
+    }
     if (bCanInvokeSPIs)
     {
       // PMode may be null for receipts
@@ -1310,21 +1631,43 @@ public class AS4RequestHandler implements AutoCloseable
           aPMode.getMEPBinding ().isAsynchronousInitiator () ||
           aState.getEffectivePModeLegNumber () != 1)
       {
-        // Call synchronous
-
-        // Might add to aErrorMessages
-        // Might add to aResponseAttachments
-        // Might add to m_aPullReturnUserMsg
-        _invokeSPIsForIncoming (aHttpHeaders,
-                                aEbmsUserMessage,
-                                aEbmsSignalMessage,
-                                aPayloadNode,
-                                aDecryptedAttachments,
-                                aPMode,
-                                aState,
-                                aErrorMessagesTarget,
-                                aResponseAttachments,
-                                aSPIResult);
+        if (aEbmsUserMessage != null && aPMode != null && aPMode.getMEP ().isOneWay () && AS4Configuration.isInboxEnabled ())
+        {
+          // Fast acknowledgement: persist the message and invoke the SPIs
+          // afterwards
+          try
+          {
+            AS4Inbox.getInstance ().enqueue (m_aMessageMetadata, aHttpHeaders, aState, aDecryptedAttachments);
+            aSPIResult.setSuccess (true);
+          }
+          catch (final IOException ex)
+          {
+            LOGGER.error ("Failed to store message with ID '" + sMessageID + "' in the inbox", ex);
+            // Allow the sender to retry the message
+            _allowResend (sMessageID);
+            aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                             sMessageID,
+                                                                             "Failed to store the message - please retry later"));
+          }
+        }
+        else
+        {
+          // Call synchronous
+
+          // Might add to aErrorMessages
+          // Might add to aResponseAttachments
+          // Might add to m_aPullReturnUserMsg
+          _invokeSPIsForIncoming (aHttpHeaders,
+                                  aEbmsUserMessage,
+                                  aEbmsSignalMessage,
+                                  aPayloadNode,
+                                  aDecryptedAttachments,
+                                  aPMode,
+                                  aState,
+                                  aErrorMessagesTarget,
+                                  aResponseAttachments,
+                                  aSPIResult);
+        }
         if (aSPIResult.isFailure ())
           LOGGER.warn ("Error invoking synchronous SPIs");
         else
@@ -1420,6 +1763,13 @@ public class AS4RequestHandler implements AutoCloseable
           // Use the prebuilt entity for dumping
           _invokeSPIsForResponse (aState, aAsyncResponseFactory, aHttpEntity, eSoapVersion.getMimeType (), sResponseMessageID);
 
+          if (AS4Configuration.isOutboxEnabled ())
+          {
+            // Persist and deliver in the background
+            AS4Outbox.getInstance ().enqueue (sAsyncResponseURL, sMessageID, aHttpEntity, m_aOutgoingDumper, m_aRetryCallback);
+            return;
+          }
+
           // invoke client with new document
           final BasicHttpPoster aSender = new BasicHttpPoster ();
           final Document aAsyncResponse;
@@ -1444,9 +1794,22 @@ public class AS4RequestHandler implements AutoCloseable
           AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
                                      XMLWriter.getNodeAsString (aAsyncResponse, AS4HttpDebug.getDebugXMLWriterSettings ()));
         };
-        final CompletableFuture <Void> aFuture = PhotonWorkerPool.getInstance ().runThrowing (CAS4.LIB_NAME + " async processing", r);
+        CompletableFuture <Void> aFuture = null;
+        try
+        {
+          aFuture = AS4AsyncResponseExecutor.getInstance ().submit (CAS4.LIB_NAME + " async processing", r);
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          LOGGER.error ("Rejecting message with Message ID '" + sMessageID + "', because the asynchronous processing queue is full");
+          // Allow the sender to resend the same message later
+          _allowResend (sMessageID);
+          aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                           sMessageID,
+                                                                           "The message cannot be processed at the moment - please retry later"));
+        }
 
-        if (m_aSoapProcessingFinalizedCB != null)
+        if (aFuture != null && m_aSoapProcessingFinalizedCB != null)
         {
           // Give the outside world the possibility to get notified when the
           // processing is done
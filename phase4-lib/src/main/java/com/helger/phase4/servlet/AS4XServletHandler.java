@@ -295,6 +295,11 @@ public class AS4XServletHandler implements IXServletSimpleHandler
 
     try (final AS4RequestHandler aHandler = new AS4RequestHandler (aCF, aPModeResolver, aIAF, aMessageMetadata))
     {
+      // Set e.g. by the asynchronous servlet
+      final AS4RequestCancellation aCancellation = aRequestScope.attrs ().getCastedValue (AS4RequestCancellation.REQUEST_ATTR);
+      if (aCancellation != null)
+        aHandler.setCancellation (aCancellation);
+
       // Customize before handling
       if (aHandlerCustomizer != null)
       {
@@ -48,7 +48,6 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsSet;
 import com.helger.commons.error.list.ErrorList;
 import com.helger.commons.io.file.FileHelper;
-import com.helger.commons.io.stream.HasInputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
@@ -192,7 +191,7 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
         final File aTempFile = aState.getResourceHelper ().createTempFile ();
         StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aResponseAttachment.getSourceStream (),
                                                               FileHelper.getBufferedOutputStream (aTempFile));
-        aResponseAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
+        aResponseAttachment.setSourceFile (aTempFile);
       }
 
       // Remember in State
@@ -43,6 +43,29 @@ import com.helger.phase4.servlet.IAS4MessageState;
 @IsSPIInterface
 public interface IAS4ServletMessageProcessorSPI extends Serializable
 {
+  /**
+   * Check if this processor is independent of all other processors. Adjacent
+   * independent processors (in the order of registration) are invoked
+   * concurrently, whereas dependent processors are always invoked alone, after
+   * all previous processors finished. Results of concurrently invoked
+   * processors are merged in the order of registration. Independent
+   * processors must be thread-safe and must not rely on thread bound state
+   * (like the current request scope). They are also invoked if a previous
+   * processor of the same group fails - only their results are ignored in
+   * that case. Each concurrently invoked processor gets its own copy of the
+   * payload node and of the incoming attachments, but the user message, the
+   * HTTP headers and the message state are shared and must not be modified.
+   *
+   * @return <code>true</code> if this processor may be invoked concurrently
+   *         with other independent processors, <code>false</code> if not. By
+   *         default <code>false</code> is returned.
+   * @since 1.3.9
+   */
+  default boolean isIndependent ()
+  {
+    return false;
+  }
+
   /**
    * Process incoming AS4 user message
    *
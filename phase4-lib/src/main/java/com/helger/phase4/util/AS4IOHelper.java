@@ -16,12 +16,25 @@
  */
 package com.helger.phase4.util;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.helger.commons.error.SingleError;
+import com.helger.commons.functional.IThrowingConsumer;
 import com.helger.commons.io.file.FileOperationManager;
 import com.helger.commons.io.file.LoggingFileOperationCallback;
+import com.helger.commons.io.stream.NonBlockingBufferedOutputStream;
+import com.helger.commons.io.stream.NonClosingOutputStream;
 
 /**
  * IO related helper classes
@@ -31,6 +44,7 @@ import com.helger.commons.io.file.LoggingFileOperationCallback;
 @Immutable
 public final class AS4IOHelper
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4IOHelper.class);
   private static final FileOperationManager FOM = new FileOperationManager ();
   static
   {
@@ -51,4 +65,72 @@ public final class AS4IOHelper
   {
     return SingleError.builderError ().errorText (sErrorText).build ();
   }
+
+  /**
+   * Write a file and force its content to the storage device before this
+   * method returns. An existing file is overwritten.
+   *
+   * @param aPath
+   *        The file to write. May not be <code>null</code>.
+   * @param aWriter
+   *        The consumer that writes the content to the provided stream.
+   *        Closing the stream has no effect. May not be <code>null</code>.
+   * @throws IOException
+   *         In case writing or forcing fails
+   * @since 1.3.9
+   */
+  public static void writeFileAndForce (@Nonnull final Path aPath,
+                                        @Nonnull final IThrowingConsumer <? super OutputStream, IOException> aWriter) throws IOException
+  {
+    try (final FileChannel aChannel = FileChannel.open (aPath,
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING,
+                                                        StandardOpenOption.WRITE))
+    {
+      final OutputStream aOS = new NonBlockingBufferedOutputStream (Channels.newOutputStream (aChannel));
+      aWriter.accept (new NonClosingOutputStream (aOS));
+      aOS.flush ();
+      aChannel.force (true);
+    }
+  }
+
+  /**
+   * Force the content of an existing file to the storage device before this
+   * method returns.
+   *
+   * @param aPath
+   *        The file to force. May not be <code>null</code>.
+   * @throws IOException
+   *         In case the file cannot be opened or forced
+   * @since 1.3.9
+   */
+  public static void forceFile (@Nonnull final Path aPath) throws IOException
+  {
+    try (final FileChannel aChannel = FileChannel.open (aPath, StandardOpenOption.WRITE))
+    {
+      aChannel.force (true);
+    }
+  }
+
+  /**
+   * Force the entries of the provided directory to the storage device. This is
+   * required to make created, renamed and deleted files durable. Not all
+   * platforms support this (e.g. Windows), so errors are only logged.
+   *
+   * @param aDir
+   *        The directory to force. May not be <code>null</code>.
+   * @since 1.3.9
+   */
+  public static void forceDirectory (@Nonnull final Path aDir)
+  {
+    try (final FileChannel aChannel = FileChannel.open (aDir, StandardOpenOption.READ))
+    {
+      aChannel.force (true);
+    }
+    catch (final IOException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to force directory " + aDir + ": " + ex.getMessage ());
+    }
+  }
 }
@@ -0,0 +1,755 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.functional.IThrowingFunction;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A bounded, thread-safe cache for the results of expensive remote lookups
+ * (like SMP queries). Features:
+ * <ul>
+ * <li>Positive results are cached for a certain time to live</li>
+ * <li><code>null</code> results ("not found") are cached for a separate,
+ * usually shorter, time to live. Exceptions are never cached.</li>
+ * <li>Concurrent lookups for the same key are coalesced, so that only one
+ * thread performs the lookup while the others wait for its result or
+ * exception</li>
+ * <li>Explicit invalidation of single keys, of keys matching a filter or of
+ * everything</li>
+ * <li>If the maximum size is exceeded, expired and afterwards least recently
+ * used entries are evicted</li>
+ * <li>Optionally positive entries that are requested shortly before they
+ * expire are refreshed in the background, so that frequently used entries
+ * never expire for the callers. See
+ * {@link #setBackgroundRefresh(Duration, Executor)}</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ * @param <KEYTYPE>
+ *        The cache key type. Must implement equals and hashCode.
+ * @param <VALUETYPE>
+ *        The cached value type.
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4LookupCache <KEYTYPE, VALUETYPE>
+{
+  /** The number of threads of the shared default refresh executor */
+  public static final int DEFAULT_REFRESH_THREADS = 2;
+  /** The maximum number of queued refreshes of the shared default executor */
+  public static final int DEFAULT_REFRESH_QUEUE_SIZE = 100;
+
+  /**
+   * The source of a value returned by
+   * {@link AS4LookupCache#getOrLookup(Object, IThrowingFunction, IThrowingFunction, Consumer)}.
+   *
+   * @author Philip Helger
+   */
+  public enum ELookupSource
+  {
+    /** The value was taken from the cache */
+    CACHED,
+    /** The lookup was performed by the calling thread */
+    LOOKED_UP,
+    /** The calling thread waited for the lookup of another thread */
+    COALESCED
+  }
+
+  private static final class Entry <VALUETYPE>
+  {
+    private final VALUETYPE m_aValue;
+    private final long m_nExpirationNanos;
+    private volatile long m_nLastAccessNanos;
+    private final AtomicBoolean m_aRefreshing = new AtomicBoolean (false);
+
+    Entry (@Nullable final VALUETYPE aValue, final long nNowNanos, final long nTTLNanos)
+    {
+      m_aValue = aValue;
+      m_nExpirationNanos = nNowNanos + nTTLNanos;
+      m_nLastAccessNanos = nNowNanos;
+    }
+
+    boolean isExpired (final long nNowNanos)
+    {
+      return nNowNanos - m_nExpirationNanos >= 0;
+    }
+
+    boolean isExpiringWithin (final long nNowNanos, final long nDurationNanos)
+    {
+      return nNowNanos + nDurationNanos - m_nExpirationNanos >= 0;
+    }
+  }
+
+  private static final class SingletonHolder
+  {
+    static final ExecutorService INSTANCE;
+    static
+    {
+      // Refreshes are optional - a full queue just rejects further refreshes
+      INSTANCE = AS4ThreadHelper.createBoundedExecutor ("phase4-cache-refresh-", DEFAULT_REFRESH_THREADS, DEFAULT_REFRESH_QUEUE_SIZE);
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4LookupCache.class);
+
+  private final String m_sName;
+  private final Duration m_aTTL;
+  private final Duration m_aNegativeTTL;
+  private final int m_nMaxSize;
+  private final Map <KEYTYPE, Entry <VALUETYPE>> m_aEntries = new ConcurrentHashMap <> ();
+  private final Map <KEYTYPE, CompletableFuture <VALUETYPE>> m_aPending = new ConcurrentHashMap <> ();
+  private final ReentrantLock m_aEvictionLock = new ReentrantLock ();
+  // Incremented on each bulk invalidation to avoid caching stale in-flight
+  // results. Single keys are invalidated via m_aPending.
+  private final AtomicLong m_aInvalidationCount = new AtomicLong (0);
+  private final AtomicLong m_aHitCount = new AtomicLong (0);
+  private final AtomicLong m_aLookupCount = new AtomicLong (0);
+  private final AtomicLong m_aCoalescedCount = new AtomicLong (0);
+  private final AtomicLong m_aRefreshCount = new AtomicLong (0);
+  // Background refresh is disabled by default
+  private volatile Duration m_aRefreshAhead;
+  private volatile Executor m_aRefreshExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param sName
+   *        The name of the cache for logging. May neither be <code>null</code>
+   *        nor empty.
+   * @param aTTL
+   *        The time to live of positive results. May not be <code>null</code>
+   *        and must be positive.
+   * @param aNegativeTTL
+   *        The time to live of <code>null</code> results. May not be
+   *        <code>null</code>. Use {@link Duration#ZERO} to disable negative
+   *        caching.
+   * @param nMaxSize
+   *        The maximum number of entries. Must be &gt; 0.
+   */
+  public AS4LookupCache (@Nonnull @Nonempty final String sName,
+                         @Nonnull final Duration aTTL,
+                         @Nonnull final Duration aNegativeTTL,
+                         @Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.notNull (aTTL, "TTL");
+    ValueEnforcer.isFalse (aTTL.isNegative () || aTTL.isZero (), "TTL must be positive");
+    ValueEnforcer.notNull (aNegativeTTL, "NegativeTTL");
+    ValueEnforcer.isFalse (aNegativeTTL.isNegative (), "NegativeTTL may not be negative");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_sName = sName;
+    m_aTTL = aTTL;
+    m_aNegativeTTL = aNegativeTTL;
+    m_nMaxSize = nMaxSize;
+  }
+
+  /**
+   * @return The name of the cache as provided in the constructor. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getName ()
+  {
+    return m_sName;
+  }
+
+  /**
+   * @return The time to live of positive results. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getTTL ()
+  {
+    return m_aTTL;
+  }
+
+  /**
+   * @return The time to live of <code>null</code> results. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getNegativeTTL ()
+  {
+    return m_aNegativeTTL;
+  }
+
+  /**
+   * @return The maximum number of entries. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  /**
+   * @return The duration before the expiration of a positive entry in which a
+   *         cache hit triggers a background refresh. May be <code>null</code>
+   *         if background refresh is disabled.
+   */
+  @Nullable
+  public final Duration getRefreshAhead ()
+  {
+    return m_aRefreshAhead;
+  }
+
+  /**
+   * @return <code>true</code> if background refresh is enabled,
+   *         <code>false</code> if not.
+   */
+  public final boolean isBackgroundRefreshEnabled ()
+  {
+    return m_aRefreshAhead != null;
+  }
+
+  /**
+   * Enable or disable the background refresh of positive entries. If enabled,
+   * a cache hit on an entry that expires within the provided duration triggers
+   * an asynchronous lookup of the same key, while the caller still receives
+   * the cached value. Only entries that are requested are refreshed, so rarely
+   * used entries expire normally. If the refresh fails, the old entry is kept
+   * until it expires.
+   *
+   * @param aRefreshAhead
+   *        The duration before the expiration in which a hit triggers the
+   *        refresh. Must be less than the TTL. May be <code>null</code> to
+   *        disable background refresh.
+   * @param aExecutor
+   *        The executor to run the refresh on. May be <code>null</code> to use
+   *        a shared default executor with {@link #DEFAULT_REFRESH_THREADS}
+   *        threads, that drops refreshes if more than
+   *        {@link #DEFAULT_REFRESH_QUEUE_SIZE} are waiting.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4LookupCache <KEYTYPE, VALUETYPE> setBackgroundRefresh (@Nullable final Duration aRefreshAhead,
+                                                                        @Nullable final Executor aExecutor)
+  {
+    if (aRefreshAhead != null)
+    {
+      ValueEnforcer.isFalse (aRefreshAhead.isNegative () || aRefreshAhead.isZero (), "RefreshAhead must be positive");
+      ValueEnforcer.isTrue (aRefreshAhead.compareTo (m_aTTL) < 0, "RefreshAhead must be less than the TTL");
+    }
+    m_aRefreshExecutor = aExecutor != null ? aExecutor : SingletonHolder.INSTANCE;
+    m_aRefreshAhead = aRefreshAhead;
+    return this;
+  }
+
+  @Nullable
+  private Entry <VALUETYPE> _getValidEntry (@Nonnull final KEYTYPE aKey, final long nNowNanos)
+  {
+    final Entry <VALUETYPE> aEntry = m_aEntries.get (aKey);
+    if (aEntry == null)
+      return null;
+    if (aEntry.isExpired (nNowNanos))
+    {
+      m_aEntries.remove (aKey, aEntry);
+      return null;
+    }
+    aEntry.m_nLastAccessNanos = nNowNanos;
+    return aEntry;
+  }
+
+  private void _evict ()
+  {
+    if (!m_aEvictionLock.tryLock ())
+    {
+      // Another thread is already evicting
+      return;
+    }
+    try
+    {
+      final long nNowNanos = System.nanoTime ();
+      m_aEntries.values ().removeIf (x -> x.isExpired (nNowNanos));
+
+      int nEvicted = 0;
+      while (m_aEntries.size () > m_nMaxSize)
+      {
+        // Remove the least recently used entry
+        KEYTYPE aOldestKey = null;
+        long nOldestAccess = 0;
+        for (final Map.Entry <KEYTYPE, Entry <VALUETYPE>> aEntry : m_aEntries.entrySet ())
+        {
+          final long nAccess = aEntry.getValue ().m_nLastAccessNanos;
+          if (aOldestKey == null || nAccess - nOldestAccess < 0)
+          {
+            aOldestKey = aEntry.getKey ();
+            nOldestAccess = nAccess;
+          }
+        }
+        if (aOldestKey == null)
+          break;
+        m_aEntries.remove (aOldestKey);
+        nEvicted++;
+      }
+      if (nEvicted > 0 && LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Evicted " + nEvicted + " least recently used entries from cache '" + m_sName + "'");
+    }
+    finally
+    {
+      m_aEvictionLock.unlock ();
+    }
+  }
+
+  @Nullable
+  private Entry <VALUETYPE> _put (@Nonnull final KEYTYPE aKey, @Nullable final VALUETYPE aValue, final long nInvalidationCount)
+  {
+    final long nTTLNanos = (aValue != null ? m_aTTL : m_aNegativeTTL).toNanos ();
+    if (nTTLNanos <= 0)
+      return null;
+
+    // Don't cache results that were looked up before an invalidation
+    if (m_aInvalidationCount.get () != nInvalidationCount)
+      return null;
+
+    final Entry <VALUETYPE> aEntry = new Entry <> (aValue, System.nanoTime (), nTTLNanos);
+    m_aEntries.put (aKey, aEntry);
+    if (m_aEntries.size () > m_nMaxSize)
+      _evict ();
+    return aEntry;
+  }
+
+  @Nullable
+  private <EXTYPE extends Exception> VALUETYPE _lookup (@Nonnull final KEYTYPE aKey,
+                                                        @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aLookup,
+                                                        @Nonnull final CompletableFuture <VALUETYPE> aOwnFuture) throws EXTYPE
+  {
+    final long nInvalidationCount = m_aInvalidationCount.get ();
+    m_aLookupCount.incrementAndGet ();
+    final VALUETYPE ret = aLookup.apply (aKey);
+    // Don't cache the result if the key was removed in the meantime
+    if (m_aPending.get (aKey) == aOwnFuture)
+    {
+      final Entry <VALUETYPE> aEntry = _put (aKey, ret, nInvalidationCount);
+      // The key may have been removed while putting
+      if (aEntry != null && m_aPending.get (aKey) != aOwnFuture)
+        m_aEntries.remove (aKey, aEntry);
+    }
+    return ret;
+  }
+
+  @SuppressWarnings ("unchecked")
+  @Nullable
+  private static <VALUETYPE, EXTYPE extends Exception> VALUETYPE _getCoalesced (@Nonnull final CompletableFuture <VALUETYPE> aFuture) throws EXTYPE,
+                                                                                                                                         InterruptedException
+  {
+    try
+    {
+      return aFuture.get ();
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      if (aCause instanceof Error)
+        throw (Error) aCause;
+      // The lookup function may only throw EXTYPE
+      throw (EXTYPE) aCause;
+    }
+  }
+
+  private <EXTYPE extends Exception> void _scheduleRefreshIfNeeded (@Nonnull final KEYTYPE aKey,
+                                                                    @Nonnull final Entry <VALUETYPE> aEntry,
+                                                                    @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aLookup)
+  {
+    final Duration aRefreshAhead = m_aRefreshAhead;
+    // Negative entries are not refreshed
+    if (aRefreshAhead == null || aEntry.m_aValue == null)
+      return;
+    if (!aEntry.isExpiringWithin (System.nanoTime (), aRefreshAhead.toNanos ()))
+      return;
+    // Only one refresh per entry
+    if (!aEntry.m_aRefreshing.compareAndSet (false, true))
+      return;
+
+    final Runnable aRefresh = () -> {
+      try
+      {
+        final long nInvalidationCount = m_aInvalidationCount.get ();
+        m_aRefreshCount.incrementAndGet ();
+        final VALUETYPE aNewValue = aLookup.apply (aKey);
+        if (aNewValue != null)
+        {
+          // Don't replace an entry that was removed in the meantime
+          if (m_aEntries.get (aKey) == aEntry)
+            _put (aKey, aNewValue, nInvalidationCount);
+        }
+        else
+        {
+          // The value is gone - let the old entry expire regularly
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Background refresh in cache '" + m_sName + "' found nothing for key " + aKey);
+        }
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.warn ("Background refresh in cache '" +
+                     m_sName +
+                     "' failed for key " +
+                     aKey +
+                     " - keeping the old entry: " +
+                     ex.getClass ().getName () +
+                     " - " +
+                     ex.getMessage ());
+      }
+      finally
+      {
+        aEntry.m_aRefreshing.set (false);
+      }
+    };
+
+    try
+    {
+      m_aRefreshExecutor.execute (aRefresh);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      aEntry.m_aRefreshing.set (false);
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Background refresh in cache '" + m_sName + "' was rejected");
+    }
+  }
+
+  /**
+   * Get the cached value for the provided key or perform the lookup if it is
+   * not cached or expired. If another thread is currently performing the lookup
+   * for the same key, the result of that thread is used. If that lookup fails,
+   * its exception is thrown to all waiting threads as well, so all lookups for
+   * the same key should use the same lookup function. If background refresh is
+   * enabled, the provided lookup function may also be invoked asynchronously
+   * on another thread.
+   *
+   * @param <EXTYPE>
+   *        The exception type the lookup may throw
+   * @param aKey
+   *        The key to look up. May not be <code>null</code>.
+   * @param aLookup
+   *        The function to perform the real lookup if needed. May return
+   *        <code>null</code> to indicate that nothing was found. May not be
+   *        <code>null</code>.
+   * @return The cached or looked up value. May be <code>null</code>.
+   * @throws EXTYPE
+   *         If the lookup fails
+   */
+  @Nullable
+  public <EXTYPE extends Exception> VALUETYPE getOrLookup (@Nonnull final KEYTYPE aKey,
+                                                           @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aLookup) throws EXTYPE
+  {
+    return getOrLookup (aKey, aLookup, aLookup);
+  }
+
+  /**
+   * Get the cached value for the provided key or perform the lookup if it is
+   * not cached or expired. This is like
+   * {@link #getOrLookup(Object, IThrowingFunction)} but uses a separate lookup
+   * function for the background refresh, e.g. to bypass other caches used by
+   * the regular lookup.
+   *
+   * @param <EXTYPE>
+   *        The exception type the lookups may throw
+   * @param aKey
+   *        The key to look up. May not be <code>null</code>.
+   * @param aLookup
+   *        The function to perform the real lookup if needed. May return
+   *        <code>null</code> to indicate that nothing was found. May not be
+   *        <code>null</code>.
+   * @param aRefreshLookup
+   *        The function to perform the background refresh, invoked
+   *        asynchronously on another thread. May return <code>null</code> to
+   *        indicate that nothing was found. May not be <code>null</code>.
+   * @return The cached or looked up value. May be <code>null</code>.
+   * @throws EXTYPE
+   *         If the lookup fails
+   */
+  @Nullable
+  public <EXTYPE extends Exception> VALUETYPE getOrLookup (@Nonnull final KEYTYPE aKey,
+                                                           @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aLookup,
+                                                           @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aRefreshLookup) throws EXTYPE
+  {
+    return getOrLookup (aKey, aLookup, aRefreshLookup, null);
+  }
+
+  /**
+   * Get the cached value for the provided key or perform the lookup if it is
+   * not cached or expired. This is like
+   * {@link #getOrLookup(Object, IThrowingFunction, IThrowingFunction)} but
+   * additionally reports where the returned value came from, e.g. for
+   * statistics.
+   *
+   * @param <EXTYPE>
+   *        The exception type the lookups may throw
+   * @param aKey
+   *        The key to look up. May not be <code>null</code>.
+   * @param aLookup
+   *        The function to perform the real lookup if needed. May return
+   *        <code>null</code> to indicate that nothing was found. May not be
+   *        <code>null</code>.
+   * @param aRefreshLookup
+   *        The function to perform the background refresh, invoked
+   *        asynchronously on another thread. May return <code>null</code> to
+   *        indicate that nothing was found. May not be <code>null</code>.
+   * @param aSourceConsumer
+   *        The consumer that is invoked in the calling thread with the source
+   *        of the returned value. It is not invoked if the lookup fails. May be
+   *        <code>null</code>.
+   * @return The cached or looked up value. May be <code>null</code>.
+   * @throws EXTYPE
+   *         If the lookup fails
+   */
+  @Nullable
+  public <EXTYPE extends Exception> VALUETYPE getOrLookup (@Nonnull final KEYTYPE aKey,
+                                                           @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aLookup,
+                                                           @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aRefreshLookup,
+                                                           @Nullable final Consumer <? super ELookupSource> aSourceConsumer) throws EXTYPE
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aLookup, "Lookup");
+    ValueEnforcer.notNull (aRefreshLookup, "RefreshLookup");
+    final Consumer <? super ELookupSource> aRealSourceConsumer = aSourceConsumer != null ? aSourceConsumer : x -> {};
+
+    Entry <VALUETYPE> aEntry = _getValidEntry (aKey, System.nanoTime ());
+    if (aEntry != null)
+    {
+      m_aHitCount.incrementAndGet ();
+      _scheduleRefreshIfNeeded (aKey, aEntry, aRefreshLookup);
+      aRealSourceConsumer.accept (ELookupSource.CACHED);
+      return aEntry.m_aValue;
+    }
+
+    final CompletableFuture <VALUETYPE> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <VALUETYPE> aPendingFuture = m_aPending.putIfAbsent (aKey, aOwnFuture);
+    if (aPendingFuture != null)
+    {
+      // Another thread is already performing the lookup
+      m_aCoalescedCount.incrementAndGet ();
+      try
+      {
+        final VALUETYPE ret = AS4LookupCache.<VALUETYPE, EXTYPE> _getCoalesced (aPendingFuture);
+        aRealSourceConsumer.accept (ELookupSource.COALESCED);
+        return ret;
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        // Don't wait any longer, but perform the lookup directly
+        m_aLookupCount.incrementAndGet ();
+        final VALUETYPE ret = aLookup.apply (aKey);
+        aRealSourceConsumer.accept (ELookupSource.LOOKED_UP);
+        return ret;
+      }
+    }
+
+    try
+    {
+      // Maybe another thread finished the lookup in the meantime
+      aEntry = _getValidEntry (aKey, System.nanoTime ());
+      if (aEntry != null)
+      {
+        m_aHitCount.incrementAndGet ();
+        aOwnFuture.complete (aEntry.m_aValue);
+        aRealSourceConsumer.accept (ELookupSource.CACHED);
+        return aEntry.m_aValue;
+      }
+
+      final VALUETYPE ret = _lookup (aKey, aLookup, aOwnFuture);
+      aOwnFuture.complete (ret);
+      aRealSourceConsumer.accept (ELookupSource.LOOKED_UP);
+      return ret;
+    }
+    catch (final Exception ex)
+    {
+      // Pass the failure to all waiting threads
+      aOwnFuture.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      m_aPending.remove (aKey, aOwnFuture);
+      if (!aOwnFuture.isDone ())
+        aOwnFuture.completeExceptionally (new IllegalStateException ("Lookup in cache '" + m_sName + "' failed"));
+    }
+  }
+
+  /**
+   * Perform the lookup for the provided key in the calling thread and update
+   * the cache, independent of whether a valid entry is cached. If the lookup
+   * throws an exception or finds nothing while a positive entry is cached, the
+   * existing entry is kept. This is e.g. used to refresh entries on a
+   * schedule.
+   *
+   * @param <EXTYPE>
+   *        The exception type the lookup may throw
+   * @param aKey
+   *        The key to refresh. May not be <code>null</code>.
+   * @param aLookup
+   *        The function to perform the real lookup. May return
+   *        <code>null</code> to indicate that nothing was found. May not be
+   *        <code>null</code>.
+   * @return The looked up value. May be <code>null</code>.
+   * @throws EXTYPE
+   *         If the lookup fails
+   */
+  @Nullable
+  public <EXTYPE extends Exception> VALUETYPE refresh (@Nonnull final KEYTYPE aKey,
+                                                       @Nonnull final IThrowingFunction <? super KEYTYPE, ? extends VALUETYPE, EXTYPE> aLookup) throws EXTYPE
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aLookup, "Lookup");
+
+    final long nInvalidationCount = m_aInvalidationCount.get ();
+    m_aRefreshCount.incrementAndGet ();
+    final VALUETYPE ret = aLookup.apply (aKey);
+    if (ret == null)
+    {
+      final Entry <VALUETYPE> aEntry = _getValidEntry (aKey, System.nanoTime ());
+      if (aEntry != null && aEntry.m_aValue != null)
+      {
+        // Let the old entry expire regularly
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Refresh in cache '" + m_sName + "' found nothing for key " + aKey + " - keeping the old entry");
+        return ret;
+      }
+    }
+    _put (aKey, ret, nInvalidationCount);
+    return ret;
+  }
+
+  /**
+   * Remove the entry with the provided key. A lookup of this key that is
+   * currently in progress is not cached, and the next request performs a new
+   * lookup. Entries and lookups of other keys are not affected.
+   *
+   * @param aKey
+   *        The key to remove. May be <code>null</code>.
+   */
+  public void remove (@Nullable final KEYTYPE aKey)
+  {
+    if (aKey != null)
+    {
+      m_aPending.remove (aKey);
+      m_aEntries.remove (aKey);
+    }
+  }
+
+  /**
+   * Remove all entries whose key matches the provided filter.
+   *
+   * @param aFilter
+   *        The filter to use. May not be <code>null</code>.
+   */
+  public void removeIf (@Nonnull final Predicate <? super KEYTYPE> aFilter)
+  {
+    ValueEnforcer.notNull (aFilter, "Filter");
+    m_aInvalidationCount.incrementAndGet ();
+    m_aEntries.keySet ().removeIf (aFilter);
+  }
+
+  /**
+   * Remove all entries.
+   */
+  public void clear ()
+  {
+    m_aInvalidationCount.incrementAndGet ();
+    m_aEntries.clear ();
+  }
+
+  /**
+   * @return The number of contained entries, including the expired ones that
+   *         were not yet removed.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aEntries.size ();
+  }
+
+  /**
+   * @return The number of requests that were answered from the cache.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aHitCount.get ();
+  }
+
+  /**
+   * @return The number of real lookups performed.
+   */
+  @Nonnegative
+  public long getLookupCount ()
+  {
+    return m_aLookupCount.get ();
+  }
+
+  /**
+   * @return The number of requests that waited for the lookup of another
+   *         thread.
+   */
+  @Nonnegative
+  public long getCoalescedCount ()
+  {
+    return m_aCoalescedCount.get ();
+  }
+
+  /**
+   * @return The number of refreshes performed, in the background or via
+   *         {@link #refresh(Object, IThrowingFunction)}.
+   */
+  @Nonnegative
+  public long getRefreshCount ()
+  {
+    return m_aRefreshCount.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Name", m_sName)
+                                       .append ("TTL", m_aTTL)
+                                       .append ("NegativeTTL", m_aNegativeTTL)
+                                       .append ("MaxSize", m_nMaxSize)
+                                       .append ("RefreshAhead", m_aRefreshAhead)
+                                       .append ("Size", m_aEntries.size ())
+                                       .getToString ();
+  }
+}
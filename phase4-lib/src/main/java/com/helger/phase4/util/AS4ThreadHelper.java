@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * Thread related helper methods. If enabled via
+ * {@link AS4Configuration#isVirtualThreadsEnabled()} and supported by the
+ * runtime JDK (21+), the thread factories created in here produce virtual
+ * threads. As phase4 is compiled for Java 8, the virtual thread API is accessed
+ * via method handles.<br>
+ * Note: all locks used in phase4 are {@link java.util.concurrent.locks.Lock}
+ * based, so that blocking inside them does not pin the carrier thread. The few
+ * <code>synchronized</code> blocks only guard short in-memory operations.<br>
+ * Executors for blocking tasks should be created via
+ * {@link #createBoundedExecutor(String, int, int)}. With virtual threads it
+ * starts a new thread per task and only limits the number of concurrent tasks,
+ * so that slow partners don't block a small pool. Per-thread caches like the
+ * ones in {@link com.helger.phase4.marshaller.JAXBMarshallerPool} and
+ * {@link AS4XMLHelper} are then only reused within a single task.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class AS4ThreadHelper
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4ThreadHelper.class);
+
+  // Thread.ofVirtual ()
+  private static final MethodHandle MH_OF_VIRTUAL;
+  // Thread.Builder.OfVirtual.name (String, long)
+  private static final MethodHandle MH_NAME;
+  // Thread.Builder.factory ()
+  private static final MethodHandle MH_FACTORY;
+  static
+  {
+    MethodHandle aOfVirtual = null;
+    MethodHandle aName = null;
+    MethodHandle aFactory = null;
+    try
+    {
+      final MethodHandles.Lookup aLookup = MethodHandles.publicLookup ();
+      final Class <?> aBuilderClass = Class.forName ("java.lang.Thread$Builder$OfVirtual");
+      aOfVirtual = aLookup.findStatic (Thread.class, "ofVirtual", MethodType.methodType (aBuilderClass));
+      aName = aLookup.findVirtual (aBuilderClass, "name", MethodType.methodType (aBuilderClass, String.class, long.class));
+      aFactory = aLookup.findVirtual (aBuilderClass, "factory", MethodType.methodType (ThreadFactory.class));
+      // Check that it is usable (e.g. not a disabled preview feature)
+      aFactory.invoke (aOfVirtual.invoke ());
+    }
+    catch (final Throwable t)
+    {
+      // Older JDK
+      aOfVirtual = null;
+      aName = null;
+      aFactory = null;
+    }
+    MH_OF_VIRTUAL = aOfVirtual;
+    MH_NAME = aName;
+    MH_FACTORY = aFactory;
+  }
+
+  private AS4ThreadHelper ()
+  {}
+
+  /**
+   * @return <code>true</code> if the runtime JDK supports virtual threads.
+   */
+  public static boolean isVirtualThreadSupported ()
+  {
+    return MH_OF_VIRTUAL != null;
+  }
+
+  /**
+   * @return <code>true</code> if virtual threads are enabled in the
+   *         configuration and supported by the runtime JDK.
+   */
+  public static boolean isUseVirtualThreads ()
+  {
+    return isVirtualThreadSupported () && AS4Configuration.isVirtualThreadsEnabled ();
+  }
+
+  @Nullable
+  private static ThreadFactory _createVirtualThreadFactory (@Nonnull final String sNamePrefix)
+  {
+    try
+    {
+      final Object aBuilder = MH_NAME.invoke (MH_OF_VIRTUAL.invoke (), sNamePrefix, 1L);
+      return (ThreadFactory) MH_FACTORY.invoke (aBuilder);
+    }
+    catch (final Throwable t)
+    {
+      LOGGER.warn ("Failed to create virtual thread factory - falling back to platform threads", t);
+      return null;
+    }
+  }
+
+  /**
+   * Create a new thread factory for blocking tasks. Depending on
+   * {@link #isUseVirtualThreads()} it creates virtual or daemon platform
+   * threads.
+   *
+   * @param sNamePrefix
+   *        The thread name prefix. A running number is appended. May neither
+   *        be <code>null</code> nor empty.
+   * @return A new thread factory and never <code>null</code>.
+   */
+  @Nonnull
+  public static ThreadFactory createThreadFactory (@Nonnull @Nonempty final String sNamePrefix)
+  {
+    ValueEnforcer.notEmpty (sNamePrefix, "NamePrefix");
+    if (isUseVirtualThreads ())
+    {
+      final ThreadFactory ret = _createVirtualThreadFactory (sNamePrefix);
+      if (ret != null)
+        return ret;
+    }
+    return new BasicThreadFactory.Builder ().namingPattern (sNamePrefix + "%d").daemon (true).build ();
+  }
+
+  /**
+   * Create a new executor for blocking tasks that rejects tasks with a
+   * {@link RejectedExecutionException} if it is overloaded. Depending on
+   * {@link #isUseVirtualThreads()} this is either an
+   * {@link AS4VirtualThreadExecutor} that runs up to
+   * <code>nThreads + nQueueSize</code> tasks concurrently, each on a new
+   * virtual thread, or a {@link ThreadPoolExecutor} with <code>nThreads</code>
+   * daemon platform threads and a queue for <code>nQueueSize</code> tasks.
+   *
+   * @param sNamePrefix
+   *        The thread name prefix. A running number is appended. May neither
+   *        be <code>null</code> nor empty.
+   * @param nThreads
+   *        The number of platform threads. Must be &gt; 0.
+   * @param nQueueSize
+   *        The number of tasks that may wait for a platform thread. Must be
+   *        &gt; 0.
+   * @return A new executor and never <code>null</code>.
+   */
+  @Nonnull
+  public static ExecutorService createBoundedExecutor (@Nonnull @Nonempty final String sNamePrefix,
+                                                       @Nonnegative final int nThreads,
+                                                       @Nonnegative final int nQueueSize)
+  {
+    ValueEnforcer.notEmpty (sNamePrefix, "NamePrefix");
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    if (isUseVirtualThreads ())
+    {
+      final ThreadFactory aTF = _createVirtualThreadFactory (sNamePrefix);
+      if (aTF != null)
+      {
+        // All tasks that would be accepted by the pool run concurrently
+        final long nMaxConcurrentTasks = (long) nThreads + nQueueSize;
+        return new AS4VirtualThreadExecutor (aTF, (int) Math.min (nMaxConcurrentTasks, Integer.MAX_VALUE));
+      }
+    }
+
+    final ThreadPoolExecutor ret = new ThreadPoolExecutor (nThreads,
+                                                           nThreads,
+                                                           60,
+                                                           TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue <> (nQueueSize),
+                                                           createThreadFactory (sNamePrefix),
+                                                           new ThreadPoolExecutor.AbortPolicy ());
+    ret.allowCoreThreadTimeOut (true);
+    return ret;
+  }
+
+  /**
+   * @param aExecutor
+   *        An executor created by
+   *        {@link #createBoundedExecutor(String, int, int)}. May not be
+   *        <code>null</code>.
+   * @return The number of tasks waiting for execution. Always &ge; 0.
+   */
+  @Nonnegative
+  public static int getQueuedTaskCount (@Nonnull final ExecutorService aExecutor)
+  {
+    return aExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) aExecutor).getQueue ().size () : 0;
+  }
+
+  /**
+   * @param aExecutor
+   *        An executor created by
+   *        {@link #createBoundedExecutor(String, int, int)}. May not be
+   *        <code>null</code>.
+   * @return The approximate number of tasks currently executed. Always &ge; 0.
+   */
+  @Nonnegative
+  public static int getActiveTaskCount (@Nonnull final ExecutorService aExecutor)
+  {
+    if (aExecutor instanceof ThreadPoolExecutor)
+      return ((ThreadPoolExecutor) aExecutor).getActiveCount ();
+    if (aExecutor instanceof AS4VirtualThreadExecutor)
+      return ((AS4VirtualThreadExecutor) aExecutor).getActiveCount ();
+    return 0;
+  }
+
+  /**
+   * @param aExecutor
+   *        An executor created by
+   *        {@link #createBoundedExecutor(String, int, int)}. May not be
+   *        <code>null</code>.
+   * @return The approximate number of tasks that completed execution. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public static long getCompletedTaskCount (@Nonnull final ExecutorService aExecutor)
+  {
+    if (aExecutor instanceof ThreadPoolExecutor)
+      return ((ThreadPoolExecutor) aExecutor).getCompletedTaskCount ();
+    if (aExecutor instanceof AS4VirtualThreadExecutor)
+      return ((AS4VirtualThreadExecutor) aExecutor).getCompletedTaskCount ();
+    return 0;
+  }
+}
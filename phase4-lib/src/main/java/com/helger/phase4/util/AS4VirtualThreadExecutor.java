@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An executor that starts a new (virtual) thread per task. Virtual threads are
+ * cheap, so there is no pool and no queue - instead the number of concurrently
+ * running tasks is limited by a {@link Semaphore}. If no permit is available,
+ * the task is rejected with a {@link RejectedExecutionException}, like a
+ * {@link java.util.concurrent.ThreadPoolExecutor} with a full queue does.<br>
+ * Use {@link AS4ThreadHelper#createBoundedExecutor(String, int, int)} to create
+ * instances.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class AS4VirtualThreadExecutor extends AbstractExecutorService
+{
+  private final ThreadFactory m_aThreadFactory;
+  private final int m_nMaxConcurrentTasks;
+  private final Semaphore m_aPermits;
+  private final Set <Thread> m_aRunning = ConcurrentHashMap.newKeySet ();
+  private final AtomicLong m_aCompletedTaskCount = new AtomicLong (0);
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final Condition m_aTerminated = m_aLock.newCondition ();
+  private volatile boolean m_bShutdown = false;
+
+  /**
+   * Constructor
+   *
+   * @param aThreadFactory
+   *        The thread factory to create a thread per task. May not be
+   *        <code>null</code>.
+   * @param nMaxConcurrentTasks
+   *        The maximum number of tasks running at the same time. Must be &gt;
+   *        0.
+   */
+  public AS4VirtualThreadExecutor (@Nonnull final ThreadFactory aThreadFactory, @Nonnegative final int nMaxConcurrentTasks)
+  {
+    ValueEnforcer.notNull (aThreadFactory, "ThreadFactory");
+    ValueEnforcer.isGT0 (nMaxConcurrentTasks, "MaxConcurrentTasks");
+    m_aThreadFactory = aThreadFactory;
+    m_nMaxConcurrentTasks = nMaxConcurrentTasks;
+    m_aPermits = new Semaphore (nMaxConcurrentTasks);
+  }
+
+  /**
+   * @return The maximum number of tasks running at the same time. Always &gt;
+   *         0.
+   */
+  @Nonnegative
+  public final int getMaxConcurrentTasks ()
+  {
+    return m_nMaxConcurrentTasks;
+  }
+
+  /**
+   * @return The number of tasks currently running. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getActiveCount ()
+  {
+    return m_nMaxConcurrentTasks - m_aPermits.availablePermits ();
+  }
+
+  /**
+   * @return The number of tasks that completed execution. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getCompletedTaskCount ()
+  {
+    return m_aCompletedTaskCount.get ();
+  }
+
+  private void _signalIfTerminated ()
+  {
+    if (isTerminated ())
+      m_aLock.locked (m_aTerminated::signalAll);
+  }
+
+  public void execute (@Nonnull final Runnable aCommand)
+  {
+    ValueEnforcer.notNull (aCommand, "Command");
+    if (m_bShutdown)
+      throw new RejectedExecutionException ("The executor is shut down");
+    if (!m_aPermits.tryAcquire ())
+      throw new RejectedExecutionException ("The maximum of " + m_nMaxConcurrentTasks + " concurrent tasks is reached");
+
+    final Thread aThread;
+    try
+    {
+      aThread = m_aThreadFactory.newThread ( () -> {
+        try
+        {
+          aCommand.run ();
+        }
+        finally
+        {
+          m_aRunning.remove (Thread.currentThread ());
+          m_aCompletedTaskCount.incrementAndGet ();
+          m_aPermits.release ();
+          _signalIfTerminated ();
+        }
+      });
+      m_aRunning.add (aThread);
+      aThread.start ();
+    }
+    catch (final RuntimeException | Error ex)
+    {
+      m_aPermits.release ();
+      throw new RejectedExecutionException ("Failed to start a thread", ex);
+    }
+  }
+
+  public void shutdown ()
+  {
+    m_bShutdown = true;
+    _signalIfTerminated ();
+  }
+
+  @Nonnull
+  public List <Runnable> shutdownNow ()
+  {
+    shutdown ();
+    for (final Thread aThread : m_aRunning)
+      aThread.interrupt ();
+    // Nothing is queued
+    return new CommonsArrayList <> ();
+  }
+
+  public boolean isShutdown ()
+  {
+    return m_bShutdown;
+  }
+
+  public boolean isTerminated ()
+  {
+    return m_bShutdown && m_aPermits.availablePermits () == m_nMaxConcurrentTasks;
+  }
+
+  public boolean awaitTermination (final long nTimeout, @Nonnull final TimeUnit eUnit) throws InterruptedException
+  {
+    long nNanos = eUnit.toNanos (nTimeout);
+    m_aLock.lockInterruptibly ();
+    try
+    {
+      while (!isTerminated ())
+      {
+        if (nNanos <= 0)
+          return false;
+        nNanos = m_aTerminated.awaitNanos (nNanos);
+      }
+      return true;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("MaxConcurrentTasks", m_nMaxConcurrentTasks)
+                                       .append ("ActiveCount", getActiveCount ())
+                                       .append ("CompletedTaskCount", getCompletedTaskCount ())
+                                       .append ("Shutdown", m_bShutdown)
+                                       .getToString ();
+  }
+}
@@ -16,8 +16,14 @@
  */
 package com.helger.phase4.util;
 
+import java.io.OutputStream;
+
 import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -26,6 +32,7 @@ import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Node;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.NonBlockingStringWriter;
 import com.helger.phase4.marshaller.Ebms3NamespaceHandler;
 import com.helger.xml.serialize.write.EXMLSerializeIndent;
@@ -48,6 +55,10 @@ public final class AS4XMLHelper
     XWS.setSerializeXMLDeclaration (EXMLSerializeXMLDeclaration.EMIT_NO_STANDALONE);
   }
 
+  private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance ();
+  // Transformer objects are reusable but not thread-safe
+  private static final ThreadLocal <Transformer> TRANSFORMER = ThreadLocal.withInitial (AS4XMLHelper::_createTransformer);
+
   private AS4XMLHelper ()
   {}
 
@@ -58,21 +69,48 @@ public final class AS4XMLHelper
   }
 
   @Nonnull
-  private static String _serializeRT (@Nonnull final Node aNode)
+  private static Transformer _createTransformer ()
+  {
+    try
+    {
+      final Transformer ret;
+      // TransformerFactory is not guaranteed to be thread-safe
+      synchronized (TRANSFORMER_FACTORY)
+      {
+        ret = TRANSFORMER_FACTORY.newTransformer ();
+      }
+      ret.setOutputProperty (OutputKeys.ENCODING, XWS.getCharset ().name ());
+      return ret;
+    }
+    catch (final TransformerConfigurationException ex)
+    {
+      throw new IllegalStateException ("Failed to create XML Transformer", ex);
+    }
+  }
+
+  private static void _serializeRT (@Nonnull final Node aNode, @Nonnull final Result aResult)
   {
+    final Transformer aTransformer = TRANSFORMER.get ();
     try
     {
-      final Transformer aTransformer = TransformerFactory.newInstance ().newTransformer ();
-      final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
-      aTransformer.transform (new DOMSource (aNode), new StreamResult (aSW));
-      return aSW.getAsString ();
+      aTransformer.transform (new DOMSource (aNode), aResult);
     }
     catch (final TransformerException ex)
     {
+      // Don't reuse a Transformer in an undefined state
+      TRANSFORMER.remove ();
       throw new IllegalStateException ("Failed to serialize XML", ex);
     }
   }
 
+  @Nonnull
+  private static String _serializeRT (@Nonnull final Node aNode)
+  {
+    final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
+    _serializeRT (aNode, new StreamResult (aSW));
+    return aSW.getAsString ();
+  }
+
   @Nonnull
   public static String serializeXML (@Nonnull final Node aNode)
   {
@@ -82,4 +120,43 @@ public final class AS4XMLHelper
       return _serializeRT (aNode);
     return _serializePh (aNode);
   }
+
+  /**
+   * Serialize the provided node directly to the provided output stream using
+   * the charset of {@link #XWS}. This avoids the creation of an intermediate
+   * String.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>. The
+   *        stream is not closed.
+   * @since 1.3.9
+   */
+  public static void serializeXML (@Nonnull final Node aNode, @Nonnull @WillNotClose final OutputStream aOS)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+    // Use runtime serialization otherwise XMLDsig signature wont work
+    _serializeRT (aNode, new StreamResult (aOS));
+  }
+
+  /**
+   * Serialize the provided node to a byte array using the charset of
+   * {@link #XWS}.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @return The serialized bytes. Never <code>null</code>.
+   * @since 1.3.9
+   */
+  @Nonnull
+  public static byte [] serializeXMLBytes (@Nonnull final Node aNode)
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      serializeXML (aNode, aBAOS);
+      return aBAOS.toByteArray ();
+    }
+  }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4CompressingInputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CompressingInputStreamTest
+{
+  @Test
+  public void testSameAsOutputStream () throws IOException
+  {
+    final byte [] aSrc = StreamHelper.getAllBytes (ClassPathResource.getInputStream ("SOAPBodyPayload.xml"));
+    assertNotNull (aSrc);
+
+    for (final EAS4CompressionMode eMode : EAS4CompressionMode.values ())
+    {
+      // Compress the classical way
+      final NonBlockingByteArrayOutputStream aCompressedOS = new NonBlockingByteArrayOutputStream ();
+      try (final OutputStream aOS = eMode.getCompressStream (aCompressedOS))
+      {
+        aOS.write (aSrc);
+      }
+      final byte [] aExpected = aCompressedOS.toByteArray ();
+
+      // Use small chunks to ensure multiple fill cycles
+      for (final int nChunkSize : new int [] { 1, 7, 512, AS4CompressingInputStream.DEFAULT_CHUNK_SIZE })
+      {
+        try (final AS4CompressingInputStream aIS = new AS4CompressingInputStream (new NonBlockingByteArrayInputStream (aSrc),
+                                                                                 eMode,
+                                                                                 nChunkSize))
+        {
+          final byte [] aCompressed = StreamHelper.getAllBytes (aIS);
+          assertArrayEquals (aExpected, aCompressed);
+          assertEquals (aExpected.length, aIS.getCompressedByteCount ());
+        }
+      }
+
+      // Decompress again
+      try (final InputStream aIS = eMode.getDecompressStream (new AS4CompressingInputStream (new NonBlockingByteArrayInputStream (aSrc),
+                                                                                            eMode)))
+      {
+        assertArrayEquals (aSrc, StreamHelper.getAllBytes (aIS));
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty () throws IOException
+  {
+    for (final EAS4CompressionMode eMode : EAS4CompressionMode.values ())
+      try (final InputStream aIS = eMode.getDecompressStream (new AS4CompressingInputStream (new NonBlockingByteArrayInputStream (new byte [0]),
+                                                                                            eMode)))
+      {
+        assertEquals (0, StreamHelper.getAllBytes (aIS).length);
+      }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4ParallelGZIPOutputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ParallelGZIPOutputStreamTest
+{
+  @Nonnull
+  private static byte [] _createPayload (final int nSize)
+  {
+    // Semi-compressible content
+    final Random aRandom = new Random (nSize);
+    final byte [] ret = new byte [nSize];
+    for (int i = 0; i < nSize; ++i)
+      ret[i] = (byte) ('a' + aRandom.nextInt (8));
+    return ret;
+  }
+
+  @Nonnull
+  private static byte [] _compress (@Nonnull final byte [] aSrc,
+                                    final int nLevel,
+                                    final int nBlockSize,
+                                    @Nonnull final ExecutorService aExecutor) throws IOException
+  {
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    try (final AS4ParallelGZIPOutputStream aOS = new AS4ParallelGZIPOutputStream (aBAOS, nLevel, nBlockSize, aExecutor, 3))
+    {
+      // Write in uneven pieces
+      int nOfs = 0;
+      while (nOfs < aSrc.length)
+      {
+        final int nLen = Math.min (1234, aSrc.length - nOfs);
+        aOS.write (aSrc, nOfs, nLen);
+        nOfs += nLen;
+      }
+    }
+    return aBAOS.toByteArray ();
+  }
+
+  @Nonnull
+  private static byte [] _decompress (@Nonnull final byte [] aCompressed) throws IOException
+  {
+    try (final InputStream aIS = new GZIPInputStream (new NonBlockingByteArrayInputStream (aCompressed)))
+    {
+      return StreamHelper.getAllBytes (aIS);
+    }
+  }
+
+  @Test
+  public void testRoundTrip () throws IOException
+  {
+    final ExecutorService aExecutor = Executors.newFixedThreadPool (4);
+    try
+    {
+      for (final int nSize : new int [] { 0, 1, 1000, 32 * 1024, 100_000, 1_000_000 })
+      {
+        final byte [] aSrc = _createPayload (nSize);
+        for (final int nLevel : new int [] { Deflater.DEFAULT_COMPRESSION, 0, 1, 9 })
+          for (final int nBlockSize : new int [] { 1000, 40_000, AS4ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE })
+          {
+            final byte [] aCompressed = _compress (aSrc, nLevel, nBlockSize, aExecutor);
+            assertArrayEquals (aSrc, _decompress (aCompressed));
+
+            // Output must be deterministic
+            assertArrayEquals (aCompressed, _compress (aSrc, nLevel, nBlockSize, aExecutor));
+          }
+      }
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+    }
+  }
+
+  @Test
+  public void testCompressionModeParallel () throws IOException
+  {
+    final byte [] aSrc = _createPayload (500_000);
+    for (final EAS4CompressionMode eMode : EAS4CompressionMode.values ())
+      for (final boolean bParallel : new boolean [] { true, false })
+      {
+        final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+        try (final OutputStream aOS = eMode.getCompressStream (aBAOS, 9, bParallel))
+        {
+          aOS.write (aSrc);
+        }
+        assertTrue (aBAOS.size () < aSrc.length);
+        try (final InputStream aIS = eMode.getDecompressStream (aBAOS.getAsInputStream ()))
+        {
+          assertArrayEquals (aSrc, StreamHelper.getAllBytes (aIS));
+        }
+      }
+  }
+}
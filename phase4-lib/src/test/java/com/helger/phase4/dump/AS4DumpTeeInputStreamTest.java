@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link AS4DumpTeeInputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DumpTeeInputStreamTest
+{
+  @Test
+  public void testDumpEverything () throws Exception
+  {
+    final byte [] aSrc = new byte [100_000];
+    for (int i = 0; i < aSrc.length; ++i)
+      aSrc[i] = (byte) i;
+
+    final NonBlockingByteArrayOutputStream aDumpOS = new NonBlockingByteArrayOutputStream ();
+    final CountDownLatch aFinished = new CountDownLatch (1);
+    final byte [] aRead;
+    try (final AS4DumpTeeInputStream aIS = new AS4DumpTeeInputStream (new NonBlockingByteArrayInputStream (aSrc),
+                                                                      aDumpOS,
+                                                                      AS4DumpTeeInputStream.DEFAULT_MAX_BUFFERED_BYTES,
+                                                                      aFinished::countDown))
+    {
+      // Single byte read
+      final int n = aIS.read ();
+      final byte [] aRest = StreamHelper.getAllBytes (aIS);
+      aRead = new byte [aRest.length + 1];
+      aRead[0] = (byte) n;
+      System.arraycopy (aRest, 0, aRead, 1, aRest.length);
+    }
+    assertArrayEquals (aSrc, aRead);
+    assertEquals (0, aFinished.getCount ());
+    assertArrayEquals (aSrc, aDumpOS.toByteArray ());
+  }
+
+  @Test
+  public void testCloseBeforeEnd () throws Exception
+  {
+    final byte [] aSrc = new byte [100_000];
+    for (int i = 0; i < aSrc.length; ++i)
+      aSrc[i] = (byte) (i * 7);
+
+    final NonBlockingByteArrayOutputStream aDumpOS = new NonBlockingByteArrayOutputStream ();
+    final Thread aReaderThread = Thread.currentThread ();
+    final AtomicBoolean aCallbackThread = new AtomicBoolean (false);
+    try (final AS4DumpTeeInputStream aIS = new AS4DumpTeeInputStream (new NonBlockingByteArrayInputStream (aSrc),
+                                                                      aDumpOS,
+                                                                      1000,
+                                                                      () -> aCallbackThread.set (Thread.currentThread () == aReaderThread)))
+    {
+      // Only read a part
+      final byte [] aBuf = new byte [500];
+      assertEquals (aBuf.length, aIS.read (aBuf));
+    }
+    // The rest was dumped on close and the callback ran in this thread
+    assertTrue (aCallbackThread.get ());
+    assertArrayEquals (aSrc, aDumpOS.toByteArray ());
+  }
+
+  @Test
+  public void testSlowDumpTarget () throws Exception
+  {
+    final byte [] aSrc = new byte [10_000];
+    final CountDownLatch aBlocked = new CountDownLatch (1);
+    final CountDownLatch aFinished = new CountDownLatch (1);
+    final NonBlockingByteArrayOutputStream aDumpOS = new NonBlockingByteArrayOutputStream ()
+    {
+      @Override
+      public void write (final byte [] aBuf, final int nOfs, final int nLen)
+      {
+        try
+        {
+          // Block until the reader is done
+          aBlocked.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+        super.write (aBuf, nOfs, nLen);
+      }
+    };
+
+    try (final AS4DumpTeeInputStream aIS = new AS4DumpTeeInputStream (new NonBlockingByteArrayInputStream (aSrc),
+                                                                      aDumpOS,
+                                                                      1000,
+                                                                      aFinished::countDown))
+    {
+      final byte [] aBuf = new byte [100];
+      int nTotal = 0;
+      int n;
+      while ((n = aIS.read (aBuf)) > 0)
+        nTotal += n;
+      // The reader was not blocked
+      assertArrayEquals (aSrc, new byte [nTotal]);
+      assertTrue (aIS.isTruncated ());
+      aBlocked.countDown ();
+    }
+    finally
+    {
+      aBlocked.countDown ();
+    }
+    // Closing waited for the writer
+    assertEquals (0, aFinished.getCount ());
+    assertTrue (aDumpOS.size () < aSrc.length);
+  }
+
+  @Test
+  public void testFailingDumpTarget () throws Exception
+  {
+    final byte [] aSrc = new byte [1000];
+    final CountDownLatch aFinished = new CountDownLatch (1);
+    final OutputStream aDumpOS = new OutputStream ()
+    {
+      @Override
+      public void write (final int b) throws IOException
+      {
+        throw new IOException ("Dump target failure");
+      }
+    };
+
+    final AS4DumpTeeInputStream aIS = new AS4DumpTeeInputStream (new NonBlockingByteArrayInputStream (aSrc),
+                                                                 aDumpOS,
+                                                                 AS4DumpTeeInputStream.DEFAULT_MAX_BUFFERED_BYTES,
+                                                                 aFinished::countDown);
+    // The reader is not affected - closes the stream
+    assertArrayEquals (aSrc, StreamHelper.getAllBytes (aIS));
+    assertEquals (0, aFinished.getCount ());
+    assertTrue (aIS.isTruncated ());
+  }
+}
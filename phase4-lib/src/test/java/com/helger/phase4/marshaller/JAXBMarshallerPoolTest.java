@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.marshaller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.junit.Test;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.jaxb.validation.CollectingValidationEventHandler;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+
+/**
+ * Test class for class {@link JAXBMarshallerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class JAXBMarshallerPoolTest
+{
+  @Test
+  public void testPooling () throws Exception
+  {
+    final Marshaller aMarshaller = Ebms3WriterBuilder.ebms3Messaging ().createMarshaller ();
+    assertNotNull (aMarshaller);
+    assertSame (aMarshaller, Ebms3WriterBuilder.ebms3Messaging ().createMarshaller ());
+    // Different document type
+    assertNotSame (aMarshaller, Ebms3WriterBuilder.nonRepudiationInformation ().createMarshaller ());
+    // Different settings
+    assertNotSame (aMarshaller, Ebms3WriterBuilder.ebms3Messaging ().setFormattedOutput (true).createMarshaller ());
+    // Customizer present
+    assertNotSame (aMarshaller, Ebms3WriterBuilder.ebms3Messaging ().setMarshallerCustomizer (x -> {}).createMarshaller ());
+
+    // Other thread
+    final Marshaller aOtherThread = CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return Ebms3WriterBuilder.ebms3Messaging ().createMarshaller ();
+      }
+      catch (final JAXBException ex)
+      {
+        throw new IllegalStateException (ex);
+      }
+    }).get ();
+    assertNotSame (aMarshaller, aOtherThread);
+
+    // Event handler is updated
+    final Unmarshaller aUnmarshaller = Ebms3ReaderBuilder.ebms3Messaging ()
+                                                         .setValidationEventHandler (new CollectingValidationEventHandler ())
+                                                         .createUnmarshaller ();
+    final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    assertSame (aUnmarshaller, Ebms3ReaderBuilder.ebms3Messaging ().setValidationEventHandler (aCVEH).createUnmarshaller ());
+    assertSame (aCVEH, aUnmarshaller.getEventHandler ());
+
+    JAXBMarshallerPool.clearCurrentThread ();
+    assertNotSame (aMarshaller, Ebms3WriterBuilder.ebms3Messaging ().createMarshaller ());
+  }
+
+  @Test
+  public void testReadWriteRepeatedly ()
+  {
+    String sPrev = null;
+    for (int i = 0; i < 5; ++i)
+    {
+      final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+      final Ebms3Messaging aMessage = Ebms3ReaderBuilder.ebms3Messaging ()
+                                                        .setValidationEventHandler (aCVEH)
+                                                        .read (new ClassPathResource ("/soap11test/UserMessage-no-soap.xml"));
+      assertNotNull (aMessage);
+      assertTrue (aCVEH.getErrorList ().isEmpty ());
+
+      final String sWritten = Ebms3WriterBuilder.ebms3Messaging ().getAsString (aMessage);
+      assertNotNull (sWritten);
+      if (sPrev != null)
+        assertEquals (sPrev, sWritten);
+      sPrev = sWritten;
+    }
+
+    // Errors are reported to the current handler only
+    final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    assertNull (Ebms3ReaderBuilder.ebms3Messaging ()
+                                  .setValidationEventHandler (aCVEH)
+                                  .read (new ClassPathResource ("/soap11test/MessageInfoMissing.xml")));
+    assertTrue (aCVEH.getErrorList ().containsAtLeastOneError ());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.messaging.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.time.OffsetDateTime;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phase4.ebms3header.Ebms3PartInfo;
+import com.helger.phase4.ebms3header.Ebms3PartProperties;
+import com.helger.phase4.ebms3header.Ebms3PayloadInfo;
+import com.helger.phase4.ebms3header.Ebms3Schema;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Test class for class {@link AS4UserMessageSoapTemplateCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4UserMessageSoapTemplateCacheTest
+{
+  @Nonnull
+  private static AS4UserMessage _createUserMessage (@Nonnull final ESoapVersion eSoapVersion,
+                                                    @Nonnull final String sAction,
+                                                    @Nullable final Ebms3PayloadInfo aPayloadInfo)
+  {
+    return AS4UserMessage.create (MessageHelperMethods.createEbms3MessageInfo (MessageHelperMethods.createRandomMessageID (),
+                                                                               "ref-id",
+                                                                               OffsetDateTime.now ()),
+                                  aPayloadInfo,
+                                  MessageHelperMethods.createEbms3CollaborationInfo ("pmode-id",
+                                                                                     "agreement",
+                                                                                     "srvtype",
+                                                                                     "service",
+                                                                                     sAction,
+                                                                                     MessageHelperMethods.createRandomConversationID ()),
+                                  MessageHelperMethods.createEbms3PartyInfo ("fromrole", "from", "torole", "to"),
+                                  MessageHelperMethods.createEbms3MessageProperties (new CommonsArrayList <> (MessageHelperMethods.createEbms3Property ("originalSender",
+                                                                                                                                                    "sender"))),
+                                  eSoapVersion)
+                          .setMustUnderstand (true);
+  }
+
+  @Nonnull
+  private static Ebms3PayloadInfo _createPayloadInfo ()
+  {
+    final Ebms3PayloadInfo ret = new Ebms3PayloadInfo ();
+    // SOAP body payload
+    ret.addPartInfo (new Ebms3PartInfo ());
+
+    final Ebms3PartInfo aPartInfo = new Ebms3PartInfo ();
+    aPartInfo.setHref ("cid:attachment");
+    final Ebms3Schema aSchema = new Ebms3Schema ();
+    aSchema.setLocation ("http://example.org/schema.xsd");
+    aSchema.setVersion ("1.0");
+    aPartInfo.setSchema (aSchema);
+    aPartInfo.setDescription (MessageHelperMethods.createEbms3Description (Locale.ENGLISH, "Test attachment"));
+    final Ebms3PartProperties aPartProperties = new Ebms3PartProperties ();
+    aPartProperties.addProperty (MessageHelperMethods.createEbms3Property (MessageHelperMethods.PART_PROPERTY_MIME_TYPE,
+                                                                           "application/xml"));
+    aPartProperties.addProperty (MessageHelperMethods.createEbms3Property (MessageHelperMethods.PART_PROPERTY_COMPRESSION_TYPE,
+                                                                           "type",
+                                                                           "application/gzip"));
+    aPartInfo.setPartProperties (aPartProperties);
+    ret.addPartInfo (aPartInfo);
+    return ret;
+  }
+
+  @Test
+  public void testSameAsDefault ()
+  {
+    final Document aPayload = DOMReader.readXMLDOM (new ClassPathResource ("SOAPBodyPayload.xml"));
+    assertNotNull (aPayload);
+
+    final AS4UserMessageSoapTemplateCache aCache = new AS4UserMessageSoapTemplateCache (10);
+    for (final ESoapVersion eSoapVersion : ESoapVersion.values ())
+      for (final String sAction : new String [] { "action1", "action2" })
+        for (int i = 0; i < 3; ++i)
+        {
+          // Without payload
+          AS4UserMessage aUserMsg = _createUserMessage (eSoapVersion, sAction, null);
+          assertEquals (XMLWriter.getNodeAsString (aUserMsg.getAsSoapDocument (null)),
+                        XMLWriter.getNodeAsString (aCache.getAsSoapDocument (aUserMsg, null)));
+
+          // With payload
+          aUserMsg = _createUserMessage (eSoapVersion, sAction, _createPayloadInfo ());
+          assertEquals (XMLWriter.getNodeAsString (aUserMsg.getAsSoapDocument (aPayload)),
+                        XMLWriter.getNodeAsString (aCache.getAsSoapDocument (aUserMsg, aPayload)));
+        }
+
+    // One template per SOAP version and action - the conversation ID differs
+    // per message
+    assertEquals (ESoapVersion.values ().length * 2, aCache.size ());
+    aCache.clear ();
+    assertEquals (0, aCache.size ());
+  }
+}
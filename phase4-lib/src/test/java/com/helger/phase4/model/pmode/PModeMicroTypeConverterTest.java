@@ -118,6 +118,34 @@ public final class PModeMicroTypeConverterTest
                            null));
   }
 
+  @Test
+  public void testPayloadServiceCompressionSettings ()
+  {
+    final PModeParty aInitiator = _createInitiatorOrResponder (true);
+    final PModeParty aResponder = _createInitiatorOrResponder (false);
+
+    _testPMode (new PMode (aInitiator.getID () + "-" + aResponder.getID (),
+                           aInitiator,
+                           aResponder,
+                           "Agreement",
+                           EMEP.TWO_WAY,
+                           EMEPBinding.SYNC,
+                           _createPModeLeg (),
+                           _createPModeLeg (),
+                           new PModePayloadService (EAS4CompressionMode.GZIP, 6, true),
+                           _createPModeReceptionAwareness ()));
+    _testPMode (new PMode (aInitiator.getID () + "-" + aResponder.getID (),
+                           aInitiator,
+                           aResponder,
+                           "Agreement",
+                           EMEP.TWO_WAY,
+                           EMEPBinding.SYNC,
+                           null,
+                           null,
+                           new PModePayloadService (EAS4CompressionMode.GZIP, 9, false),
+                           null));
+  }
+
   @Nonnull
   private PModePayloadService _createPayloadService ()
   {
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.json.JsonObject;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+
+/**
+ * Test class for class {@link AS4OutboundQueue}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboundQueueTest
+{
+  private static final File DIR = new File ("target/outbound-queue-test");
+
+  @Before
+  public void before ()
+  {
+    // Start fresh
+    new FileOperationManager ().deleteDirRecursiveIfExisting (DIR);
+  }
+
+  private static void _waitFor (final BooleanSupplier aCondition)
+  {
+    for (int i = 0; i < 200 && !aCondition.getAsBoolean (); ++i)
+      ThreadHelper.sleep (25);
+    assertTrue (aCondition.getAsBoolean ());
+  }
+
+  @Test
+  public void testSendWithConcurrencyLimit () throws Exception
+  {
+    final Map <String, AtomicInteger> aActive = new ConcurrentHashMap <> ();
+    final AtomicBoolean aLimitExceeded = new AtomicBoolean (false);
+    final Map <String, byte []> aSent = new ConcurrentHashMap <> ();
+    final IAS4OutboundQueueMessageSender aSender = (aEntry, aPayload) -> {
+      final AtomicInteger aCount = aActive.computeIfAbsent (aEntry.getDestination (), k -> new AtomicInteger ());
+      if (aCount.incrementAndGet () > 1)
+        aLimitExceeded.set (true);
+      ThreadHelper.sleep (5);
+      aCount.decrementAndGet ();
+      aSent.put (aEntry.getMessageID (), aPayload);
+      return AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.SUCCESS);
+    };
+
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 8, 1, 3, Duration.ofMillis (10), 1024).start ())
+    {
+      for (int i = 0; i < 40; ++i)
+      {
+        final AS4OutboundQueueEntry aEntry = aQueue.enqueue ("msg-" + i,
+                                                             "http://ap" + (i % 2) + ".example.org/as4",
+                                                             new JsonObject ().add ("index", i),
+                                                             ("<payload" + i + "/>").getBytes (StandardCharsets.UTF_8));
+        // Idempotent
+        assertSame (aEntry, aQueue.enqueue ("msg-" + i, "http://other.example.org", null, new byte [0]));
+      }
+
+      _waitFor ( () -> aSent.size () == 40 && aQueue.getAllPendingEntries ().isEmpty ());
+      assertFalse (aLimitExceeded.get ());
+      assertArrayEquals ("<payload7/>".getBytes (StandardCharsets.UTF_8), aSent.get ("msg-7"));
+      assertEquals (0, aQueue.getAllFailedEntries ().size ());
+      // Fully sent segments were rolled over
+      assertTrue (aQueue.getSegmentCount () > 1);
+    }
+
+    // After a restart all fully sent segments are deleted, but the sent
+    // entries are remembered
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender))
+    {
+      assertNull (aQueue.getEntry ("msg-7"));
+      assertEquals (EAS4OutboundQueueEntryState.SENT, aQueue.enqueue ("msg-7", "http://ap1.example.org/as4", null, new byte [0]).getState ());
+      assertEquals (0, aQueue.getAllPendingEntries ().size ());
+    }
+
+    // Without retention nothing is kept
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 8, 1, 3, Duration.ofMillis (10), 1024, Duration.ZERO))
+    {
+      assertEquals (0, aQueue.getSegmentCount ());
+    }
+  }
+
+  @Test
+  public void testIdempotencyAfterCompaction () throws Exception
+  {
+    final AtomicInteger aSendCount = new AtomicInteger ();
+    final IAS4OutboundQueueMessageSender aSender = (aEntry, aPayload) -> {
+      aSendCount.incrementAndGet ();
+      return AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.SUCCESS);
+    };
+
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64).start ())
+    {
+      aQueue.enqueue ("msg-1", "dest", null, new byte [] { 1 });
+      _waitFor ( () -> aQueue.getCount (EAS4OutboundQueueEntryState.SENT) == 1);
+    }
+
+    // Compacted upon startup - twice, so that the snapshot is read again
+    for (int i = 0; i < 2; ++i)
+      try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64).start ())
+      {
+        assertNull (aQueue.getEntry ("msg-1"));
+        final AS4OutboundQueueEntry aEntry = aQueue.enqueue ("msg-1", "dest", null, new byte [] { 1 });
+        assertEquals (EAS4OutboundQueueEntryState.SENT, aEntry.getState ());
+        assertEquals (1, aEntry.getAttemptCount ());
+        assertEquals (0, aQueue.getAllPendingEntries ().size ());
+      }
+    assertEquals (1, aSendCount.get ());
+
+    // After the retention period the same ID is a new entry
+    ThreadHelper.sleep (5);
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64, Duration.ZERO).start ())
+    {
+      assertEquals (EAS4OutboundQueueEntryState.PENDING, aQueue.enqueue ("msg-1", "dest", null, new byte [] { 1 }).getState ());
+      _waitFor ( () -> aSendCount.get () == 2);
+    }
+  }
+
+  @Nonnull
+  private static ICommonsMap <String, String> _getFileStates ()
+  {
+    final ICommonsMap <String, String> ret = new CommonsTreeMap <> ();
+    final File [] aFiles = DIR.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        ret.put (aFile.getName (), aFile.length () + "/" + aFile.lastModified ());
+    return ret;
+  }
+
+  @Test
+  public void testIdleReopenDoesNotWrite () throws Exception
+  {
+    final IAS4OutboundQueueMessageSender aSender = (aEntry, aPayload) -> AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.SUCCESS);
+
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64).start ())
+    {
+      for (int i = 0; i < 5; ++i)
+        aQueue.enqueue ("msg-" + i, "dest", null, new byte [] { (byte) i });
+      _waitFor ( () -> aQueue.getCount (EAS4OutboundQueueEntryState.SENT) == 5);
+    }
+
+    // Compacted upon startup
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64))
+    {
+      assertEquals (0, aQueue.getSegmentCount ());
+    }
+    final ICommonsMap <String, String> aFileStates = _getFileStates ();
+    assertTrue (aFileStates.containsKey ("snapshot.json"));
+
+    // Nothing to do - no segment or snapshot is rewritten
+    ThreadHelper.sleep (20);
+    for (int i = 0; i < 2; ++i)
+      try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64).start ())
+      {
+        assertEquals (EAS4OutboundQueueEntryState.SENT, aQueue.enqueue ("msg-3", "dest", null, new byte [] { 3 }).getState ());
+      }
+    assertEquals (aFileStates, _getFileStates ());
+  }
+
+  @Test
+  public void testFailureOutcomes () throws Exception
+  {
+    final AtomicInteger aTransportAttempts = new AtomicInteger ();
+    final IAS4OutboundQueueMessageSender aSender = (aEntry, aPayload) -> {
+      switch (aEntry.getMessageID ())
+      {
+        case "ebms-error":
+          return new AS4OutboundQueueSendResult (ESimpleUserMessageSendResult.AS4_ERROR_MESSAGE_RECEIVED, "EBMS:0004", null);
+        case "transport-error":
+          aTransportAttempts.incrementAndGet ();
+          throw new IllegalStateException ("Connection refused");
+        default:
+          return AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.SUCCESS);
+      }
+    };
+
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 1024 * 1024).start ())
+    {
+      aQueue.enqueue ("ebms-error", "dest", null, new byte [] { 1 });
+      aQueue.enqueue ("transport-error", "dest", null, new byte [] { 2 });
+      _waitFor ( () -> aQueue.getAllFailedEntries ().size () == 2);
+
+      // Not retryable
+      final AS4OutboundQueueEntry aEbmsError = aQueue.getEntry ("ebms-error");
+      assertEquals (EAS4OutboundQueueEntryState.FAILED, aEbmsError.getState ());
+      assertEquals (1, aEbmsError.getAttemptCount ());
+      assertEquals (ESimpleUserMessageSendResult.AS4_ERROR_MESSAGE_RECEIVED, aEbmsError.getLastResult ());
+      assertEquals ("EBMS:0004", aEbmsError.getLastErrorCode ());
+
+      // Retried until max attempts
+      final AS4OutboundQueueEntry aTransportError = aQueue.getEntry ("transport-error");
+      assertEquals (3, aTransportError.getAttemptCount ());
+      assertEquals (3, aTransportAttempts.get ());
+      assertEquals (ESimpleUserMessageSendResult.TRANSPORT_ERROR, aTransportError.getLastResult ());
+      assertTrue (aTransportError.getLastErrorMessage ().contains ("Connection refused"));
+
+      assertTrue (aQueue.discard ("ebms-error"));
+      assertNull (aQueue.getEntry ("ebms-error"));
+      assertFalse (aQueue.discard ("ebms-error"));
+    }
+
+    // The state survives a restart
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 1024 * 1024))
+    {
+      assertNull (aQueue.getEntry ("ebms-error"));
+      final AS4OutboundQueueEntry aTransportError = aQueue.getEntry ("transport-error");
+      assertEquals (EAS4OutboundQueueEntryState.FAILED, aTransportError.getState ());
+      assertEquals (3, aTransportError.getAttemptCount ());
+      assertArrayEquals (new byte [] { 2 }, aQueue.getPayload ("transport-error"));
+
+      // Manual retry
+      aQueue.start ();
+      assertTrue (aQueue.retry ("transport-error"));
+      _waitFor ( () -> aTransportAttempts.get () == 6);
+      _waitFor ( () -> aQueue.getAllFailedEntries ().size () == 1);
+    }
+  }
+
+  @Test
+  public void testFailedEntryDoesNotBlockCompaction () throws Exception
+  {
+    final IAS4OutboundQueueMessageSender aSender = (aEntry, aPayload) -> {
+      if (aEntry.getMessageID ().equals ("failed"))
+        return new AS4OutboundQueueSendResult (ESimpleUserMessageSendResult.AS4_ERROR_MESSAGE_RECEIVED, "EBMS:0004", null);
+      return new AS4OutboundQueueSendResult (ESimpleUserMessageSendResult.SUCCESS, null, "receipt-" + aEntry.getMessageID ());
+    };
+
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64).start ())
+    {
+      aQueue.enqueue ("failed", "dest", null, new byte [] { 42 });
+      for (int i = 0; i < 10; ++i)
+        aQueue.enqueue ("msg-" + i, "dest", null, new byte [] { (byte) i });
+      _waitFor ( () -> aQueue.getCount (EAS4OutboundQueueEntryState.SENT) == 10 && aQueue.getAllFailedEntries ().size () == 1);
+      assertEquals ("receipt-msg-3", aQueue.getEntry ("msg-3").getReceiptMessageID ());
+      assertTrue (aQueue.getSegmentCount () > 10);
+    }
+
+    // Compacted upon startup - the failed entry was copied forward
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64))
+    {
+      assertEquals (1, aQueue.getSegmentCount ());
+      final AS4OutboundQueueEntry aFailed = aQueue.getEntry ("failed");
+      assertEquals (EAS4OutboundQueueEntryState.FAILED, aFailed.getState ());
+      assertEquals (1, aFailed.getAttemptCount ());
+      assertEquals (ESimpleUserMessageSendResult.AS4_ERROR_MESSAGE_RECEIVED, aFailed.getLastResult ());
+      assertEquals ("EBMS:0004", aFailed.getLastErrorCode ());
+      assertArrayEquals (new byte [] { 42 }, aQueue.getPayload ("failed"));
+
+      final AS4OutboundQueueEntry aSent = aQueue.enqueue ("msg-3", "dest", null, new byte [] { 3 });
+      assertEquals (EAS4OutboundQueueEntryState.SENT, aSent.getState ());
+      assertEquals ("receipt-msg-3", aSent.getReceiptMessageID ());
+    }
+    final ICommonsMap <String, String> aFileStates = _getFileStates ();
+
+    // The copy is not copied again
+    ThreadHelper.sleep (20);
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender, 2, 1, 3, Duration.ofMillis (10), 64))
+    {
+      assertEquals ("EBMS:0004", aQueue.getEntry ("failed").getLastErrorCode ());
+      assertArrayEquals (new byte [] { 42 }, aQueue.getPayload ("failed"));
+    }
+    assertEquals (aFileStates, _getFileStates ());
+  }
+
+  @Test
+  public void testRecovery () throws Exception
+  {
+    final IAS4OutboundQueueMessageSender aSender = (aEntry, aPayload) -> AS4OutboundQueueSendResult.create (ESimpleUserMessageSendResult.SUCCESS);
+
+    // Enqueue without sending - simulates a crash before sending
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender))
+    {
+      aQueue.enqueue ("msg-1", "dest", new JsonObject ().add ("key", "value"), new byte [] { 1, 2, 3 });
+      aQueue.enqueue ("msg-2", "dest", null, new byte [] { 4 });
+      assertEquals (2, aQueue.getAllPendingEntries ().size ());
+    }
+
+    // Simulate a torn write at the end of the segment
+    final File [] aSegments = DIR.listFiles ();
+    assertNotNull (aSegments);
+    assertEquals (1, aSegments.length);
+    try (final OutputStream aOS = new FileOutputStream (aSegments[0], true))
+    {
+      aOS.write ("{\"type\":\"update\",\"messageId\":\"msg-1\",\"sta".getBytes (StandardCharsets.UTF_8));
+    }
+
+    try (final AS4OutboundQueue aQueue = new AS4OutboundQueue (DIR, aSender))
+    {
+      assertEquals (2, aQueue.getAllPendingEntries ().size ());
+      final AS4OutboundQueueEntry aEntry = aQueue.getEntry ("msg-1");
+      assertEquals ("value", aEntry.getMetadata ().getAsString ("key"));
+      assertArrayEquals (new byte [] { 1, 2, 3 }, aQueue.getPayload ("msg-1"));
+
+      aQueue.start ();
+      _waitFor ( () -> aQueue.getAllPendingEntries ().isEmpty ());
+      assertEquals (2, aQueue.getCount (EAS4OutboundQueueEntryState.SENT));
+    }
+  }
+}
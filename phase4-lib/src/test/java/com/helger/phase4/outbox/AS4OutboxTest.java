@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.config.Config;
+import com.helger.config.IConfig;
+import com.helger.config.source.EConfigSourceType;
+import com.helger.config.source.MultiConfigurationValueProvider;
+import com.helger.config.source.appl.ConfigurationSourceFunction;
+import com.helger.json.serialize.JsonWriter;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4Outbox}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxTest
+{
+  private static final byte [] RESPONSE = "<ok/>".getBytes (StandardCharsets.UTF_8);
+
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  private final ICommonsList <byte []> m_aReceived = new CommonsArrayList <> ();
+  private final ICommonsList <String> m_aReceivedContentTypes = new CommonsArrayList <> ();
+  private HttpServer m_aServer;
+  private IConfig m_aOldConfig;
+
+  @Before
+  public void before () throws Exception
+  {
+    // 2 attempts with 1 second delay
+    final StringMap aSettings = new StringMap ();
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_OUTBOX_PATH, "target/phase4-outbox-test");
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_OUTBOX_MAXATTEMPTS, 2);
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_OUTBOX_RETRY_SECONDS, 1);
+    final MultiConfigurationValueProvider aVP = AS4Configuration.createPhase4ValueProvider ();
+    aVP.addConfigurationSource (new ConfigurationSourceFunction (aSettings::getAsString),
+                                EConfigSourceType.RESOURCE.getDefaultPriority () + 20);
+    m_aOldConfig = AS4Configuration.setConfig (new Config (aVP));
+
+    // Start fresh
+    new FileOperationManager ().deleteDirRecursiveIfExisting (AS4Configuration.getOutboxPathFile ());
+
+    m_aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+    m_aServer.createContext ("/as4", aExchange -> {
+      synchronized (m_aReceived)
+      {
+        m_aReceived.add (StreamHelper.getAllBytes (aExchange.getRequestBody ()));
+        m_aReceivedContentTypes.add (aExchange.getRequestHeaders ().getFirst ("Content-Type"));
+      }
+      aExchange.getResponseHeaders ().add ("Content-Type", "application/xml");
+      aExchange.sendResponseHeaders (200, RESPONSE.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (RESPONSE);
+      }
+    });
+    m_aServer.start ();
+  }
+
+  @After
+  public void after ()
+  {
+    m_aServer.stop (0);
+    AS4Configuration.setConfig (m_aOldConfig);
+  }
+
+  private String _getURL ()
+  {
+    return "http://localhost:" + m_aServer.getAddress ().getPort () + "/as4";
+  }
+
+  private static void _waitFor (final BooleanSupplier aCondition)
+  {
+    for (int i = 0; i < 200 && !aCondition.getAsBoolean (); ++i)
+      ThreadHelper.sleep (50);
+    assertTrue (aCondition.getAsBoolean ());
+  }
+
+  @Test
+  public void testDeliver () throws Exception
+  {
+    final AS4Outbox aOutbox = AS4Outbox.getInstance ();
+    final byte [] aPayload = "<response/>".getBytes (StandardCharsets.UTF_8);
+    final AS4OutboxEntry aEntry = aOutbox.enqueue (_getURL (),
+                                                   "ref-msg-id",
+                                                   new ByteArrayEntity (aPayload, ContentType.create ("application/soap+xml", StandardCharsets.UTF_8)));
+
+    _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+    assertEquals (0, aOutbox.getPendingCount ());
+    assertFalse (aOutbox.isPending (aEntry.getID ()));
+    synchronized (m_aReceived)
+    {
+      assertEquals (1, m_aReceived.size ());
+      assertArrayEquals (aPayload, m_aReceived.getFirst ());
+      assertEquals ("application/soap+xml; charset=UTF-8", m_aReceivedContentTypes.getFirst ());
+    }
+  }
+
+  @Test
+  public void testDeliverWithDumper () throws Exception
+  {
+    final AS4Outbox aOutbox = AS4Outbox.getInstance ();
+    final NonBlockingByteArrayOutputStream aDump = new NonBlockingByteArrayOutputStream ();
+    final IAS4OutgoingDumper aDumper = (eMsgMode, aMessageMetadata, aState, sMessageID, aCustomHeaders, nTry) -> aDump;
+    final byte [] aPayload = "<response/>".getBytes (StandardCharsets.UTF_8);
+    aOutbox.enqueue (_getURL (), "ref-msg-id", new ByteArrayEntity (aPayload), aDumper, null);
+
+    _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+    // The dumper of the entry was used
+    assertTrue (aDump.getAsString (StandardCharsets.UTF_8).endsWith ("<response/>"));
+  }
+
+  @Test
+  public void testFailedDelivery () throws Exception
+  {
+    final AS4Outbox aOutbox = AS4Outbox.getInstance ();
+    // Nobody listens there
+    final String sURL = _getURL ();
+    m_aServer.stop (0);
+
+    final AS4OutboxEntry aEntry = aOutbox.enqueue (sURL, "ref-msg-id", new ByteArrayEntity ("<response/>".getBytes (StandardCharsets.UTF_8)));
+
+    // 2 attempts with 1 second delay
+    _waitFor ( () -> aOutbox.getFailedCount () == 1);
+    assertEquals (0, aOutbox.getPendingCount ());
+    assertFalse (aOutbox.isPending (aEntry.getID ()));
+    assertTrue (new File (aOutbox.getFailedDirectory (), aEntry.getID () + ".json").exists ());
+    assertTrue (new File (aOutbox.getFailedDirectory (), aEntry.getID () + ".body").exists ());
+  }
+
+  @Test
+  public void testRecovery () throws Exception
+  {
+    // Simulate entries left over by a previous run
+    final File aPendingDir = new File (AS4Configuration.getOutboxPathFile (), AS4Outbox.DIR_PENDING);
+    assertTrue (aPendingDir.mkdirs ());
+    final byte [] aPayload = "<recovered/>".getBytes (StandardCharsets.UTF_8);
+    final AS4OutboxEntry aEntry = new AS4OutboxEntry ("recovered", _getURL (), "ref-msg-id", "application/xml", null, 0);
+    Files.write (new File (aPendingDir, "recovered.body").toPath (), aPayload);
+    Files.write (new File (aPendingDir, "recovered.json").toPath (),
+                 new JsonWriter ().writeAsByteArray (aEntry.getAsJson (), StandardCharsets.UTF_8));
+    // Incomplete entry
+    final File aOrphan = new File (aPendingDir, "orphan.body");
+    Files.write (aOrphan.toPath (), aPayload);
+    // Interrupted move of a failed entry
+    final File aFailedDir = new File (AS4Configuration.getOutboxPathFile (), AS4Outbox.DIR_FAILED);
+    assertTrue (aFailedDir.mkdirs ());
+    Files.write (new File (aFailedDir, "failed.json").toPath (),
+                 new JsonWriter ().writeAsByteArray (new AS4OutboxEntry ("failed", _getURL (), "ref-msg-id2", "application/xml", null, 0).getAsJson (),
+                                                     StandardCharsets.UTF_8));
+    final File aFailedBody = new File (aPendingDir, "failed.body");
+    Files.write (aFailedBody.toPath (), aPayload);
+
+    final AS4Outbox aOutbox = AS4Outbox.getInstance ();
+    _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+    assertFalse (aOutbox.isPending ("recovered"));
+    assertFalse (aOrphan.exists ());
+    assertFalse (aFailedBody.exists ());
+    assertTrue (new File (aFailedDir, "failed.body").exists ());
+    synchronized (m_aReceived)
+    {
+      assertEquals (1, m_aReceived.size ());
+      assertArrayEquals (aPayload, m_aReceived.getFirst ());
+    }
+  }
+}
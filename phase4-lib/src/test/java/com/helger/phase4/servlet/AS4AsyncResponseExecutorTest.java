@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.config.Config;
+import com.helger.config.IConfig;
+import com.helger.config.source.EConfigSourceType;
+import com.helger.config.source.MultiConfigurationValueProvider;
+import com.helger.config.source.appl.ConfigurationSourceFunction;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * Test class for class {@link AS4AsyncResponseExecutor}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncResponseExecutorTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Test
+  public void testBoundedQueue () throws Exception
+  {
+    // One thread and a queue size of 2
+    final StringMap aSettings = new StringMap ();
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_ASYNC_RESPONSE_THREADS, 1);
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_ASYNC_RESPONSE_QUEUESIZE, 2);
+    final MultiConfigurationValueProvider aVP = AS4Configuration.createPhase4ValueProvider ();
+    aVP.addConfigurationSource (new ConfigurationSourceFunction (aSettings::getAsString),
+                                EConfigSourceType.RESOURCE.getDefaultPriority () + 20);
+    final IConfig aOldConfig = AS4Configuration.setConfig (new Config (aVP));
+    try
+    {
+      _testBoundedQueue ();
+    }
+    finally
+    {
+      AS4Configuration.setConfig (aOldConfig);
+    }
+  }
+
+  private static void _testBoundedQueue () throws Exception
+  {
+    // Created with the settings from above
+    final AS4AsyncResponseExecutor aExecutor = AS4AsyncResponseExecutor.getInstance ();
+    assertEquals (2, aExecutor.getMaxQueueSize ());
+
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final AtomicInteger aCount = new AtomicInteger (0);
+
+    // Occupy the only thread
+    final CompletableFuture <Void> aBlocking = aExecutor.submit ("blocking", () -> {
+      aStarted.countDown ();
+      aRelease.await ();
+      aCount.incrementAndGet ();
+    });
+    assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+
+    final CompletableFuture <Void> aQueued1 = aExecutor.submit ("queued1", aCount::incrementAndGet);
+    final CompletableFuture <Void> aQueued2 = aExecutor.submit ("queued2", () -> {
+      aCount.incrementAndGet ();
+      throw new IllegalStateException ("Test - logged only");
+    });
+    assertEquals (2, aExecutor.getQueuedTaskCount ());
+
+    try
+    {
+      aExecutor.submit ("rejected", aCount::incrementAndGet);
+      fail ();
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // expected
+    }
+    assertEquals (1, aExecutor.getRejectedTaskCount ());
+
+    aRelease.countDown ();
+    CompletableFuture.allOf (aBlocking, aQueued1, aQueued2).get (10, TimeUnit.SECONDS);
+    assertEquals (3, aCount.get ());
+    assertEquals (0, aExecutor.getQueuedTaskCount ());
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4RequestCancellation}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4RequestCancellationTest
+{
+  @Test
+  public void testCancelBeforeDelivery ()
+  {
+    final AS4RequestCancellation aCancellation = new AS4RequestCancellation ();
+    assertFalse (aCancellation.isCancelled ());
+    assertTrue (aCancellation.cancel ());
+    assertTrue (aCancellation.isCancelled ());
+    // Repeated cancel is fine
+    assertTrue (aCancellation.cancel ());
+    assertFalse (aCancellation.tryStartDelivery ());
+    assertFalse (aCancellation.isDeliveryStarted ());
+  }
+
+  @Test
+  public void testCancelAfterDelivery ()
+  {
+    final AS4RequestCancellation aCancellation = new AS4RequestCancellation ();
+    assertTrue (aCancellation.tryStartDelivery ());
+    assertTrue (aCancellation.tryStartDelivery ());
+    assertTrue (aCancellation.isDeliveryStarted ());
+    assertFalse (aCancellation.cancel ());
+    assertFalse (aCancellation.isCancelled ());
+  }
+}
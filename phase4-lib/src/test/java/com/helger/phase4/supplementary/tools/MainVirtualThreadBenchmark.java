@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.supplementary.tools;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.timing.StopWatch;
+import com.helger.config.Config;
+import com.helger.config.source.EConfigSourceType;
+import com.helger.config.source.MultiConfigurationValueProvider;
+import com.helger.config.source.appl.ConfigurationSourceFunction;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.util.AS4ThreadHelper;
+
+/**
+ * This is a small tool that compares the throughput of
+ * {@link AS4ThreadHelper#createBoundedExecutor(String, int, int)} with platform
+ * threads and with virtual threads. Each task simulates a blocking call to a
+ * slow partner (e.g. an SMP lookup or an async response) by sleeping. The
+ * virtual thread part requires JDK 21 or later and is skipped otherwise.
+ *
+ * @author Philip Helger
+ */
+public final class MainVirtualThreadBenchmark
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainVirtualThreadBenchmark.class);
+
+  private static final int TASKS = 5_000;
+  private static final int THREADS = 16;
+  private static final long PARTNER_LATENCY_MS = 100;
+
+  private static void _setVirtualThreadsEnabled (final boolean bEnabled)
+  {
+    final StringMap aSettings = new StringMap ();
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_VIRTUALTHREADS_ENABLED, bEnabled);
+    final MultiConfigurationValueProvider aVP = AS4Configuration.createPhase4ValueProvider ();
+    aVP.addConfigurationSource (new ConfigurationSourceFunction (aSettings::getAsString),
+                                EConfigSourceType.RESOURCE.getDefaultPriority () + 20);
+    AS4Configuration.setConfig (new Config (aVP));
+  }
+
+  private static void _run (final String sName) throws InterruptedException
+  {
+    // Queue is large enough to accept all tasks
+    final ExecutorService aExecutor = AS4ThreadHelper.createBoundedExecutor ("phase4-benchmark-", THREADS, TASKS);
+    final CountDownLatch aDone = new CountDownLatch (TASKS);
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < TASKS; ++i)
+      aExecutor.execute ( () -> {
+        ThreadHelper.sleep (PARTNER_LATENCY_MS);
+        aDone.countDown ();
+      });
+    aDone.await ();
+    final long nMillis = aSW.stopAndGetMillis ();
+    aExecutor.shutdown ();
+    aExecutor.awaitTermination (1, TimeUnit.MINUTES);
+
+    LOGGER.info (sName +
+                 ": " +
+                 TASKS +
+                 " tasks with " +
+                 PARTNER_LATENCY_MS +
+                 "ms latency took " +
+                 nMillis +
+                 "ms (" +
+                 (TASKS * 1000L / Math.max (nMillis, 1)) +
+                 " tasks/s) using " +
+                 aExecutor.getClass ().getSimpleName ());
+  }
+
+  public static void main (final String [] args) throws Exception
+  {
+    _setVirtualThreadsEnabled (false);
+    _run ("Platform threads");
+
+    if (AS4ThreadHelper.isVirtualThreadSupported ())
+    {
+      _setVirtualThreadsEnabled (true);
+      _run ("Virtual threads");
+    }
+    else
+      LOGGER.warn ("Virtual threads are not supported by this JDK - requires JDK 21 or later");
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsCopyOnWriteArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.functional.IThrowingFunction;
+
+/**
+ * Test class for class {@link AS4LookupCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4LookupCacheTest
+{
+  @Test
+  public void testBasic () throws Exception
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ofMinutes (1), 10);
+    final AtomicInteger aCount = new AtomicInteger (0);
+
+    assertEquals ("a!", aCache.getOrLookup ("a", k -> k + "!" + (aCount.incrementAndGet () > 1 ? "x" : "")));
+    assertEquals ("a!", aCache.getOrLookup ("a", k -> k + "!" + (aCount.incrementAndGet () > 1 ? "x" : "")));
+    assertEquals (1, aCount.get ());
+    assertEquals (1, aCache.getHitCount ());
+    assertEquals (1, aCache.getLookupCount ());
+
+    // Negative caching
+    assertNull (aCache.getOrLookup ("b", k -> {
+      aCount.incrementAndGet ();
+      return null;
+    }));
+    assertNull (aCache.getOrLookup ("b", k -> "found"));
+    assertEquals (2, aCount.get ());
+
+    // Invalidation
+    aCache.remove ("b");
+    assertEquals ("found", aCache.getOrLookup ("b", k -> "found"));
+    aCache.clear ();
+    assertEquals (0, aCache.size ());
+  }
+
+  @Test
+  public void testExceptionsAreNotCached ()
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ZERO, 10);
+    try
+    {
+      aCache.getOrLookup ("a", k -> {
+        throw new IOException ("failed");
+      });
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    assertEquals ("ok", aCache.getOrLookup ("a", k -> "ok"));
+
+    // Negative caching is disabled
+    assertNull (aCache.getOrLookup ("b", k -> null));
+    assertEquals ("ok", aCache.getOrLookup ("b", k -> "ok"));
+  }
+
+  @Test
+  public void testExpiration ()
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMillis (50), Duration.ofMillis (50), 10);
+    assertEquals ("1", aCache.getOrLookup ("a", k -> "1"));
+    assertEquals ("1", aCache.getOrLookup ("a", k -> "2"));
+    ThreadHelper.sleep (100);
+    assertEquals ("2", aCache.getOrLookup ("a", k -> "2"));
+  }
+
+  @Test
+  public void testMaxSize ()
+  {
+    final AS4LookupCache <Integer, Integer> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ofMinutes (1), 5);
+    for (int i = 0; i < 20; ++i)
+      aCache.getOrLookup (Integer.valueOf (i), k -> k);
+    assertEquals (5, aCache.size ());
+  }
+
+  @Test
+  public void testCoalescing () throws Exception
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ofMinutes (1), 10);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final ICommonsList <AS4LookupCache.ELookupSource> aSources = new CommonsCopyOnWriteArrayList <> ();
+    final ExecutorService aES = Executors.newFixedThreadPool (5);
+    try
+    {
+      final IThrowingFunction <String, String, InterruptedException> aLookup = k -> {
+        aCount.incrementAndGet ();
+        aStarted.countDown ();
+        aRelease.await ();
+        return "value";
+      };
+      final IThrowingFunction <String, String, InterruptedException> aOtherLookup = k -> {
+        aCount.incrementAndGet ();
+        return "other";
+      };
+      final ICommonsList <Future <String>> aFutures = new CommonsArrayList <> ();
+      aFutures.add (aES.submit ( () -> aCache.getOrLookup ("a", aLookup, aLookup, aSources::add)));
+      aStarted.await ();
+      for (int i = 0; i < 4; ++i)
+        aFutures.add (aES.submit ( () -> aCache.getOrLookup ("a", aOtherLookup, aOtherLookup, aSources::add)));
+      // Wait until all others are waiting for the lookup
+      while (aCache.getCoalescedCount () < 4)
+        ThreadHelper.sleep (5);
+      aRelease.countDown ();
+
+      for (final Future <String> aFuture : aFutures)
+        assertEquals ("value", aFuture.get (10, TimeUnit.SECONDS));
+      assertEquals (1, aCount.get ());
+
+      assertEquals ("value", aCache.getOrLookup ("a", aOtherLookup, aOtherLookup, aSources::add));
+      assertEquals (6, aSources.size ());
+      assertEquals (1, aSources.getCount (x -> x == AS4LookupCache.ELookupSource.LOOKED_UP));
+      assertEquals (4, aSources.getCount (x -> x == AS4LookupCache.ELookupSource.COALESCED));
+      assertEquals (AS4LookupCache.ELookupSource.CACHED, aSources.getLast ());
+    }
+    finally
+    {
+      aES.shutdownNow ();
+    }
+  }
+
+  @Test
+  public void testCoalescedFailure () throws Exception
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ofMinutes (1), 10);
+    final AtomicInteger aCount = new AtomicInteger (0);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final ExecutorService aES = Executors.newFixedThreadPool (3);
+    try
+    {
+      final ICommonsList <Future <String>> aFutures = new CommonsArrayList <> ();
+      aFutures.add (aES.submit ( () -> aCache.getOrLookup ("a", k -> {
+        aCount.incrementAndGet ();
+        aStarted.countDown ();
+        aRelease.await ();
+        throw new IOException ("failed");
+      })));
+      aStarted.await ();
+      for (int i = 0; i < 2; ++i)
+        aFutures.add (aES.submit ( () -> aCache.getOrLookup ("a", k -> {
+          aCount.incrementAndGet ();
+          return "other";
+        })));
+      while (aCache.getCoalescedCount () < 2)
+        ThreadHelper.sleep (5);
+      aRelease.countDown ();
+
+      // All callers get the failure of the single lookup
+      for (final Future <String> aFuture : aFutures)
+        try
+        {
+          aFuture.get (10, TimeUnit.SECONDS);
+          fail ();
+        }
+        catch (final ExecutionException ex)
+        {
+          assertTrue (ex.getCause () instanceof IOException);
+        }
+      assertEquals (1, aCount.get ());
+      assertEquals (0, aCache.size ());
+    }
+    finally
+    {
+      aES.shutdownNow ();
+    }
+  }
+
+  @Test
+  public void testRemoveDuringLookup () throws Exception
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ofMinutes (1), 10);
+    final CountDownLatch aStarted = new CountDownLatch (2);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final ExecutorService aES = Executors.newFixedThreadPool (2);
+    try
+    {
+      final Future <String> aFutureA = aES.submit ( () -> aCache.getOrLookup ("a", k -> {
+        aStarted.countDown ();
+        aRelease.await ();
+        return "old";
+      }));
+      final Future <String> aFutureB = aES.submit ( () -> aCache.getOrLookup ("b", k -> {
+        aStarted.countDown ();
+        aRelease.await ();
+        return "b";
+      }));
+      aStarted.await ();
+      aCache.remove ("a");
+      aRelease.countDown ();
+      assertEquals ("old", aFutureA.get (10, TimeUnit.SECONDS));
+      assertEquals ("b", aFutureB.get (10, TimeUnit.SECONDS));
+
+      // The removed key is looked up again, the other key is cached
+      assertEquals ("new", aCache.getOrLookup ("a", k -> "new"));
+      assertEquals ("b", aCache.getOrLookup ("b", k -> "other"));
+    }
+    finally
+    {
+      aES.shutdownNow ();
+    }
+  }
+
+  @Test
+  public void testBackgroundRefresh () throws Exception
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMillis (1000), Duration.ofMillis (1000), 10);
+    // Run the refresh synchronously
+    aCache.setBackgroundRefresh (Duration.ofMillis (800), Runnable::run);
+    assertEquals ("1", aCache.getOrLookup ("a", k -> "1"));
+
+    // Not yet in the refresh window
+    assertEquals ("1", aCache.getOrLookup ("a", k -> "2"));
+    assertEquals (0, aCache.getRefreshCount ());
+
+    // In the refresh window - the old value is returned, the new one is cached
+    ThreadHelper.sleep (400);
+    assertEquals ("1", aCache.getOrLookup ("a", k -> "2"));
+    assertEquals (1, aCache.getRefreshCount ());
+    assertEquals ("2", aCache.getOrLookup ("a", k -> "3"));
+
+    // A failing refresh keeps the old entry
+    ThreadHelper.sleep (400);
+    assertEquals ("2", aCache.getOrLookup ("a", k -> {
+      throw new IOException ("failed");
+    }));
+    assertEquals (2, aCache.getRefreshCount ());
+    assertEquals ("2", aCache.getOrLookup ("a", k -> "4"));
+  }
+
+  @Test
+  public void testRefresh () throws Exception
+  {
+    final AS4LookupCache <String, String> aCache = new AS4LookupCache <> ("test", Duration.ofMinutes (1), Duration.ofMinutes (1), 10);
+    assertEquals ("1", aCache.getOrLookup ("a", k -> "1"));
+
+    // Replaces the valid entry
+    assertEquals ("2", aCache.refresh ("a", k -> "2"));
+    assertEquals ("2", aCache.getOrLookup ("a", k -> "3"));
+    assertEquals (1, aCache.getRefreshCount ());
+
+    // Failures and "not found" keep the old entry
+    try
+    {
+      aCache.refresh ("a", k -> {
+        throw new IOException ("failed");
+      });
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    assertNull (aCache.refresh ("a", k -> null));
+    assertEquals ("2", aCache.getOrLookup ("a", k -> "3"));
+
+    // Works for unknown keys as well
+    assertEquals ("x", aCache.refresh ("b", k -> "x"));
+    assertEquals ("x", aCache.getOrLookup ("b", k -> "y"));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.config.Config;
+import com.helger.config.IConfig;
+import com.helger.config.source.EConfigSourceType;
+import com.helger.config.source.MultiConfigurationValueProvider;
+import com.helger.config.source.appl.ConfigurationSourceFunction;
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * Test class for class {@link AS4ThreadHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ThreadHelperTest
+{
+  @Test
+  public void testThreadFactory ()
+  {
+    // Disabled by default
+    assertFalse (AS4ThreadHelper.isUseVirtualThreads ());
+
+    final ThreadFactory aTF = AS4ThreadHelper.createThreadFactory ("phase4-test-");
+    assertNotNull (aTF);
+    final Thread aThread = aTF.newThread ( () -> {});
+    assertNotNull (aThread);
+    assertTrue (aThread.getName ().startsWith ("phase4-test-"));
+    assertTrue (aThread.isDaemon ());
+  }
+
+  /**
+   * Submit as many blocking tasks as the executor accepts and check that
+   * exactly the expected number of them is accepted.
+   */
+  private static void _testBounded (@Nonnull final ExecutorService aExecutor,
+                                    final int nExpectedAccepted,
+                                    final int nExpectedRunning) throws InterruptedException
+  {
+    final CountDownLatch aStarted = new CountDownLatch (nExpectedRunning);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    try
+    {
+      for (int i = 0; i < nExpectedAccepted; ++i)
+        aExecutor.execute ( () -> {
+          aStarted.countDown ();
+          try
+          {
+            aRelease.await ();
+          }
+          catch (final InterruptedException ex)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+        });
+
+      // All running tasks block at the same time
+      assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+      assertEquals (nExpectedRunning, AS4ThreadHelper.getActiveTaskCount (aExecutor));
+      assertEquals (nExpectedAccepted - nExpectedRunning, AS4ThreadHelper.getQueuedTaskCount (aExecutor));
+
+      try
+      {
+        aExecutor.execute ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      aRelease.countDown ();
+    }
+
+    aExecutor.shutdown ();
+    assertTrue (aExecutor.awaitTermination (10, TimeUnit.SECONDS));
+    assertEquals (nExpectedAccepted, AS4ThreadHelper.getCompletedTaskCount (aExecutor));
+  }
+
+  @Test
+  public void testBoundedExecutorPlatform () throws InterruptedException
+  {
+    final ExecutorService aExecutor = AS4ThreadHelper.createBoundedExecutor ("phase4-test-", 2, 3);
+    assertTrue (aExecutor instanceof ThreadPoolExecutor);
+    // 2 running plus 3 queued
+    _testBounded (aExecutor, 5, 2);
+  }
+
+  @Test
+  public void testBoundedExecutorVirtual () throws InterruptedException
+  {
+    // Requires JDK 21
+    Assume.assumeTrue (AS4ThreadHelper.isVirtualThreadSupported ());
+
+    final StringMap aSettings = new StringMap ();
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_VIRTUALTHREADS_ENABLED, true);
+    final MultiConfigurationValueProvider aVP = AS4Configuration.createPhase4ValueProvider ();
+    aVP.addConfigurationSource (new ConfigurationSourceFunction (aSettings::getAsString),
+                                EConfigSourceType.RESOURCE.getDefaultPriority () + 20);
+    final IConfig aOldConfig = AS4Configuration.setConfig (new Config (aVP));
+    try
+    {
+      assertTrue (AS4ThreadHelper.isUseVirtualThreads ());
+
+      final ExecutorService aExecutor = AS4ThreadHelper.createBoundedExecutor ("phase4-test-", 2, 3);
+      assertTrue (aExecutor instanceof AS4VirtualThreadExecutor);
+      // No queue - all 5 tasks run concurrently, each on its own thread
+      _testBounded (aExecutor, 5, 5);
+    }
+    finally
+    {
+      AS4Configuration.setConfig (aOldConfig);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link AS4XMLHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4XMLHelperTest
+{
+  @Test
+  public void testSerializeBytes () throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM (new ClassPathResource ("soap11test/UserMessage.xml"));
+    assertNotNull (aDoc);
+
+    final String sXML = AS4XMLHelper.serializeXML (aDoc);
+    assertTrue (sXML.startsWith ("<?xml"));
+    final byte [] aExpected = sXML.getBytes (AS4XMLHelper.XWS.getCharset ());
+    assertArrayEquals (aExpected, AS4XMLHelper.serializeXMLBytes (aDoc));
+
+    // The cached Transformer objects must be usable from multiple threads
+    final ExecutorService aES = Executors.newFixedThreadPool (4);
+    try
+    {
+      final ICommonsList <Future <byte []>> aResults = new CommonsArrayList <> ();
+      for (int i = 0; i < 50; ++i)
+        aResults.add (aES.submit ( () -> AS4XMLHelper.serializeXMLBytes (DOMReader.readXMLDOM (new ClassPathResource ("soap11test/UserMessage.xml")))));
+      for (final Future <byte []> aResult : aResults)
+        assertArrayEquals (aExpected, aResult.get ());
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+}
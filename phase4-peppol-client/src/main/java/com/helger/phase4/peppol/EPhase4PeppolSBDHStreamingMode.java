@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how {@link Phase4PeppolSender.Builder} creates the Standard Business
+ * Document from payload bytes.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public enum EPhase4PeppolSBDHStreamingMode implements IHasID <String>
+{
+  /**
+   * The payload is parsed into a DOM, wrapped into the SBD and serialized
+   * again. This is the default.
+   */
+  DISABLED ("disabled"),
+  /**
+   * The SBDH is written and the payload bytes are copied unchanged into an in
+   * memory SBD.
+   */
+  IN_MEMORY ("in-memory"),
+  /**
+   * The SBDH is written and the payload bytes are copied unchanged into a
+   * temporary file, that is deleted after sending.
+   */
+  TEMP_FILE ("temp-file");
+
+  private final String m_sID;
+
+  EPhase4PeppolSBDHStreamingMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  public boolean isStreaming ()
+  {
+    return this != DISABLED;
+  }
+
+  @Nullable
+  public static EPhase4PeppolSBDHStreamingMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EPhase4PeppolSBDHStreamingMode.class, sID);
+  }
+}
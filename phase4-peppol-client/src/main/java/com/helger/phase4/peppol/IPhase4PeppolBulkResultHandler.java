@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Callback interface for the per item results of the
+ * {@link Phase4PeppolBulkSender}. Implementations must be thread-safe, because
+ * the results are reported from the different worker threads.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@FunctionalInterface
+public interface IPhase4PeppolBulkResultHandler
+{
+  /**
+   * Invoked exactly once for each submitted item, after it was either sent or
+   * failed in one of the stages.
+   *
+   * @param aResult
+   *        The result of the item. Never <code>null</code>.
+   */
+  void onItemResult (@Nonnull Phase4PeppolBulkSender.ItemResult aResult);
+}
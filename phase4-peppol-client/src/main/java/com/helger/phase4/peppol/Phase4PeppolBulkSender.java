@@ -0,0 +1,970 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+import com.helger.phase4.util.AS4LookupCache;
+import com.helger.phase4.util.AS4ThreadHelper;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.phive.api.executorset.IValidationExecutorSetRegistry;
+import com.helger.phive.api.executorset.VESID;
+import com.helger.phive.engine.source.IValidationSourceXML;
+import com.helger.sbdh.builder.SBDHWriter;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * A sender for large numbers of Peppol documents. In contrast to
+ * {@link Phase4PeppolSender.Builder} that performs all steps of a transmission
+ * strictly in sequence, this class runs the steps as a pipeline on separate
+ * bounded thread pools:
+ * <ol>
+ * <li>{@link EStage#PREPARE}: payload parsing, optional validation, SBDH
+ * creation and serialization (CPU bound)</li>
+ * <li>{@link EStage#LOOKUP}: the endpoint resolution, e.g. via SMP (I/O
+ * bound). This runs in parallel to the preparation of the same item. Lookups
+ * for the same receiver, document type and process are grouped, so that only
+ * one lookup is performed and the result is reused for all items.</li>
+ * <li>{@link EStage#SEND}: signing, encryption and HTTP transmission (I/O
+ * bound)</li>
+ * </ol>
+ * The number of items in the pipeline is limited, so {@link #submit(Item)}
+ * blocks if the backlog is full. The results are reported per item through the
+ * {@link IPhase4PeppolBulkResultHandler} and through the returned futures.<br>
+ * Instances are meant to be reused for a complete run and must be closed
+ * afterwards.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class Phase4PeppolBulkSender implements AutoCloseable
+{
+  /**
+   * The stages of the pipeline.
+   *
+   * @author Philip Helger
+   */
+  public enum EStage implements IHasID <String>
+  {
+    PREPARE ("prepare"),
+    LOOKUP ("lookup"),
+    SEND ("send");
+
+    private final String m_sID;
+
+    EStage (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    @Nullable
+    public static EStage getFromIDOrNull (@Nullable final String sID)
+    {
+      return EnumHelper.getFromIDOrNull (EStage.class, sID);
+    }
+  }
+
+  /**
+   * A single document to be send, consisting of the payload and the Peppol
+   * metadata.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Item
+  {
+    private final String m_sID;
+    private final IParticipantIdentifier m_aSenderID;
+    private final IParticipantIdentifier m_aReceiverID;
+    private final IDocumentTypeIdentifier m_aDocTypeID;
+    private final IProcessIdentifier m_aProcessID;
+    private final byte [] m_aPayloadBytes;
+    private final Element m_aPayloadElement;
+
+    private Item (@Nonnull @Nonempty final String sID,
+                  @Nonnull final IParticipantIdentifier aSenderID,
+                  @Nonnull final IParticipantIdentifier aReceiverID,
+                  @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                  @Nonnull final IProcessIdentifier aProcessID,
+                  @Nullable final byte [] aPayloadBytes,
+                  @Nullable final Element aPayloadElement)
+    {
+      ValueEnforcer.notEmpty (sID, "ID");
+      ValueEnforcer.notNull (aSenderID, "SenderID");
+      ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+      ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+      ValueEnforcer.notNull (aProcessID, "ProcessID");
+      m_sID = sID;
+      m_aSenderID = aSenderID;
+      m_aReceiverID = aReceiverID;
+      m_aDocTypeID = aDocTypeID;
+      m_aProcessID = aProcessID;
+      m_aPayloadBytes = aPayloadBytes;
+      m_aPayloadElement = aPayloadElement;
+    }
+
+    /**
+     * Constructor for a payload that is available as bytes. It is parsed in
+     * the {@link EStage#PREPARE} stage.
+     *
+     * @param sID
+     *        The caller specific ID of the item, used to correlate the result.
+     *        May neither be <code>null</code> nor empty.
+     * @param aSenderID
+     *        Sender participant ID. May not be <code>null</code>.
+     * @param aReceiverID
+     *        Receiver participant ID. May not be <code>null</code>.
+     * @param aDocTypeID
+     *        Document type ID. May not be <code>null</code>.
+     * @param aProcessID
+     *        Process ID. May not be <code>null</code>.
+     * @param aPayloadBytes
+     *        The XML payload bytes (without SBDH). May not be
+     *        <code>null</code>.
+     */
+    public Item (@Nonnull @Nonempty final String sID,
+                 @Nonnull final IParticipantIdentifier aSenderID,
+                 @Nonnull final IParticipantIdentifier aReceiverID,
+                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                 @Nonnull final IProcessIdentifier aProcessID,
+                 @Nonnull final byte [] aPayloadBytes)
+    {
+      this (sID, aSenderID, aReceiverID, aDocTypeID, aProcessID, ValueEnforcer.notNull (aPayloadBytes, "PayloadBytes"), null);
+    }
+
+    /**
+     * Constructor for a payload that is available as a parsed DOM element.
+     *
+     * @param sID
+     *        The caller specific ID of the item, used to correlate the result.
+     *        May neither be <code>null</code> nor empty.
+     * @param aSenderID
+     *        Sender participant ID. May not be <code>null</code>.
+     * @param aReceiverID
+     *        Receiver participant ID. May not be <code>null</code>.
+     * @param aDocTypeID
+     *        Document type ID. May not be <code>null</code>.
+     * @param aProcessID
+     *        Process ID. May not be <code>null</code>.
+     * @param aPayloadElement
+     *        The payload element (without SBDH). It MUST have a namespace URI
+     *        and may not be modified afterwards. May not be <code>null</code>.
+     */
+    public Item (@Nonnull @Nonempty final String sID,
+                 @Nonnull final IParticipantIdentifier aSenderID,
+                 @Nonnull final IParticipantIdentifier aReceiverID,
+                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                 @Nonnull final IProcessIdentifier aProcessID,
+                 @Nonnull final Element aPayloadElement)
+    {
+      this (sID,
+            aSenderID,
+            aReceiverID,
+            aDocTypeID,
+            aProcessID,
+            null,
+            ValueEnforcer.notNull (aPayloadElement, "PayloadElement"));
+      ValueEnforcer.notNull (aPayloadElement.getNamespaceURI (), "PayloadElement.NamespaceURI");
+    }
+
+    /**
+     * @return The caller specific ID of the item. Neither <code>null</code> nor
+     *         empty.
+     */
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    @Nonnull
+    public IParticipantIdentifier getSenderID ()
+    {
+      return m_aSenderID;
+    }
+
+    @Nonnull
+    public IParticipantIdentifier getReceiverID ()
+    {
+      return m_aReceiverID;
+    }
+
+    @Nonnull
+    public IDocumentTypeIdentifier getDocTypeID ()
+    {
+      return m_aDocTypeID;
+    }
+
+    @Nonnull
+    public IProcessIdentifier getProcessID ()
+    {
+      return m_aProcessID;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("ID", m_sID)
+                                         .append ("SenderID", m_aSenderID.getURIEncoded ())
+                                         .append ("ReceiverID", m_aReceiverID.getURIEncoded ())
+                                         .append ("DocTypeID", m_aDocTypeID.getURIEncoded ())
+                                         .append ("ProcessID", m_aProcessID.getURIEncoded ())
+                                         .getToString ();
+    }
+  }
+
+  /**
+   * The result of a single {@link Item}.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class ItemResult
+  {
+    private final Item m_aItem;
+    private final ESimpleUserMessageSendResult m_eResult;
+    private final EStage m_eFailedStage;
+    private final Exception m_aException;
+    private final long m_nDurationMillis;
+
+    ItemResult (@Nonnull final Item aItem,
+                @Nonnull final ESimpleUserMessageSendResult eResult,
+                @Nullable final EStage eFailedStage,
+                @Nullable final Exception aException,
+                final long nDurationMillis)
+    {
+      m_aItem = aItem;
+      m_eResult = eResult;
+      m_eFailedStage = eFailedStage;
+      m_aException = aException;
+      m_nDurationMillis = nDurationMillis;
+    }
+
+    /**
+     * @return The item this result belongs to. Never <code>null</code>.
+     */
+    @Nonnull
+    public Item getItem ()
+    {
+      return m_aItem;
+    }
+
+    /**
+     * @return The overall result. For failures in the
+     *         {@link EStage#PREPARE} and {@link EStage#LOOKUP} stages this is
+     *         always
+     *         {@link ESimpleUserMessageSendResult#INVALID_PARAMETERS}. Never
+     *         <code>null</code>.
+     */
+    @Nonnull
+    public ESimpleUserMessageSendResult getResult ()
+    {
+      return m_eResult;
+    }
+
+    public boolean isSuccess ()
+    {
+      return m_eResult.isSuccess ();
+    }
+
+    /**
+     * @return The stage in which the item failed. <code>null</code> upon
+     *         success.
+     */
+    @Nullable
+    public EStage getFailedStage ()
+    {
+      return m_eFailedStage;
+    }
+
+    /**
+     * @return The exception that caused the failure. May be <code>null</code>.
+     */
+    @Nullable
+    public Exception getException ()
+    {
+      return m_aException;
+    }
+
+    /**
+     * @return The time from submission to completion in milliseconds,
+     *         including the waiting time in the pipeline.
+     */
+    public long getDurationMillis ()
+    {
+      return m_nDurationMillis;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("Item", m_aItem)
+                                         .append ("Result", m_eResult)
+                                         .append ("FailedStage", m_eFailedStage)
+                                         .append ("Exception", m_aException)
+                                         .append ("DurationMillis", m_nDurationMillis)
+                                         .getToString ();
+    }
+  }
+
+  /**
+   * Internal wrapper to transport the failed stage through the futures.
+   */
+  private static final class StageException extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+    private final EStage m_eStage;
+
+    StageException (@Nonnull final EStage eStage, @Nonnull final Exception aCause)
+    {
+      super (aCause);
+      m_eStage = eStage;
+    }
+  }
+
+  /**
+   * The resolved endpoint of a receiver.
+   */
+  private static final class ResolvedEndpoint
+  {
+    private final X509Certificate m_aCert;
+    private final String m_sURL;
+
+    ResolvedEndpoint (@Nonnull final X509Certificate aCert, @Nonnull final String sURL)
+    {
+      m_aCert = aCert;
+      m_sURL = sURL;
+    }
+  }
+
+  public static final int DEFAULT_LOOKUP_THREADS = 8;
+  public static final int DEFAULT_SEND_THREADS = 16;
+  public static final int DEFAULT_MAX_BACKLOG = 1_000;
+  public static final Duration DEFAULT_ENDPOINT_CACHE_TTL = Duration.ofMinutes (10);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolBulkSender.class);
+
+  private final ExecutorService m_aPrepareES;
+  private final ExecutorService m_aLookupES;
+  private final ExecutorService m_aSendES;
+  private final int m_nMaxBacklog;
+  private final Semaphore m_aBacklog;
+  // Groups the lookups for the same receiver, document type and process
+  private final AS4LookupCache <String, ResolvedEndpoint> m_aEndpoints;
+
+  private volatile Function <? super Item, ? extends IAS4EndpointDetailProvider> m_aEndpointDetailProviderFactory;
+  private volatile Consumer <? super Phase4PeppolSender.SBDHBuilder> m_aBuilderCustomizer;
+  private volatile IValidationExecutorSetRegistry <IValidationSourceXML> m_aVESRegistry;
+  private volatile VESID m_aVESID;
+  private volatile IPhase4PeppolValidationResultHandler m_aValidationResultHandler;
+  private volatile IPhase4PeppolBulkResultHandler m_aResultHandler;
+
+  // 0 means "nothing submitted yet"
+  private final AtomicLong m_aFirstSubmitNanos = new AtomicLong (0);
+  private final AtomicLong m_aSubmittedCount = new AtomicLong (0);
+  private final AtomicLong m_aSuccessCount = new AtomicLong (0);
+  private final AtomicLong m_aFailureCount = new AtomicLong (0);
+  private final Map <EStage, AtomicInteger> m_aStageBacklog = new EnumMap <> (EStage.class);
+
+  /**
+   * Constructor with default pool sizes.
+   */
+  public Phase4PeppolBulkSender ()
+  {
+    this (Runtime.getRuntime ().availableProcessors (), DEFAULT_LOOKUP_THREADS, DEFAULT_SEND_THREADS, DEFAULT_MAX_BACKLOG);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nPrepareThreads
+   *        Number of threads for the {@link EStage#PREPARE} stage. Must be
+   *        &gt; 0.
+   * @param nLookupThreads
+   *        Number of threads for the {@link EStage#LOOKUP} stage. Must be &gt;
+   *        0.
+   * @param nSendThreads
+   *        Number of threads for the {@link EStage#SEND} stage. Must be &gt; 0.
+   * @param nMaxBacklog
+   *        The maximum number of items in the pipeline. If the maximum is
+   *        reached, {@link #submit(Item)} blocks. Must be &gt; 0.
+   */
+  public Phase4PeppolBulkSender (@Nonnegative final int nPrepareThreads,
+                                 @Nonnegative final int nLookupThreads,
+                                 @Nonnegative final int nSendThreads,
+                                 @Nonnegative final int nMaxBacklog)
+  {
+    ValueEnforcer.isGT0 (nPrepareThreads, "PrepareThreads");
+    ValueEnforcer.isGT0 (nLookupThreads, "LookupThreads");
+    ValueEnforcer.isGT0 (nSendThreads, "SendThreads");
+    ValueEnforcer.isGT0 (nMaxBacklog, "MaxBacklog");
+    m_aPrepareES = _createPool (nPrepareThreads, "phase4-bulk-prepare-");
+    m_aLookupES = _createPool (nLookupThreads, "phase4-bulk-lookup-");
+    m_aSendES = _createPool (nSendThreads, "phase4-bulk-send-");
+    m_nMaxBacklog = nMaxBacklog;
+    m_aBacklog = new Semaphore (nMaxBacklog);
+    m_aEndpoints = new AS4LookupCache <> ("peppol-bulk-endpoints",
+                                          DEFAULT_ENDPOINT_CACHE_TTL,
+                                          Duration.ZERO,
+                                          10_000);
+    for (final EStage e : EStage.values ())
+      m_aStageBacklog.put (e, new AtomicInteger (0));
+  }
+
+  @Nonnull
+  private static ExecutorService _createPool (final int nThreads, @Nonnull final String sNamePrefix)
+  {
+    // The queues are unbounded, because the overall backlog is limited
+    final ThreadPoolExecutor ret = new ThreadPoolExecutor (nThreads,
+                                                           nThreads,
+                                                           60,
+                                                           TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue <> (),
+                                                           AS4ThreadHelper.createThreadFactory (sNamePrefix));
+    ret.allowCoreThreadTimeOut (true);
+    return ret;
+  }
+
+  /**
+   * Set the factory that creates the endpoint detail provider for an item. It
+   * is only invoked once for all items with the same receiver, document type
+   * and process. This must be set before the first item is submitted.
+   *
+   * @param aEndpointDetailProviderFactory
+   *        The factory to use. May not be <code>null</code>.
+   * @return this for chaining
+   * @see com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderPeppol
+   */
+  @Nonnull
+  public final Phase4PeppolBulkSender endpointDetailProviderFactory (@Nonnull final Function <? super Item, ? extends IAS4EndpointDetailProvider> aEndpointDetailProviderFactory)
+  {
+    ValueEnforcer.notNull (aEndpointDetailProviderFactory, "EndpointDetailProviderFactory");
+    m_aEndpointDetailProviderFactory = aEndpointDetailProviderFactory;
+    return this;
+  }
+
+  /**
+   * Set the customizer for the builder used for the actual transmission. This
+   * is the place to set e.g. the crypto factory, the sender party ID, the HTTP
+   * settings or the dumpers. The payload, the metadata and the endpoint
+   * details are set by this class.
+   *
+   * @param aBuilderCustomizer
+   *        The customizer to use. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolBulkSender builderCustomizer (@Nullable final Consumer <? super Phase4PeppolSender.SBDHBuilder> aBuilderCustomizer)
+  {
+    m_aBuilderCustomizer = aBuilderCustomizer;
+    return this;
+  }
+
+  /**
+   * Set a custom validation registry to use in VESID lookup.
+   *
+   * @param aVESRegistry
+   *        The registry to use. May be <code>null</code> to indicate that the
+   *        default registry (official Peppol artefacts only) should be used.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolBulkSender validationRegistry (@Nullable final IValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry)
+  {
+    m_aVESRegistry = aVESRegistry;
+    return this;
+  }
+
+  /**
+   * Set the client side validation to be used in the {@link EStage#PREPARE}
+   * stage. If the validation should happen, both the VESID AND the result
+   * handler must be set.
+   *
+   * @param aVESID
+   *        The Validation Execution Set ID. May be <code>null</code>.
+   * @param aValidationResultHandler
+   *        The validation result handler for positive and negative response
+   *        handling. Must be thread-safe. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolBulkSender validationConfiguration (@Nullable final VESID aVESID,
+                                                               @Nullable final IPhase4PeppolValidationResultHandler aValidationResultHandler)
+  {
+    m_aVESID = aVESID;
+    m_aValidationResultHandler = aValidationResultHandler;
+    return this;
+  }
+
+  /**
+   * Set the handler that is invoked for each finished item.
+   *
+   * @param aResultHandler
+   *        The handler to use. Must be thread-safe. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolBulkSender resultHandler (@Nullable final IPhase4PeppolBulkResultHandler aResultHandler)
+  {
+    m_aResultHandler = aResultHandler;
+    return this;
+  }
+
+  @Nonnull
+  private byte [] _prepare (@Nonnull final Item aItem) throws Phase4Exception
+  {
+    // Ensure a DOM element is present
+    final Element aPayloadElement;
+    if (aItem.m_aPayloadElement != null)
+      aPayloadElement = aItem.m_aPayloadElement;
+    else
+    {
+      final Document aDoc = DOMReader.readXMLDOM (aItem.m_aPayloadBytes);
+      if (aDoc == null)
+        throw new Phase4PeppolException ("Failed to parse payload bytes to a DOM node");
+      aPayloadElement = aDoc.getDocumentElement ();
+      if (aPayloadElement == null || aPayloadElement.getNamespaceURI () == null)
+        throw new Phase4PeppolException ("The parsed XML document must have a root element that has a namespace URI");
+    }
+
+    // Optional payload validation
+    final VESID aVESID = m_aVESID;
+    final IPhase4PeppolValidationResultHandler aValidationResultHandler = m_aValidationResultHandler;
+    if (aVESID != null && aValidationResultHandler != null)
+    {
+      final IValidationExecutorSetRegistry <IValidationSourceXML> aRegistry = m_aVESRegistry;
+      if (aRegistry == null)
+        Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadElement, aVESID, aValidationResultHandler);
+      else
+        Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadElement, aRegistry, aVESID, aValidationResultHandler);
+    }
+
+    final StandardBusinessDocument aSBD = Phase4PeppolSender.createSBDH (aItem.m_aSenderID,
+                                                                         aItem.m_aReceiverID,
+                                                                         aItem.m_aDocTypeID,
+                                                                         aItem.m_aProcessID,
+                                                                         null,
+                                                                         null,
+                                                                         aPayloadElement);
+    if (aSBD == null)
+      throw new Phase4PeppolException ("Failed to create the SBDH for item " + aItem.m_sID);
+
+    final byte [] ret = SBDHWriter.standardBusinessDocument ().getAsBytes (aSBD);
+    if (ret == null)
+      throw new Phase4PeppolException ("Failed to serialize the SBDH for item " + aItem.m_sID);
+    return ret;
+  }
+
+  @Nonnull
+  private ResolvedEndpoint _lookup (@Nonnull final Item aItem) throws Phase4Exception
+  {
+    final String sKey = aItem.m_aReceiverID.getURIEncoded () +
+                        ' ' +
+                        aItem.m_aDocTypeID.getURIEncoded () +
+                        ' ' +
+                        aItem.m_aProcessID.getURIEncoded ();
+    return m_aEndpoints.getOrLookup (sKey, k -> {
+      final Function <? super Item, ? extends IAS4EndpointDetailProvider> aFactory = m_aEndpointDetailProviderFactory;
+      if (aFactory == null)
+        throw new Phase4PeppolException ("No endpoint detail provider factory is configured");
+      final IAS4EndpointDetailProvider aEDP = aFactory.apply (aItem);
+      if (aEDP == null)
+        throw new Phase4PeppolException ("The endpoint detail provider factory returned null for item " + aItem.m_sID);
+
+      // e.g. SMP lookup
+      aEDP.init (aItem.m_aDocTypeID, aItem.m_aProcessID, aItem.m_aReceiverID);
+      final X509Certificate aCert = aEDP.getReceiverAPCertificate ();
+      if (aCert == null)
+        throw new Phase4PeppolException ("Failed to determine the receiver AP certificate for item " + aItem.m_sID);
+      return new ResolvedEndpoint (aCert, aEDP.getReceiverAPEndpointURL ());
+    });
+  }
+
+  @Nonnull
+  private ItemResult _send (@Nonnull final Item aItem,
+                            @Nonnull final byte [] aSBDBytes,
+                            @Nonnull final ResolvedEndpoint aEndpoint,
+                            @Nonnull final StopWatch aSW)
+  {
+    final Phase4PeppolSender.SBDHBuilder aBuilder = Phase4PeppolSender.sbdhBuilder ()
+                                                                      .senderParticipantID (aItem.m_aSenderID)
+                                                                      .receiverParticipantID (aItem.m_aReceiverID)
+                                                                      .documentTypeID (aItem.m_aDocTypeID)
+                                                                      .processID (aItem.m_aProcessID)
+                                                                      .receiverEndpointDetails (aEndpoint.m_aCert,
+                                                                                                aEndpoint.m_sURL)
+                                                                      .payload (aSBDBytes);
+    final Consumer <? super Phase4PeppolSender.SBDHBuilder> aCustomizer = m_aBuilderCustomizer;
+    if (aCustomizer != null)
+      aCustomizer.accept (aBuilder);
+
+    // Signing, encryption and HTTP
+    final Wrapper <Exception> aException = new Wrapper <> ();
+    final ESimpleUserMessageSendResult eResult = aBuilder.sendMessageAndCheckForReceipt (aException::set);
+    return new ItemResult (aItem,
+                           eResult,
+                           eResult.isSuccess () ? null : EStage.SEND,
+                           aException.get (),
+                           aSW.stopAndGetMillis ());
+  }
+
+  private void _enterStage (@Nonnull final EStage eStage)
+  {
+    m_aStageBacklog.get (eStage).incrementAndGet ();
+  }
+
+  private void _leaveStage (@Nonnull final EStage eStage)
+  {
+    m_aStageBacklog.get (eStage).decrementAndGet ();
+  }
+
+  @Nonnull
+  private <T> CompletableFuture <T> _runStage (@Nonnull final EStage eStage,
+                                               @Nonnull final Supplier <T> aTask,
+                                               @Nonnull final ExecutorService aES)
+  {
+    _enterStage (eStage);
+    try
+    {
+      return CompletableFuture.supplyAsync ( () -> {
+        try
+        {
+          return aTask.get ();
+        }
+        finally
+        {
+          _leaveStage (eStage);
+        }
+      }, aES);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // E.g. after close - report as a failure of this item
+      _leaveStage (eStage);
+      final CompletableFuture <T> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (new StageException (eStage, ex));
+      return ret;
+    }
+  }
+
+  @Nonnull
+  private ItemResult _createFailure (@Nonnull final Item aItem, @Nonnull final Throwable t, @Nonnull final StopWatch aSW)
+  {
+    Throwable aCause = t instanceof CompletionException && t.getCause () != null ? t.getCause () : t;
+    EStage eStage = EStage.SEND;
+    if (aCause instanceof StageException)
+    {
+      eStage = ((StageException) aCause).m_eStage;
+      aCause = aCause.getCause ();
+    }
+    final Exception aException = aCause instanceof Exception ? (Exception) aCause : new IllegalStateException (aCause);
+    return new ItemResult (aItem,
+                           eStage == EStage.SEND ? ESimpleUserMessageSendResult.TRANSPORT_ERROR
+                                                 : ESimpleUserMessageSendResult.INVALID_PARAMETERS,
+                           eStage,
+                           aException,
+                           aSW.stopAndGetMillis ());
+  }
+
+  private void _onFinished (@Nonnull final ItemResult aResult)
+  {
+    try
+    {
+      if (aResult.isSuccess ())
+        m_aSuccessCount.incrementAndGet ();
+      else
+      {
+        m_aFailureCount.incrementAndGet ();
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Bulk item '" + aResult.getItem ().getID () + "' failed in stage " + aResult.getFailedStage ());
+      }
+
+      final IPhase4PeppolBulkResultHandler aResultHandler = m_aResultHandler;
+      if (aResultHandler != null)
+        aResultHandler.onItemResult (aResult);
+    }
+    catch (final RuntimeException ex)
+    {
+      LOGGER.error ("Bulk result handler failed for item '" + aResult.getItem ().getID () + "'", ex);
+    }
+    finally
+    {
+      m_aBacklog.release ();
+    }
+  }
+
+  /**
+   * Submit a single item to the pipeline. This method blocks, if the maximum
+   * backlog is reached.
+   *
+   * @param aItem
+   *        The item to send. May not be <code>null</code>.
+   * @return A future that is completed with the result of the item, after the
+   *         result handler was invoked. Never <code>null</code>. The future is
+   *         never completed exceptionally.
+   * @throws InterruptedException
+   *         If the thread was interrupted while waiting for space in the
+   *         backlog
+   */
+  @Nonnull
+  public CompletableFuture <ItemResult> submit (@Nonnull final Item aItem) throws InterruptedException
+  {
+    ValueEnforcer.notNull (aItem, "Item");
+
+    m_aBacklog.acquire ();
+    m_aFirstSubmitNanos.compareAndSet (0, System.nanoTime ());
+    m_aSubmittedCount.incrementAndGet ();
+    final StopWatch aSW = StopWatch.createdStarted ();
+
+    // Preparation and lookup run in parallel
+    final CompletableFuture <byte []> aPrepared = _runStage (EStage.PREPARE, () -> {
+      try
+      {
+        return _prepare (aItem);
+      }
+      catch (final Exception ex)
+      {
+        throw new StageException (EStage.PREPARE, ex);
+      }
+    }, m_aPrepareES);
+
+    final CompletableFuture <ResolvedEndpoint> aResolved = _runStage (EStage.LOOKUP, () -> {
+      try
+      {
+        return _lookup (aItem);
+      }
+      catch (final Exception ex)
+      {
+        throw new StageException (EStage.LOOKUP, ex);
+      }
+    }, m_aLookupES);
+
+    // Wait for both stages even if one fails, so that the backlog permit is
+    // only released when nothing of this item is running anymore
+    return CompletableFuture.allOf (aPrepared, aResolved)
+                            .thenCompose (x -> _runStage (EStage.SEND,
+                                                          () -> _send (aItem, aPrepared.join (), aResolved.join (), aSW),
+                                                          m_aSendES))
+                            .exceptionally (t -> _createFailure (aItem, t, aSW))
+                            .thenApply (aResult -> {
+                              _onFinished (aResult);
+                              return aResult;
+                            });
+  }
+
+  /**
+   * Submit all provided items and wait until all of them are finished. The
+   * results are reported via the result handler.
+   *
+   * @param aItems
+   *        The items to send. May not be <code>null</code>.
+   * @throws InterruptedException
+   *         If the thread was interrupted
+   */
+  public void sendAll (@Nonnull final Iterator <? extends Item> aItems) throws InterruptedException
+  {
+    ValueEnforcer.notNull (aItems, "Items");
+    while (aItems.hasNext ())
+      submit (aItems.next ());
+    awaitIdle ();
+  }
+
+  /**
+   * Submit all provided items and wait until all of them are finished. The
+   * results are reported via the result handler.
+   *
+   * @param aItems
+   *        The items to send. May not be <code>null</code>.
+   * @throws InterruptedException
+   *         If the thread was interrupted
+   */
+  public void sendAll (@Nonnull final Iterable <? extends Item> aItems) throws InterruptedException
+  {
+    ValueEnforcer.notNull (aItems, "Items");
+    sendAll (aItems.iterator ());
+  }
+
+  /**
+   * Submit all provided items and wait until all of them are finished. The
+   * results are reported via the result handler.
+   *
+   * @param aItems
+   *        The items to send. May not be <code>null</code>.
+   * @throws InterruptedException
+   *         If the thread was interrupted
+   */
+  public void sendAll (@Nonnull final Stream <? extends Item> aItems) throws InterruptedException
+  {
+    ValueEnforcer.notNull (aItems, "Items");
+    sendAll (aItems.iterator ());
+  }
+
+  /**
+   * Wait until all submitted items are finished.
+   *
+   * @throws InterruptedException
+   *         If the thread was interrupted
+   */
+  public void awaitIdle () throws InterruptedException
+  {
+    m_aBacklog.acquire (m_nMaxBacklog);
+    m_aBacklog.release (m_nMaxBacklog);
+  }
+
+  /**
+   * @return The number of items submitted so far.
+   */
+  @Nonnegative
+  public long getSubmittedCount ()
+  {
+    return m_aSubmittedCount.get ();
+  }
+
+  /**
+   * @return The number of items sent successfully.
+   */
+  @Nonnegative
+  public long getSuccessCount ()
+  {
+    return m_aSuccessCount.get ();
+  }
+
+  /**
+   * @return The number of items that failed.
+   */
+  @Nonnegative
+  public long getFailureCount ()
+  {
+    return m_aFailureCount.get ();
+  }
+
+  /**
+   * @return The number of items currently in the pipeline.
+   */
+  @Nonnegative
+  public int getBacklogCount ()
+  {
+    return m_nMaxBacklog - m_aBacklog.availablePermits ();
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The number of items that are queued or processed in the provided
+   *         stage.
+   */
+  @Nonnegative
+  public int getStageBacklogCount (@Nonnull final EStage eStage)
+  {
+    ValueEnforcer.notNull (eStage, "Stage");
+    return m_aStageBacklog.get (eStage).get ();
+  }
+
+  /**
+   * @return The number of finished items (successful or failed) per second
+   *         since the first submission. 0 if nothing was submitted yet.
+   */
+  public double getThroughputPerSecond ()
+  {
+    final long nFirstSubmitNanos = m_aFirstSubmitNanos.get ();
+    if (nFirstSubmitNanos == 0)
+      return 0;
+    final long nNanos = System.nanoTime () - nFirstSubmitNanos;
+    if (nNanos <= 0)
+      return 0;
+    return (m_aSuccessCount.get () + m_aFailureCount.get ()) * 1_000_000_000d / nNanos;
+  }
+
+  /**
+   * Wait for all pending items and shut down the thread pools afterwards.
+   */
+  public void close ()
+  {
+    try
+    {
+      awaitIdle ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    m_aPrepareES.shutdown ();
+    m_aLookupES.shutdown ();
+    m_aSendES.shutdown ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Submitted", m_aSubmittedCount.get ())
+                                       .append ("Success", m_aSuccessCount.get ())
+                                       .append ("Failure", m_aFailureCount.get ())
+                                       .append ("Backlog", getBacklogCount ())
+                                       .getToString ();
+  }
+}
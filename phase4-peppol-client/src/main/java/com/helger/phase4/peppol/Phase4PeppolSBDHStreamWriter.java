@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.sbdh.CSBDH;
+import com.helger.sbdh.builder.SBDHWriter;
+
+/**
+ * A writer for Peppol Standard Business Documents that embeds the payload
+ * bytes unchanged instead of parsing them into a DOM and serializing them
+ * again. Only the information needed for the SBDH (namespace URI and local
+ * name of the root element) is extracted from the payload using StAX.<br>
+ * Note: the payload is only read up to the root element, so it is not fully
+ * checked for well-formedness.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class Phase4PeppolSBDHStreamWriter
+{
+  /**
+   * The information about a payload that can be embedded into an SBD as is.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class PayloadInfo
+  {
+    private final String m_sNamespaceURI;
+    private final String m_sLocalName;
+    private final int m_nContentOffset;
+
+    PayloadInfo (@Nonnull @Nonempty final String sNamespaceURI, @Nonnull @Nonempty final String sLocalName, final int nContentOffset)
+    {
+      m_sNamespaceURI = sNamespaceURI;
+      m_sLocalName = sLocalName;
+      m_nContentOffset = nContentOffset;
+    }
+
+    /**
+     * @return The namespace URI of the root element. Neither <code>null</code>
+     *         nor empty.
+     */
+    @Nonnull
+    @Nonempty
+    public String getNamespaceURI ()
+    {
+      return m_sNamespaceURI;
+    }
+
+    /**
+     * @return The local name of the root element. Neither <code>null</code>
+     *         nor empty.
+     */
+    @Nonnull
+    @Nonempty
+    public String getLocalName ()
+    {
+      return m_sLocalName;
+    }
+
+    /**
+     * @return The offset of the first byte after the optional byte order mark
+     *         and XML declaration. Always &ge; 0.
+     */
+    public int getContentOffset ()
+    {
+      return m_nContentOffset;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("NamespaceURI", m_sNamespaceURI)
+                                         .append ("LocalName", m_sLocalName)
+                                         .append ("ContentOffset", m_nContentOffset)
+                                         .getToString ();
+    }
+  }
+
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+  private static final byte [] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+  private static final byte [] XML_DECL_START = "<?xml".getBytes (StandardCharsets.US_ASCII);
+  private static final byte [] XML_DECL_END = "?>".getBytes (StandardCharsets.US_ASCII);
+  private static final String SBD_PREFIX = "sh";
+
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newFactory ();
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private Phase4PeppolSBDHStreamWriter ()
+  {}
+
+  private static boolean _startsWith (@Nonnull final byte [] aData, final int nOffset, @Nonnull final byte [] aPrefix)
+  {
+    if (aData.length - nOffset < aPrefix.length)
+      return false;
+    for (int i = 0; i < aPrefix.length; ++i)
+      if (aData[nOffset + i] != aPrefix[i])
+        return false;
+    return true;
+  }
+
+  private static int _indexOf (@Nonnull final byte [] aData, final int nOffset, @Nonnull final byte [] aSearch)
+  {
+    for (int i = nOffset; i <= aData.length - aSearch.length; ++i)
+      if (_startsWith (aData, i, aSearch))
+        return i;
+    return -1;
+  }
+
+  private static boolean _isXMLWhitespace (final byte b)
+  {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  /**
+   * Get the offset of the first byte after the optional UTF-8 byte order mark
+   * and the optional XML declaration.
+   */
+  private static int _getContentOffset (@Nonnull final byte [] aPayload)
+  {
+    int ret = _startsWith (aPayload, 0, UTF8_BOM) ? UTF8_BOM.length : 0;
+    if (_startsWith (aPayload, ret, XML_DECL_START) &&
+        aPayload.length > ret + XML_DECL_START.length &&
+        _isXMLWhitespace (aPayload[ret + XML_DECL_START.length]))
+    {
+      // The XML declaration cannot contain "?>" inside
+      final int nEnd = _indexOf (aPayload, ret, XML_DECL_END);
+      if (nEnd < 0)
+        return -1;
+      ret = nEnd + XML_DECL_END.length;
+    }
+    return ret;
+  }
+
+  /**
+   * Check if the provided payload can be embedded into an SBD as is and
+   * extract the root element information. This is the case, if the payload is
+   * UTF-8 (or US-ASCII) encoded and does not contain a DOCTYPE declaration.
+   *
+   * @param aPayload
+   *        The payload bytes to check. May not be <code>null</code>.
+   * @return <code>null</code> if the payload cannot be embedded as is. In that
+   *         case the regular DOM based approach must be used.
+   * @throws Phase4PeppolException
+   *         If the payload is not XML or if the root element has no namespace
+   *         URI.
+   */
+  @Nullable
+  public static PayloadInfo getStreamablePayloadInfo (@Nonnull final byte [] aPayload) throws Phase4PeppolException
+  {
+    ValueEnforcer.notNull (aPayload, "Payload");
+
+    try
+    {
+      final XMLStreamReader aReader = XML_INPUT_FACTORY.createXMLStreamReader (new NonBlockingByteArrayInputStream (aPayload));
+      try
+      {
+        // Only UTF-8 can be embedded into the UTF-8 SBD without conversion
+        final String sEncoding = StringHelper.getNotNull (aReader.getEncoding (), aReader.getCharacterEncodingScheme ());
+        if (StringHelper.hasText (sEncoding) &&
+            !sEncoding.equalsIgnoreCase (StandardCharsets.UTF_8.name ()) &&
+            !sEncoding.equalsIgnoreCase ("UTF8") &&
+            !sEncoding.equalsIgnoreCase (StandardCharsets.US_ASCII.name ()))
+          return null;
+
+        while (aReader.hasNext ())
+        {
+          final int nEventType = aReader.next ();
+          if (nEventType == XMLStreamConstants.DTD)
+          {
+            // A DOCTYPE cannot be embedded
+            return null;
+          }
+          if (nEventType == XMLStreamConstants.START_ELEMENT)
+          {
+            final String sNamespaceURI = aReader.getNamespaceURI ();
+            if (StringHelper.hasNoText (sNamespaceURI))
+              throw new Phase4PeppolException ("The parsed XML document must have a root element that has a namespace URI");
+
+            final int nContentOffset = _getContentOffset (aPayload);
+            if (nContentOffset < 0)
+              return null;
+            return new PayloadInfo (sNamespaceURI, aReader.getLocalName (), nContentOffset);
+          }
+        }
+        throw new Phase4PeppolException ("The payload does not contain a root element");
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final XMLStreamException ex)
+    {
+      throw new Phase4PeppolException ("Failed to parse payload bytes", ex);
+    }
+  }
+
+  /**
+   * Write a complete Standard Business Document, consisting of the provided
+   * header and the unchanged payload bytes. The SBD is written in UTF-8.
+   *
+   * @param aHeader
+   *        The SBDH to write. May not be <code>null</code>.
+   * @param aPayload
+   *        The payload bytes. May not be <code>null</code>.
+   * @param aPayloadInfo
+   *        The payload information as returned by
+   *        {@link #getStreamablePayloadInfo(byte[])}. May not be
+   *        <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. Will not be closed. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case writing fails
+   */
+  public static void writeStandardBusinessDocument (@Nonnull final StandardBusinessDocumentHeader aHeader,
+                                                    @Nonnull final byte [] aPayload,
+                                                    @Nonnull final PayloadInfo aPayloadInfo,
+                                                    @Nonnull @WillNotClose final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aHeader, "Header");
+    ValueEnforcer.notNull (aPayload, "Payload");
+    ValueEnforcer.notNull (aPayloadInfo, "PayloadInfo");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    final byte [] aHeaderBytes = SBDHWriter.standardBusinessDocumentHeader ()
+                                           .setCharset (StandardCharsets.UTF_8)
+                                           .setFormattedOutput (false)
+                                           .getAsBytes (aHeader);
+    if (aHeaderBytes == null)
+      throw new IOException ("Failed to serialize the StandardBusinessDocumentHeader");
+    // Skip the XML declaration of the header
+    int nHeaderOffset = _getContentOffset (aHeaderBytes);
+    if (nHeaderOffset < 0)
+      throw new IOException ("Failed to find the end of the XML declaration of the StandardBusinessDocumentHeader");
+    while (nHeaderOffset < aHeaderBytes.length && _isXMLWhitespace (aHeaderBytes[nHeaderOffset]))
+      nHeaderOffset++;
+
+    // The root element must not declare a default namespace, as the payload may
+    // contain elements without a namespace
+    aOS.write (("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n<" +
+                SBD_PREFIX +
+                ":StandardBusinessDocument xmlns:" +
+                SBD_PREFIX +
+                "=\"" +
+                CSBDH.SBDH_NS +
+                "\">").getBytes (StandardCharsets.UTF_8));
+    aOS.write (aHeaderBytes, nHeaderOffset, aHeaderBytes.length - nHeaderOffset);
+    aOS.write (aPayload, aPayloadInfo.getContentOffset (), aPayload.length - aPayloadInfo.getContentOffset ());
+    aOS.write (("</" + SBD_PREFIX + ":StandardBusinessDocument>").getBytes (StandardCharsets.UTF_8));
+  }
+}
@@ -16,16 +16,28 @@
  */
 package com.helger.phase4.peppol;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.time.OffsetDateTime;
 import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
@@ -37,17 +49,23 @@ import javax.annotation.concurrent.NotThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.datetime.XMLOffsetDateTime;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.state.ETriState;
 import com.helger.commons.string.StringHelper;
+import com.helger.commons.wrapper.Wrapper;
 import com.helger.peppol.sbdh.PeppolSBDHDocument;
 import com.helger.peppol.sbdh.payload.PeppolSBDHPayloadWriter;
 import com.helger.peppol.sbdh.spec12.BinaryContentType;
@@ -57,6 +75,7 @@ import com.helger.peppol.utils.EPeppolCertificateCheckResult;
 import com.helger.peppol.utils.PeppolCertificateChecker;
 import com.helger.peppol.utils.PeppolCertificateHelper;
 import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IIdentifier;
 import com.helger.peppolid.IParticipantIdentifier;
 import com.helger.peppolid.IProcessIdentifier;
 import com.helger.peppolid.factory.PeppolIdentifierFactory;
@@ -72,6 +91,8 @@ import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.MessageProperty;
 import com.helger.phase4.profile.peppol.PeppolPMode;
 import com.helger.phase4.sender.AbstractAS4UserMessageBuilderMIMEPayload;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.AS4ThreadHelper;
 import com.helger.phase4.util.Phase4Exception;
 import com.helger.phive.api.executorset.IValidationExecutorSetRegistry;
 import com.helger.phive.api.executorset.VESID;
@@ -81,6 +102,7 @@ import com.helger.sbdh.builder.SBDHWriter;
 import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
 import com.helger.smpclient.url.IPeppolURLProvider;
 import com.helger.smpclient.url.PeppolURLProvider;
+import com.helger.xml.XMLFactory;
 import com.helger.xml.serialize.read.DOMReader;
 import sun.security.x509.X509CertImpl;
 
@@ -99,6 +121,25 @@ public final class Phase4PeppolSender
 
   private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolSender.class);
 
+  private static final class PreparationExecutorHolder
+  {
+    static final ExecutorService INSTANCE;
+    static
+    {
+      // If all threads are busy, the caller runs the task itself
+      final int nThreads = Math.max (2, Runtime.getRuntime ().availableProcessors ());
+      final ThreadPoolExecutor aExecutor = new ThreadPoolExecutor (nThreads,
+                                                                   nThreads,
+                                                                   60,
+                                                                   TimeUnit.SECONDS,
+                                                                   new SynchronousQueue <> (),
+                                                                   AS4ThreadHelper.createThreadFactory ("phase4-peppol-prepare-"),
+                                                                   new ThreadPoolExecutor.CallerRunsPolicy ());
+      aExecutor.allowCoreThreadTimeOut (true);
+      INSTANCE = aExecutor;
+    }
+  }
+
   private Phase4PeppolSender ()
   {}
 
@@ -130,6 +171,82 @@ public final class Phase4PeppolSender
                                                      @Nullable final String sInstanceIdentifier,
                                                      @Nullable final String sTypeVersion,
                                                      @Nonnull final Element aPayloadElement)
+  {
+    final PeppolSBDHDocument aData = _createSBDHData (aSenderID,
+                                                      aReceiverID,
+                                                      aDocTypeID,
+                                                      aProcID,
+                                                      sInstanceIdentifier,
+                                                      sTypeVersion,
+                                                      aPayloadElement.getNamespaceURI (),
+                                                      aPayloadElement.getLocalName ());
+    if (aData == null)
+      return null;
+    aData.setBusinessMessage (aPayloadElement);
+    return new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData);
+  }
+
+  /**
+   * Create only the SBDH for a payload that is not available as a DOM element.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcID
+   *        Process ID. May not be <code>null</code>.
+   * @param sInstanceIdentifier
+   *        SBDH instance identifier. May be <code>null</code> to create a
+   *        random ID.
+   * @param sTypeVersion
+   *        SBDH syntax version ID (e.g. "2.1" for OASIS UBL 2.1). May be
+   *        <code>null</code> to use the default.
+   * @param sPayloadNamespaceURI
+   *        The namespace URI of the payload root element. May not be
+   *        <code>null</code>.
+   * @param sPayloadLocalName
+   *        The local name of the payload root element. May not be
+   *        <code>null</code>.
+   * @return The domain object representation of the created SBDH or
+   *         <code>null</code> if not all parameters are present.
+   * @since 1.3.9
+   */
+  @Nullable
+  public static StandardBusinessDocumentHeader createSBDHHeader (@Nonnull final IParticipantIdentifier aSenderID,
+                                                                 @Nonnull final IParticipantIdentifier aReceiverID,
+                                                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                                 @Nonnull final IProcessIdentifier aProcID,
+                                                                 @Nullable final String sInstanceIdentifier,
+                                                                 @Nullable final String sTypeVersion,
+                                                                 @Nonnull final String sPayloadNamespaceURI,
+                                                                 @Nonnull final String sPayloadLocalName)
+  {
+    final PeppolSBDHDocument aData = _createSBDHData (aSenderID,
+                                                      aReceiverID,
+                                                      aDocTypeID,
+                                                      aProcID,
+                                                      sInstanceIdentifier,
+                                                      sTypeVersion,
+                                                      sPayloadNamespaceURI,
+                                                      sPayloadLocalName);
+    if (aData == null)
+      return null;
+    // The writer requires a business message - an empty element is sufficient
+    aData.setBusinessMessage (XMLFactory.newDocument ().createElementNS (sPayloadNamespaceURI, sPayloadLocalName));
+    return new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData).getStandardBusinessDocumentHeader ();
+  }
+
+  @Nullable
+  private static PeppolSBDHDocument _createSBDHData (@Nonnull final IParticipantIdentifier aSenderID,
+                                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                     @Nonnull final IProcessIdentifier aProcID,
+                                                     @Nullable final String sInstanceIdentifier,
+                                                     @Nullable final String sTypeVersion,
+                                                     @Nonnull final String sPayloadNamespaceURI,
+                                                     @Nonnull final String sPayloadLocalName)
   {
     final PeppolSBDHDocument aData = new PeppolSBDHDocument (IF);
     aData.setSender (aSenderID.getScheme (), aSenderID.getValue ());
@@ -167,13 +284,12 @@ public final class Phase4PeppolSender
         LOGGER.debug ("As no SBDH InstanceIdentifier was provided, a random one was created: '" + sRealInstanceIdentifier + "'");
     }
 
-    aData.setDocumentIdentification (aPayloadElement.getNamespaceURI (),
+    aData.setDocumentIdentification (sPayloadNamespaceURI,
                                      sRealTypeVersion,
-                                     aPayloadElement.getLocalName (),
+                                     sPayloadLocalName,
                                      sRealInstanceIdentifier,
                                      XMLOffsetDateTime.of (MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ()));
-    aData.setBusinessMessage (aPayloadElement);
-    return new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData);
+    return aData;
   }
 
   /**
@@ -226,20 +342,26 @@ public final class Phase4PeppolSender
    * @param aReceiverCert
    *        The determined receiver AP certificate to check. Never
    *        <code>null</code>.
+   * @param aNow
+   *        The date and time to check the certificate at. Never
+   *        <code>null</code>.
    * @param aCertificateConsumer
    *        An optional consumer that is invoked with the received AP
    *        certificate to be used for the transmission. The certification check
    *        result must be considered when used. May be <code>null</code>.
+   * @return The certificate check result. Never <code>null</code> and never
+   *         invalid.
    * @throws Phase4PeppolException
    *         in case of error
    */
-  private static void _checkReceiverAPCert (@Nullable final X509Certificate aReceiverCert,
-                                            @Nullable final IPhase4PeppolCertificateCheckResultHandler aCertificateConsumer) throws Phase4PeppolException
+  @Nonnull
+  private static EPeppolCertificateCheckResult _checkReceiverAPCert (@Nullable final X509Certificate aReceiverCert,
+                                                                     @Nonnull final OffsetDateTime aNow,
+                                                                     @Nullable final IPhase4PeppolCertificateCheckResultHandler aCertificateConsumer) throws Phase4PeppolException
   {
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Using the following receiver AP certificate from the SMP: " + aReceiverCert);
 
-    final OffsetDateTime aNow = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
     final EPeppolCertificateCheckResult eCertCheckResult = PeppolCertificateChecker.checkPeppolAPCertificate (aReceiverCert,
                                                                                                               aNow,
                                                                                                               ETriState.UNDEFINED,
@@ -256,6 +378,69 @@ public final class Phase4PeppolSender
                                        ") and cannot be used for sending. Aborting. Reason: " +
                                        eCertCheckResult.getReason ());
     }
+    return eCertCheckResult;
+  }
+
+  /**
+   * Create a transmission plan for the provided tuple. This performs the
+   * endpoint lookup (e.g. the SMP lookup) and the check of the receiver AP
+   * certificate, so that multiple messages to the same receiver can be sent
+   * without repeating these steps.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   * @param aEndpointDetailProvider
+   *        The endpoint detail provider to be used. May not be
+   *        <code>null</code>.
+   * @param aCertificateConsumer
+   *        An optional consumer that is invoked with the received AP
+   *        certificate and its check result. May be <code>null</code>.
+   * @return The new transmission plan. Never <code>null</code>.
+   * @throws Phase4Exception
+   *         If the endpoint lookup failed or if the receiver AP certificate
+   *         is invalid.
+   * @see Phase4PeppolTransmissionPlanCache
+   * @since 1.3.9
+   */
+  @Nonnull
+  public static Phase4PeppolTransmissionPlan createTransmissionPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                                     @Nonnull final IProcessIdentifier aProcessID,
+                                                                     @Nonnull final IAS4EndpointDetailProvider aEndpointDetailProvider,
+                                                                     @Nullable final IPhase4PeppolCertificateCheckResultHandler aCertificateConsumer) throws Phase4Exception
+  {
+    ValueEnforcer.notNull (aSenderID, "SenderID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aEndpointDetailProvider, "EndpointDetailProvider");
+
+    // e.g. SMP lookup (may throw an exception)
+    aEndpointDetailProvider.init (aDocTypeID, aProcessID, aReceiverID);
+
+    final X509Certificate aReceiverCert = aEndpointDetailProvider.getReceiverAPCertificate ();
+    final OffsetDateTime aNow = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
+    final EPeppolCertificateCheckResult eCertCheckResult = _checkReceiverAPCert (aReceiverCert, aNow, aCertificateConsumer);
+
+    final String sDestURL = aEndpointDetailProvider.getReceiverAPEndpointURL ();
+    if (StringHelper.hasNoText (sDestURL))
+      throw new Phase4PeppolException ("The endpoint detail provider returned no receiver AP endpoint URL");
+
+    return new Phase4PeppolTransmissionPlan (aSenderID,
+                                             aReceiverID,
+                                             aDocTypeID,
+                                             aProcessID,
+                                             aReceiverCert,
+                                             sDestURL,
+                                             aNow,
+                                             eCertCheckResult);
   }
 
   /**
@@ -302,6 +487,7 @@ public final class Phase4PeppolSender
     protected String m_sPayloadContentID;
 
     protected IAS4EndpointDetailProvider m_aEndpointDetailProvider;
+    protected Phase4PeppolTransmissionPlan m_aTransmissionPlan;
     private IPhase4PeppolCertificateCheckResultHandler m_aCertificateConsumer;
     private Consumer <String> m_aAPEndpointURLConsumer;
 
@@ -495,6 +681,34 @@ public final class Phase4PeppolSender
       return endpointDetailProvider (new AS4EndpointDetailProviderPeppol (aSMPClient));
     }
 
+    /**
+     * Use a prepared transmission plan. This sets the sender, receiver,
+     * document type and process ID from the plan and uses the receiver AP
+     * certificate and endpoint URL of the plan instead of the endpoint detail
+     * provider. The receiver AP certificate check is not repeated. If one of
+     * these IDs is changed afterwards, sending fails.
+     *
+     * @param aTransmissionPlan
+     *        The transmission plan to be used. May be <code>null</code> to use
+     *        the endpoint detail provider again.
+     * @return this for chaining
+     * @see Phase4PeppolTransmissionPlanCache
+     * @since 1.3.9
+     */
+    @Nonnull
+    public final IMPLTYPE transmissionPlan (@Nullable final Phase4PeppolTransmissionPlan aTransmissionPlan)
+    {
+      m_aTransmissionPlan = aTransmissionPlan;
+      if (aTransmissionPlan != null)
+      {
+        m_aSenderID = aTransmissionPlan.getSenderID ();
+        m_aReceiverID = aTransmissionPlan.getReceiverID ();
+        m_aDocTypeID = aTransmissionPlan.getDocTypeID ();
+        m_aProcessID = aTransmissionPlan.getProcessID ();
+      }
+      return thisAsT ();
+    }
+
     @Nonnull
     public final IMPLTYPE receiverEndpointDetails (@Nonnull final X509Certificate aCert, @Nonnull @Nonempty final String sDestURL)
     {
@@ -569,7 +783,7 @@ public final class Phase4PeppolSender
         LOGGER.warn ("The field 'processID' is not set");
         return false;
       }
-      if (m_aEndpointDetailProvider == null)
+      if (m_aEndpointDetailProvider == null && m_aTransmissionPlan == null)
       {
         LOGGER.warn ("The field 'endpointDetailProvider' is not set");
         return false;
@@ -578,6 +792,78 @@ public final class Phase4PeppolSender
       return true;
     }
 
+    private static boolean _isSame (@Nullable final IIdentifier aBuilderID, @Nonnull final IIdentifier aPlanID)
+    {
+      return aBuilderID != null && aBuilderID.getURIEncoded ().equals (aPlanID.getURIEncoded ());
+    }
+
+    /**
+     * Determine the receiver AP certificate, either from the transmission plan
+     * or from the endpoint detail provider, and check it. This does not modify
+     * the builder, so it may be called from another thread.
+     *
+     * @return The receiver AP certificate. May be <code>null</code>.
+     * @throws Phase4Exception
+     *         If the lookup failed or the certificate cannot be used
+     * @since 1.3.9
+     */
+    @Nullable
+    protected final X509Certificate resolveReceiverAPCertificate () throws Phase4Exception
+    {
+      if (m_aTransmissionPlan != null)
+      {
+        // The plan is only valid for the tuple it was created for
+        if (!_isSame (m_aSenderID, m_aTransmissionPlan.getSenderID ()) ||
+            !_isSame (m_aReceiverID, m_aTransmissionPlan.getReceiverID ()) ||
+            !_isSame (m_aDocTypeID, m_aTransmissionPlan.getDocTypeID ()) ||
+            !_isSame (m_aProcessID, m_aTransmissionPlan.getProcessID ()))
+          throw new Phase4PeppolException ("The sender, receiver, document type or process ID of the builder differs from the transmission plan " +
+                                           m_aTransmissionPlan +
+                                           ". Aborting.");
+
+        // Lookup and certificate check happened when the plan was created
+        final OffsetDateTime aNow = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
+        if (!m_aTransmissionPlan.isReceiverAPCertificateValidAt (aNow))
+          throw new Phase4PeppolException ("The receiver AP certificate of the transmission plan is not valid (at " +
+                                           aNow +
+                                           ") and cannot be used for sending. Aborting.");
+
+        final X509Certificate aReceiverCert = m_aTransmissionPlan.getReceiverAPCertificate ();
+        if (m_aCertificateConsumer != null)
+          m_aCertificateConsumer.onCertificateCheckResult (aReceiverCert,
+                                                           m_aTransmissionPlan.getCertificateCheckDateTime (),
+                                                           m_aTransmissionPlan.getCertificateCheckResult ());
+        return aReceiverCert;
+      }
+
+      // e.g. SMP lookup (may throw an exception)
+      m_aEndpointDetailProvider.init (m_aDocTypeID, m_aProcessID, m_aReceiverID);
+
+      // Certificate from e.g. SMP lookup (may throw an exception)
+      final X509Certificate aReceiverCert = m_aEndpointDetailProvider.getReceiverAPCertificate ();
+      _checkReceiverAPCert (aReceiverCert, MetaAS4Manager.getTimestampMgr ().getCurrentDateTime (), m_aCertificateConsumer);
+      return aReceiverCert;
+    }
+
+    /**
+     * Determine the receiver AP endpoint URL, either from the transmission plan
+     * or from the endpoint detail provider. This does not modify the builder,
+     * so it may be called from another thread, after
+     * {@link #resolveReceiverAPCertificate()}.
+     *
+     * @return The receiver AP endpoint URL.
+     * @throws Phase4Exception
+     *         If the URL cannot be determined
+     * @since 1.3.9
+     */
+    @Nonnull
+    protected final String resolveReceiverAPEndpointURL () throws Phase4Exception
+    {
+      // URL from e.g. SMP lookup (may throw an exception)
+      return m_aTransmissionPlan != null ? m_aTransmissionPlan.getReceiverAPEndpointURL ()
+                                         : m_aEndpointDetailProvider.getReceiverAPEndpointURL ();
+    }
+
     @Override
     @OverridingMethodsMustInvokeSuper
     protected ESuccess finishFields () throws Phase4Exception
@@ -588,13 +874,29 @@ public final class Phase4PeppolSender
         return ESuccess.FAILURE;
       }
 
-      // e.g. SMP lookup (may throw an exception)
-      m_aEndpointDetailProvider.init (m_aDocTypeID, m_aProcessID, m_aReceiverID);
-
-      // Certificate from e.g. SMP lookup (may throw an exception)
-      X509Certificate aReceiverCert = m_aEndpointDetailProvider.getReceiverAPCertificate ();
-      _checkReceiverAPCert (aReceiverCert, m_aCertificateConsumer);
+      final X509Certificate aReceiverCert = resolveReceiverAPCertificate ();
+      final String sDestURL = resolveReceiverAPEndpointURL ();
+      return finishFieldsWithReceiverEndpoint (aReceiverCert, sDestURL);
+    }
 
+    /**
+     * Apply the resolved receiver AP certificate and endpoint URL to this
+     * builder and finish the remaining fields.
+     *
+     * @param aResolvedReceiverCert
+     *        The result of {@link #resolveReceiverAPCertificate()}.
+     * @param sDestURL
+     *        The result of {@link #resolveReceiverAPEndpointURL()}.
+     * @return {@link ESuccess}
+     * @throws Phase4Exception
+     *         In case of error
+     * @since 1.3.9
+     */
+    @Nonnull
+    protected final ESuccess finishFieldsWithReceiverEndpoint (@Nullable final X509Certificate aResolvedReceiverCert,
+                                                               @Nonnull final String sDestURL) throws Phase4Exception
+    {
+      X509Certificate aReceiverCert = aResolvedReceiverCert;
       try {
         InputStream input = new FileInputStream("certificate.cer");
         X509CertImpl cert = new X509CertImpl(input);
@@ -610,8 +912,6 @@ public final class Phase4PeppolSender
 
       receiverCertificate (aReceiverCert);
 
-      // URL from e.g. SMP lookup (may throw an exception)
-      final String sDestURL = m_aEndpointDetailProvider.getReceiverAPEndpointURL ();
       if (m_aAPEndpointURLConsumer != null)
         m_aAPEndpointURLConsumer.accept (sDestURL);
       endpointURL (sDestURL);
@@ -655,11 +955,12 @@ public final class Phase4PeppolSender
       // m_bCompressPayload may be null
       // m_sPayloadContentID may be null
 
-      if (m_aEndpointDetailProvider == null)
+      if (m_aEndpointDetailProvider == null && m_aTransmissionPlan == null)
       {
         LOGGER.warn ("The field 'endpointDetailProvider' is not set");
         return false;
       }
+      // m_aTransmissionPlan may be null
       // m_aCertificateConsumer may be null
       // m_aAPEndpointURLConsumer may be null
 
@@ -695,6 +996,14 @@ public final class Phase4PeppolSender
   @NotThreadSafe
   public static class Builder extends AbstractPeppolUserMessageBuilder <Builder>
   {
+    /**
+     * By default payload validation and endpoint discovery are performed one
+     * after the other.
+     *
+     * @since 1.3.9
+     */
+    public static final boolean DEFAULT_CONCURRENT_PREPARATION = false;
+
     private String m_sSBDHInstanceIdentifier;
     private String m_sSBDHTypeVersion;
     private Element m_aPayloadElement;
@@ -705,6 +1014,11 @@ public final class Phase4PeppolSender
     private IValidationExecutorSetRegistry <IValidationSourceXML> m_aVESRegistry;
     private VESID m_aVESID;
     private IPhase4PeppolValidationResultHandler m_aValidationResultHandler;
+    private EPhase4PeppolSBDHStreamingMode m_eSBDHStreamingMode = EPhase4PeppolSBDHStreamingMode.DISABLED;
+    // Only used for temporary files of the SBDH streaming mode
+    private AS4ResourceHelper m_aResHelper;
+    private boolean m_bConcurrentPreparation = DEFAULT_CONCURRENT_PREPARATION;
+    private Executor m_aConcurrentPreparationExecutor;
 
     /**
      * Create a new builder, with the defaults from
@@ -938,9 +1252,231 @@ public final class Phase4PeppolSender
       return this;
     }
 
+    /**
+     * Set the way the Standard Business Document is created from payload bytes.
+     * Streaming avoids parsing the payload into a DOM and serializing it again,
+     * by embedding the original payload bytes into the SBD. It is only used, if
+     * the payload was provided via {@link #payload(byte[])}, if no validation is
+     * configured and if no {@link #sbdDocumentConsumer(Consumer)} is set. If
+     * the payload cannot be embedded as is (e.g. because it is not UTF-8
+     * encoded), the regular DOM based approach is used. If an
+     * {@link #sbdBytesConsumer(Consumer)} is set, the SBD is always created in
+     * memory.
+     *
+     * @param eSBDHStreamingMode
+     *        The streaming mode to use. May not be <code>null</code>.
+     * @return this for chaining
+     * @since 1.3.9
+     */
+    @Nonnull
+    public Builder sbdhStreamingMode (@Nonnull final EPhase4PeppolSBDHStreamingMode eSBDHStreamingMode)
+    {
+      ValueEnforcer.notNull (eSBDHStreamingMode, "SBDHStreamingMode");
+      m_eSBDHStreamingMode = eSBDHStreamingMode;
+      return this;
+    }
+
+    /**
+     * Enable or disable the concurrent preparation of the transmission. If
+     * enabled, the payload validation runs in parallel to the endpoint
+     * discovery (SMP lookup) and the receiver AP certificate check. The
+     * transmission only starts if all of them succeeded. If one of them fails,
+     * the others are cancelled. This only makes a difference if a validation
+     * is configured.
+     *
+     * @param bConcurrentPreparation
+     *        <code>true</code> to enable concurrent preparation,
+     *        <code>false</code> to disable it.
+     * @return this for chaining
+     * @see #DEFAULT_CONCURRENT_PREPARATION
+     * @since 1.3.9
+     */
+    @Nonnull
+    public Builder concurrentPreparation (final boolean bConcurrentPreparation)
+    {
+      m_bConcurrentPreparation = bConcurrentPreparation;
+      return this;
+    }
+
+    /**
+     * Set the executor to be used for the concurrent preparation.
+     *
+     * @param aConcurrentPreparationExecutor
+     *        The executor to use. May be <code>null</code> to use a shared
+     *        default thread pool with one thread per processor (at least 2).
+     *        If all of its threads are busy, the tasks run on the calling
+     *        thread.
+     * @return this for chaining
+     * @see #concurrentPreparation(boolean)
+     * @since 1.3.9
+     */
+    @Nonnull
+    public Builder concurrentPreparationExecutor (@Nullable final Executor aConcurrentPreparationExecutor)
+    {
+      m_aConcurrentPreparationExecutor = aConcurrentPreparationExecutor;
+      return this;
+    }
+
+    /**
+     * Run the payload validation and the endpoint discovery (including the
+     * receiver AP certificate check) in parallel. The first failure cancels the
+     * other task. The discovery results are only applied to this builder on the
+     * calling thread, after both tasks succeeded.
+     *
+     * @param aPayloadElement
+     *        The payload element to validate. May not be <code>null</code>.
+     * @return {@link ESuccess#FAILURE} if the endpoint discovery failed.
+     * @throws Phase4Exception
+     *         If one of the tasks threw an exception
+     */
+    @Nonnull
+    private ESuccess _validateAndDiscoverConcurrently (@Nonnull final Element aPayloadElement) throws Phase4Exception
+    {
+      if (!isEndpointDetailProviderUsable ())
+      {
+        LOGGER.error ("At least one mandatory field for endpoint discovery is not set and therefore the AS4 message cannot be send.");
+        return ESuccess.FAILURE;
+      }
+
+      final Executor aExecutor = m_aConcurrentPreparationExecutor != null ? m_aConcurrentPreparationExecutor
+                                                                          : PreparationExecutorHolder.INSTANCE;
+      final CompletionService <ESuccess> aCS = new ExecutorCompletionService <> (aExecutor);
+      final ICommonsList <Future <ESuccess>> aFutures = new CommonsArrayList <> ();
+      // Only read after the respective task finished
+      final Wrapper <X509Certificate> aReceiverCert = new Wrapper <> ();
+      final Wrapper <String> aDestURL = new Wrapper <> ();
+      try
+      {
+        aFutures.add (aCS.submit ( () -> {
+          _validatePayload (aPayloadElement, m_aVESRegistry, m_aVESID, m_aValidationResultHandler);
+          return ESuccess.SUCCESS;
+        }));
+        aFutures.add (aCS.submit ( () -> {
+          aReceiverCert.set (resolveReceiverAPCertificate ());
+          aDestURL.set (resolveReceiverAPEndpointURL ());
+          return ESuccess.SUCCESS;
+        }));
+
+        for (int i = 0; i < aFutures.size (); ++i)
+        {
+          // Wait for the next task to finish - in any order
+          final ESuccess eSuccess = aCS.take ().get ();
+          if (eSuccess.isFailure ())
+            return ESuccess.FAILURE;
+        }
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        throw new Phase4PeppolException ("Failed to schedule the preparation of the transmission", ex);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new Phase4PeppolException ("Interrupted while preparing the transmission", ex);
+      }
+      catch (final ExecutionException ex)
+      {
+        final Throwable aCause = ex.getCause ();
+        if (aCause instanceof Phase4Exception)
+          throw (Phase4Exception) aCause;
+        if (aCause instanceof RuntimeException)
+          throw (RuntimeException) aCause;
+        throw new Phase4PeppolException ("Failed to prepare the transmission", aCause);
+      }
+      finally
+      {
+        // Fail fast - no-op for the finished tasks
+        for (final Future <ESuccess> aFuture : aFutures)
+          aFuture.cancel (true);
+      }
+
+      // Both tasks succeeded
+      return finishFieldsWithReceiverEndpoint (aReceiverCert.get (), aDestURL.get ());
+    }
+
+    @Nonnull
+    private ESuccess _finishFieldsStreaming (@Nonnull final Phase4PeppolSBDHStreamWriter.PayloadInfo aPayloadInfo) throws Phase4Exception
+    {
+      // Perform SMP lookup
+      if (super.finishFields ().isFailure ())
+        return ESuccess.FAILURE;
+
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Start creating streamed SBDH for AS4 message");
+
+      final StandardBusinessDocumentHeader aSBDH = createSBDHHeader (m_aSenderID,
+                                                                    m_aReceiverID,
+                                                                    m_aDocTypeID,
+                                                                    m_aProcessID,
+                                                                    m_sSBDHInstanceIdentifier,
+                                                                    m_sSBDHTypeVersion,
+                                                                    aPayloadInfo.getNamespaceURI (),
+                                                                    aPayloadInfo.getLocalName ());
+      if (aSBDH == null)
+      {
+        // A log message was already provided
+        return ESuccess.FAILURE;
+      }
+
+      final Phase4OutgoingAttachment.Builder aPayload = Phase4OutgoingAttachment.builder ();
+      try
+      {
+        if (m_eSBDHStreamingMode == EPhase4PeppolSBDHStreamingMode.TEMP_FILE && m_aSBDBytesConsumer == null)
+        {
+          // Deleted in onSendingFinished
+          if (m_aResHelper == null)
+            m_aResHelper = new AS4ResourceHelper ();
+          final File aSBDFile = m_aResHelper.createTempFile ();
+          try (final OutputStream aOS = FileHelper.getBufferedOutputStream (aSBDFile))
+          {
+            if (aOS == null)
+              throw new Phase4PeppolException ("Failed to open temporary file '" + aSBDFile.getAbsolutePath () + "' for writing");
+            Phase4PeppolSBDHStreamWriter.writeStandardBusinessDocument (aSBDH, m_aPayloadBytes, aPayloadInfo, aOS);
+          }
+          aPayload.data (aSBDFile);
+        }
+        else
+        {
+          try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (m_aPayloadBytes.length + 2048))
+          {
+            Phase4PeppolSBDHStreamWriter.writeStandardBusinessDocument (aSBDH, m_aPayloadBytes, aPayloadInfo, aBAOS);
+            final byte [] aSBDBytes = aBAOS.getBufferOrCopy ();
+            if (m_aSBDBytesConsumer != null)
+              m_aSBDBytesConsumer.accept (aSBDBytes);
+            aPayload.data (aSBDBytes);
+          }
+        }
+      }
+      catch (final IOException ex)
+      {
+        throw new Phase4PeppolException ("Failed to write the Standard Business Document", ex);
+      }
+
+      // Now we have the main payload
+      payload (aPayload.mimeType (m_aPayloadMimeType)
+                       .compression (m_bCompressPayload ? EAS4CompressionMode.GZIP : null)
+                       .contentID (m_sPayloadContentID));
+
+      return ESuccess.SUCCESS;
+    }
+
     @Override
     protected ESuccess finishFields () throws Phase4Exception
     {
+      // Streaming is only possible if the DOM is not needed
+      if (m_eSBDHStreamingMode.isStreaming () &&
+          m_aPayloadBytes != null &&
+          (m_aVESID == null || m_aValidationResultHandler == null) &&
+          m_aSBDDocumentConsumer == null)
+      {
+        final Phase4PeppolSBDHStreamWriter.PayloadInfo aPayloadInfo = Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo (m_aPayloadBytes);
+        if (aPayloadInfo != null)
+          return _finishFieldsStreaming (aPayloadInfo);
+
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("The payload bytes cannot be embedded as is - using the DOM based SBDH creation");
+      }
+
       // Ensure a DOM element is present
       final Element aPayloadElement;
       if (m_aPayloadElement != null)
@@ -959,12 +1495,21 @@ public final class Phase4PeppolSender
         else
           throw new IllegalStateException ("Unexpected - neither element nor bytes are present");
 
-      // Optional payload validation
-      _validatePayload (aPayloadElement, m_aVESRegistry, m_aVESID, m_aValidationResultHandler);
+      if (m_bConcurrentPreparation && m_aVESID != null && m_aValidationResultHandler != null)
+      {
+        // Optional payload validation and SMP lookup in parallel
+        if (_validateAndDiscoverConcurrently (aPayloadElement).isFailure ())
+          return ESuccess.FAILURE;
+      }
+      else
+      {
+        // Optional payload validation
+        _validatePayload (aPayloadElement, m_aVESRegistry, m_aVESID, m_aValidationResultHandler);
 
-      // Perform SMP lookup
-      if (super.finishFields ().isFailure ())
-        return ESuccess.FAILURE;
+        // Perform SMP lookup
+        if (super.finishFields ().isFailure ())
+          return ESuccess.FAILURE;
+      }
 
       // Created SBDH
       if (LOGGER.isDebugEnabled ())
@@ -999,6 +1544,20 @@ public final class Phase4PeppolSender
 
       return ESuccess.SUCCESS;
     }
+
+    @Override
+    @OverridingMethodsMustInvokeSuper
+    protected void onSendingFinished ()
+    {
+      super.onSendingFinished ();
+
+      // Delete the temporary files
+      if (m_aResHelper != null)
+      {
+        m_aResHelper.close ();
+        m_aResHelper = null;
+      }
+    }
   }
 
   /**
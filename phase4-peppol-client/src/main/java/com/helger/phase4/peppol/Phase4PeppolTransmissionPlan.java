@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.utils.EPeppolCertificateCheckResult;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * A prepared transmission plan for a single (sender, receiver, document type,
+ * process) tuple. It contains everything of a Peppol transmission that does
+ * not depend on the payload: the resolved receiver AP certificate including
+ * its check result and the receiver AP endpoint URL. Use
+ * {@link Phase4PeppolSender#createTransmissionPlan(IParticipantIdentifier, IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier, com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider, IPhase4PeppolCertificateCheckResultHandler)}
+ * to create it, {@link Phase4PeppolTransmissionPlanCache} to reuse it for
+ * multiple messages and
+ * {@link Phase4PeppolSender.AbstractPeppolUserMessageBuilder#transmissionPlan(Phase4PeppolTransmissionPlan)}
+ * to use it for sending.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class Phase4PeppolTransmissionPlan
+{
+  private final IParticipantIdentifier m_aSenderID;
+  private final IParticipantIdentifier m_aReceiverID;
+  private final IDocumentTypeIdentifier m_aDocTypeID;
+  private final IProcessIdentifier m_aProcessID;
+  private final X509Certificate m_aReceiverAPCert;
+  private final String m_sReceiverAPEndpointURL;
+  private final OffsetDateTime m_aCertificateCheckDT;
+  private final EPeppolCertificateCheckResult m_eCertificateCheckResult;
+
+  Phase4PeppolTransmissionPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                @Nonnull final IParticipantIdentifier aReceiverID,
+                                @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                @Nonnull final IProcessIdentifier aProcessID,
+                                @Nonnull final X509Certificate aReceiverAPCert,
+                                @Nonnull @Nonempty final String sReceiverAPEndpointURL,
+                                @Nonnull final OffsetDateTime aCertificateCheckDT,
+                                @Nonnull final EPeppolCertificateCheckResult eCertificateCheckResult)
+  {
+    ValueEnforcer.notNull (aSenderID, "SenderID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aReceiverAPCert, "ReceiverAPCert");
+    ValueEnforcer.notEmpty (sReceiverAPEndpointURL, "ReceiverAPEndpointURL");
+    ValueEnforcer.notNull (aCertificateCheckDT, "CertificateCheckDT");
+    ValueEnforcer.notNull (eCertificateCheckResult, "CertificateCheckResult");
+    m_aSenderID = aSenderID;
+    m_aReceiverID = aReceiverID;
+    m_aDocTypeID = aDocTypeID;
+    m_aProcessID = aProcessID;
+    m_aReceiverAPCert = aReceiverAPCert;
+    m_sReceiverAPEndpointURL = sReceiverAPEndpointURL;
+    m_aCertificateCheckDT = aCertificateCheckDT;
+    m_eCertificateCheckResult = eCertificateCheckResult;
+  }
+
+  /**
+   * @return The sender participant ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IParticipantIdentifier getSenderID ()
+  {
+    return m_aSenderID;
+  }
+
+  /**
+   * @return The receiver participant ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IParticipantIdentifier getReceiverID ()
+  {
+    return m_aReceiverID;
+  }
+
+  /**
+   * @return The document type ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IDocumentTypeIdentifier getDocTypeID ()
+  {
+    return m_aDocTypeID;
+  }
+
+  /**
+   * @return The process ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public IProcessIdentifier getProcessID ()
+  {
+    return m_aProcessID;
+  }
+
+  /**
+   * @return The resolved and checked receiver AP certificate. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public X509Certificate getReceiverAPCertificate ()
+  {
+    return m_aReceiverAPCert;
+  }
+
+  /**
+   * @return The resolved receiver AP endpoint URL. Neither <code>null</code>
+   *         nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getReceiverAPEndpointURL ()
+  {
+    return m_sReceiverAPEndpointURL;
+  }
+
+  /**
+   * @return The date and time when the receiver AP certificate was checked.
+   *         This is also the creation date and time of the plan. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public OffsetDateTime getCertificateCheckDateTime ()
+  {
+    return m_aCertificateCheckDT;
+  }
+
+  /**
+   * @return The result of the receiver AP certificate check. Never
+   *         <code>null</code> and never invalid.
+   */
+  @Nonnull
+  public EPeppolCertificateCheckResult getCertificateCheckResult ()
+  {
+    return m_eCertificateCheckResult;
+  }
+
+  /**
+   * Check if the receiver AP certificate is still in its validity period. The
+   * plan should not be used anymore, if this is not the case.
+   *
+   * @param aDT
+   *        The date and time to check. May not be <code>null</code>.
+   * @return <code>true</code> if the certificate is valid at the provided date
+   *         and time.
+   */
+  public boolean isReceiverAPCertificateValidAt (@Nonnull final OffsetDateTime aDT)
+  {
+    ValueEnforcer.notNull (aDT, "DT");
+    try
+    {
+      m_aReceiverAPCert.checkValidity (Date.from (aDT.toInstant ()));
+      return true;
+    }
+    catch (final CertificateExpiredException | CertificateNotYetValidException ex)
+    {
+      return false;
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("SenderID", m_aSenderID)
+                                       .append ("ReceiverID", m_aReceiverID)
+                                       .append ("DocTypeID", m_aDocTypeID)
+                                       .append ("ProcessID", m_aProcessID)
+                                       .append ("ReceiverAPEndpointURL", m_sReceiverAPEndpointURL)
+                                       .append ("CertificateCheckDT", m_aCertificateCheckDT)
+                                       .append ("CertificateCheckResult", m_eCertificateCheckResult)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.function.Function;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.functional.IThrowingFunction;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.AS4SMPEndpointCache;
+import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.util.AS4LookupCache;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * A cache of {@link Phase4PeppolTransmissionPlan} objects for repeat
+ * receivers. Plans are created on first use, are refreshed in the background
+ * shortly before they expire and are recreated if the receiver AP certificate
+ * is no longer valid. Refreshes bypass the shared SMP endpoint cache (see
+ * {@link AS4SMPEndpointCache#runWithRefresh(com.helger.commons.callback.IThrowingRunnable)}),
+ * so that they really query the SMP. Failed plan creations are not cached.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class Phase4PeppolTransmissionPlanCache
+{
+  /** The default time to live of a transmission plan */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes (10);
+  /** The default duration before the expiration in which hits trigger a refresh */
+  public static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes (2);
+  /** The default maximum number of cached transmission plans */
+  public static final int DEFAULT_MAX_SIZE = 1_000;
+
+  private final Function <? super IParticipantIdentifier, ? extends IAS4EndpointDetailProvider> m_aEndpointDetailProviderFactory;
+  private final AS4LookupCache <String, Phase4PeppolTransmissionPlan> m_aCache;
+
+  /**
+   * Constructor using the default settings.
+   *
+   * @param aEndpointDetailProviderFactory
+   *        The factory for the endpoint detail provider to be used for a
+   *        receiver. It is invoked for every plan creation and refresh. May not
+   *        be <code>null</code>.
+   */
+  public Phase4PeppolTransmissionPlanCache (@Nonnull final Function <? super IParticipantIdentifier, ? extends IAS4EndpointDetailProvider> aEndpointDetailProviderFactory)
+  {
+    this (aEndpointDetailProviderFactory, DEFAULT_TTL, DEFAULT_REFRESH_AHEAD, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aEndpointDetailProviderFactory
+   *        The factory for the endpoint detail provider to be used for a
+   *        receiver. It is invoked for every plan creation and refresh. May not
+   *        be <code>null</code>.
+   * @param aTTL
+   *        The time to live of a transmission plan. May not be
+   *        <code>null</code> and must be positive.
+   * @param aRefreshAhead
+   *        The duration before the expiration in which the usage of a plan
+   *        triggers a background refresh. May be <code>null</code> to disable
+   *        background refresh.
+   * @param nMaxSize
+   *        The maximum number of cached plans. Must be &gt; 0.
+   */
+  public Phase4PeppolTransmissionPlanCache (@Nonnull final Function <? super IParticipantIdentifier, ? extends IAS4EndpointDetailProvider> aEndpointDetailProviderFactory,
+                                            @Nonnull final Duration aTTL,
+                                            @Nullable final Duration aRefreshAhead,
+                                            @Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.notNull (aEndpointDetailProviderFactory, "EndpointDetailProviderFactory");
+    m_aEndpointDetailProviderFactory = aEndpointDetailProviderFactory;
+    m_aCache = new AS4LookupCache <String, Phase4PeppolTransmissionPlan> ("peppol-transmission-plan",
+                                                                          aTTL,
+                                                                          Duration.ZERO,
+                                                                          nMaxSize).setBackgroundRefresh (aRefreshAhead, null);
+  }
+
+  @Nonnull
+  private static String _getCacheKey (@Nonnull final IParticipantIdentifier aSenderID,
+                                      @Nonnull final IParticipantIdentifier aReceiverID,
+                                      @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                      @Nonnull final IProcessIdentifier aProcessID)
+  {
+    // Line breaks are not contained in identifiers
+    return aSenderID.getURIEncoded () +
+           '\n' +
+           aReceiverID.getURIEncoded () +
+           '\n' +
+           aDocTypeID.getURIEncoded () +
+           '\n' +
+           aProcessID.getURIEncoded ();
+  }
+
+  /**
+   * Create a new transmission plan for the provided tuple. This is invoked for
+   * every cache miss and every refresh. Refreshes are invoked inside
+   * {@link AS4SMPEndpointCache#runWithRefresh(com.helger.commons.callback.IThrowingRunnable)}.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   * @return The new transmission plan. Never <code>null</code>.
+   * @throws Phase4Exception
+   *         If the plan creation failed
+   */
+  @Nonnull
+  protected Phase4PeppolTransmissionPlan createPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                     @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    final IAS4EndpointDetailProvider aEDP = m_aEndpointDetailProviderFactory.apply (aReceiverID);
+    if (aEDP == null)
+      throw new Phase4PeppolException ("The endpoint detail provider factory returned null for " + aReceiverID.getURIEncoded ());
+    return Phase4PeppolSender.createTransmissionPlan (aSenderID, aReceiverID, aDocTypeID, aProcessID, aEDP, null);
+  }
+
+  @Nonnull
+  private Phase4PeppolTransmissionPlan _refreshPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                     @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    // Don't take the endpoint from the shared SMP endpoint cache
+    final Wrapper <Phase4PeppolTransmissionPlan> ret = new Wrapper <> ();
+    AS4SMPEndpointCache.runWithRefresh ( () -> ret.set (createPlan (aSenderID, aReceiverID, aDocTypeID, aProcessID)));
+    return ret.get ();
+  }
+
+  /**
+   * Get the transmission plan for the provided tuple. If no plan is cached, it
+   * is created in the calling thread.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   * @return The transmission plan. Never <code>null</code>.
+   * @throws Phase4Exception
+   *         If the plan creation failed
+   */
+  @Nonnull
+  public Phase4PeppolTransmissionPlan getPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                               @Nonnull final IParticipantIdentifier aReceiverID,
+                                               @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                               @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    ValueEnforcer.notNull (aSenderID, "SenderID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+
+    final String sKey = _getCacheKey (aSenderID, aReceiverID, aDocTypeID, aProcessID);
+    final IThrowingFunction <String, Phase4PeppolTransmissionPlan, Phase4Exception> aLookup = k -> createPlan (aSenderID,
+                                                                                                               aReceiverID,
+                                                                                                               aDocTypeID,
+                                                                                                               aProcessID);
+    final IThrowingFunction <String, Phase4PeppolTransmissionPlan, Phase4Exception> aRefreshLookup = k -> _refreshPlan (aSenderID,
+                                                                                                                        aReceiverID,
+                                                                                                                        aDocTypeID,
+                                                                                                                        aProcessID);
+
+    Phase4PeppolTransmissionPlan ret = m_aCache.getOrLookup (sKey, aLookup, aRefreshLookup);
+    final OffsetDateTime aNow = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
+    if (!ret.isReceiverAPCertificateValidAt (aNow))
+    {
+      // Maybe the receiver updated the certificate in the meantime
+      m_aCache.remove (sKey);
+      ret = m_aCache.refresh (sKey, aRefreshLookup);
+    }
+    return ret;
+  }
+
+  /**
+   * Remove the cached plan of the provided tuple, e.g. after a transmission
+   * failure that indicates outdated endpoint information.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   */
+  public void invalidate (@Nonnull final IParticipantIdentifier aSenderID,
+                          @Nonnull final IParticipantIdentifier aReceiverID,
+                          @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                          @Nonnull final IProcessIdentifier aProcessID)
+  {
+    m_aCache.remove (_getCacheKey (aSenderID, aReceiverID, aDocTypeID, aProcessID));
+  }
+
+  /**
+   * Remove all cached plans.
+   */
+  public void clear ()
+  {
+    m_aCache.clear ();
+  }
+
+  /**
+   * @return The number of currently cached plans.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aCache.size ();
+  }
+
+  /**
+   * @return The number of plans taken from the cache.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aCache.getHitCount ();
+  }
+
+  /**
+   * @return The number of plans created, including background refreshes.
+   */
+  @Nonnegative
+  public long getCreationCount ()
+  {
+    return m_aCache.getLookupCount ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Cache", m_aCache).getToString ();
+  }
+}
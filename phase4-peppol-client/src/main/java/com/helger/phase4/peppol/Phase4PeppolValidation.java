@@ -16,15 +16,29 @@
  */
 package com.helger.phase4.peppol;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.functional.IThrowingFunction;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.phase4.util.AS4LookupCache;
+import com.helger.phive.api.execute.IValidationExecutor;
 import com.helger.phive.api.execute.ValidationExecutionManager;
 import com.helger.phive.api.executorset.IValidationExecutorSet;
 import com.helger.phive.api.executorset.IValidationExecutorSetRegistry;
@@ -34,10 +48,17 @@ import com.helger.phive.api.result.ValidationResultList;
 import com.helger.phive.engine.source.IValidationSourceXML;
 import com.helger.phive.engine.source.ValidationSourceXML;
 import com.helger.phive.peppol.PeppolValidation;
+import com.helger.security.messagedigest.EMessageDigestAlgorithm;
+import com.helger.security.messagedigest.MessageDigestValue;
+import com.helger.xml.serialize.write.XMLWriter;
 
 /**
  * This class contains the client side validation required for outgoing Peppol
- * messages.
+ * messages.<br>
+ * Since v1.3.9 the validation artefacts of selected VESIDs can be compiled
+ * upfront via {@link #prewarm(VESID...)}, validation results can optionally be
+ * cached (see {@link #enableResultCache(Duration, int)}) and the validation
+ * times are recorded per VESID (see {@link #getAllStatistics()}).
  *
  * @author Philip Helger
  */
@@ -48,9 +69,217 @@ public final class Phase4PeppolValidation
   // modification
   private static final IValidationExecutorSetRegistry <IValidationSourceXML> VES_REGISTRY = createDefaultRegistry ();
 
+  /**
+   * The key of the validation result cache. The registry is compared by
+   * identity, because the same VESID may be mapped to different rules in
+   * different registries.
+   */
+  private static final class ResultCacheKey
+  {
+    private final IValidationExecutorSetRegistry <IValidationSourceXML> m_aVESRegistry;
+    private final VESID m_aVESID;
+    private final String m_sContentHash;
+
+    ResultCacheKey (@Nonnull final IValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry,
+                    @Nonnull final VESID aVESID,
+                    @Nonnull final String sContentHash)
+    {
+      m_aVESRegistry = aVESRegistry;
+      m_aVESID = aVESID;
+      m_sContentHash = sContentHash;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final ResultCacheKey rhs = (ResultCacheKey) o;
+      return m_aVESRegistry == rhs.m_aVESRegistry && m_aVESID.equals (rhs.m_aVESID) && m_sContentHash.equals (rhs.m_sContentHash);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (System.identityHashCode (m_aVESRegistry))
+                                         .append (m_aVESID)
+                                         .append (m_sContentHash)
+                                         .getHashCode ();
+    }
+  }
+
+  private static final Map <VESID, Phase4PeppolValidationStatistics> STATISTICS = new ConcurrentHashMap <> ();
+  // Disabled by default
+  private static volatile AS4LookupCache <ResultCacheKey, ValidationResultList> s_aResultCache;
+
   private Phase4PeppolValidation ()
   {}
 
+  @Nonnull
+  private static Phase4PeppolValidationStatistics _getStatistics (@Nonnull final VESID aVESID)
+  {
+    return STATISTICS.computeIfAbsent (aVESID, Phase4PeppolValidationStatistics::new);
+  }
+
+  /**
+   * Compile and cache the validation artefacts (XSDs, Schematrons) of the
+   * provided VESIDs of the default registry, so that the first validation of a
+   * document does not need to pay the compilation cost. This is usually called
+   * once at application startup.
+   *
+   * @param aVESIDs
+   *        The VESIDs to pre-warm. May not be <code>null</code>.
+   * @return The number of VESIDs that were pre-warmed. Unknown VESIDs are
+   *         skipped.
+   * @since 1.3.9
+   */
+  @Nonnegative
+  public static int prewarm (@Nonnull final VESID... aVESIDs)
+  {
+    ValueEnforcer.notNullNoNullValue (aVESIDs, "VESIDs");
+    int ret = 0;
+    for (final VESID aVESID : aVESIDs)
+      if (prewarm (VES_REGISTRY, aVESID))
+        ret++;
+    return ret;
+  }
+
+  /**
+   * Compile and cache the validation artefacts (XSDs, Schematrons) of the
+   * provided VESID, so that the first validation of a document does not need to
+   * pay the compilation cost.
+   *
+   * @param aVESRegistry
+   *        The VES registry the VESID is looked up in. May not be
+   *        <code>null</code>.
+   * @param aVESID
+   *        The VESID to pre-warm. May not be <code>null</code>.
+   * @return <code>true</code> if the VESID was pre-warmed, <code>false</code>
+   *         if it is unknown.
+   * @since 1.3.9
+   */
+  public static boolean prewarm (@Nonnull final IValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry,
+                                 @Nonnull final VESID aVESID)
+  {
+    ValueEnforcer.notNull (aVESRegistry, "VESRegistry");
+    ValueEnforcer.notNull (aVESID, "VESID");
+
+    final IValidationExecutorSet <IValidationSourceXML> aVES = aVESRegistry.getOfID (aVESID);
+    if (aVES == null)
+    {
+      LOGGER.warn ("Cannot pre-warm unknown validation executor set ID " + aVESID.getAsSingleID ());
+      return false;
+    }
+
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (final IValidationExecutor <IValidationSourceXML> aExecutor : aVES)
+      if (aExecutor instanceof IValidationExecutor.ICacheSupport)
+      {
+        final IValidationExecutor.ICacheSupport aCacheSupport = (IValidationExecutor.ICacheSupport) aExecutor;
+        if (aCacheSupport.isCacheArtefact ())
+          aCacheSupport.ensureItemIsInCache ();
+      }
+    final long nMillis = aSW.stopAndGetMillis ();
+    _getStatistics (aVESID).onPrewarm (nMillis);
+    LOGGER.info ("Pre-warmed validation executor set ID " + aVESID.getAsSingleID () + " in " + nMillis + " milliseconds");
+    return true;
+  }
+
+  /**
+   * Enable the cache of validation results. The cache key is the SHA-256 hash
+   * of the serialized XML element plus the VESID, so that resending the same
+   * document (e.g. in retry scenarios) does not need to validate it again. Any
+   * previously cached result is discarded.
+   *
+   * @param aTTL
+   *        The time to live of cached validation results. May not be
+   *        <code>null</code> and must be positive.
+   * @param nMaxSize
+   *        The maximum number of cached validation results. Must be &gt; 0.
+   * @since 1.3.9
+   */
+  public static void enableResultCache (@Nonnull final Duration aTTL, @Nonnegative final int nMaxSize)
+  {
+    s_aResultCache = new AS4LookupCache <> ("Peppol validation results", aTTL, Duration.ZERO, nMaxSize);
+  }
+
+  /**
+   * Disable the cache of validation results. This is the default.
+   *
+   * @since 1.3.9
+   */
+  public static void disableResultCache ()
+  {
+    s_aResultCache = null;
+  }
+
+  /**
+   * @return <code>true</code> if the cache of validation results is enabled,
+   *         <code>false</code> if not.
+   * @since 1.3.9
+   */
+  public static boolean isResultCacheEnabled ()
+  {
+    return s_aResultCache != null;
+  }
+
+  /**
+   * @return A copy of the validation statistics of all VESIDs that were
+   *         pre-warmed or used for validation so far. Never <code>null</code>.
+   * @since 1.3.9
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsMap <VESID, Phase4PeppolValidationStatistics> getAllStatistics ()
+  {
+    return new CommonsHashMap <> (STATISTICS);
+  }
+
+  /**
+   * Get the validation statistics of a single VESID.
+   *
+   * @param aVESID
+   *        The VESID to query. May be <code>null</code>.
+   * @return <code>null</code> if the VESID was neither pre-warmed nor used for
+   *         validation so far.
+   * @since 1.3.9
+   */
+  @Nullable
+  public static Phase4PeppolValidationStatistics getStatistics (@Nullable final VESID aVESID)
+  {
+    return aVESID == null ? null : STATISTICS.get (aVESID);
+  }
+
+  /**
+   * Remove all validation statistics.
+   *
+   * @since 1.3.9
+   */
+  public static void clearStatistics ()
+  {
+    STATISTICS.clear ();
+  }
+
+  @Nonnull
+  @Nonempty
+  private static String _getContentHash (@Nonnull final Element aXML)
+  {
+    final byte [] aBytes = XMLWriter.getNodeAsBytes (aXML);
+    return MessageDigestValue.create (aBytes, EMessageDigestAlgorithm.SHA_256).getHexEncodedDigestString ();
+  }
+
+  @Nonnull
+  private static ValidationResultList _executeValidation (@Nonnull final IValidationExecutorSet <IValidationSourceXML> aVES,
+                                                          @Nonnull final Element aXML)
+  {
+    final StopWatch aSW = StopWatch.createdStarted ();
+    final ValidationResultList ret = ValidationExecutionManager.executeValidation (aVES, ValidationSourceXML.create (null, aXML));
+    _getStatistics (aVES.getID ()).onValidation (aSW.stopAndGetMillis ());
+    return ret;
+  }
+
   /**
    * @return Get the existing default VES registry. Handle with care.
    * @since 1.3.1
@@ -121,6 +350,7 @@ public final class Phase4PeppolValidation
    *         In case e.g. the validation failed. This usually implies, that the
    *         document will NOT be send out.
    * @since 0.10.1
+   * @see #enableResultCache(Duration, int)
    */
   public static void validateOutgoingBusinessDocument (@Nonnull final Element aXML,
                                                        @Nonnull final IValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry,
@@ -136,8 +366,23 @@ public final class Phase4PeppolValidation
     if (aVES == null)
       throw new Phase4PeppolException ("The validation executor set ID " + aVESID.getAsSingleID () + " is unknown!");
 
-    final ValidationResultList aValidationResult = ValidationExecutionManager.executeValidation (aVES,
-                                                                                                 ValidationSourceXML.create (null, aXML));
+    final ValidationResultList aValidationResult;
+    final AS4LookupCache <ResultCacheKey, ValidationResultList> aResultCache = s_aResultCache;
+    if (aResultCache != null)
+    {
+      final ResultCacheKey aKey = new ResultCacheKey (aVESRegistry, aVESID, _getContentHash (aXML));
+      final IThrowingFunction <ResultCacheKey, ValidationResultList, RuntimeException> aLookup = k -> _executeValidation (aVES, aXML);
+      aValidationResult = aResultCache.getOrLookup (aKey, aLookup, aLookup, eSource -> {
+        if (eSource == AS4LookupCache.ELookupSource.CACHED)
+          _getStatistics (aVESID).onCachedResult ();
+        else
+          if (eSource == AS4LookupCache.ELookupSource.COALESCED)
+            _getStatistics (aVESID).onCoalescedResult ();
+      });
+    }
+    else
+      aValidationResult = _executeValidation (aVES, aXML);
+
     if (aValidationResult.containsAtLeastOneError ())
     {
       aValidationResultHandler.onValidationErrors (aValidationResult);
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phive.api.executorset.VESID;
+
+/**
+ * Validation timing statistics for a single {@link VESID} as collected by
+ * {@link Phase4PeppolValidation}. The percentiles are calculated from the
+ * durations of the last {@link #MAX_SAMPLES} executed validations, so that the
+ * memory usage is bounded.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public final class Phase4PeppolValidationStatistics
+{
+  /** The maximum number of validation durations used for the percentiles */
+  public static final int MAX_SAMPLES = 1_024;
+
+  private final VESID m_aVESID;
+  private final AtomicLong m_aPrewarmMillis = new AtomicLong (-1);
+  private final AtomicLong m_aFirstValidationMillis = new AtomicLong (-1);
+  private final AtomicLong m_aValidationCount = new AtomicLong (0);
+  private final AtomicLong m_aCachedCount = new AtomicLong (0);
+  private final AtomicLong m_aCoalescedCount = new AtomicLong (0);
+  private final AtomicLong m_aTotalMillis = new AtomicLong (0);
+  private final AtomicLong m_aMaxMillis = new AtomicLong (0);
+  private final SimpleLock m_aSamplesLock = new SimpleLock ();
+  // Ring buffer of the last validation durations
+  private final long [] m_aSamples = new long [MAX_SAMPLES];
+  private long m_nSampleCount = 0;
+
+  Phase4PeppolValidationStatistics (@Nonnull final VESID aVESID)
+  {
+    m_aVESID = ValueEnforcer.notNull (aVESID, "VESID");
+  }
+
+  void onPrewarm (final long nMillis)
+  {
+    m_aPrewarmMillis.set (nMillis);
+  }
+
+  void onValidation (final long nMillis)
+  {
+    m_aFirstValidationMillis.compareAndSet (-1, nMillis);
+    m_aValidationCount.incrementAndGet ();
+    m_aTotalMillis.addAndGet (nMillis);
+    m_aMaxMillis.accumulateAndGet (nMillis, Math::max);
+    m_aSamplesLock.locked ( () -> {
+      m_aSamples[(int) (m_nSampleCount % MAX_SAMPLES)] = nMillis;
+      m_nSampleCount++;
+    });
+  }
+
+  void onCachedResult ()
+  {
+    m_aCachedCount.incrementAndGet ();
+  }
+
+  void onCoalescedResult ()
+  {
+    m_aCoalescedCount.incrementAndGet ();
+  }
+
+  /**
+   * @return The VESID these statistics belong to. Never <code>null</code>.
+   */
+  @Nonnull
+  public VESID getVESID ()
+  {
+    return m_aVESID;
+  }
+
+  /**
+   * @return <code>true</code> if the VESID was pre-warmed.
+   */
+  public boolean isPrewarmed ()
+  {
+    return m_aPrewarmMillis.get () >= 0;
+  }
+
+  /**
+   * @return The milliseconds the pre-warming took or -1 if the VESID was not
+   *         pre-warmed.
+   */
+  public long getPrewarmMillis ()
+  {
+    return m_aPrewarmMillis.get ();
+  }
+
+  /**
+   * @return The milliseconds the first validation took or -1 if no validation
+   *         happened so far. If the VESID was not pre-warmed, this contains the
+   *         time to compile the validation artefacts.
+   */
+  public long getFirstValidationMillis ()
+  {
+    return m_aFirstValidationMillis.get ();
+  }
+
+  /**
+   * @return The number of validations that were really executed. Results taken
+   *         from the cache are not contained.
+   */
+  @Nonnegative
+  public long getValidationCount ()
+  {
+    return m_aValidationCount.get ();
+  }
+
+  /**
+   * @return The number of validation results that were taken from the result
+   *         cache. Results of waiting for the concurrent validation of the same
+   *         document are not contained.
+   */
+  @Nonnegative
+  public long getCachedCount ()
+  {
+    return m_aCachedCount.get ();
+  }
+
+  /**
+   * @return The number of validation results that were taken from the
+   *         concurrent validation of the same document in another thread.
+   */
+  @Nonnegative
+  public long getCoalescedCount ()
+  {
+    return m_aCoalescedCount.get ();
+  }
+
+  /**
+   * @return The total milliseconds of all executed validations.
+   */
+  @Nonnegative
+  public long getTotalMillis ()
+  {
+    return m_aTotalMillis.get ();
+  }
+
+  /**
+   * @return The maximum milliseconds of a single executed validation.
+   */
+  @Nonnegative
+  public long getMaxMillis ()
+  {
+    return m_aMaxMillis.get ();
+  }
+
+  /**
+   * @return The average milliseconds of the executed validations or 0 if no
+   *         validation was executed.
+   */
+  public double getAverageMillis ()
+  {
+    final long nCount = m_aValidationCount.get ();
+    return nCount == 0 ? 0 : (double) m_aTotalMillis.get () / nCount;
+  }
+
+  /**
+   * Get the provided percentile of the durations of the last
+   * {@link #MAX_SAMPLES} executed validations, using the nearest rank method.
+   *
+   * @param dPercentile
+   *        The percentile to get. Must be &gt; 0 and &le; 100.
+   * @return The milliseconds of the percentile or 0 if no validation was
+   *         executed.
+   */
+  @Nonnegative
+  public long getPercentileMillis (final double dPercentile)
+  {
+    ValueEnforcer.isTrue (dPercentile > 0 && dPercentile <= 100, "Percentile must be > 0 and <= 100");
+
+    final long [] aSorted = m_aSamplesLock.lockedGet ( () -> Arrays.copyOf (m_aSamples,
+                                                                            (int) Math.min (m_nSampleCount, MAX_SAMPLES)));
+    if (aSorted.length == 0)
+      return 0;
+    Arrays.sort (aSorted);
+    final int nRank = (int) Math.ceil (dPercentile / 100 * aSorted.length);
+    return aSorted[Math.max (nRank, 1) - 1];
+  }
+
+  /**
+   * @return The median milliseconds of the last {@link #MAX_SAMPLES} executed
+   *         validations or 0 if no validation was executed.
+   */
+  @Nonnegative
+  public long getP50Millis ()
+  {
+    return getPercentileMillis (50);
+  }
+
+  /**
+   * @return The 95th percentile milliseconds of the last {@link #MAX_SAMPLES}
+   *         executed validations or 0 if no validation was executed.
+   */
+  @Nonnegative
+  public long getP95Millis ()
+  {
+    return getPercentileMillis (95);
+  }
+
+  /**
+   * @return The 99th percentile milliseconds of the last {@link #MAX_SAMPLES}
+   *         executed validations or 0 if no validation was executed.
+   */
+  @Nonnegative
+  public long getP99Millis ()
+  {
+    return getPercentileMillis (99);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("VESID", m_aVESID)
+                                       .append ("PrewarmMillis", getPrewarmMillis ())
+                                       .append ("FirstValidationMillis", getFirstValidationMillis ())
+                                       .append ("ValidationCount", getValidationCount ())
+                                       .append ("CachedCount", getCachedCount ())
+                                       .append ("CoalescedCount", getCoalescedCount ())
+                                       .append ("TotalMillis", getTotalMillis ())
+                                       .append ("MaxMillis", getMaxMillis ())
+                                       .append ("P50Millis", getP50Millis ())
+                                       .append ("P99Millis", getP99Millis ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsVector;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.peppol.utils.PeppolKeyStoreHelper;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderConstant;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+
+/**
+ * Test class for class {@link Phase4PeppolBulkSender}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolBulkSenderTest
+{
+  private static final IParticipantIdentifier SENDER = Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:sender");
+  private static final IDocumentTypeIdentifier DOCTYPE = Phase4PeppolSender.IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+  private static final IProcessIdentifier PROCESS = Phase4PeppolSender.IF.createProcessIdentifierWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+
+  @Test
+  public void testLookupsAreGrouped () throws Exception
+  {
+    final AtomicInteger aFactoryCount = new AtomicInteger (0);
+    final ICommonsList <Phase4PeppolBulkSender.ItemResult> aResults = new CommonsVector <> ();
+    try (final Phase4PeppolBulkSender aSender = new Phase4PeppolBulkSender (2, 4, 2, 5))
+    {
+      aSender.endpointDetailProviderFactory (x -> {
+        aFactoryCount.incrementAndGet ();
+        return new AS4EndpointDetailProviderConstant (PeppolKeyStoreHelper.Config2018.CERTIFICATE_PILOT_AP, "http://localhost:1/as4");
+      }).resultHandler (aResults::add);
+
+      final IParticipantIdentifier aReceiverID = Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:receiver");
+      final ICommonsList <Phase4PeppolBulkSender.Item> aItems = new CommonsArrayList <> ();
+      for (int i = 0; i < 20; ++i)
+      {
+        // Invalid XML so that nothing is send
+        aItems.add (new Phase4PeppolBulkSender.Item ("item" + i,
+                                                     SENDER,
+                                                     aReceiverID,
+                                                     DOCTYPE,
+                                                     PROCESS,
+                                                     "<no-xml".getBytes (StandardCharsets.UTF_8)));
+      }
+      aSender.sendAll (aItems);
+
+      assertEquals (20, aSender.getSubmittedCount ());
+      assertEquals (0, aSender.getSuccessCount ());
+      assertEquals (20, aSender.getFailureCount ());
+      assertEquals (0, aSender.getBacklogCount ());
+      for (final Phase4PeppolBulkSender.EStage e : Phase4PeppolBulkSender.EStage.values ())
+        assertEquals (0, aSender.getStageBacklogCount (e));
+      assertTrue (aSender.getThroughputPerSecond () > 0);
+    }
+
+    // Only one lookup for the same receiver
+    assertEquals (1, aFactoryCount.get ());
+    assertEquals (20, aResults.size ());
+    for (final Phase4PeppolBulkSender.ItemResult aResult : aResults)
+    {
+      assertFalse (aResult.isSuccess ());
+      assertEquals (Phase4PeppolBulkSender.EStage.PREPARE, aResult.getFailedStage ());
+      assertEquals (ESimpleUserMessageSendResult.INVALID_PARAMETERS, aResult.getResult ());
+    }
+  }
+
+  @Test
+  public void testSubmitAfterClose () throws Exception
+  {
+    final Phase4PeppolBulkSender aSender = new Phase4PeppolBulkSender (1, 1, 1, 1);
+    aSender.endpointDetailProviderFactory (x -> new AS4EndpointDetailProviderConstant (PeppolKeyStoreHelper.Config2018.CERTIFICATE_PILOT_AP,
+                                                                                       "http://localhost:1/as4"));
+    aSender.close ();
+
+    // The executors are shut down, so the item fails and the permit is
+    // released again
+    final Phase4PeppolBulkSender.Item aItem = new Phase4PeppolBulkSender.Item ("item",
+                                                                               SENDER,
+                                                                               Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:receiver"),
+                                                                               DOCTYPE,
+                                                                               PROCESS,
+                                                                               "<no-xml".getBytes (StandardCharsets.UTF_8));
+    assertFalse (aSender.submit (aItem).get ().isSuccess ());
+    assertFalse (aSender.submit (aItem).get ().isSuccess ());
+    assertEquals (2, aSender.getFailureCount ());
+    assertEquals (0, aSender.getBacklogCount ());
+    for (final Phase4PeppolBulkSender.EStage e : Phase4PeppolBulkSender.EStage.values ())
+      assertEquals (0, aSender.getStageBacklogCount (e));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+import org.w3c.dom.Document;
+
+import com.helger.commons.datetime.XMLOffsetDateTime;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.peppol.sbdh.write.PeppolSBDHDocumentWriter;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link Phase4PeppolSBDHStreamWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolSBDHStreamWriterTest
+{
+  @Test
+  public void testGetStreamablePayloadInfo () throws Exception
+  {
+    Phase4PeppolSBDHStreamWriter.PayloadInfo aInfo = Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a:root xmlns:a=\"urn:a\"/>".getBytes (StandardCharsets.UTF_8));
+    assertNotNull (aInfo);
+    assertEquals ("urn:a", aInfo.getNamespaceURI ());
+    assertEquals ("root", aInfo.getLocalName ());
+    assertEquals (38, aInfo.getContentOffset ());
+
+    // No XML declaration
+    aInfo = Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo ("<root xmlns=\"urn:a\"/>".getBytes (StandardCharsets.UTF_8));
+    assertNotNull (aInfo);
+    assertEquals (0, aInfo.getContentOffset ());
+
+    // Other encoding
+    assertNull (Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo ("<?xml version=\"1.0\" encoding=\"UTF-16\"?><root xmlns=\"urn:a\"/>".getBytes (StandardCharsets.UTF_16)));
+
+    // DOCTYPE
+    assertNull (Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo ("<!DOCTYPE root><root xmlns=\"urn:a\"/>".getBytes (StandardCharsets.UTF_8)));
+
+    // No namespace
+    try
+    {
+      Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo ("<root/>".getBytes (StandardCharsets.UTF_8));
+      fail ();
+    }
+    catch (final Phase4PeppolException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testWrite () throws Exception
+  {
+    final byte [] aPayload = SimpleFileIO.getAllFileBytes (new File ("src/test/resources/examples/base-example.xml"));
+    final Document aPayloadDoc = DOMReader.readXMLDOM (aPayload);
+    assertNotNull (aPayloadDoc);
+
+    final PeppolSBDHDocument aData = new PeppolSBDHDocument (PeppolIdentifierFactory.INSTANCE);
+    aData.setSenderWithDefaultScheme ("9915:sender");
+    aData.setReceiverWithDefaultScheme ("9915:receiver");
+    aData.setDocumentTypeWithBusdoxDocidQns ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+    aData.setProcessWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+    aData.setDocumentIdentification ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2",
+                                     "2.1",
+                                     "Invoice",
+                                     "instance-id",
+                                     XMLOffsetDateTime.of (OffsetDateTime.of (2022, 1, 1, 10, 0, 0, 0, ZoneOffset.UTC)));
+    aData.setBusinessMessage (aPayloadDoc.getDocumentElement ());
+    final StandardBusinessDocumentHeader aHeader = new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData)
+                                                                                  .getStandardBusinessDocumentHeader ();
+
+    final Phase4PeppolSBDHStreamWriter.PayloadInfo aInfo = Phase4PeppolSBDHStreamWriter.getStreamablePayloadInfo (aPayload);
+    assertNotNull (aInfo);
+    assertEquals ("Invoice", aInfo.getLocalName ());
+
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    Phase4PeppolSBDHStreamWriter.writeStandardBusinessDocument (aHeader, aPayload, aInfo, aBAOS);
+
+    // Read it again
+    final PeppolSBDHDocument aRead = new PeppolSBDHDocumentReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aBAOS.getBufferOrCopy ()));
+    assertEquals (aData.getSenderAsIdentifier (), aRead.getSenderAsIdentifier ());
+    assertEquals (aData.getReceiverAsIdentifier (), aRead.getReceiverAsIdentifier ());
+    assertEquals (aData.getDocumentTypeAsIdentifier (), aRead.getDocumentTypeAsIdentifier ());
+    assertEquals (aData.getProcessAsIdentifier (), aRead.getProcessAsIdentifier ());
+    assertEquals (aData.getInstanceIdentifier (), aRead.getInstanceIdentifier ());
+    assertEquals (aPayloadDoc.getDocumentElement ().getNamespaceURI (), aRead.getBusinessMessage ().getNamespaceURI ());
+    assertEquals (aPayloadDoc.getDocumentElement ().getLocalName (), aRead.getBusinessMessage ().getLocalName ());
+
+    // The payload bytes must be contained unmodified
+    final String sWritten = new String (aBAOS.getBufferOrCopy (), StandardCharsets.UTF_8);
+    final String sPayloadContent = new String (aPayload,
+                                               aInfo.getContentOffset (),
+                                               aPayload.length - aInfo.getContentOffset (),
+                                               StandardCharsets.UTF_8);
+    assertTrue (sWritten.contains (sPayloadContent));
+  }
+}
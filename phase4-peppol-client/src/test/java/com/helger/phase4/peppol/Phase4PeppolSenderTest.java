@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.timing.StopWatch;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.phive.peppol.PeppolValidation3_13_0;
+import com.helger.scope.mock.ScopeTestRule;
+
+/**
+ * Test class for class {@link Phase4PeppolSender}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolSenderTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  /**
+   * An endpoint detail provider that blocks in the lookup until it is
+   * interrupted.
+   */
+  private static final class BlockingEndpointDetailProvider implements IAS4EndpointDetailProvider
+  {
+    private final CountDownLatch m_aStarted = new CountDownLatch (1);
+    private final CountDownLatch m_aInterrupted = new CountDownLatch (1);
+
+    public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                      @Nonnull final IProcessIdentifier aProcID,
+                      @Nonnull final IParticipantIdentifier aReceiverID) throws Phase4Exception
+    {
+      m_aStarted.countDown ();
+      try
+      {
+        Thread.sleep (60_000);
+      }
+      catch (final InterruptedException ex)
+      {
+        m_aInterrupted.countDown ();
+        Thread.currentThread ().interrupt ();
+      }
+      throw new Phase4Exception ("Lookup was not finished");
+    }
+
+    public X509Certificate getReceiverAPCertificate ()
+    {
+      throw new UnsupportedOperationException ();
+    }
+
+    public String getReceiverAPEndpointURL ()
+    {
+      throw new UnsupportedOperationException ();
+    }
+  }
+
+  @Test
+  public void testConcurrentPreparationFailsFast () throws Exception
+  {
+    final BlockingEndpointDetailProvider aEDP = new BlockingEndpointDetailProvider ();
+    final StopWatch aSW = StopWatch.createdStarted ();
+    try
+    {
+      // Payload is not a valid invoice
+      Phase4PeppolSender.builder ()
+                        .documentTypeID (Phase4PeppolSender.IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1"))
+                        .processID (Phase4PeppolSender.IF.createProcessIdentifierWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0"))
+                        .senderParticipantID (Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:sender"))
+                        .receiverParticipantID (Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:receiver"))
+                        .senderPartyID ("POP000306")
+                        .payload ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"/>".getBytes (StandardCharsets.UTF_8))
+                        .endpointDetailProvider (aEDP)
+                        .validationConfiguration (PeppolValidation3_13_0.VID_OPENPEPPOL_INVOICE_V3)
+                        .concurrentPreparation (true)
+                        .sendMessage ();
+      fail ();
+    }
+    catch (final Phase4PeppolValidationException ex)
+    {
+      // expected
+    }
+    // The lookup must have been cancelled - on a busy executor it may not even
+    // have been started
+    if (aEDP.m_aStarted.getCount () == 0)
+      assertTrue (aEDP.m_aInterrupted.await (10, TimeUnit.SECONDS));
+    assertTrue (aSW.stopAndGetMillis () < 60_000);
+  }
+}
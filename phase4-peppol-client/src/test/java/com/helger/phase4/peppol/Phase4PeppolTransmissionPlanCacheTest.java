@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.w3c.dom.Document;
+
+import com.helger.commons.collection.impl.CommonsCopyOnWriteArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.peppol.utils.EPeppolCertificateCheckResult;
+import com.helger.peppol.utils.PeppolKeyStoreHelper;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderConstant;
+import com.helger.phase4.dynamicdiscovery.AS4SMPEndpointCache;
+import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.scope.mock.ScopeTestRule;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link Phase4PeppolTransmissionPlanCache}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolTransmissionPlanCacheTest
+{
+  private static final IParticipantIdentifier SENDER = Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:sender");
+  private static final IParticipantIdentifier RECEIVER = Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:receiver");
+  private static final IDocumentTypeIdentifier DOCTYPE = Phase4PeppolSender.IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+  private static final IProcessIdentifier PROCESS = Phase4PeppolSender.IF.createProcessIdentifierWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  @Nonnull
+  private static Phase4PeppolTransmissionPlan _createPlan ()
+  {
+    return new Phase4PeppolTransmissionPlan (SENDER,
+                                             RECEIVER,
+                                             DOCTYPE,
+                                             PROCESS,
+                                             PeppolKeyStoreHelper.Config2018.CERTIFICATE_PILOT_AP,
+                                             "http://localhost:1/as4",
+                                             OffsetDateTime.now (ZoneOffset.UTC),
+                                             EPeppolCertificateCheckResult.VALID);
+  }
+
+  @Test
+  public void testFailuresAreNotCached () throws Exception
+  {
+    final AtomicInteger aFactoryCount = new AtomicInteger (0);
+    final Phase4PeppolTransmissionPlanCache aCache = new Phase4PeppolTransmissionPlanCache (x -> {
+      aFactoryCount.incrementAndGet ();
+      // The CA certificate is no valid AP certificate
+      return new AS4EndpointDetailProviderConstant (PeppolKeyStoreHelper.Config2018.CERTIFICATE_PILOT_AP, "http://localhost:1/as4");
+    });
+
+    for (int i = 0; i < 3; ++i)
+      try
+      {
+        aCache.getPlan (SENDER, RECEIVER, DOCTYPE, PROCESS);
+        fail ();
+      }
+      catch (final Phase4PeppolException ex)
+      {
+        // expected
+      }
+    assertEquals (3, aFactoryCount.get ());
+    assertEquals (0, aCache.size ());
+  }
+
+  @Test
+  public void testPlanInBuilder ()
+  {
+    final X509Certificate aCert = PeppolKeyStoreHelper.Config2018.CERTIFICATE_PILOT_AP;
+    final Phase4PeppolTransmissionPlan aPlan = new Phase4PeppolTransmissionPlan (SENDER,
+                                                                                 RECEIVER,
+                                                                                 DOCTYPE,
+                                                                                 PROCESS,
+                                                                                 aCert,
+                                                                                 "http://localhost:1/as4",
+                                                                                 OffsetDateTime.now (ZoneOffset.UTC),
+                                                                                 EPeppolCertificateCheckResult.VALID);
+    assertTrue (aPlan.isReceiverAPCertificateValidAt (OffsetDateTime.ofInstant (aCert.getNotBefore ().toInstant (), ZoneOffset.UTC)
+                                                                    .plusDays (1)));
+    assertFalse (aPlan.isReceiverAPCertificateValidAt (OffsetDateTime.ofInstant (aCert.getNotAfter ().toInstant (), ZoneOffset.UTC)
+                                                                     .plusDays (1)));
+
+    final Phase4PeppolSender.Builder aBuilder = Phase4PeppolSender.builder ().transmissionPlan (aPlan);
+    assertSame (SENDER, aBuilder.m_aSenderID);
+    assertSame (RECEIVER, aBuilder.m_aReceiverID);
+    assertSame (DOCTYPE, aBuilder.m_aDocTypeID);
+    assertSame (PROCESS, aBuilder.m_aProcessID);
+    // No endpoint detail provider needed
+    assertTrue (aBuilder.isEndpointDetailProviderUsable ());
+  }
+
+  @Test
+  public void testCacheHit () throws Exception
+  {
+    final AtomicInteger aCreateCount = new AtomicInteger (0);
+    final Phase4PeppolTransmissionPlanCache aCache = new Phase4PeppolTransmissionPlanCache (x -> {
+      throw new IllegalStateException ("No endpoint lookup expected");
+    })
+    {
+      @Override
+      protected Phase4PeppolTransmissionPlan createPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                                         @Nonnull final IParticipantIdentifier aReceiverID,
+                                                         @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                         @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+      {
+        aCreateCount.incrementAndGet ();
+        return _createPlan ();
+      }
+    };
+
+    final Phase4PeppolTransmissionPlan aPlan = aCache.getPlan (SENDER, RECEIVER, DOCTYPE, PROCESS);
+    assertSame (aPlan, aCache.getPlan (SENDER, RECEIVER, DOCTYPE, PROCESS));
+    assertEquals (1, aCreateCount.get ());
+    assertEquals (1, aCache.getCreationCount ());
+    assertEquals (1, aCache.getHitCount ());
+    assertEquals (1, aCache.size ());
+
+    aCache.invalidate (SENDER, RECEIVER, DOCTYPE, PROCESS);
+    aCache.getPlan (SENDER, RECEIVER, DOCTYPE, PROCESS);
+    assertEquals (2, aCreateCount.get ());
+  }
+
+  @Test
+  public void testBackgroundRefreshBypassesEndpointCache () throws Exception
+  {
+    final ICommonsList <Boolean> aRefreshing = new CommonsCopyOnWriteArrayList <> ();
+    final Phase4PeppolTransmissionPlanCache aCache = new Phase4PeppolTransmissionPlanCache (x -> {
+      throw new IllegalStateException ("No endpoint lookup expected");
+    }, Duration.ofSeconds (10), Duration.ofMillis (9_900), 10)
+    {
+      @Override
+      protected Phase4PeppolTransmissionPlan createPlan (@Nonnull final IParticipantIdentifier aSenderID,
+                                                         @Nonnull final IParticipantIdentifier aReceiverID,
+                                                         @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                         @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+      {
+        aRefreshing.add (Boolean.valueOf (AS4SMPEndpointCache.isRefreshing ()));
+        return _createPlan ();
+      }
+    };
+
+    aCache.getPlan (SENDER, RECEIVER, DOCTYPE, PROCESS);
+    assertEquals (1, aRefreshing.size ());
+    assertFalse (aRefreshing.getFirst ().booleanValue ());
+
+    // Now within the refresh ahead period - the hit triggers the refresh
+    ThreadHelper.sleep (200);
+    aCache.getPlan (SENDER, RECEIVER, DOCTYPE, PROCESS);
+    for (int i = 0; i < 100 && aRefreshing.size () < 2; ++i)
+      ThreadHelper.sleep (50);
+    assertEquals (2, aRefreshing.size ());
+    assertTrue (aRefreshing.getLast ().booleanValue ());
+  }
+
+  @Test
+  public void testSendWithPlanSkipsEndpointLookup () throws Exception
+  {
+    final AtomicInteger aInitCount = new AtomicInteger (0);
+    final IAS4EndpointDetailProvider aEDP = new AS4EndpointDetailProviderConstant (PeppolKeyStoreHelper.Config2018.CERTIFICATE_PILOT_AP,
+                                                                                  "http://localhost:1/as4")
+    {
+      @Override
+      public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                        @Nonnull final IProcessIdentifier aProcID,
+                        @Nonnull final IParticipantIdentifier aReceiverID)
+      {
+        aInitCount.incrementAndGet ();
+      }
+    };
+    final Document aDoc = DOMReader.readXMLDOM ("<Invoice xmlns='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2' />");
+    assertNotNull (aDoc);
+
+    final Phase4PeppolSender.Builder aBuilder = Phase4PeppolSender.builder ()
+                                                                  .endpointDetailProvider (aEDP)
+                                                                  .transmissionPlan (_createPlan ())
+                                                                  .payload (aDoc.getDocumentElement ());
+    assertTrue (aBuilder.finishFields ().isSuccess ());
+    assertEquals (0, aInitCount.get ());
+
+    // Builder fields differing from the plan are rejected
+    aBuilder.receiverParticipantID (Phase4PeppolSender.IF.createParticipantIdentifierWithDefaultScheme ("9915:other"));
+    try
+    {
+      aBuilder.finishFields ();
+      fail ();
+    }
+    catch (final Phase4PeppolException ex)
+    {
+      // expected
+    }
+    assertEquals (0, aInitCount.get ());
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.Duration;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.mutable.MutableInt;
+import com.helger.phive.api.executorset.VESID;
+import com.helger.phive.api.result.ValidationResultList;
+import com.helger.phive.peppol.PeppolValidation3_13_0;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link Phase4PeppolValidation}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolValidationTest
+{
+  @Test
+  public void testPrewarmAndResultCache () throws Exception
+  {
+    final VESID aVESID = PeppolValidation3_13_0.VID_OPENPEPPOL_INVOICE_V3;
+    Phase4PeppolValidation.clearStatistics ();
+
+    assertEquals (0, Phase4PeppolValidation.prewarm (new VESID ("unknown", "unknown", "1.0")));
+    assertEquals (1, Phase4PeppolValidation.prewarm (aVESID));
+    Phase4PeppolValidationStatistics aStats = Phase4PeppolValidation.getStatistics (aVESID);
+    assertNotNull (aStats);
+    assertTrue (aStats.isPrewarmed ());
+    assertEquals (0, aStats.getValidationCount ());
+
+    final Document aDoc = DOMReader.readXMLDOM (new File ("src/test/resources/examples/base-example.xml"));
+    assertNotNull (aDoc);
+
+    final MutableInt aSuccessCount = new MutableInt (0);
+    final IPhase4PeppolValidationResultHandler aHandler = new Phase4PeppolValidatonResultHandler ()
+    {
+      @Override
+      public void onValidationSuccess (final ValidationResultList aValidationResult)
+      {
+        aSuccessCount.inc ();
+      }
+    };
+
+    assertFalse (Phase4PeppolValidation.isResultCacheEnabled ());
+    Phase4PeppolValidation.enableResultCache (Duration.ofMinutes (1), 10);
+    try
+    {
+      assertTrue (Phase4PeppolValidation.isResultCacheEnabled ());
+      Phase4PeppolValidation.validateOutgoingBusinessDocument (aDoc.getDocumentElement (), aVESID, aHandler);
+      Phase4PeppolValidation.validateOutgoingBusinessDocument (aDoc.getDocumentElement (), aVESID, aHandler);
+      assertEquals (2, aSuccessCount.intValue ());
+
+      aStats = Phase4PeppolValidation.getStatistics (aVESID);
+      assertEquals (1, aStats.getValidationCount ());
+      assertEquals (1, aStats.getCachedCount ());
+      assertEquals (0, aStats.getCoalescedCount ());
+      assertTrue (aStats.getFirstValidationMillis () >= 0);
+      assertEquals (aStats.getMaxMillis (), aStats.getP99Millis ());
+    }
+    finally
+    {
+      Phase4PeppolValidation.disableResultCache ();
+    }
+
+    // Validated again without the cache
+    Phase4PeppolValidation.validateOutgoingBusinessDocument (aDoc.getDocumentElement (), aVESID, aHandler);
+    assertEquals (2, Phase4PeppolValidation.getStatistics (aVESID).getValidationCount ());
+  }
+
+  @Test
+  public void testPercentiles ()
+  {
+    final Phase4PeppolValidationStatistics aStats = new Phase4PeppolValidationStatistics (PeppolValidation3_13_0.VID_OPENPEPPOL_INVOICE_V3);
+    assertEquals (0, aStats.getP50Millis ());
+    assertEquals (0, aStats.getP99Millis ());
+
+    for (int i = 1; i <= 100; ++i)
+      aStats.onValidation (i);
+    assertEquals (50, aStats.getP50Millis ());
+    assertEquals (95, aStats.getP95Millis ());
+    assertEquals (99, aStats.getP99Millis ());
+    assertEquals (100, aStats.getPercentileMillis (100));
+    assertEquals (1, aStats.getPercentileMillis (0.1));
+
+    // Only the last samples are considered
+    for (int i = 0; i < Phase4PeppolValidationStatistics.MAX_SAMPLES; ++i)
+      aStats.onValidation (1_000);
+    assertEquals (1_000, aStats.getP50Millis ());
+    assertEquals (Phase4PeppolValidationStatistics.MAX_SAMPLES + 100, aStats.getValidationCount ());
+  }
+}
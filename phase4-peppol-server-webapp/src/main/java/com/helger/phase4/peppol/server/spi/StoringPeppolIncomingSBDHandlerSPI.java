@@ -22,40 +22,42 @@ import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
 
 import com.helger.commons.annotation.IsSPIImplementation;
 import com.helger.commons.http.HttpHeaderMap;
-import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.peppol.sbdh.PeppolSBDHDocument;
 import com.helger.phase4.ebms3header.Ebms3UserMessage;
 import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
 import com.helger.phase4.peppol.server.storage.StorageHelper;
-import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDHandlerSPI;
+import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDStreamHandlerSPI;
 import com.helger.phase4.servlet.IAS4MessageState;
 
 /**
- * Logging implementation of {@link IPhase4PeppolIncomingSBDHandlerSPI}.
+ * Storing implementation of {@link IPhase4PeppolIncomingSBDStreamHandlerSPI}.
  *
  * @author Philip Helger
  */
 @IsSPIImplementation
-public class StoringPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingSBDHandlerSPI
+public class StoringPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingSBDStreamHandlerSPI
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (StoringPeppolIncomingSBDHandlerSPI.class);
 
-  public void handleIncomingSBD (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
-                                 @Nonnull final HttpHeaderMap aHeaders,
-                                 @Nonnull final Ebms3UserMessage aUserMessage,
-                                 @Nonnull final byte [] aSBDBytes,
-                                 @Nonnull final StandardBusinessDocument aSBD,
-                                 @Nonnull final PeppolSBDHDocument aPeppolSBD,
-                                 @Nonnull final IAS4MessageState aState) throws Exception
+  public void handleIncomingSBDStream (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                       @Nonnull final HttpHeaderMap aHeaders,
+                                       @Nonnull final Ebms3UserMessage aUserMessage,
+                                       @Nonnull final IHasInputStream aSBDStreamProvider,
+                                       @Nonnull final PeppolSBDHDocument aPeppolSBD,
+                                       @Nonnull final IAS4MessageState aState) throws Exception
   {
     final File aFile = StorageHelper.getStorageFile (aMessageMetadata, ".sbd");
-    if (SimpleFileIO.writeFile (aFile, aSBDBytes).isFailure ())
-      throw new IllegalStateException ("Failed to write SBD to '" + aFile.getAbsolutePath () + "' (" + aSBDBytes.length + " bytes)");
+    if (StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aSBDStreamProvider.getInputStream (),
+                                                              FileHelper.getBufferedOutputStream (aFile))
+                    .isFailure ())
+      throw new IllegalStateException ("Failed to write SBD to '" + aFile.getAbsolutePath () + "'");
 
-    LOGGER.info ("Wrote SBD to '" + aFile.getAbsolutePath () + "' (" + aSBDBytes.length + " bytes)");
+    LOGGER.info ("Wrote SBD to '" + aFile.getAbsolutePath () + "' (" + aFile.length () + " bytes)");
   }
 }
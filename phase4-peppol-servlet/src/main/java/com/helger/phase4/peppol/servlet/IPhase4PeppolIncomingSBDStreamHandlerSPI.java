@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import javax.annotation.Nonnull;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.IAS4MessageState;
+
+/**
+ * A streaming variant of {@link IPhase4PeppolIncomingSBDHandlerSPI}. Instead
+ * of the raw SBD bytes, implementations of this interface receive input
+ * stream providers that can be read more than once. If all registered handlers
+ * implement this interface, the incoming payload is not copied into memory.
+ * <br>
+ * Implementations must be registered as SPI implementations of
+ * {@link IPhase4PeppolIncomingSBDHandlerSPI}.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+public interface IPhase4PeppolIncomingSBDStreamHandlerSPI extends IPhase4PeppolIncomingSBDHandlerSPI
+{
+  /**
+   * Handle the provided incoming StandardBusinessDocument
+   *
+   * @param aMessageMetadata
+   *        Message metadata. Includes data when and from whom it was received.
+   *        Never <code>null</code>.
+   * @param aHeaders
+   *        The (HTTP) headers of the incoming request. Never <code>null</code>.
+   * @param aUserMessage
+   *        The received EBMS user message. Never <code>null</code>.
+   * @param aSBDStreamProvider
+   *        The provider for the (uncompressed) SBD. It can be read more than
+   *        once and is only valid during the invocation of this method. Never
+   *        <code>null</code>.
+   * @param aPeppolSBD
+   *        The pre-parsed Peppol Standard Business Document. Never
+   *        <code>null</code>.
+   * @param aState
+   *        The message state. Can e.g. be used to retrieve information about
+   *        the certificate found in the message. Never <code>null</code>.
+   * @throws Exception
+   *         In case it cannot be processed.
+   */
+  void handleIncomingSBDStream (@Nonnull IAS4IncomingMessageMetadata aMessageMetadata,
+                                @Nonnull HttpHeaderMap aHeaders,
+                                @Nonnull Ebms3UserMessage aUserMessage,
+                                @Nonnull IHasInputStream aSBDStreamProvider,
+                                @Nonnull PeppolSBDHDocument aPeppolSBD,
+                                @Nonnull IAS4MessageState aState) throws Exception;
+
+  /**
+   * Handle the provided incoming StandardBusinessDocument. Override this
+   * method to access the byte range of the business payload.
+   *
+   * @param aMessageMetadata
+   *        Message metadata. Includes data when and from whom it was received.
+   *        Never <code>null</code>.
+   * @param aHeaders
+   *        The (HTTP) headers of the incoming request. Never <code>null</code>.
+   * @param aUserMessage
+   *        The received EBMS user message. Never <code>null</code>.
+   * @param aSBDData
+   *        The SBD data. Contains the provider for the (uncompressed) SBD, the
+   *        pre-parsed Peppol Standard Business Document and if available the
+   *        byte range of the business payload. The streams can be read more
+   *        than once and are only valid during the invocation of this method.
+   *        Never <code>null</code>.
+   * @param aState
+   *        The message state. Can e.g. be used to retrieve information about
+   *        the certificate found in the message. Never <code>null</code>.
+   * @throws Exception
+   *         In case it cannot be processed.
+   */
+  default void handleIncomingSBDStream (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                        @Nonnull final HttpHeaderMap aHeaders,
+                                        @Nonnull final Ebms3UserMessage aUserMessage,
+                                        @Nonnull final Phase4PeppolSBDStreamData aSBDData,
+                                        @Nonnull final IAS4MessageState aState) throws Exception
+  {
+    handleIncomingSBDStream (aMessageMetadata,
+                             aHeaders,
+                             aUserMessage,
+                             aSBDData.getSBDStreamProvider (),
+                             aSBDData.getPeppolSBD (),
+                             aState);
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * This default implementation delegates to
+   * {@link #handleIncomingSBDStream(IAS4IncomingMessageMetadata, HttpHeaderMap, Ebms3UserMessage, Phase4PeppolSBDStreamData, IAS4MessageState)}.
+   */
+  @Override
+  default void handleIncomingSBD (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                  @Nonnull final HttpHeaderMap aHeaders,
+                                  @Nonnull final Ebms3UserMessage aUserMessage,
+                                  @Nonnull final byte [] aSBDBytes,
+                                  @Nonnull final StandardBusinessDocument aSBD,
+                                  @Nonnull final PeppolSBDHDocument aPeppolSBD,
+                                  @Nonnull final IAS4MessageState aState) throws Exception
+  {
+    handleIncomingSBDStream (aMessageMetadata,
+                             aHeaders,
+                             aUserMessage,
+                             new Phase4PeppolSBDStreamData (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSBDBytes)),
+                                                            aPeppolSBD,
+                                                            -1,
+                                                            -1),
+                             aState);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+
+/**
+ * The key for caching SMP endpoint lookups. The SMP client is compared by
+ * identity, so that different SMP clients (e.g. for different SMLs) never share
+ * results.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public final class Phase4PeppolEndpointCacheKey
+{
+  private final ISMPServiceMetadataProvider m_aSMPClient;
+  private final String m_sReceiverID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+  private final String m_sTransportProfileID;
+
+  public Phase4PeppolEndpointCacheKey (@Nonnull final ISMPServiceMetadataProvider aSMPClient,
+                                       @Nonnull final IParticipantIdentifier aReceiverID,
+                                       @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                       @Nonnull final IProcessIdentifier aProcessID,
+                                       @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    ValueEnforcer.notNull (aSMPClient, "SMPClient");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aTransportProfile, "TransportProfile");
+    m_aSMPClient = aSMPClient;
+    m_sReceiverID = aReceiverID.getURIEncoded ();
+    m_sDocTypeID = aDocTypeID.getURIEncoded ();
+    m_sProcessID = aProcessID.getURIEncoded ();
+    m_sTransportProfileID = aTransportProfile.getID ();
+  }
+
+  /**
+   * @return The SMP client used for the lookup. Never <code>null</code>.
+   */
+  @Nonnull
+  public ISMPServiceMetadataProvider getSMPClient ()
+  {
+    return m_aSMPClient;
+  }
+
+  /**
+   * @return The URI encoded receiver ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getReceiverID ()
+  {
+    return m_sReceiverID;
+  }
+
+  /**
+   * @return The URI encoded document type ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getDocTypeID ()
+  {
+    return m_sDocTypeID;
+  }
+
+  /**
+   * @return The URI encoded process ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getProcessID ()
+  {
+    return m_sProcessID;
+  }
+
+  /**
+   * @return The transport profile ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getTransportProfileID ()
+  {
+    return m_sTransportProfileID;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final Phase4PeppolEndpointCacheKey rhs = (Phase4PeppolEndpointCacheKey) o;
+    return m_aSMPClient == rhs.m_aSMPClient &&
+           m_sReceiverID.equals (rhs.m_sReceiverID) &&
+           m_sDocTypeID.equals (rhs.m_sDocTypeID) &&
+           m_sProcessID.equals (rhs.m_sProcessID) &&
+           m_sTransportProfileID.equals (rhs.m_sTransportProfileID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (System.identityHashCode (m_aSMPClient))
+                                       .append (m_sReceiverID)
+                                       .append (m_sDocTypeID)
+                                       .append (m_sProcessID)
+                                       .append (m_sTransportProfileID)
+                                       .getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("SMPClient", m_aSMPClient)
+                                       .append ("ReceiverID", m_sReceiverID)
+                                       .append ("DocTypeID", m_sDocTypeID)
+                                       .append ("ProcessID", m_sProcessID)
+                                       .append ("TransportProfileID", m_sTransportProfileID)
+                                       .getToString ();
+  }
+}
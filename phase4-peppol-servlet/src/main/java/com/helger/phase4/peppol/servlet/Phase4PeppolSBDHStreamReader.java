@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.WrappedInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.jaxb.JAXBContextCache;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.peppol.sbdh.read.EPeppolSBDHDocumentReadError;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReadException;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.peppolid.factory.IIdentifierFactory;
+import com.helger.sbdh.CSBDH;
+import com.helger.sbdh.builder.ESBDHDocumentType;
+import com.helger.xml.XMLFactory;
+
+/**
+ * A streaming reader for Peppol Standard Business Documents. In contrast to
+ * {@link PeppolSBDHDocumentReader} only the
+ * <code>StandardBusinessDocumentHeader</code> is unmarshalled, whereas the
+ * business payload is only streamed through. Its byte range within the SBD is
+ * recorded, so that it can later be accessed without copying. The business
+ * message element of the resulting {@link PeppolSBDHDocument} only contains the
+ * element name, namespace URI and attributes - these are all that is needed for
+ * the Peppol checks.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@NotThreadSafe
+public class Phase4PeppolSBDHStreamReader
+{
+  /**
+   * Finds the byte range of the second child element of the root element in
+   * the raw bytes of an XML document. Only works for ASCII compatible
+   * encodings. The document must have been checked to be well-formed
+   * separately.
+   */
+  private static final class PayloadRangeScanner
+  {
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1;
+    private static final int START_TAG = 2;
+    private static final int END_TAG = 3;
+    private static final int PROCESSING_INSTRUCTION = 4;
+    private static final int DECLARATION_START = 5;
+    private static final int DECLARATION = 6;
+    private static final int COMMENT = 7;
+    private static final int CDATA = 8;
+    private static final byte [] CDATA_START = "[CDATA[".getBytes (StandardCharsets.US_ASCII);
+
+    private int m_nState = TEXT;
+    private long m_nPos = 0;
+    private long m_nMarkupStart;
+    private final byte [] m_aDeclStart = new byte [CDATA_START.length];
+    private int m_nDeclStartLen;
+    private int m_nQuote;
+    private int m_nPrev1;
+    private int m_nPrev2;
+    private int m_nDepth;
+    private int m_nRootChildCount;
+    private long m_nPayloadStart = -1;
+    private long m_nPayloadEnd = -1;
+
+    private boolean _isCDATAStartPrefix ()
+    {
+      for (int i = 0; i < m_nDeclStartLen; ++i)
+        if (m_aDeclStart[i] != CDATA_START[i])
+          return false;
+      return true;
+    }
+
+    private void _onStartTag (final boolean bEmpty)
+    {
+      if (m_nDepth == 1)
+      {
+        // Child of the root element
+        m_nRootChildCount++;
+        if (m_nRootChildCount == 2)
+        {
+          m_nPayloadStart = m_nMarkupStart;
+          if (bEmpty)
+            m_nPayloadEnd = m_nPos + 1;
+        }
+      }
+      if (!bEmpty)
+        m_nDepth++;
+    }
+
+    private void _onEndTag ()
+    {
+      m_nDepth--;
+      if (m_nDepth == 1 && m_nRootChildCount == 2 && m_nPayloadEnd < 0)
+        m_nPayloadEnd = m_nPos + 1;
+    }
+
+    public void onByte (final int b)
+    {
+      switch (m_nState)
+      {
+        case TEXT:
+          if (b == '<')
+          {
+            m_nState = MARKUP;
+            m_nMarkupStart = m_nPos;
+          }
+          break;
+        case MARKUP:
+          if (b == '?')
+            m_nState = PROCESSING_INSTRUCTION;
+          else
+            if (b == '!')
+            {
+              m_nState = DECLARATION_START;
+              m_nDeclStartLen = 0;
+            }
+            else
+              if (b == '/')
+                m_nState = END_TAG;
+              else
+              {
+                m_nState = START_TAG;
+                m_nQuote = 0;
+              }
+          break;
+        case START_TAG:
+          if (m_nQuote != 0)
+          {
+            if (b == m_nQuote)
+              m_nQuote = 0;
+          }
+          else
+            if (b == '"' || b == '\'')
+              m_nQuote = b;
+            else
+              if (b == '>')
+              {
+                _onStartTag (m_nPrev1 == '/');
+                m_nState = TEXT;
+              }
+          break;
+        case END_TAG:
+          if (b == '>')
+          {
+            _onEndTag ();
+            m_nState = TEXT;
+          }
+          break;
+        case PROCESSING_INSTRUCTION:
+          if (b == '>' && m_nPrev1 == '?')
+            m_nState = TEXT;
+          break;
+        case DECLARATION_START:
+          m_aDeclStart[m_nDeclStartLen++] = (byte) b;
+          if (m_nDeclStartLen == 2 && m_aDeclStart[0] == '-' && b == '-')
+            m_nState = COMMENT;
+          else
+            if (_isCDATAStartPrefix ())
+            {
+              if (m_nDeclStartLen == CDATA_START.length)
+                m_nState = CDATA;
+            }
+            else
+              if (m_nDeclStartLen > 1 || b != '-')
+                m_nState = b == '>' ? TEXT : DECLARATION;
+          break;
+        case DECLARATION:
+          if (b == '>')
+            m_nState = TEXT;
+          break;
+        case COMMENT:
+          if (b == '>' && m_nPrev1 == '-' && m_nPrev2 == '-')
+            m_nState = TEXT;
+          break;
+        case CDATA:
+          if (b == '>' && m_nPrev1 == ']' && m_nPrev2 == ']')
+            m_nState = TEXT;
+          break;
+        default:
+          throw new IllegalStateException ("Unexpected state " + m_nState);
+      }
+      m_nPrev2 = m_nPrev1;
+      m_nPrev1 = b;
+      m_nPos++;
+    }
+  }
+
+  /**
+   * An input stream that passes all bytes read to a {@link PayloadRangeScanner}.
+   */
+  private static final class ScanningInputStream extends WrappedInputStream
+  {
+    private final PayloadRangeScanner m_aScanner;
+
+    public ScanningInputStream (@Nonnull @WillCloseWhenClosed final InputStream aIS, @Nonnull final PayloadRangeScanner aScanner)
+    {
+      super (aIS);
+      m_aScanner = aScanner;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      final int ret = super.read ();
+      if (ret >= 0)
+        m_aScanner.onByte (ret);
+      return ret;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      final int ret = super.read (aBuf, nOfs, nLen);
+      for (int i = 0; i < ret; ++i)
+        m_aScanner.onByte (aBuf[nOfs + i] & 0xff);
+      return ret;
+    }
+
+    @Override
+    public long skip (final long nBytes) throws IOException
+    {
+      // Make sure all bytes pass the scanner
+      final byte [] aBuf = new byte [(int) Math.min (nBytes, 4096)];
+      final int nRead = read (aBuf, 0, aBuf.length);
+      return Math.max (nRead, 0);
+    }
+
+    @Override
+    public boolean markSupported ()
+    {
+      return false;
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolSBDHStreamReader.class);
+  private static final String ELEMENT_SBD = "StandardBusinessDocument";
+  private static final String ELEMENT_SBDH = "StandardBusinessDocumentHeader";
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newFactory ();
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private final IIdentifierFactory m_aIdentifierFactory;
+  private boolean m_bPerformValueChecks = PeppolSBDHDocumentReader.DEFAULT_PERFORM_VALUE_CHECKS;
+  private ValidationEventHandler m_aValidationEventHandler;
+
+  public Phase4PeppolSBDHStreamReader (@Nonnull final IIdentifierFactory aIdentifierFactory)
+  {
+    ValueEnforcer.notNull (aIdentifierFactory, "IdentifierFactory");
+    m_aIdentifierFactory = aIdentifierFactory;
+  }
+
+  /**
+   * @return The identifier factory used to create the Peppol identifiers.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final IIdentifierFactory getIdentifierFactory ()
+  {
+    return m_aIdentifierFactory;
+  }
+
+  /**
+   * @return <code>true</code> if the values of the SBDH are checked against
+   *         the Peppol rules, <code>false</code> if not.
+   */
+  public final boolean isPerformValueChecks ()
+  {
+    return m_bPerformValueChecks;
+  }
+
+  /**
+   * Enable or disable the Peppol value checks.
+   *
+   * @param bPerformValueChecks
+   *        <code>true</code> to enable the checks, <code>false</code> to
+   *        disable them.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolSBDHStreamReader setPerformValueChecks (final boolean bPerformValueChecks)
+  {
+    m_bPerformValueChecks = bPerformValueChecks;
+    return this;
+  }
+
+  /**
+   * @return The validation event handler used when unmarshalling the SBDH. May
+   *         be <code>null</code>.
+   */
+  @Nullable
+  public final ValidationEventHandler getValidationEventHandler ()
+  {
+    return m_aValidationEventHandler;
+  }
+
+  /**
+   * Set the validation event handler to be used when unmarshalling the SBDH.
+   *
+   * @param aValidationEventHandler
+   *        The handler to use. May be <code>null</code> to use the JAXB
+   *        default.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolSBDHStreamReader setValidationEventHandler (@Nullable final ValidationEventHandler aValidationEventHandler)
+  {
+    m_aValidationEventHandler = aValidationEventHandler;
+    return this;
+  }
+
+  private static boolean _isASCIICompatible (@Nullable final String sEncoding)
+  {
+    if (sEncoding == null)
+    {
+      // Default is UTF-8
+      return true;
+    }
+    try
+    {
+      final String sMarkupChars = "<>?!-[]/\"'";
+      return Arrays.equals (sMarkupChars.getBytes (Charset.forName (sEncoding)),
+                            sMarkupChars.getBytes (StandardCharsets.US_ASCII));
+    }
+    catch (final IllegalArgumentException ex)
+    {
+      return false;
+    }
+  }
+
+  private static void _skipToTag (@Nonnull final XMLStreamReader aReader) throws XMLStreamException
+  {
+    while (!aReader.isStartElement () && !aReader.isEndElement ())
+      aReader.next ();
+  }
+
+  private static boolean _isSBDHElement (@Nonnull final XMLStreamReader aReader, @Nonnull final String sLocalName)
+  {
+    return aReader.isStartElement () &&
+           CSBDH.SBDH_NS.equals (aReader.getNamespaceURI ()) &&
+           sLocalName.equals (aReader.getLocalName ());
+  }
+
+  @Nonnull
+  private static String _getQName (@Nullable final String sPrefix, @Nonnull final String sLocalName)
+  {
+    return StringHelper.hasText (sPrefix) ? sPrefix + ":" + sLocalName : sLocalName;
+  }
+
+  @Nonnull
+  private static Element _createBusinessMessageElement (@Nonnull final XMLStreamReader aReader)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element ret = aDoc.createElementNS (aReader.getNamespaceURI (),
+                                              _getQName (aReader.getPrefix (), aReader.getLocalName ()));
+    for (int i = 0; i < aReader.getAttributeCount (); ++i)
+      ret.setAttributeNS (StringHelper.getNotEmpty (aReader.getAttributeNamespace (i), null),
+                          _getQName (aReader.getAttributePrefix (i), aReader.getAttributeLocalName (i)),
+                          aReader.getAttributeValue (i));
+    aDoc.appendChild (ret);
+    return ret;
+  }
+
+  @Nonnull
+  private StandardBusinessDocumentHeader _readHeader (@Nonnull final XMLStreamReader aReader) throws JAXBException
+  {
+    final Unmarshaller aUnmarshaller = JAXBContextCache.getInstance ()
+                                                       .getFromCache (StandardBusinessDocumentHeader.class)
+                                                       .createUnmarshaller ();
+    aUnmarshaller.setSchema (ESBDHDocumentType.SBDH.getSchema ());
+    if (m_aValidationEventHandler != null)
+      aUnmarshaller.setEventHandler (m_aValidationEventHandler);
+    return aUnmarshaller.unmarshal (aReader, StandardBusinessDocumentHeader.class).getValue ();
+  }
+
+  /**
+   * Read the provided SBD.
+   *
+   * @param aSBDStreamProvider
+   *        The provider of the SBD. Must be readable more than once. May not be
+   *        <code>null</code>.
+   * @return The extracted data and never <code>null</code>. The payload range
+   *         is only present if the document uses an ASCII compatible encoding
+   *         (like UTF-8).
+   * @throws PeppolSBDHDocumentReadException
+   *         If the SBD cannot be read or violates the Peppol rules.
+   */
+  @Nonnull
+  public Phase4PeppolSBDStreamData extractData (@Nonnull final IHasInputStream aSBDStreamProvider) throws PeppolSBDHDocumentReadException
+  {
+    ValueEnforcer.notNull (aSBDStreamProvider, "SBDStreamProvider");
+    ValueEnforcer.isTrue (aSBDStreamProvider.isReadMultiple (), "SBDStreamProvider must be readable more than once");
+
+    final PayloadRangeScanner aScanner = new PayloadRangeScanner ();
+    final StandardBusinessDocumentHeader aHeader;
+    final Element aBusinessMessage;
+    final String sEncoding;
+    try (final InputStream aIS = new ScanningInputStream (aSBDStreamProvider.getBufferedInputStream (), aScanner))
+    {
+      final XMLStreamReader aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      try
+      {
+        // Root element
+        _skipToTag (aReader);
+        if (!_isSBDHElement (aReader, ELEMENT_SBD))
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+
+        // Header
+        aReader.nextTag ();
+        if (!_isSBDHElement (aReader, ELEMENT_SBDH))
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.MISSING_SBDH);
+        aHeader = _readHeader (aReader);
+
+        // Business message - only the start element is materialized
+        _skipToTag (aReader);
+        if (!aReader.isStartElement ())
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.INVALID_BUSINESS_MESSAGE);
+        aBusinessMessage = _createBusinessMessageElement (aReader);
+        int nDepth = 1;
+        while (nDepth > 0)
+        {
+          final int nEventType = aReader.next ();
+          if (nEventType == XMLStreamReader.START_ELEMENT)
+            nDepth++;
+          else
+            if (nEventType == XMLStreamReader.END_ELEMENT)
+              nDepth--;
+        }
+
+        // Only the closing root element may follow
+        if (aReader.nextTag () != XMLStreamReader.END_ELEMENT)
+          throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+        while (aReader.hasNext ())
+          aReader.next ();
+
+        sEncoding = aReader.getEncoding ();
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final IOException | XMLStreamException | JAXBException ex)
+    {
+      LOGGER.warn ("Failed to read the StandardBusinessDocument: " + ex.getClass ().getName () + " - " + ex.getMessage ());
+      throw new PeppolSBDHDocumentReadException (EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+    }
+
+    final PeppolSBDHDocument aPeppolSBD = new PeppolSBDHDocumentReader (m_aIdentifierFactory).setPerformValueChecks (m_bPerformValueChecks)
+                                                                                             .extractData (aHeader, aBusinessMessage);
+
+    if (aScanner.m_nPayloadStart >= 0 && aScanner.m_nPayloadEnd > aScanner.m_nPayloadStart && _isASCIICompatible (sEncoding))
+      return new Phase4PeppolSBDStreamData (aSBDStreamProvider,
+                                            aPeppolSBD,
+                                            aScanner.m_nPayloadStart,
+                                            aScanner.m_nPayloadEnd - aScanner.m_nPayloadStart);
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Failed to determine the payload byte range of the StandardBusinessDocument (encoding " + sEncoding + ")");
+    return new Phase4PeppolSBDStreamData (aSBDStreamProvider, aPeppolSBD, -1, -1);
+  }
+}
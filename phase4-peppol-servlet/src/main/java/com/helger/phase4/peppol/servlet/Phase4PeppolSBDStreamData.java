@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.io.stream.WrappedInputStream;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+
+/**
+ * The data of an incoming Standard Business Document that is accessed via
+ * streams. It contains the replayable SBD stream, the extracted Peppol SBDH
+ * data and optionally the byte range of the business payload within the SBD.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@Immutable
+public class Phase4PeppolSBDStreamData
+{
+  /**
+   * An input stream that returns at most a certain number of bytes.
+   */
+  private static final class LimitedInputStream extends WrappedInputStream
+  {
+    private long m_nRemaining;
+
+    public LimitedInputStream (@Nonnull @WillCloseWhenClosed final InputStream aIS, final long nLimit)
+    {
+      super (aIS);
+      m_nRemaining = nLimit;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      if (m_nRemaining <= 0)
+        return -1;
+      final int ret = super.read ();
+      if (ret >= 0)
+        m_nRemaining--;
+      return ret;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      if (m_nRemaining <= 0)
+        return -1;
+      final int ret = super.read (aBuf, nOfs, (int) Math.min (nLen, m_nRemaining));
+      if (ret > 0)
+        m_nRemaining -= ret;
+      return ret;
+    }
+
+    @Override
+    public long skip (final long nBytes) throws IOException
+    {
+      final long ret = super.skip (Math.min (nBytes, m_nRemaining));
+      if (ret > 0)
+        m_nRemaining -= ret;
+      return ret;
+    }
+
+    @Override
+    public int available () throws IOException
+    {
+      return (int) Math.min (super.available (), m_nRemaining);
+    }
+
+    @Override
+    public boolean markSupported ()
+    {
+      return false;
+    }
+  }
+
+  private final IHasInputStream m_aSBDStreamProvider;
+  private final PeppolSBDHDocument m_aPeppolSBD;
+  private final long m_nPayloadOffset;
+  private final long m_nPayloadLength;
+
+  /**
+   * Constructor
+   *
+   * @param aSBDStreamProvider
+   *        The provider for the complete SBD. Must be readable more than once.
+   *        May not be <code>null</code>.
+   * @param aPeppolSBD
+   *        The extracted Peppol SBDH data. May not be <code>null</code>.
+   * @param nPayloadOffset
+   *        The byte offset of the business payload element within the SBD or
+   *        -1 if it is unknown.
+   * @param nPayloadLength
+   *        The byte length of the business payload element within the SBD or
+   *        -1 if it is unknown.
+   */
+  public Phase4PeppolSBDStreamData (@Nonnull final IHasInputStream aSBDStreamProvider,
+                                    @Nonnull final PeppolSBDHDocument aPeppolSBD,
+                                    final long nPayloadOffset,
+                                    final long nPayloadLength)
+  {
+    ValueEnforcer.notNull (aSBDStreamProvider, "SBDStreamProvider");
+    ValueEnforcer.isTrue (aSBDStreamProvider.isReadMultiple (), "SBDStreamProvider must be readable more than once");
+    ValueEnforcer.notNull (aPeppolSBD, "PeppolSBD");
+    m_aSBDStreamProvider = aSBDStreamProvider;
+    m_aPeppolSBD = aPeppolSBD;
+    m_nPayloadOffset = nPayloadOffset;
+    m_nPayloadLength = nPayloadLength;
+  }
+
+  /**
+   * @return The provider for the complete (uncompressed) SBD. It can be read
+   *         more than once. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IHasInputStream getSBDStreamProvider ()
+  {
+    return m_aSBDStreamProvider;
+  }
+
+  /**
+   * @return The extracted Peppol SBDH data. Never <code>null</code>. If the
+   *         SBD was read with {@link Phase4PeppolSBDHStreamReader}, the
+   *         business message element contains only the element name, the
+   *         namespace URI and the attributes, but no content. Use
+   *         {@link #getPayloadStreamProvider()} to access the content.
+   */
+  @Nonnull
+  public final PeppolSBDHDocument getPeppolSBD ()
+  {
+    return m_aPeppolSBD;
+  }
+
+  /**
+   * @return <code>true</code> if the byte range of the business payload is
+   *         known, <code>false</code> if not.
+   */
+  public final boolean hasPayloadRange ()
+  {
+    return m_nPayloadOffset >= 0 && m_nPayloadLength >= 0;
+  }
+
+  /**
+   * @return The byte offset of the business payload element within the SBD or
+   *         -1 if it is unknown.
+   */
+  public final long getPayloadOffset ()
+  {
+    return m_nPayloadOffset;
+  }
+
+  /**
+   * @return The number of bytes of the business payload element or -1 if it is
+   *         unknown.
+   */
+  public final long getPayloadLength ()
+  {
+    return m_nPayloadLength;
+  }
+
+  /**
+   * @return A provider for only the business payload element (from the opening
+   *         to the closing tag) within the SBD. It can be read more than once.
+   *         Note: namespace prefixes declared on the SBD root element are not
+   *         part of the payload. <code>null</code> if the payload range is
+   *         unknown.
+   * @see #hasPayloadRange()
+   */
+  @Nullable
+  public final IHasInputStream getPayloadStreamProvider ()
+  {
+    if (!hasPayloadRange ())
+      return null;
+
+    return HasInputStream.multiple ( () -> {
+      final InputStream aIS = m_aSBDStreamProvider.getInputStream ();
+      try
+      {
+        StreamHelper.skipFully (aIS, m_nPayloadOffset);
+      }
+      catch (final IOException ex)
+      {
+        StreamHelper.close (aIS);
+        throw new UncheckedIOException (ex);
+      }
+      return new LimitedInputStream (aIS, m_nPayloadLength);
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("SBDStreamProvider", m_aSBDStreamProvider)
+                                       .append ("PeppolSBD", m_aPeppolSBD)
+                                       .append ("PayloadOffset", m_nPayloadOffset)
+                                       .append ("PayloadLength", m_nPayloadLength)
+                                       .getToString ();
+  }
+}
@@ -17,6 +17,7 @@
 package com.helger.phase4.peppol.servlet;
 
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -27,7 +28,9 @@ import org.slf4j.LoggerFactory;
 import com.helger.commons.string.StringHelper;
 import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
 import com.helger.phase4.CAS4;
+import com.helger.phase4.util.AS4LookupCache;
 import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.xsds.peppol.smp1.EndpointType;
 
 /**
  * This class contains the references values against which incoming values are
@@ -40,6 +43,12 @@ import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
 public final class Phase4PeppolServletConfiguration
 {
   public static final boolean DEFAULT_RECEIVER_CHECK_ENABLED = true;
+  /** @since 1.3.9 */
+  public static final Duration DEFAULT_RECEIVER_CHECK_CACHE_TTL = Duration.ofMinutes (10);
+  /** @since 1.3.9 */
+  public static final Duration DEFAULT_RECEIVER_CHECK_CACHE_NEGATIVE_TTL = Duration.ofMinutes (1);
+  /** @since 1.3.9 */
+  public static final int DEFAULT_RECEIVER_CHECK_CACHE_MAX_SIZE = 10_000;
   private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolServletConfiguration.class);
 
   private static boolean s_bReceiverCheckEnabled = DEFAULT_RECEIVER_CHECK_ENABLED;
@@ -47,6 +56,10 @@ public final class Phase4PeppolServletConfiguration
   private static String s_sAS4EndpointURL;
   private static X509Certificate s_aAPCertificate;
   private static boolean s_bPerformSBDHValueChecks = PeppolSBDHDocumentReader.DEFAULT_PERFORM_VALUE_CHECKS;
+  private static AS4LookupCache <Phase4PeppolEndpointCacheKey, EndpointType> s_aReceiverCheckCache = new AS4LookupCache <> ("peppol-receiver-check",
+                                                                                                                          DEFAULT_RECEIVER_CHECK_CACHE_TTL,
+                                                                                                                          DEFAULT_RECEIVER_CHECK_CACHE_NEGATIVE_TTL,
+                                                                                                                          DEFAULT_RECEIVER_CHECK_CACHE_MAX_SIZE);
 
   private Phase4PeppolServletConfiguration ()
   {}
@@ -198,4 +211,33 @@ public final class Phase4PeppolServletConfiguration
         LOGGER.warn (CAS4.LIB_NAME + " Peppol SBDH value checks are now disabled");
     }
   }
+
+  /**
+   * @return The cache for the SMP endpoint lookups of the receiver checks. May
+   *         be <code>null</code> if caching is disabled. By default the results
+   *         are cached for {@link #DEFAULT_RECEIVER_CHECK_CACHE_TTL} and "not
+   *         found" results for
+   *         {@link #DEFAULT_RECEIVER_CHECK_CACHE_NEGATIVE_TTL}. Use
+   *         {@link AS4LookupCache#clear()} or
+   *         {@link AS4LookupCache#remove(Object)} to invalidate entries, e.g.
+   *         after an SMP registration changed.
+   * @since 1.3.9
+   */
+  @Nullable
+  public static AS4LookupCache <Phase4PeppolEndpointCacheKey, EndpointType> getReceiverCheckCache ()
+  {
+    return s_aReceiverCheckCache;
+  }
+
+  /**
+   * Set the cache for the SMP endpoint lookups of the receiver checks.
+   *
+   * @param aReceiverCheckCache
+   *        The cache to use. May be <code>null</code> to disable caching.
+   * @since 1.3.9
+   */
+  public static void setReceiverCheckCache (@Nullable final AS4LookupCache <Phase4PeppolEndpointCacheKey, EndpointType> aReceiverCheckCache)
+  {
+    s_aReceiverCheckCache = aReceiverCheckCache;
+  }
 }
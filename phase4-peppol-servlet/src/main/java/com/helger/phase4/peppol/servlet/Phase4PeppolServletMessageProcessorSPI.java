@@ -43,6 +43,9 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
 import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.lang.ServiceLoaderHelper;
@@ -59,7 +62,6 @@ import com.helger.peppolid.IProcessIdentifier;
 import com.helger.peppolid.factory.SimpleIdentifierFactory;
 import com.helger.phase4.attachment.AS4DecompressException;
 import com.helger.phase4.attachment.EAS4CompressionMode;
-import com.helger.phase4.attachment.IAS4Attachment;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.ebms3header.Ebms3Error;
 import com.helger.phase4.ebms3header.Ebms3Property;
@@ -72,6 +74,7 @@ import com.helger.phase4.servlet.IAS4MessageState;
 import com.helger.phase4.servlet.spi.AS4MessageProcessorResult;
 import com.helger.phase4.servlet.spi.AS4SignalMessageProcessorResult;
 import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.phase4.util.AS4LookupCache;
 import com.helger.phase4.util.Phase4Exception;
 import com.helger.sbdh.builder.SBDHReader;
 import com.helger.security.certificate.CertificateHelper;
@@ -83,7 +86,10 @@ import com.helger.xsds.peppol.smp1.EndpointType;
 /**
  * This is the SPI implementation to handle incoming AS4 requests from
  * phase4-servlet. Users of this package must implement
- * {@link IPhase4PeppolIncomingSBDHandlerSPI} instead.
+ * {@link IPhase4PeppolIncomingSBDHandlerSPI} instead. If all handlers implement
+ * {@link IPhase4PeppolIncomingSBDStreamHandlerSPI}, a replayable attachment is
+ * not copied into memory and only the SBDH is unmarshalled (see
+ * {@link Phase4PeppolSBDHStreamReader}).
  *
  * @author Philip Helger
  */
@@ -98,6 +104,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
     private Charset m_aCharset;
     private EAS4CompressionMode m_eCompressionMode;
     private byte [] m_aPayloadBytes;
+    private IHasInputStream m_aPayloadProvider;
     private StandardBusinessDocument m_aSBDH;
 
     private ReadAttachment ()
@@ -133,13 +140,19 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
       return m_eCompressionMode;
     }
 
-    @Nonnull
+    @Nullable
     @ReturnsMutableObject
     public byte [] payloadBytes ()
     {
       return m_aPayloadBytes;
     }
 
+    @Nonnull
+    public IHasInputStream getPayloadProvider ()
+    {
+      return m_aPayloadProvider;
+    }
+
     @Nonnull
     @ReturnsMutableObject
     public StandardBusinessDocument standardBusinessDocument ()
@@ -252,7 +265,8 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
                                              @Nonnull final ISMPServiceMetadataProvider aSMPClient,
                                              @Nullable final IParticipantIdentifier aRecipientID,
                                              @Nullable final IDocumentTypeIdentifier aDocTypeID,
-                                             @Nullable final IProcessIdentifier aProcessID) throws Phase4PeppolServletException
+                                             @Nullable final IProcessIdentifier aProcessID,
+                                             final boolean bBypassCache) throws Phase4PeppolServletException
   {
     if (aRecipientID == null || aDocTypeID == null || aProcessID == null)
       return null;
@@ -274,8 +288,23 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
                       m_aTransportProfile.getID ());
       }
 
-      // Query the SMP
-      return aSMPClient.getEndpoint (aRecipientID, aDocTypeID, aProcessID, m_aTransportProfile);
+      final AS4LookupCache <Phase4PeppolEndpointCacheKey, EndpointType> aCache = Phase4PeppolServletConfiguration.getReceiverCheckCache ();
+      if (aCache == null)
+      {
+        // Query the SMP
+        return aSMPClient.getEndpoint (aRecipientID, aDocTypeID, aProcessID, m_aTransportProfile);
+      }
+
+      final Phase4PeppolEndpointCacheKey aKey = new Phase4PeppolEndpointCacheKey (aSMPClient,
+                                                                                  aRecipientID,
+                                                                                  aDocTypeID,
+                                                                                  aProcessID,
+                                                                                  m_aTransportProfile);
+      if (bBypassCache)
+        aCache.remove (aKey);
+
+      // Query the SMP, if the result is not cached
+      return aCache.getOrLookup (aKey, k -> aSMPClient.getEndpoint (aRecipientID, aDocTypeID, aProcessID, m_aTransportProfile));
     }
     catch (final Exception ex)
     {
@@ -365,6 +394,29 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
       LOGGER.debug (sLogPrefix + "The certificate of the SMP lookup matches our certificate");
   }
 
+  private static void _addSBDHErrors (@Nonnull final ErrorList aSBDHErrors,
+                                      @Nonnull final Locale aDisplayLocale,
+                                      @Nonnull final IAS4MessageState aState,
+                                      @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages,
+                                      @Nonnull final String sLogPrefix)
+  {
+    if (aSBDHErrors.isEmpty ())
+    {
+      final String sMsg = "Failed to read the provided SBDH document";
+      LOGGER.error (sLogPrefix + sMsg);
+      aProcessingErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (aDisplayLocale, aState.getMessageID (), sMsg));
+    }
+    else
+    {
+      for (final IError aError : aSBDHErrors)
+      {
+        final String sMsg = "Peppol SBDH Issue: " + aError.getAsString (aDisplayLocale);
+        LOGGER.error (sLogPrefix + sMsg);
+        aProcessingErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (aDisplayLocale, aState.getMessageID (), sMsg));
+      }
+    }
+  }
+
   @Nonnull
   public AS4MessageProcessorResult processAS4UserMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                                           @Nonnull final HttpHeaderMap aHttpHeaders,
@@ -413,12 +465,17 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
         LOGGER.debug (sLogPrefix + "  SOAP Body Payload = " + XMLWriter.getNodeAsString (aPayload));
     }
 
+    // If all handlers are streaming handlers, the payload does not need to be
+    // copied into memory
+    final boolean bStreamingOnly = m_aHandlers.isNotEmpty () &&
+                                   m_aHandlers.containsOnly (IPhase4PeppolIncomingSBDStreamHandlerSPI.class::isInstance);
+
     // Read all attachments
     final ICommonsList <ReadAttachment> aReadAttachments = new CommonsArrayList <> ();
     if (aIncomingAttachments != null)
     {
       int nAttachmentIndex = 0;
-      for (final IAS4Attachment aIncomingAttachment : aIncomingAttachments)
+      for (final WSS4JAttachment aIncomingAttachment : aIncomingAttachments)
       {
         final ReadAttachment a = new ReadAttachment ();
         a.m_sID = aIncomingAttachment.getId ();
@@ -426,57 +483,54 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
         a.m_sUncompressedMimeType = aIncomingAttachment.getUncompressedMimeType ();
         a.m_aCharset = aIncomingAttachment.getCharset ();
         a.m_eCompressionMode = aIncomingAttachment.getCompressionMode ();
-        try (final InputStream aSIS = aIncomingAttachment.getSourceStream ())
-        {
-          final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
-          if (StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aSIS, aBAOS).isSuccess ())
-          {
-            a.m_aPayloadBytes = aBAOS.getBufferOrCopy ();
-          }
-        }
-        catch (final IOException | AS4DecompressException ex)
-        {
-          // Fall through
-        }
-        if (a.m_aPayloadBytes == null)
+
+        final IHasInputStream aISP = aIncomingAttachment.getInputStreamProvider ();
+        if (bStreamingOnly && aISP != null && aISP.isReadMultiple ())
         {
-          LOGGER.error (sLogPrefix + "Failed to decompress the payload");
-          aProcessingErrorMessages.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (aDisplayLocale,
-                                                                                               aState.getMessageID ()));
-          return AS4MessageProcessorResult.createFailure (null);
+          // The attachment can be read more than once - no copy needed
+          a.m_aPayloadProvider = HasInputStream.multiple (aIncomingAttachment::getSourceStream);
         }
-
-        // Read data as SBDH
-        // Hint for production systems: this may take a huge amount of memory,
-        // if the payload is large
-        final ErrorList aSBDHErrors = new ErrorList ();
-        a.m_aSBDH = SBDHReader.standardBusinessDocument ()
-                              .setValidationEventHandler (new WrappedCollectingValidationEventHandler (aSBDHErrors))
-                              .read (a.m_aPayloadBytes);
-        if (a.m_aSBDH == null)
+        else
         {
-          if (aSBDHErrors.isEmpty ())
+          try (final InputStream aSIS = aIncomingAttachment.getSourceStream ())
           {
-            final String sMsg = "Failed to read the provided SBDH document";
-            LOGGER.error (sLogPrefix + sMsg);
-            aProcessingErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (aDisplayLocale,
-                                                                                 aState.getMessageID (),
-                                                                                 sMsg));
-          }
-          else
-          {
-            for (final IError aError : aSBDHErrors)
+            final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+            if (StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aSIS, aBAOS).isSuccess ())
             {
-              final String sMsg = "Peppol SBDH Issue: " + aError.getAsString (aDisplayLocale);
-              LOGGER.error (sLogPrefix + sMsg);
-              aProcessingErrorMessages.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (aDisplayLocale,
-                                                                                   aState.getMessageID (),
-                                                                                   sMsg));
+              a.m_aPayloadBytes = aBAOS.getBufferOrCopy ();
             }
           }
+          catch (final IOException | AS4DecompressException ex)
+          {
+            // Fall through
+          }
+          if (a.m_aPayloadBytes == null)
+          {
+            LOGGER.error (sLogPrefix + "Failed to decompress the payload");
+            aProcessingErrorMessages.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (aDisplayLocale,
+                                                                                                 aState.getMessageID ()));
+            return AS4MessageProcessorResult.createFailure (null);
+          }
+          final byte [] aPayloadBytes = a.m_aPayloadBytes;
+          a.m_aPayloadProvider = HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aPayloadBytes));
+        }
 
-          return AS4MessageProcessorResult.createFailure (null);
+        if (a.m_aPayloadBytes != null)
+        {
+          // Read data as SBDH
+          // Hint for production systems: this may take a huge amount of
+          // memory, if the payload is large
+          final ErrorList aSBDHErrors = new ErrorList ();
+          a.m_aSBDH = SBDHReader.standardBusinessDocument ()
+                                .setValidationEventHandler (new WrappedCollectingValidationEventHandler (aSBDHErrors))
+                                .read (a.m_aPayloadBytes);
+          if (a.m_aSBDH == null)
+          {
+            _addSBDHErrors (aSBDHErrors, aDisplayLocale, aState, aProcessingErrorMessages, sLogPrefix);
+            return AS4MessageProcessorResult.createFailure (null);
+          }
         }
+        // else the SBD is read via streaming below
 
         aReadAttachments.add (a);
 
@@ -492,7 +546,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
                         "] and [" +
                         StringHelper.getToString (a.m_aCharset, "no charset") +
                         "] and length is " +
-                        (a.m_aPayloadBytes == null ? "<error>" : Integer.toString (a.m_aPayloadBytes.length)) +
+                        (a.m_aPayloadBytes == null ? "<streamed>" : Integer.toString (a.m_aPayloadBytes.length)) +
                         " bytes" +
                         (a.m_eCompressionMode == null ? "" : " of compressed payload"));
         nAttachmentIndex++;
@@ -514,22 +568,50 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
 
     // Extract Peppol values from SBD
     final PeppolSBDHDocument aPeppolSBD;
+    final Phase4PeppolSBDStreamData aSBDStreamData;
+    final ErrorList aSBDHErrors = new ErrorList ();
     try
     {
       if (LOGGER.isDebugEnabled ())
         LOGGER.debug (sLogPrefix + "Now evaluating the SBDH against Peppol rules");
 
       final boolean bPerformValueChecks = Phase4PeppolServletConfiguration.isPerformSBDHValueChecks ();
-      aPeppolSBD = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE).setPerformValueChecks (bPerformValueChecks)
-                                                                                  .extractData (aReadAttachment.standardBusinessDocument ());
+      if (aReadAttachment.payloadBytes () == null)
+      {
+        // Only the SBDH is unmarshalled - the payload is just streamed through
+        aSBDStreamData = new Phase4PeppolSBDHStreamReader (SimpleIdentifierFactory.INSTANCE).setPerformValueChecks (bPerformValueChecks)
+                                                                                            .setValidationEventHandler (new WrappedCollectingValidationEventHandler (aSBDHErrors))
+                                                                                            .extractData (aReadAttachment.getPayloadProvider ());
+        aPeppolSBD = aSBDStreamData.getPeppolSBD ();
+      }
+      else
+      {
+        aPeppolSBD = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE).setPerformValueChecks (bPerformValueChecks)
+                                                                                    .extractData (aReadAttachment.standardBusinessDocument ());
+        aSBDStreamData = new Phase4PeppolSBDStreamData (aReadAttachment.getPayloadProvider (), aPeppolSBD, -1, -1);
+      }
 
       if (LOGGER.isDebugEnabled ())
         LOGGER.debug (sLogPrefix +
                       "The provided SBDH is valid according to Peppol rules, with value checks being " +
                       (bPerformValueChecks ? "enabled" : "disabled"));
     }
+    catch (final AS4DecompressException ex)
+    {
+      LOGGER.error (sLogPrefix + "Failed to decompress the payload");
+      aProcessingErrorMessages.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (aDisplayLocale,
+                                                                                           aState.getMessageID ()));
+      return AS4MessageProcessorResult.createFailure (null);
+    }
     catch (final PeppolSBDHDocumentReadException ex)
     {
+      if (aSBDHErrors.isNotEmpty ())
+      {
+        // XML Schema errors in the SBDH
+        _addSBDHErrors (aSBDHErrors, aDisplayLocale, aState, aProcessingErrorMessages, sLogPrefix);
+        return AS4MessageProcessorResult.createFailure (null);
+      }
+
       final String sMsg = "Failed to extract the Peppol data from SBDH. Technical details: " +
                           ex.getClass ().getName () +
                           " - " +
@@ -559,11 +641,12 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
           final IParticipantIdentifier aReceiverID = aPeppolSBD.getReceiverAsIdentifier ();
           final IDocumentTypeIdentifier aDocTypeID = aPeppolSBD.getDocumentTypeAsIdentifier ();
           final IProcessIdentifier aProcessID = aPeppolSBD.getProcessAsIdentifier ();
-          final EndpointType aReceiverEndpoint = _getReceiverEndpoint (sLogPrefix,
-                                                                       aReceiverCheckData.getSMPClient (),
-                                                                       aReceiverID,
-                                                                       aDocTypeID,
-                                                                       aProcessID);
+          EndpointType aReceiverEndpoint = _getReceiverEndpoint (sLogPrefix,
+                                                                 aReceiverCheckData.getSMPClient (),
+                                                                 aReceiverID,
+                                                                 aDocTypeID,
+                                                                 aProcessID,
+                                                                 false);
           if (aReceiverEndpoint == null)
           {
             final String sMsg = "Failed to resolve SMP endpoint for provided receiver ID (" +
@@ -579,11 +662,33 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
             return AS4MessageProcessorResult.createFailure (sMsg);
           }
 
-          // Check if the message is for us
-          _checkIfReceiverEndpointURLMatches (sLogPrefix, aReceiverCheckData.getAS4EndpointURL (), aReceiverEndpoint);
+          try
+          {
+            // Check if the message is for us
+            _checkIfReceiverEndpointURLMatches (sLogPrefix, aReceiverCheckData.getAS4EndpointURL (), aReceiverEndpoint);
 
-          // Get the recipient certificate from the SMP
-          _checkIfEndpointCertificateMatches (sLogPrefix, aReceiverCheckData.getAPCertificate (), aReceiverEndpoint);
+            // Get the recipient certificate from the SMP
+            _checkIfEndpointCertificateMatches (sLogPrefix, aReceiverCheckData.getAPCertificate (), aReceiverEndpoint);
+          }
+          catch (final Phase4PeppolServletException ex)
+          {
+            if (Phase4PeppolServletConfiguration.getReceiverCheckCache () == null)
+              throw ex;
+
+            // The cached endpoint may be outdated - try again with a fresh
+            // lookup
+            LOGGER.info (sLogPrefix + "Receiver checks failed - retrying with a fresh SMP lookup");
+            aReceiverEndpoint = _getReceiverEndpoint (sLogPrefix,
+                                                      aReceiverCheckData.getSMPClient (),
+                                                      aReceiverID,
+                                                      aDocTypeID,
+                                                      aProcessID,
+                                                      true);
+            if (aReceiverEndpoint == null)
+              throw ex;
+            _checkIfReceiverEndpointURLMatches (sLogPrefix, aReceiverCheckData.getAS4EndpointURL (), aReceiverEndpoint);
+            _checkIfEndpointCertificateMatches (sLogPrefix, aReceiverCheckData.getAPCertificate (), aReceiverEndpoint);
+          }
         }
         catch (final Phase4Exception ex)
         {
@@ -606,13 +711,24 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
         {
           if (LOGGER.isDebugEnabled ())
             LOGGER.debug (sLogPrefix + "Invoking Peppol handler " + aHandler);
-          aHandler.handleIncomingSBD (aMessageMetadata,
-                                      aHttpHeaders.getClone (),
-                                      aUserMessage.clone (),
-                                      aReadAttachment.payloadBytes (),
-                                      aReadAttachment.standardBusinessDocument (),
-                                      aPeppolSBD,
-                                      aState);
+          if (aHandler instanceof IPhase4PeppolIncomingSBDStreamHandlerSPI)
+          {
+            ((IPhase4PeppolIncomingSBDStreamHandlerSPI) aHandler).handleIncomingSBDStream (aMessageMetadata,
+                                                                                          aHttpHeaders.getClone (),
+                                                                                          aUserMessage.clone (),
+                                                                                          aSBDStreamData,
+                                                                                          aState);
+          }
+          else
+          {
+            aHandler.handleIncomingSBD (aMessageMetadata,
+                                        aHttpHeaders.getClone (),
+                                        aUserMessage.clone (),
+                                        aReadAttachment.payloadBytes (),
+                                        aReadAttachment.standardBusinessDocument (),
+                                        aPeppolSBD,
+                                        aState);
+          }
         }
         catch (final Exception ex)
         {
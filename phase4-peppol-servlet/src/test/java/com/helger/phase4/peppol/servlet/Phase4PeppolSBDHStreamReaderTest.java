@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.peppol.sbdh.read.EPeppolSBDHDocumentReadError;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReadException;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+
+/**
+ * Test class for class {@link Phase4PeppolSBDHStreamReader}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolSBDHStreamReaderTest
+{
+  private static final String SBDH = "<sh:StandardBusinessDocumentHeader>" +
+                                     "<sh:HeaderVersion>1.0</sh:HeaderVersion>" +
+                                     "<sh:Sender><sh:Identifier Authority=\"iso6523-actorid-upis\">9915:sender</sh:Identifier></sh:Sender>" +
+                                     "<sh:Receiver><sh:Identifier Authority=\"iso6523-actorid-upis\">9915:receiver</sh:Identifier></sh:Receiver>" +
+                                     "<sh:DocumentIdentification>" +
+                                     "<sh:Standard>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2</sh:Standard>" +
+                                     "<sh:TypeVersion>2.1</sh:TypeVersion>" +
+                                     "<sh:InstanceIdentifier>ee6b9e8b-ffb5-4b3d-8fd1-dbb8c2a0e2b5</sh:InstanceIdentifier>" +
+                                     "<sh:Type>Invoice</sh:Type>" +
+                                     "<sh:CreationDateAndTime>2022-01-13T12:34:56.789Z</sh:CreationDateAndTime>" +
+                                     "</sh:DocumentIdentification>" +
+                                     "<sh:BusinessScope>" +
+                                     "<sh:Scope><sh:Type>DOCUMENTID</sh:Type>" +
+                                     "<sh:InstanceIdentifier>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1</sh:InstanceIdentifier>" +
+                                     "<sh:Identifier>busdox-docid-qns</sh:Identifier></sh:Scope>" +
+                                     "<sh:Scope><sh:Type>PROCESSID</sh:Type>" +
+                                     "<sh:InstanceIdentifier>urn:fdc:peppol.eu:2017:poacc:billing:01:1.0</sh:InstanceIdentifier>" +
+                                     "<sh:Identifier>cenbii-procid-ubl</sh:Identifier></sh:Scope>" +
+                                     "</sh:BusinessScope>" +
+                                     "</sh:StandardBusinessDocumentHeader>";
+
+  @Nonnull
+  private static String _createSBD (@Nonnull final String sPayload)
+  {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+           "<!-- <Leading comment> -->\n" +
+           "<sh:StandardBusinessDocument xmlns:sh=\"http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader\">\n" +
+           SBDH +
+           "\n  " +
+           sPayload +
+           "\n</sh:StandardBusinessDocument>\n";
+  }
+
+  @Nonnull
+  private static IHasInputStream _createISP (@Nonnull final byte [] aBytes)
+  {
+    return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aBytes));
+  }
+
+  private static void _testPayload (@Nonnull final String sPayload) throws Exception
+  {
+    final byte [] aSBD = _createSBD (sPayload).getBytes (StandardCharsets.UTF_8);
+    final Phase4PeppolSBDStreamData aData = new Phase4PeppolSBDHStreamReader (SimpleIdentifierFactory.INSTANCE).extractData (_createISP (aSBD));
+    assertNotNull (aData);
+
+    // Compare with the regular reader
+    final PeppolSBDHDocument aExpected = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aSBD));
+    final PeppolSBDHDocument aPeppolSBD = aData.getPeppolSBD ();
+    assertEquals (aExpected.getSenderAsIdentifier (), aPeppolSBD.getSenderAsIdentifier ());
+    assertEquals (aExpected.getReceiverAsIdentifier (), aPeppolSBD.getReceiverAsIdentifier ());
+    assertEquals (aExpected.getDocumentTypeAsIdentifier (), aPeppolSBD.getDocumentTypeAsIdentifier ());
+    assertEquals (aExpected.getProcessAsIdentifier (), aPeppolSBD.getProcessAsIdentifier ());
+    assertEquals (aExpected.getInstanceIdentifier (), aPeppolSBD.getInstanceIdentifier ());
+    assertEquals (aExpected.getCreationDateAndTime (), aPeppolSBD.getCreationDateAndTime ());
+    assertEquals (aExpected.getStandard (), aPeppolSBD.getStandard ());
+    assertEquals (aExpected.getBusinessMessage ().getNamespaceURI (), aPeppolSBD.getBusinessMessage ().getNamespaceURI ());
+    assertEquals (aExpected.getBusinessMessage ().getLocalName (), aPeppolSBD.getBusinessMessage ().getLocalName ());
+
+    // Check the payload range
+    assertTrue (aData.hasPayloadRange ());
+    assertArrayEquals (sPayload.getBytes (StandardCharsets.UTF_8),
+                       StreamHelper.getAllBytes (aData.getPayloadStreamProvider ().getInputStream ()));
+    // Can be read more than once
+    assertArrayEquals (sPayload.getBytes (StandardCharsets.UTF_8),
+                       StreamHelper.getAllBytes (aData.getPayloadStreamProvider ().getInputStream ()));
+  }
+
+  @Test
+  public void testPayloadRange () throws Exception
+  {
+    _testPayload ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"><ID>1</ID></Invoice>");
+    _testPayload ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\" />");
+    _testPayload ("<inv:Invoice xmlns:inv=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\" attr='a>/b'>" +
+                  "<!-- </inv:Invoice> -->" +
+                  "<?pi </inv:Invoice> ?>" +
+                  "<inv:Note><![CDATA[</inv:Invoice> ]]]]></inv:Note>" +
+                  "<inv:Note>äöü € &lt;/inv:Invoice&gt;</inv:Note>" +
+                  "<inv:Empty/>" +
+                  "</inv:Invoice>");
+  }
+
+  @Test
+  public void testUTF16 () throws Exception
+  {
+    final String sSBD = _createSBD ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"><ID>1</ID></Invoice>")
+                                                                                                                                   .replace ("UTF-8",
+                                                                                                                                             "UTF-16");
+    final Phase4PeppolSBDStreamData aData = new Phase4PeppolSBDHStreamReader (SimpleIdentifierFactory.INSTANCE).extractData (_createISP (sSBD.getBytes (StandardCharsets.UTF_16)));
+    assertEquals ("9915:receiver", aData.getPeppolSBD ().getReceiverValue ());
+    // No byte range for non-ASCII compatible encodings
+    assertFalse (aData.hasPayloadRange ());
+  }
+
+  private static void _testError (@Nonnull final String sSBD, @Nonnull final EPeppolSBDHDocumentReadError eExpected)
+  {
+    try
+    {
+      new Phase4PeppolSBDHStreamReader (SimpleIdentifierFactory.INSTANCE).extractData (_createISP (sSBD.getBytes (StandardCharsets.UTF_8)));
+      fail ();
+    }
+    catch (final PeppolSBDHDocumentReadException ex)
+    {
+      assertEquals (eExpected, ex.getErrorCode ());
+    }
+  }
+
+  @Test
+  public void testErrors ()
+  {
+    _testError ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\" />",
+                EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+    _testError ("<sh:StandardBusinessDocument xmlns:sh=\"http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader\">" +
+                "<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\" />" +
+                "</sh:StandardBusinessDocument>",
+                EPeppolSBDHDocumentReadError.MISSING_SBDH);
+    _testError (_createSBD (""), EPeppolSBDHDocumentReadError.INVALID_BUSINESS_MESSAGE);
+    _testError (_createSBD ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\" /><Second />"),
+                EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+    _testError (_createSBD ("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\">"),
+                EPeppolSBDHDocumentReadError.INVALID_SBD_XML);
+    _testError (_createSBD ("<CreditNote xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:CreditNote-2\" />"),
+                EPeppolSBDHDocumentReadError.INVALID_STANDARD);
+  }
+}
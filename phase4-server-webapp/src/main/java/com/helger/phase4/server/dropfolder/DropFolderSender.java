@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.dropfolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.io.file.FilenameHelper;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.io.watchdir.EWatchDirAction;
+import com.helger.commons.io.watchdir.IWatchDirCallback;
+import com.helger.commons.io.watchdir.WatchDir;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.phase4.util.AS4ThreadHelper;
+
+/**
+ * A drop folder that hands all files put into a directory to a pool of worker
+ * threads.
+ * <ul>
+ * <li>Each file is claimed by atomically renaming it into the "working"
+ * sub directory before it is queued, so that duplicate file system events or
+ * rescans never process a file twice.</li>
+ * <li>After handling, the file is moved to the "done" or "error" sub
+ * directory. Existing files with the same name are kept and the file gets a
+ * unique name instead.</li>
+ * <li>Files that are still in the "working" sub directory on startup were
+ * claimed before a crash and are processed again (at-least-once
+ * semantics).</li>
+ * <li>Because file system events may be lost under load (e.g. if thousands of
+ * files are dropped at once), the directory is additionally rescanned
+ * periodically.</li>
+ * </ul>
+ * Producers should write files under a name that is not accepted by the file
+ * filter and rename them afterwards, so that partially written files are never
+ * claimed.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@ThreadSafe
+public class DropFolderSender implements AutoCloseable
+{
+  public static final String PATH_WORKING = "working";
+  public static final String PATH_DONE = "done";
+  public static final String PATH_ERROR = "error";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (DropFolderSender.class);
+
+  private final Path m_aOutgoingDir;
+  private final Path m_aWorkingDir;
+  private final Path m_aDoneDir;
+  private final Path m_aErrorDir;
+  private final Predicate <? super Path> m_aFileFilter;
+  private final IDropFolderFileHandler m_aHandler;
+  private final ThreadPoolExecutor m_aWorkers;
+  private final ScheduledExecutorService m_aScheduler;
+  private WatchDir m_aWatch;
+  private final SimpleLock m_aClaimLock = new SimpleLock ();
+
+  private final AtomicLong m_aStartMillis = new AtomicLong (0);
+  private final AtomicLong m_aQueuedCount = new AtomicLong (0);
+  private final AtomicLong m_aInFlightCount = new AtomicLong (0);
+  private final AtomicLong m_aSuccessCount = new AtomicLong (0);
+  private final AtomicLong m_aFailureCount = new AtomicLong (0);
+  private final AtomicLong m_aRecoveredCount = new AtomicLong (0);
+  private final AtomicLong m_aTotalHandlingMillis = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param aOutgoingDir
+   *        The directory to watch. May not be <code>null</code>.
+   * @param nWorkerCount
+   *        The number of files handled in parallel. Must be &gt; 0.
+   * @param aFileFilter
+   *        The filter for the files to be handled. May not be
+   *        <code>null</code>.
+   * @param aHandler
+   *        The handler for a single file. May not be <code>null</code>.
+   */
+  public DropFolderSender (@Nonnull final Path aOutgoingDir,
+                           @Nonnegative final int nWorkerCount,
+                           @Nonnull final Predicate <? super Path> aFileFilter,
+                           @Nonnull final IDropFolderFileHandler aHandler)
+  {
+    ValueEnforcer.notNull (aOutgoingDir, "OutgoingDir");
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    ValueEnforcer.notNull (aFileFilter, "FileFilter");
+    ValueEnforcer.notNull (aHandler, "Handler");
+    m_aOutgoingDir = aOutgoingDir;
+    m_aWorkingDir = aOutgoingDir.resolve (PATH_WORKING);
+    m_aDoneDir = aOutgoingDir.resolve (PATH_DONE);
+    m_aErrorDir = aOutgoingDir.resolve (PATH_ERROR);
+    m_aFileFilter = aFileFilter;
+    m_aHandler = aHandler;
+    m_aWorkers = new ThreadPoolExecutor (nWorkerCount,
+                                         nWorkerCount,
+                                         0L,
+                                         TimeUnit.MILLISECONDS,
+                                         new LinkedBlockingQueue <> (),
+                                         AS4ThreadHelper.createThreadFactory ("phase4-dropfolder-"));
+    m_aScheduler = Executors.newSingleThreadScheduledExecutor (AS4ThreadHelper.createThreadFactory ("phase4-dropfolder-scan-"));
+  }
+
+  private boolean _isAcceptedFile (@Nonnull final Path aFile)
+  {
+    return aFile.getFileName () != null && Files.isRegularFile (aFile) && m_aFileFilter.test (aFile);
+  }
+
+  private void _handle (@Nonnull final Path aClaimedFile)
+  {
+    m_aQueuedCount.decrementAndGet ();
+    m_aInFlightCount.incrementAndGet ();
+    final StopWatch aSW = StopWatch.createdStarted ();
+    boolean bSuccess = false;
+    try
+    {
+      bSuccess = m_aHandler.handleFile (aClaimedFile);
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Error handling " + aClaimedFile.toString (), ex);
+    }
+    finally
+    {
+      m_aInFlightCount.decrementAndGet ();
+      m_aTotalHandlingMillis.addAndGet (aSW.stopAndGetMillis ());
+    }
+
+    // After the exception handler!
+    (bSuccess ? m_aSuccessCount : m_aFailureCount).incrementAndGet ();
+    final Path aDestDir = bSuccess ? m_aDoneDir : m_aErrorDir;
+    try
+    {
+      _moveToUniqueName (aClaimedFile, aDestDir);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Error moving from '" + aClaimedFile.toString () + "' to '" + aDestDir + "'", ex);
+    }
+  }
+
+  /**
+   * Move the provided file into the provided directory. If a file with the
+   * same name is already present (e.g. a file with the same name was sent
+   * before), a counter is appended to the base name, so that no result is
+   * overwritten.
+   *
+   * @param aFile
+   *        The file to move. May not be <code>null</code>.
+   * @param aDestDir
+   *        The destination directory. May not be <code>null</code>.
+   * @return The new path of the file. Never <code>null</code>.
+   * @throws IOException
+   *         If moving fails
+   */
+  @Nonnull
+  private static Path _moveToUniqueName (@Nonnull final Path aFile, @Nonnull final Path aDestDir) throws IOException
+  {
+    final String sFilename = aFile.getFileName ().toString ();
+    final String sBaseName = FilenameHelper.getWithoutExtension (sFilename);
+    final String sExt = FilenameHelper.getExtension (sFilename);
+    Path aDest = aDestDir.resolve (sFilename);
+    int nIndex = 0;
+    while (true)
+    {
+      if (!Files.exists (aDest))
+        try
+        {
+          // Without REPLACE_EXISTING this fails if the target exists
+          return Files.move (aFile, aDest);
+        }
+        catch (final FileAlreadyExistsException ex)
+        {
+          // Created in the meantime - try the next name
+        }
+      ++nIndex;
+      aDest = aDestDir.resolve (sBaseName + '-' + nIndex + (StringHelper.hasText (sExt) ? "." + sExt : ""));
+    }
+  }
+
+  private void _submit (@Nonnull final Path aClaimedFile)
+  {
+    m_aQueuedCount.incrementAndGet ();
+    try
+    {
+      m_aWorkers.execute ( () -> _handle (aClaimedFile));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down - the file is recovered on the next start
+      m_aQueuedCount.decrementAndGet ();
+    }
+  }
+
+  /**
+   * Claim the provided file by moving it to the working directory. Must be
+   * called while holding the claim lock.
+   *
+   * @param aFile
+   *        The file in the outgoing directory.
+   * @return The claimed file or <code>null</code> if the file was not claimed.
+   */
+  @Nullable
+  private Path _claim (@Nonnull final Path aFile)
+  {
+    final Path aClaimedFile = m_aWorkingDir.resolve (aFile.getFileName ());
+    if (Files.exists (aClaimedFile))
+    {
+      // A file with the same name is currently handled - try again on the next
+      // rescan
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Postponing '" + aFile + "' because a file with the same name is currently handled");
+      return null;
+    }
+
+    try
+    {
+      // On POSIX systems an atomic move silently replaces an existing target,
+      // so the existence check above (under the claim lock) is the protection
+      // against overwriting a claimed file with the same name
+      Files.move (aFile, aClaimedFile, StandardCopyOption.ATOMIC_MOVE);
+      return aClaimedFile;
+    }
+    catch (final NoSuchFileException ex)
+    {
+      // Source is gone - already claimed by a concurrent event or rescan
+      return null;
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to claim '" + aFile + "'", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Claim the provided file by moving it to the working directory and queue
+   * it for handling.
+   *
+   * @param aFile
+   *        The file in the outgoing directory.
+   */
+  private void _claimAndSubmit (@Nonnull final Path aFile)
+  {
+    if (!_isAcceptedFile (aFile))
+      return;
+
+    // File system events and rescans run in different threads
+    final Path aClaimedFile = m_aClaimLock.lockedGet ( () -> _claim (aFile));
+    if (aClaimedFile != null)
+      _submit (aClaimedFile);
+  }
+
+  private void _scan ()
+  {
+    try (final DirectoryStream <Path> aStream = Files.newDirectoryStream (m_aOutgoingDir, this::_isAcceptedFile))
+    {
+      for (final Path aCur : aStream)
+        _claimAndSubmit (aCur);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.error ("Error scanning drop folder '" + m_aOutgoingDir + "'", ex);
+    }
+  }
+
+  private void _recover () throws IOException
+  {
+    try (final DirectoryStream <Path> aStream = Files.newDirectoryStream (m_aWorkingDir, this::_isAcceptedFile))
+    {
+      for (final Path aCur : aStream)
+      {
+        LOGGER.warn ("Recovering '" + aCur + "' that was claimed before the last shutdown");
+        m_aRecoveredCount.incrementAndGet ();
+        _submit (aCur);
+      }
+    }
+  }
+
+  /**
+   * Start watching the directory. Files claimed before a crash and files that
+   * are already present are queued immediately.
+   *
+   * @param aRescanInterval
+   *        The interval in which the directory is rescanned to find files for
+   *        which no file system event was received. May not be
+   *        <code>null</code> and must be positive.
+   * @return this for chaining
+   * @throws IOException
+   *         If the directories cannot be created or the watching cannot be
+   *         started
+   */
+  @Nonnull
+  public synchronized DropFolderSender start (@Nonnull final Duration aRescanInterval) throws IOException
+  {
+    ValueEnforcer.notNull (aRescanInterval, "RescanInterval");
+    ValueEnforcer.isFalse (aRescanInterval.isNegative () || aRescanInterval.isZero (), "RescanInterval must be positive");
+    if (m_aWatch != null)
+      throw new IllegalStateException ("Already started!");
+
+    // Ensure directories are present
+    Files.createDirectories (m_aWorkingDir);
+    Files.createDirectories (m_aDoneDir);
+    Files.createDirectories (m_aErrorDir);
+    m_aStartMillis.set (System.currentTimeMillis ());
+
+    _recover ();
+
+    // Start watching directory for changes
+    final IWatchDirCallback aCB = (eAction, aCurFile) -> {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("WatchEvent " + eAction + " - " + aCurFile);
+      if (!eAction.equals (EWatchDirAction.DELETE))
+        _claimAndSubmit (aCurFile);
+    };
+    m_aWatch = WatchDir.createAsyncRunningWatchDir (m_aOutgoingDir, false, aCB);
+
+    // Handle all existing files and rescan periodically
+    final long nRescanMillis = aRescanInterval.toMillis ();
+    m_aScheduler.scheduleWithFixedDelay (this::_scan, 0, nRescanMillis, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * @return The number of files claimed but not yet handled.
+   */
+  @Nonnegative
+  public long getQueuedCount ()
+  {
+    return m_aQueuedCount.get ();
+  }
+
+  /**
+   * @return The number of files currently handled.
+   */
+  @Nonnegative
+  public long getInFlightCount ()
+  {
+    return m_aInFlightCount.get ();
+  }
+
+  /**
+   * @return The number of claimed files that are not yet finished. This is the
+   *         sum of the queued and in-flight files.
+   */
+  @Nonnegative
+  public long getBacklogCount ()
+  {
+    return m_aQueuedCount.get () + m_aInFlightCount.get ();
+  }
+
+  /**
+   * @return The number of files that were handled successfully.
+   */
+  @Nonnegative
+  public long getSuccessCount ()
+  {
+    return m_aSuccessCount.get ();
+  }
+
+  /**
+   * @return The number of files that could not be handled.
+   */
+  @Nonnegative
+  public long getFailureCount ()
+  {
+    return m_aFailureCount.get ();
+  }
+
+  /**
+   * @return The number of files recovered from the working directory on
+   *         startup.
+   */
+  @Nonnegative
+  public long getRecoveredCount ()
+  {
+    return m_aRecoveredCount.get ();
+  }
+
+  /**
+   * @return The average handling time of a single file in milliseconds or 0 if
+   *         no file was handled yet.
+   */
+  @Nonnegative
+  public long getAverageHandlingMillis ()
+  {
+    final long nCount = m_aSuccessCount.get () + m_aFailureCount.get ();
+    return nCount == 0 ? 0 : m_aTotalHandlingMillis.get () / nCount;
+  }
+
+  /**
+   * @return The average number of finished files per second since the start
+   *         or 0 if not started.
+   */
+  public double getThroughputPerSecond ()
+  {
+    final long nStart = m_aStartMillis.get ();
+    if (nStart == 0)
+      return 0;
+    final long nDuration = Math.max (System.currentTimeMillis () - nStart, 1);
+    return (m_aSuccessCount.get () + m_aFailureCount.get ()) * 1000d / nDuration;
+  }
+
+  /**
+   * Stop watching and wait for the files currently handled. Queued files stay
+   * in the working directory and are recovered on the next start.
+   *
+   * @param aTimeout
+   *        The maximum time to wait. May not be <code>null</code>.
+   * @return <code>true</code> if all workers finished in time.
+   * @throws InterruptedException
+   *         If interrupted while waiting
+   */
+  public synchronized boolean shutdown (@Nonnull final Duration aTimeout) throws InterruptedException
+  {
+    ValueEnforcer.notNull (aTimeout, "Timeout");
+    if (m_aWatch != null)
+    {
+      StreamHelper.close (m_aWatch);
+      m_aWatch = null;
+    }
+    m_aScheduler.shutdownNow ();
+    // Drop all queued entries but let the running ones finish
+    final ICommonsList <Runnable> aDropped = new CommonsArrayList <> ();
+    m_aWorkers.getQueue ().drainTo (aDropped);
+    m_aQueuedCount.addAndGet (-aDropped.size ());
+    m_aWorkers.shutdown ();
+    return m_aWorkers.awaitTermination (aTimeout.toMillis (), TimeUnit.MILLISECONDS);
+  }
+
+  public void close ()
+  {
+    try
+    {
+      if (!shutdown (Duration.ofSeconds (30)))
+        LOGGER.warn ("Drop folder workers did not finish in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("OutgoingDir", m_aOutgoingDir)
+                                       .append ("Queued", getQueuedCount ())
+                                       .append ("InFlight", getInFlightCount ())
+                                       .append ("Success", getSuccessCount ())
+                                       .append ("Failure", getFailureCount ())
+                                       .append ("Recovered", getRecoveredCount ())
+                                       .getToString ();
+  }
+}
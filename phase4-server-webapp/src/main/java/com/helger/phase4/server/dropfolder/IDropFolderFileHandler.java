@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.dropfolder;
+
+import java.nio.file.Path;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Callback interface for handling a single file of the
+ * {@link DropFolderSender}.
+ *
+ * @author Philip Helger
+ * @since 1.3.9
+ */
+@FunctionalInterface
+public interface IDropFolderFileHandler
+{
+  /**
+   * Handle a single claimed file. This method is invoked concurrently from
+   * multiple worker threads.
+   *
+   * @param aFile
+   *        The claimed file inside the working directory. Never
+   *        <code>null</code>. The file is moved after this method returns, so
+   *        it may not be moved or deleted by the handler.
+   * @return <code>true</code> if the file was handled successfully and should
+   *         be moved to the "done" directory, <code>false</code> if it should
+   *         be moved to the "error" directory.
+   * @throws Exception
+   *         In case of an error. The file is moved to the "error" directory.
+   */
+  boolean handleFile (@Nonnull Path aFile) throws Exception;
+}
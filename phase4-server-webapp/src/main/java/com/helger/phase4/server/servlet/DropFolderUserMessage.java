@@ -19,14 +19,15 @@ package com.helger.phase4.server.servlet;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,9 +36,6 @@ import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
 import com.helger.commons.io.file.FilenameHelper;
 import com.helger.commons.io.file.SimpleFileIO;
 import com.helger.commons.io.stream.StreamHelper;
-import com.helger.commons.io.watchdir.EWatchDirAction;
-import com.helger.commons.io.watchdir.IWatchDirCallback;
-import com.helger.commons.io.watchdir.WatchDir;
 import com.helger.commons.timing.StopWatch;
 import com.helger.config.IConfig;
 import com.helger.httpclient.response.ResponseHandlerByteArray;
@@ -58,188 +56,149 @@ import com.helger.phase4.crypto.ECryptoAlgorithmSign;
 import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.dynamicdiscovery.AS4CachingSMPURLProvider;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderPeppol;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.server.dropfolder.DropFolderSender;
 import com.helger.phase4.soap.ESoapVersion;
 import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.sbdh.builder.SBDHReader;
 import com.helger.sbdh.builder.SBDHWriter;
-import com.helger.security.certificate.CertificateHelper;
-import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
 import com.helger.smpclient.peppol.SMPClient;
-import com.helger.smpclient.peppol.utils.W3CEndpointReferenceHelper;
-import com.helger.smpclient.url.IPeppolURLProvider;
+import com.helger.smpclient.url.ISMPURLProvider;
 import com.helger.smpclient.url.PeppolURLProvider;
-import com.helger.xsds.peppol.smp1.EndpointType;
 
+/**
+ * Sends all SBDH files put into the outgoing directory via AS4. The files are
+ * handled concurrently by a {@link DropFolderSender}. The SMP lookups use the
+ * shared SML and SMP endpoint caches, so that many files for the same receiver
+ * only trigger a single lookup.
+ *
+ * @author Philip Helger
+ */
 public final class DropFolderUserMessage
 {
+  /** The default number of files sent in parallel */
+  public static final int DEFAULT_WORKER_COUNT = 8;
+  /** The default rescan interval in seconds */
+  public static final int DEFAULT_RESCAN_SECONDS = 60;
+
   private static final IIdentifierFactory IF = PeppolIdentifierFactory.INSTANCE;
-  private static final IPeppolURLProvider UP = PeppolURLProvider.INSTANCE;
-  private static final String PATH_DONE = "done";
-  private static final String PATH_ERROR = "error";
+  private static final ISMPURLProvider UP = new AS4CachingSMPURLProvider (PeppolURLProvider.INSTANCE);
   private static final Logger LOGGER = LoggerFactory.getLogger (DropFolderUserMessage.class);
-  private static WatchDir s_aWatch;
+  private static DropFolderSender s_aDropFolder;
 
   private DropFolderUserMessage ()
   {}
 
-  private static void _send (@Nonnull final IAS4CryptoFactory aCF, final Path aSendFile, final Path aIncomingDir)
+  private static boolean _send (@Nonnull final IAS4CryptoFactory aCF, final Path aSendFile, final Path aIncomingDir) throws Exception
   {
     final StopWatch aSW = StopWatch.createdStarted ();
-    boolean bSuccess = false;
     LOGGER.info ("Trying to send " + aSendFile.toString ());
     try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
     {
       // Read generic SBD
-      final StandardBusinessDocument aSBD = SBDHReader.standardBusinessDocument ().read (Files.newInputStream (aSendFile));
+      final StandardBusinessDocument aSBD = SBDHReader.standardBusinessDocument ().read (aSendFile.toFile ());
       if (aSBD == null)
       {
         LOGGER.error ("Failed to read " + aSendFile.toString () + " as SBDH document!");
+        return false;
       }
-      else
-      {
-        // Extract Peppol specific data
-        final PeppolSBDHDocument aSBDH = new PeppolSBDHDocumentReader (IF).extractData (aSBD);
-        final ISMPServiceMetadataProvider aSMPClient = new SMPClient (UP, aSBDH.getReceiverAsIdentifier (), ESML.DIGIT_TEST);
-        final EndpointType aEndpoint = aSMPClient.getEndpoint (aSBDH.getReceiverAsIdentifier (),
-                                                               aSBDH.getDocumentTypeAsIdentifier (),
-                                                               aSBDH.getProcessAsIdentifier (),
-                                                               ESMPTransportProfile.TRANSPORT_PROFILE_BDXR_AS4);
-        if (aEndpoint == null)
-        {
-          LOGGER.error ("Found no endpoint for:\n  Receiver ID: " +
-                        aSBDH.getReceiverAsIdentifier ().getURIEncoded () +
-                        "\n  Document type ID: " +
-                        aSBDH.getDocumentTypeAsIdentifier ().getURIEncoded () +
-                        "\n  Process ID: " +
-                        aSBDH.getProcessAsIdentifier ().getURIEncoded ());
-        }
-        else
-        {
-          final KeyStore.PrivateKeyEntry aOurCert = aCF.getPrivateKeyEntry ();
-          final X509Certificate aTheirCert = CertificateHelper.convertStringToCertficate (aEndpoint.getCertificate ());
-
-          final AS4ClientUserMessage aClient = new AS4ClientUserMessage (aResHelper);
-          aClient.setSoapVersion (ESoapVersion.SOAP_12);
-
-          // Keystore data
-          aClient.setAS4CryptoFactory (aCF);
 
-          aClient.signingParams ().setAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_512);
-          aClient.signingParams ().setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_512);
-
-          // FIXME Action, Service etc. are missing
-          aClient.setAction ("xxx");
-          aClient.setServiceType ("xxx");
-          aClient.setServiceValue ("xxx");
-          aClient.setConversationID (MessageHelperMethods.createRandomConversationID ());
-          aClient.setAgreementRefValue ("xxx");
-
-          aClient.setFromRole (CAS4.DEFAULT_ROLE);
-          aClient.setFromPartyID (PeppolCertificateHelper.getSubjectCN ((X509Certificate) aOurCert.getCertificate ()));
-          aClient.setToRole (CAS4.DEFAULT_ROLE);
-          aClient.setToPartyID (PeppolCertificateHelper.getSubjectCN (aTheirCert));
-          aClient.ebms3Properties ()
-                 .setAll (MessageHelperMethods.createEbms3Property (CAS4.ORIGINAL_SENDER,
-                                                                    aSBDH.getSenderScheme (),
-                                                                    aSBDH.getSenderValue ()),
-                          MessageHelperMethods.createEbms3Property (CAS4.FINAL_RECIPIENT,
-                                                                    aSBDH.getReceiverScheme (),
-                                                                    aSBDH.getReceiverValue ()));
-          aClient.setPayload (SBDHWriter.standardBusinessDocument ().getAsDocument (aSBD));
-
-          final IAS4ClientBuildMessageCallback aCallback = null;
-          final IAS4OutgoingDumper aOutgoingDumper = null;
-          final IAS4RetryCallback aRetryCallback = null;
-          final AS4ClientSentMessage <byte []> aResponseEntity = aClient.sendMessageWithRetries (W3CEndpointReferenceHelper.getAddress (aEndpoint.getEndpointReference ()),
-                                                                                                 new ResponseHandlerByteArray (),
-                                                                                                 aCallback,
-                                                                                                 aOutgoingDumper,
-                                                                                                 aRetryCallback);
-          LOGGER.info ("Successfully transmitted document with message ID '" +
-                       aResponseEntity.getMessageID () +
-                       "' for '" +
-                       aSBDH.getReceiverAsIdentifier ().getURIEncoded () +
-                       "' to '" +
-                       W3CEndpointReferenceHelper.getAddress (aEndpoint.getEndpointReference ()) +
-                       "' in " +
-                       aSW.stopAndGetMillis () +
-                       " ms");
-
-          if (aResponseEntity.hasResponse ())
-          {
-            final String sMessageID = aResponseEntity.getMessageID ();
-            final String sFilename = FilenameHelper.getAsSecureValidASCIIFilename (sMessageID) + "-response.xml";
-            final File aResponseFile = aIncomingDir.resolve (sFilename).toFile ();
-            if (SimpleFileIO.writeFile (aResponseFile, aResponseEntity.getResponse ()).isSuccess ())
-              LOGGER.info ("Response file was written to '" + aResponseFile.getAbsolutePath () + "'");
-            else
-              LOGGER.error ("Error writing response file to '" + aResponseFile.getAbsolutePath () + "'");
-          }
-
-          bSuccess = true;
-        }
-      }
-    }
-    catch (final Exception ex)
-    {
-      LOGGER.error ("Error sending " + aSendFile.toString (), ex);
-    }
-
-    // After the exception handler!
-    {
-      // Move to done or error directory?
-      final Path aDest = aSendFile.resolveSibling (bSuccess ? PATH_DONE : PATH_ERROR).resolve (aSendFile.getFileName ());
-      try
+      // Extract Peppol specific data
+      final PeppolSBDHDocument aSBDH = new PeppolSBDHDocumentReader (IF).extractData (aSBD);
+
+      // Uses the shared SMP endpoint cache
+      final AS4EndpointDetailProviderPeppol aEndpointDetailProvider = new AS4EndpointDetailProviderPeppol (new SMPClient (UP,
+                                                                                                                          aSBDH.getReceiverAsIdentifier (),
+                                                                                                                          ESML.DIGIT_TEST));
+      aEndpointDetailProvider.setTransportProfile (ESMPTransportProfile.TRANSPORT_PROFILE_BDXR_AS4);
+      aEndpointDetailProvider.init (aSBDH.getDocumentTypeAsIdentifier (),
+                                    aSBDH.getProcessAsIdentifier (),
+                                    aSBDH.getReceiverAsIdentifier ());
+      final String sEndpointURL = aEndpointDetailProvider.getReceiverAPEndpointURL ();
+
+      final KeyStore.PrivateKeyEntry aOurCert = aCF.getPrivateKeyEntry ();
+      final X509Certificate aTheirCert = aEndpointDetailProvider.getReceiverAPCertificate ();
+
+      final AS4ClientUserMessage aClient = new AS4ClientUserMessage (aResHelper);
+      aClient.setSoapVersion (ESoapVersion.SOAP_12);
+
+      // Keystore data
+      aClient.setAS4CryptoFactory (aCF);
+
+      aClient.signingParams ().setAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_512);
+      aClient.signingParams ().setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_512);
+
+      // FIXME Action, Service etc. are missing
+      aClient.setAction ("xxx");
+      aClient.setServiceType ("xxx");
+      aClient.setServiceValue ("xxx");
+      aClient.setConversationID (MessageHelperMethods.createRandomConversationID ());
+      aClient.setAgreementRefValue ("xxx");
+
+      aClient.setFromRole (CAS4.DEFAULT_ROLE);
+      aClient.setFromPartyID (PeppolCertificateHelper.getSubjectCN ((X509Certificate) aOurCert.getCertificate ()));
+      aClient.setToRole (CAS4.DEFAULT_ROLE);
+      aClient.setToPartyID (PeppolCertificateHelper.getSubjectCN (aTheirCert));
+      aClient.ebms3Properties ()
+             .setAll (MessageHelperMethods.createEbms3Property (CAS4.ORIGINAL_SENDER, aSBDH.getSenderScheme (), aSBDH.getSenderValue ()),
+                      MessageHelperMethods.createEbms3Property (CAS4.FINAL_RECIPIENT,
+                                                                aSBDH.getReceiverScheme (),
+                                                                aSBDH.getReceiverValue ()));
+      aClient.setPayload (SBDHWriter.standardBusinessDocument ().getAsDocument (aSBD));
+
+      final IAS4ClientBuildMessageCallback aCallback = null;
+      final IAS4OutgoingDumper aOutgoingDumper = null;
+      final IAS4RetryCallback aRetryCallback = null;
+      final AS4ClientSentMessage <byte []> aResponseEntity = aClient.sendMessageWithRetries (sEndpointURL,
+                                                                                             new ResponseHandlerByteArray (),
+                                                                                             aCallback,
+                                                                                             aOutgoingDumper,
+                                                                                             aRetryCallback);
+      LOGGER.info ("Successfully transmitted document with message ID '" +
+                   aResponseEntity.getMessageID () +
+                   "' for '" +
+                   aSBDH.getReceiverAsIdentifier ().getURIEncoded () +
+                   "' to '" +
+                   sEndpointURL +
+                   "' in " +
+                   aSW.stopAndGetMillis () +
+                   " ms");
+
+      if (aResponseEntity.hasResponse ())
       {
-        Files.move (aSendFile, aDest);
-      }
-      catch (final IOException ex)
-      {
-        LOGGER.error ("Error moving from '" + aSendFile.toString () + "' to '" + aDest + "'", ex);
+        final String sMessageID = aResponseEntity.getMessageID ();
+        final String sFilename = FilenameHelper.getAsSecureValidASCIIFilename (sMessageID) + "-response.xml";
+        final File aResponseFile = aIncomingDir.resolve (sFilename).toFile ();
+        if (SimpleFileIO.writeFile (aResponseFile, aResponseEntity.getResponse ()).isSuccess ())
+          LOGGER.info ("Response file was written to '" + aResponseFile.getAbsolutePath () + "'");
+        else
+          LOGGER.error ("Error writing response file to '" + aResponseFile.getAbsolutePath () + "'");
       }
+      return true;
     }
   }
 
   public static void init (@Nonnull final IAS4CryptoFactory aCryptoFactory)
   {
-    if (s_aWatch != null)
+    if (s_aDropFolder != null)
       throw new IllegalStateException ("Already inited!");
 
     final IConfig aConfig = AS4Configuration.getConfig ();
     final Path aOutgoingDir = Paths.get (aConfig.getAsString ("server.directory.outgoing", "out"));
     final Path aIncomingDir = Paths.get (aConfig.getAsString ("server.directory.incoming", "in"));
+    final int nWorkerCount = aConfig.getAsInt ("server.directory.outgoing.workers", DEFAULT_WORKER_COUNT);
+    final int nRescanSeconds = aConfig.getAsInt ("server.directory.outgoing.rescanseconds", DEFAULT_RESCAN_SECONDS);
 
     try
     {
-      // Ensure directories are present
-      Files.createDirectories (aOutgoingDir.resolve (PATH_DONE));
-      Files.createDirectories (aOutgoingDir.resolve (PATH_ERROR));
       Files.createDirectories (aIncomingDir);
 
-      // Start watching directory for changes
-      final IWatchDirCallback aCB = (eAction, aCurFile) -> {
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("WatchEvent " + eAction + " - " + aCurFile);
-        if (!eAction.equals (EWatchDirAction.DELETE) &&
-            aCurFile.toFile ().isFile () &&
-            aCurFile.getFileName () != null &&
-            aCurFile.getFileName ().toString ().endsWith (".xml"))
-        {
-          _send (aCryptoFactory, aCurFile, aIncomingDir);
-        }
-      };
-      s_aWatch = WatchDir.createAsyncRunningWatchDir (aOutgoingDir, false, aCB);
-
-      // Send initially for all existing files
-      try (final DirectoryStream <Path> aStream = Files.newDirectoryStream (aOutgoingDir,
-                                                                            x -> x.toFile ().isFile () &&
-                                                                                 x.getFileName () != null &&
-                                                                                 x.getFileName ().toString ().endsWith (".xml")))
-      {
-        for (final Path aCur : aStream)
-          _send (aCryptoFactory, aCur, aIncomingDir);
-      }
+      s_aDropFolder = new DropFolderSender (aOutgoingDir,
+                                            nWorkerCount,
+                                            x -> x.getFileName ().toString ().endsWith (".xml"),
+                                            x -> _send (aCryptoFactory, x, aIncomingDir)).start (Duration.ofSeconds (nRescanSeconds));
     }
     catch (final IOException ex)
     {
@@ -248,13 +207,23 @@ public final class DropFolderUserMessage
     }
   }
 
+  /**
+   * @return The running drop folder or <code>null</code> if not initialized.
+   *         Can be used to query the metrics.
+   */
+  @Nullable
+  public static DropFolderSender getDropFolder ()
+  {
+    return s_aDropFolder;
+  }
+
   public static void destroy ()
   {
-    if (s_aWatch != null)
+    if (s_aDropFolder != null)
     {
-      StreamHelper.close (s_aWatch);
-      s_aWatch = null;
-      LOGGER.info ("Successfully shutdown WatchDir");
+      StreamHelper.close (s_aDropFolder);
+      LOGGER.info ("Successfully shutdown drop folder: " + s_aDropFolder);
+      s_aDropFolder = null;
     }
   }
 }
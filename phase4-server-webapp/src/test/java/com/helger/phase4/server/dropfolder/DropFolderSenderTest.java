@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.dropfolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.SimpleFileIO;
+
+/**
+ * Test class for class {@link DropFolderSender}.
+ *
+ * @author Philip Helger
+ */
+public final class DropFolderSenderTest
+{
+  private static void _waitForFinished (@Nonnull final DropFolderSender aDF, final long nExpected)
+  {
+    final long nEnd = System.currentTimeMillis () + 30_000;
+    while (aDF.getSuccessCount () + aDF.getFailureCount () < nExpected && System.currentTimeMillis () < nEnd)
+      ThreadHelper.sleep (20);
+  }
+
+  private static void _write (@Nonnull final Path aFile)
+  {
+    SimpleFileIO.writeFile (aFile.toFile (), aFile.getFileName ().toString (), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testDrainAndRecover () throws Exception
+  {
+    final File aBaseDir = new File ("target/dropfolder-test");
+    FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aBaseDir);
+    final Path aOutgoingDir = aBaseDir.toPath ();
+    Files.createDirectories (aOutgoingDir.resolve (DropFolderSender.PATH_WORKING));
+
+    // Claimed before a "crash"
+    _write (aOutgoingDir.resolve (DropFolderSender.PATH_WORKING).resolve ("recovered.xml"));
+    final int nFiles = 200;
+    for (int i = 0; i < nFiles; ++i)
+      _write (aOutgoingDir.resolve ("file" + i + ".xml"));
+    // Not matching the filter
+    _write (aOutgoingDir.resolve ("ignored.tmp"));
+
+    final Set <String> aHandled = ConcurrentHashMap.newKeySet ();
+    final IDropFolderFileHandler aHandler = aFile -> {
+      final String sName = aFile.getFileName ().toString ();
+      assertTrue (aFile.getParent ().endsWith (DropFolderSender.PATH_WORKING));
+      // Each file is handled only once
+      assertTrue (aHandled.add (sName));
+      if (sName.equals ("file1.xml"))
+        throw new IllegalStateException ("Simulated failure");
+      return !sName.startsWith ("file1");
+    };
+
+    try (final DropFolderSender aDF = new DropFolderSender (aOutgoingDir,
+                                                            8,
+                                                            x -> x.getFileName ().toString ().endsWith (".xml"),
+                                                            aHandler).start (Duration.ofMillis (100)))
+    {
+      _waitForFinished (aDF, nFiles + 1);
+      assertEquals (nFiles + 1, aHandled.size ());
+      assertEquals (1, aDF.getRecoveredCount ());
+      // file1 and file10..file199
+      assertEquals (111, aDF.getFailureCount ());
+      assertEquals (nFiles + 1 - 111, aDF.getSuccessCount ());
+
+      // Files dropped later are picked up as well
+      _write (aOutgoingDir.resolve ("later.xml"));
+      _waitForFinished (aDF, nFiles + 2);
+      assertTrue (aHandled.contains ("later.xml"));
+
+      // Wait until the last file was moved
+      final long nEnd = System.currentTimeMillis () + 10_000;
+      while (aDF.getBacklogCount () > 0 && System.currentTimeMillis () < nEnd)
+        ThreadHelper.sleep (20);
+      assertEquals (0, aDF.getBacklogCount ());
+    }
+
+    assertEquals (111, aOutgoingDir.resolve (DropFolderSender.PATH_ERROR).toFile ().list ().length);
+    assertEquals (nFiles + 2 - 111, aOutgoingDir.resolve (DropFolderSender.PATH_DONE).toFile ().list ().length);
+    assertEquals (0, aOutgoingDir.resolve (DropFolderSender.PATH_WORKING).toFile ().list ().length);
+    assertTrue (Files.exists (aOutgoingDir.resolve ("ignored.tmp")));
+    assertFalse (Files.exists (aOutgoingDir.resolve ("file0.xml")));
+  }
+
+  @Test
+  public void testSameNameIsKept () throws Exception
+  {
+    final File aBaseDir = new File ("target/dropfolder-test-samename");
+    FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aBaseDir);
+    final Path aOutgoingDir = aBaseDir.toPath ();
+    Files.createDirectories (aOutgoingDir);
+
+    try (final DropFolderSender aDF = new DropFolderSender (aOutgoingDir,
+                                                            1,
+                                                            x -> x.getFileName ().toString ().endsWith (".xml"),
+                                                            aFile -> true).start (Duration.ofMillis (100)))
+    {
+      for (int i = 1; i <= 3; ++i)
+      {
+        _write (aOutgoingDir.resolve ("same.xml"));
+        _waitForFinished (aDF, i);
+        final long nEnd = System.currentTimeMillis () + 10_000;
+        while (aDF.getBacklogCount () > 0 && System.currentTimeMillis () < nEnd)
+          ThreadHelper.sleep (20);
+      }
+    }
+
+    final Path aDoneDir = aOutgoingDir.resolve (DropFolderSender.PATH_DONE);
+    assertEquals (3, aDoneDir.toFile ().list ().length);
+    assertTrue (Files.exists (aDoneDir.resolve ("same.xml")));
+    assertTrue (Files.exists (aDoneDir.resolve ("same-1.xml")));
+    assertTrue (Files.exists (aDoneDir.resolve ("same-2.xml")));
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.attr.IStringMap;
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.ScopedConfig;
+import com.helger.phase4.attachment.Phase4OutgoingAttachment;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.http.HttpMimeMessageEntity;
+import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.inbox.AS4Inbox;
+import com.helger.phase4.messaging.crypto.AS4Encryptor;
+import com.helger.phase4.messaging.domain.AS4UserMessage;
+import com.helger.phase4.messaging.mime.AS4MimeMessage;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test the fast acknowledgement via the {@link AS4Inbox}.
+ *
+ * @author Philip Helger
+ */
+public final class UserMessageInboxTest extends AbstractUserMessageTestSetUp
+{
+  private static final ESoapVersion SOAP_VERSION = ESoapVersion.AS4_DEFAULT;
+
+  @Nonnull
+  private static ScopedConfig _createInboxConfig ()
+  {
+    final IStringMap aSettings = new StringMap ();
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_INBOX_ENABLED, true);
+    aSettings.putIn (AS4Configuration.PROPERTY_PHASE4_INBOX_PATH, "target/phase4-inbox-test");
+    return ScopedConfig.createTestConfig (aSettings);
+  }
+
+  private static void _waitFor (final LongSupplier aSupplier, final long nExpected)
+  {
+    for (int i = 0; i < 200 && aSupplier.getAsLong () != nExpected; ++i)
+      ThreadHelper.sleep (50);
+    assertEquals (nExpected, aSupplier.getAsLong ());
+  }
+
+  @Test
+  public void testEncryptedAttachmentIsProcessedAfterReceipt () throws Exception
+  {
+    try (final ScopedConfig aSC = _createInboxConfig ())
+    {
+      final AS4Inbox aInbox = AS4Inbox.getInstance ();
+      final long nProcessed = aInbox.getProcessedCount ();
+
+      final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+      aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (Phase4OutgoingAttachment.builder ()
+                                                                                              .data (ClassPathResource.getAsFile (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML))
+                                                                                              .mimeTypeXML ()
+                                                                                              .build (),
+                                                                      s_aResMgr));
+
+      final AS4UserMessage aMsg = MockMessages.createUserMessageNotSigned (SOAP_VERSION, null, aAttachments);
+      final AS4MimeMessage aMimeMsg = AS4Encryptor.encryptMimeMessage (SOAP_VERSION,
+                                                                       aMsg.getAsSoapDocument (),
+                                                                       aAttachments,
+                                                                       m_aCryptoFactory,
+                                                                       false,
+                                                                       s_aResMgr,
+                                                                       m_aCryptParams);
+      final String sResponse = sendMimeMessage (new HttpMimeMessageEntity (aMimeMsg), true, null);
+      assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+
+      // SPIs are invoked after the receipt was sent
+      _waitFor (aInbox::getProcessedCount, nProcessed + 1);
+      assertEquals (0, aInbox.getPendingCount ());
+      assertEquals (0, aInbox.getFailedCount ());
+    }
+  }
+
+  @Test
+  public void testSoapBodyPayloadIsProcessedAfterReceipt () throws Exception
+  {
+    try (final ScopedConfig aSC = _createInboxConfig ())
+    {
+      final AS4Inbox aInbox = AS4Inbox.getInstance ();
+      final long nProcessed = aInbox.getProcessedCount ();
+
+      final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML));
+      final Document aDoc = MockMessages.createUserMessageNotSigned (SOAP_VERSION, aPayload, null).getAsSoapDocument (aPayload);
+      final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, SOAP_VERSION.getMimeType ()), true, null);
+      assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+
+      _waitFor (aInbox::getProcessedCount, nProcessed + 1);
+      assertEquals (0, aInbox.getFailedCount ());
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.http.CHttp;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.HttpClientSettings;
+import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.server.MockJettySetup;
+import com.helger.phase4.soap.ESoapVersion;
+
+/**
+ * Test class for class {@link com.helger.phase4.servlet.AS4AsyncServlet}. The
+ * servlet is mapped to "/as4async" in the test web application.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncServletTest extends AbstractUserMessageTestSetUpExt
+{
+  @Test
+  public void testPingViaAsyncServlet () throws Exception
+  {
+    final Document aDoc = modifyUserMessage (null, null, null, createDefaultProperties (), null, null, null);
+
+    final HttpPost aPost = new HttpPost (MockJettySetup.getServerAddressFromSettings () + "async");
+    aPost.setEntity (new HttpXMLEntity (aDoc, ESoapVersion.AS4_DEFAULT.getMimeType ()));
+
+    try (final CloseableHttpClient aHttpClient = new HttpClientFactory (new HttpClientSettings ()).createHttpClient ();
+         final CloseableHttpResponse aHttpResponse = aHttpClient.execute (aPost))
+    {
+      final String sResponse = EntityUtils.toString (aHttpResponse.getEntity ());
+      assertEquals (sResponse, CHttp.HTTP_OK, aHttpResponse.getStatusLine ().getStatusCode ());
+      assertTrue (sResponse, sResponse.contains ("Receipt"));
+      assertFalse (sResponse, sResponse.contains ("Error"));
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.spi;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.servlet.IAS4MessageState;
+import com.helger.phase4.servlet.spi.AS4MessageProcessorResult;
+import com.helger.phase4.servlet.spi.AS4SignalMessageProcessorResult;
+import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Abstract independent test implementation of
+ * {@link IAS4ServletMessageProcessorSPI} that fully reads the payload and all
+ * attachments, to ensure that concurrently invoked processors can read them.
+ *
+ * @author Philip Helger
+ */
+public abstract class AbstractMockIndependentProcessorSPI implements IAS4ServletMessageProcessorSPI
+{
+  public boolean isIndependent ()
+  {
+    return true;
+  }
+
+  @Nonnull
+  public AS4MessageProcessorResult processAS4UserMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                          @Nonnull final HttpHeaderMap aHttpHeaders,
+                                                          @Nonnull final Ebms3UserMessage aUserMessage,
+                                                          @Nonnull final IPMode aPMode,
+                                                          @Nullable final Node aPayload,
+                                                          @Nullable final ICommonsList <WSS4JAttachment> aIncomingAttachments,
+                                                          @Nonnull final IAS4MessageState aState,
+                                                          @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages)
+  {
+    if (aPayload != null && XMLWriter.getNodeAsString (aPayload) == null)
+      throw new IllegalStateException ("Failed to serialize the payload");
+
+    if (aIncomingAttachments != null)
+      for (final WSS4JAttachment aAttachment : aIncomingAttachments)
+      {
+        final InputStream aIS = aAttachment.getSourceStream ();
+        if (StreamHelper.getAllBytes (aIS) == null)
+          throw new IllegalStateException ("Failed to read attachment '" + aAttachment.getId () + "'");
+      }
+
+    return AS4MessageProcessorResult.createSuccess ();
+  }
+
+  @Nonnull
+  public AS4SignalMessageProcessorResult processAS4SignalMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                                  @Nonnull final HttpHeaderMap aHttpHeaders,
+                                                                  @Nonnull final Ebms3SignalMessage aSignalMessage,
+                                                                  @Nullable final IPMode aPMode,
+                                                                  @Nonnull final IAS4MessageState aState,
+                                                                  @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages)
+  {
+    return AS4SignalMessageProcessorResult.createSuccess ();
+  }
+}
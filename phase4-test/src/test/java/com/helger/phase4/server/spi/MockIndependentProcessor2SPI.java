@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2015-2022 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.spi;
+
+import com.helger.commons.annotation.IsSPIImplementation;
+
+/**
+ * Independent test implementation of
+ * {@link com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI}
+ *
+ * @author Philip Helger
+ */
+@IsSPIImplementation
+public class MockIndependentProcessor2SPI extends AbstractMockIndependentProcessorSPI
+{}